@@ -26,6 +26,7 @@ package metalign;
  *  <li><code>-m INT</code> = For beat tracking and hierarchy detection, throw out notes whose length is shorter than INT microseconds, once extended.</li>
  *  <li><code>-s INT</code> = Use INT as the sub beat length.</li>
  *  <li><code>-b INT</code> = Use INT as the beam size.</li>
+ *  <li><code>-i INT</code> = Prune the new hypotheses to the beam after branching every INT hypotheses.</li>
  *  <li><code>-v INT</code> = Use INT as the voice beam size.</li>
  *  <li><code>-E FILE</code> = Print out the evaluation for each hypothesis as well with the given FILE as ground truth.</li>
  *  <li><code>-a FILE</code> = Search recursively under the given FILE for anacrusis files.</li>
@@ -83,12 +84,15 @@ public class ArgumentException extends Exception {
 		sb.append("-BClass = Use the given class for beat tracking. (FromFile or Hmm (default)).\n");
 		sb.append("-HClass = Use the given class for hierarchy detection. (FromFile or lpcfg (default)).\n");
 		sb.append("-g FILE = Load a grammar in from the given file. Used only with -Hlpcfg. Can merge multiple grammars with multiple -g.\n");
+		sb.append("-r FILE = Load the hmm beat tracking and voice splitting parameters from the given parameter file.\n");
 		sb.append("-x = Extract the trees of the song for testing from the loaded grammar when testing. Used only with -Hlpcfg.\n");
 		sb.append("-e = Extend each note within each voice to the next note's onset (default, left in for backwards compatability).\n");
 		sb.append("-f = DO NOT extend each note.\n");
 		sb.append("-m INT = For beat tracking and hierarchy detection, throw out notes whose length is shorter than INT microseconds, once extended. (default = 100000)\n");
 		sb.append("-s INT = Use INT as the sub beat length. (default = 4)\n");
 		sb.append("-b INT = Use INT as the beam size (default = 200).\n");
+		sb.append("-i INT = Prune the new hypotheses to the beam after branching every INT hypotheses. Does not change the output. (default = 1)\n");
+		sb.append("-o INT = Print the tatums, beats, and downbeats online, as soon as all hypotheses agree on them, or once they are INT microseconds behind the latest onset (-1 to wait for agreement). With -j, these lines are printed immediately, each beginning with its file.\n");
 		sb.append("-E FILE = Print out the evaluation for each hypothesis as well with the given FILE as ground truth.\n");
 		sb.append("-a FILE = Search recursively under the given FILE for anacrusis files.\n");
 		sb.append("-L DOUBLE = Set the local grammar weight alpha. (default = 2/3)\n");
@@ -0,0 +1,245 @@
+package metalign;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import metalign.beat.hmm.HmmBeatTrackingModelParameters;
+import metalign.voice.hmm.HmmVoiceSplittingModelParameters;
+
+/**
+ * An <code>HmmParameters</code> object is a named set of parameters for the hmm beat tracker
+ * ({@link HmmBeatTrackingModelParameters}) and the hmm voice splitter ({@link HmmVoiceSplittingModelParameters}).
+ * Sets can be loaded from parameter files, so that retrained parameters can be used without recompiling.
+ * <br>
+ * A parameter file has one parameter per line, in the form <code>NAME = VALUE</code>, where NAME is the name
+ * of a field of either parameters class. Lines beginning with # are comments. Any parameter which is not given
+ * takes its default value. This is the format printed by the
+ * {@link metalign.beat.hmm.HmmBeatTrackingModelTrainer}, which can also write a parameter file directly.
+ * <br>
+ * Each loaded set is registered by name (see {@link #get(String)}), so that a single process can hold many
+ * sets at once. Since each set's derived values are calculated when it is loaded, switching between sets is free.
+ *
+ * @author Andrew McLeod
+ */
+public class HmmParameters {
+	/**
+	 * The name of the default parameter set.
+	 */
+	public static final String DEFAULT_NAME = "default";
+
+	/**
+	 * The default parameter set.
+	 */
+	public static final HmmParameters DEFAULT = new HmmParameters(DEFAULT_NAME,
+			new HmmBeatTrackingModelParameters(), new HmmVoiceSplittingModelParameters(true));
+
+	/**
+	 * Every registered parameter set, by name.
+	 */
+	private static final Map<String, HmmParameters> SETS = new ConcurrentHashMap<String, HmmParameters>();
+
+	static {
+		register(DEFAULT);
+	}
+
+	/**
+	 * The name of this parameter set.
+	 */
+	private final String name;
+
+	/**
+	 * The beat tracking parameters.
+	 */
+	private final HmmBeatTrackingModelParameters beatParameters;
+
+	/**
+	 * The voice splitting parameters.
+	 */
+	private final HmmVoiceSplittingModelParameters voiceParameters;
+
+	/**
+	 * Create a new parameter set.
+	 *
+	 * @param name {@link #name}
+	 * @param beatParameters {@link #beatParameters}
+	 * @param voiceParameters {@link #voiceParameters}
+	 */
+	public HmmParameters(String name, HmmBeatTrackingModelParameters beatParameters, HmmVoiceSplittingModelParameters voiceParameters) {
+		this.name = name;
+		this.beatParameters = beatParameters;
+		this.voiceParameters = voiceParameters;
+	}
+
+	/**
+	 * Load a parameter set from the given file, and register it with the file's path as its name.
+	 *
+	 * @param file The parameter file.
+	 * @return The loaded parameter set.
+	 *
+	 * @throws IOException The file could not be read, or it contains an invalid value.
+	 */
+	public static HmmParameters load(File file) throws IOException {
+		return load(file.getPath(), file);
+	}
+
+	/**
+	 * Load a parameter set from the given file, and register it with the given name.
+	 *
+	 * @param name The name of the parameter set.
+	 * @param file The parameter file.
+	 * @return The loaded parameter set.
+	 *
+	 * @throws FileNotFoundException The file could not be found.
+	 * @throws IOException The file could not be read, or it contains an invalid value.
+	 */
+	public static HmmParameters load(String name, File file) throws FileNotFoundException, IOException {
+		Properties properties = new Properties();
+
+		Reader reader = new FileReader(file);
+		try {
+			properties.load(reader);
+		} finally {
+			reader.close();
+		}
+
+		HmmParameters parameters;
+		try {
+			parameters = new HmmParameters(name,
+					new HmmBeatTrackingModelParameters(properties),
+					new HmmVoiceSplittingModelParameters(properties, DEFAULT.voiceParameters));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Error reading parameter file " + file + ": " + e.getLocalizedMessage(), e);
+		}
+
+		register(parameters);
+		return parameters;
+	}
+
+	/**
+	 * Register the given parameter set by its name, replacing any set already registered with that name.
+	 *
+	 * @param parameters The parameter set to register.
+	 */
+	public static void register(HmmParameters parameters) {
+		SETS.put(parameters.name, parameters);
+	}
+
+	/**
+	 * Get the registered parameter set with the given name.
+	 *
+	 * @param name The name of the parameter set.
+	 * @return The parameter set with the given name, or null if none is registered.
+	 */
+	public static HmmParameters get(String name) {
+		return SETS.get(name);
+	}
+
+	/**
+	 * Write this parameter set out to the given file, in the parameter file format.
+	 *
+	 * @param file The file to write to.
+	 *
+	 * @throws FileNotFoundException The file could not be opened for writing.
+	 */
+	public void write(File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		print(out);
+		out.close();
+	}
+
+	/**
+	 * Print this parameter set to the given stream, in the parameter file format.
+	 *
+	 * @param out The stream to print to.
+	 */
+	public void print(PrintStream out) {
+		out.println("# Hmm beat tracking parameters");
+		beatParameters.print(out);
+		out.println();
+		out.println("# Hmm voice splitting parameters");
+		voiceParameters.print(out);
+	}
+
+	/**
+	 * Get the name of this parameter set.
+	 *
+	 * @return {@link #name}
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the beat tracking parameters.
+	 *
+	 * @return {@link #beatParameters}
+	 */
+	public HmmBeatTrackingModelParameters getBeatParameters() {
+		return beatParameters;
+	}
+
+	/**
+	 * Get the voice splitting parameters.
+	 *
+	 * @return {@link #voiceParameters}
+	 */
+	public HmmVoiceSplittingModelParameters getVoiceParameters() {
+		return voiceParameters;
+	}
+
+	/**
+	 * Get a double parameter from the given properties.
+	 *
+	 * @param properties The properties loaded from a parameter file.
+	 * @param key The name of the parameter.
+	 * @param defaultValue The value to return if the parameter is not given.
+	 * @return The value of the parameter.
+	 * @throws IllegalArgumentException If the given value is not a number.
+	 */
+	public static double getDouble(Properties properties, String key, double defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ". Must be a number: " + value);
+		}
+	}
+
+	/**
+	 * Get an int parameter from the given properties.
+	 *
+	 * @param properties The properties loaded from a parameter file.
+	 * @param key The name of the parameter.
+	 * @param defaultValue The value to return if the parameter is not given.
+	 * @return The value of the parameter.
+	 * @throws IllegalArgumentException If the given value is not an integer.
+	 */
+	public static int getInt(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + key + ". Must be an integer: " + value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
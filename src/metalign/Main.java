@@ -1,10 +1,16 @@
 package metalign;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.xml.parsers.ParserConfigurationException;
@@ -13,7 +19,6 @@ import org.xml.sax.SAXException;
 
 import metalign.beat.BeatTrackingModelState;
 import metalign.beat.fromfile.FromFileBeatTrackingModelState;
-import metalign.beat.hmm.HmmBeatTrackingModelParameters;
 import metalign.beat.hmm.HmmBeatTrackingModelState;
 import metalign.hierarchy.HierarchyModelState;
 import metalign.hierarchy.fromfile.FromFileHierarchyModelState;
@@ -22,13 +27,14 @@ import metalign.hierarchy.lpcfg.MetricalLpcfgElementNotFoundException;
 import metalign.hierarchy.lpcfg.MetricalLpcfgHierarchyModelState;
 import metalign.joint.JointModel;
 import metalign.joint.JointModelState;
+import metalign.joint.StreamingJointModel;
 import metalign.parsing.EventParser;
 import metalign.parsing.NoteListGenerator;
 import metalign.time.TimeTracker;
 import metalign.utils.Evaluator;
+import metalign.utils.MidiNote;
 import metalign.voice.VoiceSplittingModelState;
 import metalign.voice.fromfile.FromFileVoiceSplittingModelState;
-import metalign.voice.hmm.HmmVoiceSplittingModelParameters;
 import metalign.voice.hmm.HmmVoiceSplittingModelState;
 
 /**
@@ -56,6 +62,8 @@ public class Main {
 
 	public static int BEAM_SIZE = 200;
 
+	public static int BEAM_PRUNE_INTERVAL = 1;
+
 	public static int SUB_BEAT_LENGTH = 4;
 
 	public static int MIN_NOTE_LENGTH = 100000;
@@ -66,6 +74,16 @@ public class Main {
 
 	public static boolean TS_CHECK = true;
 
+	public static double LOCAL_WEIGHT = 0.5;
+
+	public static int EXPANSION_THREADS = 1;
+
+	public static boolean ONLINE = false;
+
+	public static long COMMIT_LAG = -1;
+
+	public static HmmParameters HMM_PARAMETERS = HmmParameters.DEFAULT;
+
 	/**
 	 * The main method for running this program. Run with no args to print help.
 	 *
@@ -88,6 +106,7 @@ public class Main {
 		File groundTruth = null;
 		MetricalLpcfg grammar = new MetricalLpcfg();
 		boolean extract = false;
+		int jobs = 1;
 
 		// No args given
 		if (args.length == 0) {
@@ -164,7 +183,7 @@ public class Main {
 								argumentError("No local weight given with -L option.");
 							}
 							try {
-								MetricalLpcfgHierarchyModelState.LOCAL_WEIGHT = Double.parseDouble(args[i]);
+								LOCAL_WEIGHT = Double.parseDouble(args[i]);
 							} catch (NumberFormatException e) {
 								argumentError("Exception reading local weight. Must be a double: " + args[i]);
 							}
@@ -223,6 +242,19 @@ public class Main {
 							}
 							break;
 
+						// Hmm parameter file
+						case 'r':
+							i++;
+							if (args.length == i) {
+								argumentError("No parameter file given with -r option.");
+							}
+							try {
+								HMM_PARAMETERS = HmmParameters.load(new File(args[i]));
+							} catch (IOException e) {
+								argumentError("Exception loading parameter file " + args[i] + ": " + e.getLocalizedMessage());
+							}
+							break;
+
 						// Also print evaluation (give ground truth file)
 						case 'E':
 							i++;
@@ -248,6 +280,71 @@ public class Main {
 							}
 							break;
 
+						// Beam pruning interval
+						case 'i':
+							i++;
+							if (args.length == i) {
+								argumentError("No pruning interval given with -i option.");
+							}
+							try {
+								BEAM_PRUNE_INTERVAL = Integer.parseInt(args[i]);
+							} catch (NumberFormatException e) {
+								argumentError("Exception reading pruning interval. Must be an integer: " + args[i]);
+							}
+							if (BEAM_PRUNE_INTERVAL < 1) {
+								argumentError("Pruning interval must be at least 1: " + args[i]);
+							}
+							break;
+
+						// Batch jobs
+						case 'j':
+							i++;
+							if (args.length == i) {
+								argumentError("No job count given with -j option.");
+							}
+							try {
+								jobs = Integer.parseInt(args[i]);
+							} catch (NumberFormatException e) {
+								argumentError("Exception reading job count. Must be an integer: " + args[i]);
+							}
+							if (jobs < 1) {
+								argumentError("Job count must be at least 1: " + args[i]);
+							}
+							break;
+
+						// Expansion threads
+						case 't':
+							i++;
+							if (args.length == i) {
+								argumentError("No thread count given with -t option.");
+							}
+							try {
+								EXPANSION_THREADS = Integer.parseInt(args[i]);
+							} catch (NumberFormatException e) {
+								argumentError("Exception reading thread count. Must be an integer: " + args[i]);
+							}
+							if (EXPANSION_THREADS < 1) {
+								argumentError("Thread count must be at least 1: " + args[i]);
+							}
+							break;
+
+						// Online output
+						case 'o':
+							i++;
+							if (args.length == i) {
+								argumentError("No commit lag given with -o option.");
+							}
+							try {
+								COMMIT_LAG = Long.parseLong(args[i]);
+							} catch (NumberFormatException e) {
+								argumentError("Exception reading commit lag. Must be an integer: " + args[i]);
+							}
+							if (COMMIT_LAG < -1) {
+								argumentError("Commit lag must be at least -1: " + args[i]);
+							}
+							ONLINE = true;
+							break;
+
 						// Error
 						default:
 							argumentError("Unrecognized option: " + args[i]);
@@ -280,6 +377,17 @@ public class Main {
 			argumentError("No grammar given with -Hlpcfg option. Use -g FILE to specify a grammar.");
 		}
 
+		// The global grammar is never changed, so it can be scored from compiled tables (with -x, each file's extracted copy is compiled instead)
+		if ("lpcfg".equalsIgnoreCase(hierarchyClass) && !extract) {
+			grammar.getProbabilityTracker().setCompiled(true);
+		}
+
+		for (String modelClass : new String[] {voiceClass, beatClass, hierarchyClass}) {
+			if ("FromFile".equalsIgnoreCase(modelClass)) {
+				NUM_FROM_FILE++;
+			}
+		}
+
 		// Print out chosen options
 		if (VERBOSE) {
 			System.out.println((SUPER_VERBOSE ? "Super " : "") + "Verbose mode");
@@ -302,8 +410,19 @@ public class Main {
 				System.out.println((extract ? "Extracting" : "Not extracting") + " trees from grammar");
 			}
 
+			if ("Hmm".equalsIgnoreCase(voiceClass) || "Hmm".equalsIgnoreCase(beatClass)) {
+				System.out.println("Using hmm parameters " + HMM_PARAMETERS);
+			}
+
 			System.out.println("Using sub beat length " + SUB_BEAT_LENGTH);
 			System.out.println("Using beam size " + BEAM_SIZE);
+			System.out.println("Pruning to the beam every " + BEAM_PRUNE_INTERVAL + " hypothes" + (BEAM_PRUNE_INTERVAL == 1 ? "is" : "es"));
+			System.out.println("Using " + EXPANSION_THREADS + " expansion thread" + (EXPANSION_THREADS == 1 ? "" : "s"));
+			System.out.println("Running " + jobs + " file" + (jobs == 1 ? "" : "s") + " at a time");
+
+			if (ONLINE) {
+				System.out.println("Printing output online" + (COMMIT_LAG == -1 ? " once all hypotheses agree" : " with lag " + COMMIT_LAG));
+			}
 
 			System.out.println((EXTEND_NOTES ? "Extending" : "Not extending") + " notes through rests");
 
@@ -312,138 +431,225 @@ public class Main {
 		}
 
 		// Test
-		for (File file : files) {
-			System.out.println("File: " + file);
+		RunConfiguration config = new RunConfiguration(true);
 
-			TimeTracker tt = new TimeTracker(SUB_BEAT_LENGTH);
-			NoteListGenerator nlg = new NoteListGenerator(tt);
-			EventParser ep;
+		if (jobs == 1) {
+			for (File file : files) {
+				runFile(file, config, voiceClass, beatClass, hierarchyClass, grammar, extract, anacrusisFiles, useChannel,
+						System.out, System.err, System.out);
+			}
 
-			try {
-				ep = Runner.parseFile(file, nlg, tt, useChannel);
+		} else {
+			// Run the files concurrently, but print each file's output in order. Online output is printed
+			// as soon as it is committed, so it is not buffered.
+			ExecutorService executor = Executors.newFixedThreadPool(jobs);
+			List<Future<String[]>> outputs = new ArrayList<Future<String[]>>(files.size());
+
+			final MetricalLpcfg sharedGrammar = grammar;
+			final String voice = voiceClass, beat = beatClass, hierarchy = hierarchyClass;
+			final boolean channel = useChannel, extractFiles = extract;
+
+			for (File file : files) {
+				outputs.add(executor.submit(() -> {
+					ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+					ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+					PrintStream out = new PrintStream(outBytes);
+					PrintStream err = new PrintStream(errBytes);
+
+					runFile(file, config, voice, beat, hierarchy, sharedGrammar, extractFiles, anacrusisFiles, channel, out, err, System.out);
+
+					out.flush();
+					err.flush();
+					return new String[] {outBytes.toString(), errBytes.toString()};
+				}));
+			}
 
-			} catch (IOException | InvalidMidiDataException e) {
-				System.err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
+			executor.shutdown();
 
-				if (VERBOSE) {
-					e.printStackTrace();
-				}
+			for (Future<String[]> output : outputs) {
+				try {
+					String[] result = output.get();
+					System.out.print(result[0]);
+					System.out.flush();
+					System.err.print(result[1]);
 
-				continue;
-			}
+				} catch (ExecutionException e) {
+					System.err.println("Error running file:\n" + e.getCause().getLocalizedMessage());
 
-			tt.setFirstNoteTime(nlg.getNoteList().get(0).getOnsetTime());
-			if (TS_CHECK && tt.getAllTimeSignatures().size() != 1) {
-				System.err.println("Time change detected. Skipping song " + file);
-				System.err.println("It is recommended to split files on time changes, since the model " +
-								   "cannot output them. This check can be overriden with " +
-								   "the -X flag.");
-				continue;
+					if (VERBOSE) {
+						e.getCause().printStackTrace();
+					}
+				}
 			}
+		}
 
-			if (TS_CHECK && (tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() < 2 || tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() > 4 ||
-					tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() < 2 || tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() > 3)) {
-				System.err.println("Irregular meter detected (" + tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() + "," +
-					tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() + "). Skipping song " + file);
-				System.err.println("It is recommended to skip files with irregular time signatures, since the model " +
-								   "cannot output them. This check can be overriden with " +
-								   "the -X flag.");
-				continue;
-			}
+		if (VERBOSE && "lpcfg".equalsIgnoreCase(hierarchyClass)) {
+			System.out.println("Grammar tree cache: " + grammar.getTreeCache());
+		}
+	}
 
-			JointModel jm = null;
+	/**
+	 * Perform inference on a single file, and print its output.
+	 *
+	 * @param file The file to run on.
+	 * @param config The settings to use for this run.
+	 * @param voiceClass The voice class String.
+	 * @param beatClass The beat class String.
+	 * @param hierarchyClass The hierarchy class String.
+	 * @param grammar The grammar to use, if the hierarchy class is lpcfg.
+	 * @param extract Whether to run with a copy of the grammar which has the file's trees extracted from it.
+	 * @param anacrusisFiles The anacrusis files, used for extraction.
+	 * @param useChannel Whether to use channels (rather than tracks) as the gold standard voices.
+	 * @param out The stream to print the output to.
+	 * @param err The stream to print any errors to.
+	 * @param commitOut The stream to print online output to as it is committed. If this is not out, each
+	 * committed line also names the file, since it may be interleaved with other files' output.
+	 *
+	 * @throws InterruptedException
+	 */
+	private static void runFile(File file, RunConfiguration config, String voiceClass, String beatClass, String hierarchyClass,
+			MetricalLpcfg grammar, boolean extract, List<File> anacrusisFiles, boolean useChannel, PrintStream out, PrintStream err,
+			PrintStream commitOut) throws InterruptedException {
+		out.println("File: " + file);
 
-			if (grammar != null && extract) {
-				try {
-					grammar.extract(file, anacrusisFiles, useChannel);
-				} catch (IOException | InvalidMidiDataException
-						| MetricalLpcfgElementNotFoundException e) {
-					System.err.println("Error parsing file " + file +
-							" for grammar extraction:\n" + e.getLocalizedMessage());
+		TimeTracker tt = new TimeTracker(config.SUB_BEAT_LENGTH);
+		NoteListGenerator nlg = new NoteListGenerator(tt);
+		EventParser ep;
 
-					if (VERBOSE) {
-						e.printStackTrace();
-					}
+		try {
+			ep = Runner.parseFile(file, nlg, tt, useChannel);
 
-					continue;
-				}
+		} catch (IOException | InvalidMidiDataException e) {
+			err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
+
+			if (config.VERBOSE) {
+				e.printStackTrace(err);
 			}
 
-			try {
-				jm = getJointModel(voiceClass, beatClass, hierarchyClass, ep, tt, grammar);
+			return;
+		}
 
-			} catch (InvalidMidiDataException e) {
-				System.err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
+		tt.setFirstNoteTime(nlg.getNoteList().get(0).getOnsetTime());
+		if (config.TS_CHECK && tt.getAllTimeSignatures().size() != 1) {
+			err.println("Time change detected. Skipping song " + file);
+			err.println("It is recommended to split files on time changes, since the model " +
+							   "cannot output them. This check can be overriden with " +
+							   "the -X flag.");
+			return;
+		}
+
+		if (config.TS_CHECK && (tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() < 2 || tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() > 4 ||
+				tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() < 2 || tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() > 3)) {
+			err.println("Irregular meter detected (" + tt.getFirstTimeSignature().getMetricalMeasure().getBeatsPerMeasure() + "," +
+				tt.getFirstTimeSignature().getMetricalMeasure().getSubBeatsPerBeat() + "). Skipping song " + file);
+			err.println("It is recommended to skip files with irregular time signatures, since the model " +
+							   "cannot output them. This check can be overriden with " +
+							   "the -X flag.");
+			return;
+		}
+
+		JointModel jm = null;
 
-				if (VERBOSE) {
-					e.printStackTrace();
+		// The shared grammar is left unchanged, so that files can be extracted from it concurrently
+		MetricalLpcfg fileGrammar = grammar;
+		if (grammar != null && extract) {
+			try {
+				fileGrammar = grammar.getExtractedCopy(file, anacrusisFiles, useChannel, config);
+			} catch (IOException | InvalidMidiDataException
+					| MetricalLpcfgElementNotFoundException e) {
+				err.println("Error parsing file " + file +
+						" for grammar extraction:\n" + e.getLocalizedMessage());
+
+				if (config.VERBOSE) {
+					e.printStackTrace(err);
 				}
 
-				System.exit(1);
+				return;
 			}
+		}
 
-			TESTING = true;
-			Runner.performInference(jm, nlg);
-			TESTING = false;
+		try {
+			jm = getJointModel(voiceClass, beatClass, hierarchyClass, ep, tt, fileGrammar, config);
 
-			if (grammar != null && extract) {
-				try {
-					grammar.unextract(file, anacrusisFiles, useChannel);
-				} catch (IOException | InvalidMidiDataException e) {
-					System.err.println("Error parsing file " + file +
-							" for grammar extraction:\n" + e.getLocalizedMessage());
+		} catch (InvalidMidiDataException e) {
+			err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
 
-					if (VERBOSE) {
-						e.printStackTrace();
-					}
+			if (config.VERBOSE) {
+				e.printStackTrace(err);
+			}
 
-					continue;
-				}
+			return;
+		}
+
+		if (config.ONLINE) {
+			StreamingJointModel sjm = new StreamingJointModel(jm, config.COMMIT_LAG);
+			String commitPrefix = commitOut == out ? "Committed at " : file + ": Committed at ";
+
+			for (List<MidiNote> incoming : nlg.getIncomingLists()) {
+				printCommit(sjm.handleIncoming(incoming), commitPrefix, commitOut);
 			}
 
-			if (VERBOSE) {
-				// Print all choices
-				for (JointModelState jms : jm.getHypotheses()) {
-					System.out.println(jms.getVoiceState());
-					System.out.println(jms.getBeatState());
-					System.out.println(jms.getHierarchyState());
+			printCommit(sjm.close(), commitPrefix, commitOut);
 
-					// Also print score for each
-					if (EVALUATOR != null) {
-						System.out.println(EVALUATOR.evaluate(jms));
-					}
+		} else {
+			Runner.performInference(jm, nlg);
+		}
+
+		if (config.VERBOSE) {
+			// Print all choices
+			for (JointModelState jms : jm.getHypotheses()) {
+				out.println(jms.getVoiceState());
+				out.println(jms.getBeatState());
+				out.println(jms.getHierarchyState());
+
+				// Also print score for each
+				if (config.EVALUATOR != null) {
+					out.println(config.EVALUATOR.evaluate(jms));
 				}
+			}
 
+		} else {
+			// Print only top choices
+			if (jm.getHypotheses().isEmpty()) {
+				out.println("No output generated. This is likely for one of 2 reasons:");
+				out.println();
+				out.println(" 1. The input piece's notes are not in monophonic voices " +
+								   "(small overlaps between notes are fine).");
+				out.println("   - To solve this, use my voice splitter as described in the README, " +
+				                   "Project Overview section.");
+				out.println(" 2. The input is heavily syncopated. The model by default applies the " +
+				                   "Rule of Congruence (see the SMC publication), which aggresively " +
+								   "eliminates hypotheses that look unlikely at the beginning.");
+				out.println("   - If you are using -BFromFile to use the ground truth 32nd-note tatum, " +
+								   "removing this option should solve the issue, although the model's output will " +
+								   "no longer be locked to the 32nd-note pulse.");
+				out.println("   - Use can also add the -c flag to disable this rule (NOT RECOMMENDED).");
+				out.println("   - You should also widen the beam when using this option. (e.g., using \"-b 500\")");
 			} else {
-				// Print only top choices
-				if (jm.getHypotheses().isEmpty()) {
-					System.out.println("No output generated. This is likely for one of 2 reasons:");
-					System.out.println();
-					System.out.println(" 1. The input piece's notes are not in monophonic voices " +
-									   "(small overlaps between notes are fine).");
-					System.out.println("   - To solve this, use my voice splitter as described in the README, " +
-					                   "Project Overview section.");
-					System.out.println(" 2. The input is heavily syncopated. The model by default applies the " +
-					                   "Rule of Congruence (see the SMC publication), which aggresively " +
-									   "eliminates hypotheses that look unlikely at the beginning.");
-					System.out.println("   - If you are using -BFromFile to use the ground truth 32nd-note tatum, " +
-									   "removing this option should solve the issue, although the model's output will " +
-									   "no longer be locked to the 32nd-note pulse.");
-					System.out.println("   - Use can also add the -c flag to disable this rule (NOT RECOMMENDED).");
-					System.out.println("   - You should also widen the beam when using this option. (e.g., using \"-b 500\")");
-				} else {
-					System.out.println("Voices: " + jm.getHypotheses().first().getVoiceState());
-					System.out.println("Beats: " + jm.getHypotheses().first().getBeatState());
-					System.out.println("Hierarchy: " + jm.getHypotheses().first().getHierarchyState());
-					System.out.println("Tatum times: " + jm.getHypotheses().first().getBeatState().getTatumTimesString());
-					System.out.println("Sub-beat times: " + jm.getHypotheses().first().getBeatState().getSubBeatTimesString());
-					System.out.println("Beat times: " + jm.getHypotheses().first().getBeatState().getBeatTimesString());
-					System.out.println("Downbeat times: " + jm.getHypotheses().first().getBeatState().getDownbeatTimesString());
-				}
+				out.println("Voices: " + jm.getHypotheses().first().getVoiceState());
+				out.println("Beats: " + jm.getHypotheses().first().getBeatState());
+				out.println("Hierarchy: " + jm.getHypotheses().first().getHierarchyState());
+				out.println("Tatum times: " + jm.getHypotheses().first().getBeatState().getTatumTimesString());
+				out.println("Sub-beat times: " + jm.getHypotheses().first().getBeatState().getSubBeatTimesString());
+				out.println("Beat times: " + jm.getHypotheses().first().getBeatState().getBeatTimesString());
+				out.println("Downbeat times: " + jm.getHypotheses().first().getBeatState().getDownbeatTimesString());
 			}
 		}
 	}
 
+	/**
+	 * Print the given committed output, if it is not empty.
+	 *
+	 * @param commit The committed output.
+	 * @param prefix The prefix to print before the committed output.
+	 * @param out The stream to print the output to.
+	 */
+	private static void printCommit(StreamingJointModel.Commit commit, String prefix, PrintStream out) {
+		if (!commit.isEmpty()) {
+			out.println(prefix + commit);
+		}
+	}
+
 	/**
 	 * Ensure that the given model class Strings are valid. This method will halt exectution of the code if
 	 * the any of them are not valid.
@@ -506,17 +712,19 @@ public class Main {
 	 * @param hierarchyClass The hierarchy class String.
 	 * @param ep The event parser.
 	 * @param tt The time tracker.
+	 * @param grammar The grammar, used in case the hierarchy class String is lpcfg.
+	 * @param config The settings to use for this run.
 	 *
 	 * @return A joint model which can be used to perform inference jointly.
 	 * @throws InvalidMidiDataException
 	 */
-	private static JointModel getJointModel(String voiceClass, String beatClass, String hierarchyClass, EventParser ep, TimeTracker tt, MetricalLpcfg grammar)
-			throws InvalidMidiDataException {
-		VoiceSplittingModelState vs = getVoiceState(voiceClass, ep);
-		BeatTrackingModelState bs = getBeatState(beatClass, tt);
-		HierarchyModelState hs = getHierarchyState(hierarchyClass, tt, grammar);
+	private static JointModel getJointModel(String voiceClass, String beatClass, String hierarchyClass, EventParser ep, TimeTracker tt, MetricalLpcfg grammar,
+			RunConfiguration config) throws InvalidMidiDataException {
+		VoiceSplittingModelState vs = getVoiceState(voiceClass, ep, config);
+		BeatTrackingModelState bs = getBeatState(beatClass, tt, config);
+		HierarchyModelState hs = getHierarchyState(hierarchyClass, tt, grammar, config);
 
-		return new JointModel(vs, bs, hs);
+		return new JointModel(config, vs, bs, hs);
 	}
 
 	/**
@@ -524,16 +732,16 @@ public class Main {
 	 *
 	 * @param voiceClass The voice class String.
 	 * @param ep An event parser, used in case the voice class String is FromFile (default).
+	 * @param config The settings to use for this run, whose parameters are used in case the voice class String is Hmm.
 	 *
 	 * @return The voice state requested by the voice class String.
 	 * @throws InvalidMidiDataException
 	 */
-	private static VoiceSplittingModelState getVoiceState(String voiceClass, EventParser ep) throws InvalidMidiDataException {
+	private static VoiceSplittingModelState getVoiceState(String voiceClass, EventParser ep, RunConfiguration config) throws InvalidMidiDataException {
 		if ("Hmm".equalsIgnoreCase(voiceClass)) {
-			return new HmmVoiceSplittingModelState(new HmmVoiceSplittingModelParameters(true));
+			return new HmmVoiceSplittingModelState(config.HMM_PARAMETERS.getVoiceParameters());
 		}
 
-		NUM_FROM_FILE++;
 		return new FromFileVoiceSplittingModelState(ep);
 	}
 
@@ -542,15 +750,15 @@ public class Main {
 	 *
 	 * @param beatClass The beat class String.
 	 * @param tt A time tracker, used in case the beat class String is FromFile (default).
+	 * @param config The settings to use for this run, whose parameters are used in case the beat class String is Hmm.
 	 *
 	 * @return The beat state requested by the beat class String.
 	 */
-	private static BeatTrackingModelState getBeatState(String beatClass, TimeTracker tt) {
+	private static BeatTrackingModelState getBeatState(String beatClass, TimeTracker tt, RunConfiguration config) {
 		if ("Hmm".equalsIgnoreCase(beatClass)) {
-			return new HmmBeatTrackingModelState(new HmmBeatTrackingModelParameters());
+			return new HmmBeatTrackingModelState(config.HMM_PARAMETERS.getBeatParameters());
 		}
 
-		NUM_FROM_FILE++;
 		return new FromFileBeatTrackingModelState(tt);
 	}
 
@@ -559,15 +767,16 @@ public class Main {
 	 *
 	 * @param hierarchyClass The hierarchy class String.
 	 * @param tt A time tracker, used in case the hierarchy class String is FromFile (default).
+	 * @param grammar The grammar, used in case the hierarchy class String is lpcfg.
+	 * @param config The settings to use for this run.
 	 *
 	 * @return The hierarchy state requested by the hierarchy class String.
 	 */
-	private static HierarchyModelState getHierarchyState(String hierarchyClass, TimeTracker tt, MetricalLpcfg grammar) {
+	private static HierarchyModelState getHierarchyState(String hierarchyClass, TimeTracker tt, MetricalLpcfg grammar, RunConfiguration config) {
 		if ("lpcfg".equalsIgnoreCase(hierarchyClass)) {
-			return new MetricalLpcfgHierarchyModelState(grammar);
+			return new MetricalLpcfgHierarchyModelState(grammar, config);
 		}
 
-		NUM_FROM_FILE++;
 		return new FromFileHierarchyModelState(tt);
 	}
 
@@ -0,0 +1,168 @@
+package metalign;
+
+import metalign.utils.Evaluator;
+
+/**
+ * A <code>RunConfiguration</code> holds the settings used for a single run of inference. It is immutable,
+ * so that many runs can share one safely when they are performed concurrently (see the -j option of {@link Main}).
+ *
+ * @author Andrew McLeod
+ */
+public class RunConfiguration {
+
+	/**
+	 * Whether to extend each note within each voice to the next note's onset.
+	 */
+	public final boolean EXTEND_NOTES;
+
+	/**
+	 * Whether to print verbose output.
+	 */
+	public final boolean VERBOSE;
+
+	/**
+	 * Whether to print super verbose output.
+	 */
+	public final boolean SUPER_VERBOSE;
+
+	/**
+	 * Whether this run is testing (rather than, for example, extracting trees from a grammar). Verbose
+	 * step-by-step output is only printed while testing.
+	 */
+	public final boolean TESTING;
+
+	/**
+	 * Whether to print logging info at each step.
+	 */
+	public final boolean LOG_STATUS;
+
+	/**
+	 * The evaluator to print evaluations of hypotheses with, or null to not evaluate.
+	 */
+	public final Evaluator EVALUATOR;
+
+	/**
+	 * The beam size, or -1 for no beam.
+	 */
+	public final int BEAM_SIZE;
+
+	/**
+	 * The number of hypotheses to branch between each pruning of the new hypotheses down to the beam.
+	 * This does not change the output, only how much memory is used and how often the pruning is done.
+	 */
+	public final int BEAM_PRUNE_INTERVAL;
+
+	/**
+	 * The sub beat length, or -1 to allow any.
+	 */
+	public final int SUB_BEAT_LENGTH;
+
+	/**
+	 * The minimum length of a note, once extended, or -1 to keep all notes.
+	 */
+	public final int MIN_NOTE_LENGTH;
+
+	/**
+	 * Whether any of the models are read from the input file. If so, the voice state is also used
+	 * when checking hypotheses for duplicates.
+	 */
+	public final boolean USE_FROM_FILE;
+
+	/**
+	 * Whether to use the Rule of Congruence.
+	 */
+	public final boolean USE_CONGRUENCE;
+
+	/**
+	 * Whether to skip files with time changes or irregular time signatures.
+	 */
+	public final boolean TS_CHECK;
+
+	/**
+	 * The weight of the local grammar.
+	 */
+	public final double LOCAL_WEIGHT;
+
+	/**
+	 * The number of threads used to expand hypotheses at each step.
+	 */
+	public final int EXPANSION_THREADS;
+
+	/**
+	 * Whether to print each file's tatums, beats, and downbeats online, as they are committed
+	 * (see {@link metalign.joint.StreamingJointModel}).
+	 */
+	public final boolean ONLINE;
+
+	/**
+	 * The lag, in microseconds, after which output is committed in online mode, or -1 to commit output
+	 * only once all hypotheses agree on it.
+	 */
+	public final long COMMIT_LAG;
+
+	/**
+	 * The parameters for the hmm beat tracker and voice splitter.
+	 */
+	public final HmmParameters HMM_PARAMETERS;
+
+	/**
+	 * Create a new configuration from the current settings in {@link Main}, with {@link #TESTING}
+	 * taken from {@link Main#TESTING}.
+	 */
+	public RunConfiguration() {
+		this(Main.TESTING);
+	}
+
+	/**
+	 * Create a new configuration from the current settings in {@link Main}.
+	 *
+	 * @param testing {@link #TESTING}
+	 */
+	public RunConfiguration(boolean testing) {
+		EXTEND_NOTES = Main.EXTEND_NOTES;
+		VERBOSE = Main.VERBOSE;
+		SUPER_VERBOSE = Main.SUPER_VERBOSE;
+		TESTING = testing;
+		LOG_STATUS = Main.LOG_STATUS;
+		EVALUATOR = Main.EVALUATOR;
+		BEAM_SIZE = Main.BEAM_SIZE;
+		BEAM_PRUNE_INTERVAL = Main.BEAM_PRUNE_INTERVAL;
+		SUB_BEAT_LENGTH = Main.SUB_BEAT_LENGTH;
+		MIN_NOTE_LENGTH = Main.MIN_NOTE_LENGTH;
+		USE_FROM_FILE = Main.NUM_FROM_FILE != 0;
+		USE_CONGRUENCE = Main.USE_CONGRUENCE;
+		TS_CHECK = Main.TS_CHECK;
+		LOCAL_WEIGHT = Main.LOCAL_WEIGHT;
+		EXPANSION_THREADS = Main.EXPANSION_THREADS;
+		ONLINE = Main.ONLINE;
+		COMMIT_LAG = Main.COMMIT_LAG;
+		HMM_PARAMETERS = Main.HMM_PARAMETERS;
+	}
+
+	/**
+	 * Create a copy of the given configuration, with a different {@link #TESTING} value.
+	 *
+	 * @param config The configuration to copy.
+	 * @param testing {@link #TESTING}
+	 */
+	public RunConfiguration(RunConfiguration config, boolean testing) {
+		EXTEND_NOTES = config.EXTEND_NOTES;
+		VERBOSE = config.VERBOSE;
+		SUPER_VERBOSE = config.SUPER_VERBOSE;
+		TESTING = testing;
+		LOG_STATUS = config.LOG_STATUS;
+		EVALUATOR = config.EVALUATOR;
+		BEAM_SIZE = config.BEAM_SIZE;
+		BEAM_PRUNE_INTERVAL = config.BEAM_PRUNE_INTERVAL;
+		SUB_BEAT_LENGTH = config.SUB_BEAT_LENGTH;
+		MIN_NOTE_LENGTH = config.MIN_NOTE_LENGTH;
+		USE_FROM_FILE = config.USE_FROM_FILE;
+		USE_CONGRUENCE = config.USE_CONGRUENCE;
+		TS_CHECK = config.TS_CHECK;
+		LOCAL_WEIGHT = config.LOCAL_WEIGHT;
+		EXPANSION_THREADS = config.EXPANSION_THREADS;
+		ONLINE = config.ONLINE;
+		COMMIT_LAG = config.COMMIT_LAG;
+		HMM_PARAMETERS = config.HMM_PARAMETERS;
+	}
+}
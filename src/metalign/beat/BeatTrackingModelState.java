@@ -104,6 +104,20 @@ public abstract class BeatTrackingModelState extends MidiModelState {
 	 */
 	public abstract boolean isDuplicateOf(BeatTrackingModelState state);
 	
+	/**
+	 * Get the keys of the duplicate buckets that any state which {@link #isDuplicateOf(BeatTrackingModelState)}
+	 * this one could lie in. The first key is the bucket of this state itself. This allows duplicates to be found
+	 * without checking every state. Two states which are duplicates must share at least one key, but states
+	 * which share a key need not be duplicates.
+	 * <br>
+	 * By default, every state lies in the same bucket.
+	 * 
+	 * @return The duplicate bucket keys of this state, with its own first.
+	 */
+	public long[] getDuplicateKeys() {
+		return new long[] {0L};
+	}
+	
 	/**
 	 * Create a deep copy of this BeatTrackingModelState.
 	 * 
@@ -1,7 +1,16 @@
 package metalign.beat.hmm;
 
+import java.io.PrintStream;
+import java.util.Properties;
+
+import metalign.HmmParameters;
 import metalign.utils.MathUtils;
 
+/**
+ * The parameters to use for an {@link HmmBeatTrackingModelState}. These can be loaded from a parameter
+ * file (see {@link HmmParameters}), and {@link #BEAT_SPACING_NORM_FACTOR} and its log are calculated once,
+ * when they are created.
+ */
 public class HmmBeatTrackingModelParameters {
 	
 	/**
@@ -24,6 +33,11 @@ public class HmmBeatTrackingModelParameters {
 	 */
 	public final double BEAT_SPACING_NORM_FACTOR;
 	
+	/**
+	 * The log of {@link #BEAT_SPACING_NORM_FACTOR}.
+	 */
+	public final double LOG_BEAT_SPACING_NORM_FACTOR;
+	
 	/**
 	 * Difference between note and closest tatum standard deviation.
 	 */
@@ -68,29 +82,40 @@ public class HmmBeatTrackingModelParameters {
 	 * Create a new beat tracking model with default parameters.
 	 */
 	public HmmBeatTrackingModelParameters() {
-		//From Here until the next comment can be replaced with the trained values
-		TEMPO_PERCENT_CHANGE_STD = 0.0743;
-		
-		BEAT_SPACING_STD = 0.0336;
-		BEAT_SPACING_MEAN = 0.0181;
+		this(new Properties());
+	}
+	
+	/**
+	 * Create a new beat tracking model with the parameters given in the given properties, each
+	 * keyed by its field name. Any parameter not given takes its default value.
+	 * 
+	 * @param properties The properties, loaded from a parameter file.
+	 * @throws IllegalArgumentException If any given value is not a number.
+	 */
+	public HmmBeatTrackingModelParameters(Properties properties) {
+		// Trained values (see HmmBeatTrackingModelTrainer)
+		TEMPO_PERCENT_CHANGE_STD = HmmParameters.getDouble(properties, "TEMPO_PERCENT_CHANGE_STD", 0.0743);
 		
-		NOTE_STD = 6655;
+		BEAT_SPACING_STD = HmmParameters.getDouble(properties, "BEAT_SPACING_STD", 0.0336);
+		BEAT_SPACING_MEAN = HmmParameters.getDouble(properties, "BEAT_SPACING_MEAN", 0.0181);
 		
-		MINIMUM_TEMPO = 400000;
-		MAXIMUM_TEMPO = 3000000;
+		NOTE_STD = HmmParameters.getDouble(properties, "NOTE_STD", 6655);
 		
-		INITIAL_TEMPO_MEAN = 1088500;
-		INITIAL_TEMPO_STD = 709918;
-		// Replace above here with the trained values
+		MINIMUM_TEMPO = HmmParameters.getDouble(properties, "MINIMUM_TEMPO", 400000);
+		MAXIMUM_TEMPO = HmmParameters.getDouble(properties, "MAXIMUM_TEMPO", 3000000);
 		
+		INITIAL_TEMPO_MEAN = HmmParameters.getDouble(properties, "INITIAL_TEMPO_MEAN", 1088500);
+		INITIAL_TEMPO_STD = HmmParameters.getDouble(properties, "INITIAL_TEMPO_STD", 709918);
 		
-		// Below this line should not be changed!!
+		// Derived values
 		BEAT_SPACING_NORM_FACTOR = 0.5 + BEAT_SPACING_MEAN / BEAT_SPACING_STD * MathUtils.getStandardNormal(BEAT_SPACING_MEAN, BEAT_SPACING_MEAN, BEAT_SPACING_STD);
+		LOG_BEAT_SPACING_NORM_FACTOR = Math.log(BEAT_SPACING_NORM_FACTOR);
 		
-		MAGNETISM_BEAT = 1.0;
-		MAGNETISM_SUB_BEAT = 0.5;
+		// Untrained values
+		MAGNETISM_BEAT = HmmParameters.getDouble(properties, "MAGNETISM_BEAT", 1.0);
+		MAGNETISM_SUB_BEAT = HmmParameters.getDouble(properties, "MAGNETISM_SUB_BEAT", 0.5);
 		
-		DIFF_MIN = 1000;
+		DIFF_MIN = HmmParameters.getDouble(properties, "DIFF_MIN", 1000);
 	}
 	
 	/**
@@ -113,6 +138,7 @@ public class HmmBeatTrackingModelParameters {
 		BEAT_SPACING_STD = BS;
 		BEAT_SPACING_MEAN = BM;
 		BEAT_SPACING_NORM_FACTOR = 0.5 + BEAT_SPACING_MEAN * MathUtils.gaussianWindow(BEAT_SPACING_MEAN, BEAT_SPACING_MEAN, BEAT_SPACING_STD);
+		LOG_BEAT_SPACING_NORM_FACTOR = Math.log(BEAT_SPACING_NORM_FACTOR);
 		
 		NOTE_STD = N;
 		
@@ -127,4 +153,24 @@ public class HmmBeatTrackingModelParameters {
 		
 		DIFF_MIN = TEDM;
 	}
+	
+	/**
+	 * Print these parameters to the given stream, one per line, in the parameter file format
+	 * (see {@link HmmParameters}).
+	 * 
+	 * @param out The stream to print to.
+	 */
+	public void print(PrintStream out) {
+		out.println("TEMPO_PERCENT_CHANGE_STD = " + TEMPO_PERCENT_CHANGE_STD);
+		out.println("INITIAL_TEMPO_MEAN = " + INITIAL_TEMPO_MEAN);
+		out.println("INITIAL_TEMPO_STD = " + INITIAL_TEMPO_STD);
+		out.println("MINIMUM_TEMPO = " + MINIMUM_TEMPO);
+		out.println("MAXIMUM_TEMPO = " + MAXIMUM_TEMPO);
+		out.println("BEAT_SPACING_MEAN = " + BEAT_SPACING_MEAN);
+		out.println("BEAT_SPACING_STD = " + BEAT_SPACING_STD);
+		out.println("NOTE_STD = " + NOTE_STD);
+		out.println("MAGNETISM_BEAT = " + MAGNETISM_BEAT);
+		out.println("MAGNETISM_SUB_BEAT = " + MAGNETISM_SUB_BEAT);
+		out.println("DIFF_MIN = " + DIFF_MIN);
+	}
 }
@@ -1,9 +1,8 @@
 package metalign.beat.hmm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,9 +27,9 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	private double logProb;
 	
 	/**
-	 * The tatums which we have found so far.
+	 * The tatums which we have found so far. This is shared with any copies of this state.
 	 */
-	private final List<Integer> tatums;
+	private TatumList tatums;
 	
 	/**
 	 * The tempo of the previous bar.
@@ -48,17 +47,27 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	private final HmmBeatTrackingModelParameters params;
 	
 	/**
-	 * A LinkedList of those note times which we haven't assigned to a Beat yet.
+	 * The times of those notes which we haven't assigned to a Beat yet, in order.
 	 */
-	private final LinkedList<Integer> unusedNoteTimes;
+	private final NoteTimeBuffer unusedNoteTimes;
+	
+	/**
+	 * Scratch space for {@link #initialStepLogic()} and {@link #addBar()}, one for each thread.
+	 */
+	private static final ThreadLocal<LayoutScratch> SCRATCH = new ThreadLocal<LayoutScratch>() {
+		@Override
+		protected LayoutScratch initialValue() {
+			return new LayoutScratch();
+		}
+	};
 	
 	/**
 	 * Create a new, empty, HmmBeatTrackingModelState.
 	 */
 	public HmmBeatTrackingModelState(HmmBeatTrackingModelParameters params) {
 		logProb = 0.0;
-		tatums = new ArrayList<Integer>();
-		unusedNoteTimes = new LinkedList<Integer>();
+		tatums = TatumList.EMPTY;
+		unusedNoteTimes = new NoteTimeBuffer();
 		previousTempo = 0;
 		barCount = 0;
 		
@@ -71,15 +80,14 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	 * @param state The state whose copy we want.
 	 */
 	private HmmBeatTrackingModelState(HmmBeatTrackingModelState state) {
-		tatums = new ArrayList<Integer>(state.tatums);
+		tatums = state.tatums;
 		logProb = state.logProb;
 		params = state.params;
-		unusedNoteTimes = new LinkedList<Integer>(state.unusedNoteTimes);
+		unusedNoteTimes = new NoteTimeBuffer(state.unusedNoteTimes);
 		previousTempo = state.previousTempo;
 		barCount = state.barCount;
 		
 		setHierarchyState(state.hierarchyState);
-		hierarchyState.setBeatState(this);
 	}
 
 	@Override
@@ -146,12 +154,12 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		double maxTimeUntilDownbeat = params.MAXIMUM_TEMPO * tatumsUntilDownbeat / tatumsPerSubBeat / subBeatsPerBeat;
 		
 		// Note timings
-		int firstNoteTime = unusedNoteTimes.get(0);
+		int firstNoteTime = unusedNoteTimes.getFirst();
 		
 		int secondToLastNoteTime = unusedNoteTimes.getLast();
-		Iterator<Integer> noteTimeIterator = unusedNoteTimes.descendingIterator();
-		while (noteTimeIterator.hasNext()) {
-			int tmpTime = noteTimeIterator.next();
+		int noteTimeIndex = unusedNoteTimes.size() - 1;
+		while (noteTimeIndex >= 0) {
+			int tmpTime = unusedNoteTimes.get(noteTimeIndex--);
 			
 			if (tmpTime != secondToLastNoteTime) {
 				secondToLastNoteTime = tmpTime;
@@ -160,8 +168,8 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		}
 		
 		int thirdToLastNoteTime = secondToLastNoteTime;
-		while (noteTimeIterator.hasNext()) {
-			int tmpTime = noteTimeIterator.next();
+		while (noteTimeIndex >= 0) {
+			int tmpTime = unusedNoteTimes.get(noteTimeIndex--);
 			
 			if (tmpTime != thirdToLastNoteTime) {
 				thirdToLastNoteTime = tmpTime;
@@ -174,7 +182,7 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		// Too short
 		if (timeDifference < minTimeUntilDownbeat) {
 			newStates.add(this);
-			logProb = Math.log(MathUtils.getStandardNormal(0.0, 0.0, params.INITIAL_TEMPO_STD));
+			logProb = MathUtils.logStandardNormal(0.0, 0.0, params.INITIAL_TEMPO_STD);
 			return newStates;
 		}
 		
@@ -192,35 +200,35 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		double timePerSubBeat = timePerTatum * tatumsPerSubBeat;
 		double timePerBeat = timePerTatum * tatumsPerBeat;
 		
-		logProb = Math.log(MathUtils.getStandardNormal(timePerBeat, params.INITIAL_TEMPO_MEAN, params.INITIAL_TEMPO_STD));
+		logProb = MathUtils.logStandardNormal(timePerBeat, params.INITIAL_TEMPO_MEAN, params.INITIAL_TEMPO_STD);
 		newStates.add(this.deepCopy());
 		
+		LayoutScratch scratch = SCRATCH.get();
+		
 		// Move beats to any note within 1 sub beat, then nudge
-		Set<List<Integer>> beatTimesList = new HashSet<List<Integer>>();
+		Set<BeatLayout> beatTimesList = new HashSet<BeatLayout>();
 		
 		// Evenly spaced beats times
-		List<Integer> defaultBeatTimes = new ArrayList<Integer>(beatsUntilDownbeat + 1);
-		defaultBeatTimes.add((int) Math.round(firstNoteTime + timePerTatum * tatumsUntilFirstBeat));
+		int[] defaultBeatTimes = new int[beatsUntilDownbeat + 1];
+		defaultBeatTimes[0] = (int) Math.round(firstNoteTime + timePerTatum * tatumsUntilFirstBeat);
 		for (int beat = 1; beat <= beatsUntilDownbeat; beat++) {
-			defaultBeatTimes.add((int) Math.round(defaultBeatTimes.get(0) + beat * timePerBeat));
+			defaultBeatTimes[beat] = (int) Math.round(defaultBeatTimes[0] + beat * timePerBeat);
 		}
-		beatTimesList.add(defaultBeatTimes);
+		beatTimesList.add(new BeatLayout(defaultBeatTimes));
 		
-		Set<List<Integer>> shiftedBeatTimesList = new HashSet<List<Integer>>();
+		Set<BeatLayout> shiftedBeatTimesList = new HashSet<BeatLayout>();
 		// We can move the first beat
 		if (tatumsUntilFirstBeat != 0) {
-			for (int time : getCloseNotes(defaultBeatTimes.get(0), timePerSubBeat)) {
+			for (int time : getCloseNotes(defaultBeatTimes[0], timePerSubBeat)) {
 				// Don't want to shift to first note
 				if (time == firstNoteTime) {
 					continue;
 				}
 				
 				// Shift and add
-				for (List<Integer> list : beatTimesList) {
-					if (time != list.get(0)) {
-						List<Integer> shiftedBeatTimesListTmp = new ArrayList<Integer>(list);
-						shiftedBeatTimesListTmp.set(0, time);
-						shiftedBeatTimesList.add(shiftedBeatTimesListTmp);
+				for (BeatLayout list : beatTimesList) {
+					if (time != list.times[0]) {
+						shiftedBeatTimesList.add(list.with(0, time));
 					}
 				}
 			}
@@ -232,13 +240,11 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		// Move the rest of the beats (except the last one)
 		for (int beat = 1; beat < beatsUntilDownbeat; beat++) {
 			shiftedBeatTimesList.clear();
-			for (int time : getCloseNotes(defaultBeatTimes.get(beat), timePerSubBeat)) {
+			for (int time : getCloseNotes(defaultBeatTimes[beat], timePerSubBeat)) {
 				// Shift and add
-				for (List<Integer> list : beatTimesList) {
-					if (time != list.get(beat)) {
-						List<Integer> shiftedBeatTimesListTmp = new ArrayList<Integer>(list);
-						shiftedBeatTimesListTmp.set(beat, time);
-						shiftedBeatTimesList.add(shiftedBeatTimesListTmp);
+				for (BeatLayout list : beatTimesList) {
+					if (time != list.times[beat]) {
+						shiftedBeatTimesList.add(list.with(beat, time));
 					}
 				}
 			}
@@ -246,174 +252,136 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		}
 		
 		// Nudge beats
-		Set<List<Integer>> nudgedBeatTimesList = new HashSet<List<Integer>>();
-		for (List<Integer> beatTimes : beatTimesList) {
-			nudgedBeatTimesList.addAll(nudgeTimes(beatTimes, 0, beatTimes.size(), timePerTatum, params.MAGNETISM_BEAT));
+		Set<BeatLayout> nudgedBeatTimesList = new HashSet<BeatLayout>();
+		for (BeatLayout beatTimes : beatTimesList) {
+			nudgeBeatTimes(beatTimes, 0, timePerTatum, nudgedBeatTimesList, scratch);
 		}
-		beatTimesList = new HashSet<List<Integer>>(nudgedBeatTimesList);
+		beatTimesList = new HashSet<BeatLayout>(nudgedBeatTimesList);
 		
-		List<List<Integer>> subBeatTimesList = new ArrayList<List<Integer>>(beatTimesList.size());
-		List<List<Integer>> tatumTimesList = new ArrayList<List<Integer>>(beatTimesList.size());
+		// Go through each beat placement hypothesis and place sub beats deterministically
+		TimeLayoutSet subBeatTimesList = scratch.layouts;
+		subBeatTimesList.reset(subBeatsUntilDownbeat + 1);
+		int[] subBeatTimes = scratch.getTimes(subBeatsUntilDownbeat + 1);
 		
-		// Go through each beat placement hypothesis and place sub beats and tatums deterministically
-		for (List<Integer> beatTimes : beatTimesList) {
-			// Place sub beats
-			List<Integer> subBeatTimes = new ArrayList<Integer>(subBeatsUntilDownbeat + 1);
-			subBeatTimesList.add(subBeatTimes);
-			
-			for (int i = 0; i <= subBeatsUntilDownbeat; i++) {
-				subBeatTimes.add(-1);
-			}
+		for (BeatLayout beatLayout : beatTimesList) {
+			int[] beatTimes = beatLayout.times;
 			
 			// Add beats into sub beat list
-			for (int i = 0; i < beatTimes.size(); i++) {
-				subBeatTimes.set(subBeatsUntilFirstBeat + i * subBeatsPerBeat, beatTimes.get(i));
+			for (int i = 0; i < beatTimes.length; i++) {
+				subBeatTimes[subBeatsUntilFirstBeat + i * subBeatsPerBeat] = beatTimes[i];
 			}
 			
 			// Add sub beat times
 			if (subBeatsUntilFirstBeat > 0) {
-				timePerTatum = (beatTimes.get(0) - firstNoteTime) / tatumsUntilFirstBeat;
+				timePerTatum = (beatTimes[0] - firstNoteTime) / tatumsUntilFirstBeat;
 				timePerSubBeat = timePerTatum * tatumsPerSubBeat;
 				
 				// Handle until first beat
 				for (int i = 1; i <= subBeatsUntilFirstBeat; i++) {
-					int time = (int) Math.round(beatTimes.get(0) - timePerSubBeat * i);
-					subBeatTimes.set(subBeatsUntilFirstBeat - i, time);
+					int time = (int) Math.round(beatTimes[0] - timePerSubBeat * i);
+					subBeatTimes[subBeatsUntilFirstBeat - i] = time;
 				}
 			}
 			
 			// Handle remaining beats
 			for (int i = 0; i < beatsUntilDownbeat; i++) {
-				int initialTime = beatTimes.get(i);
+				int initialTime = beatTimes[i];
 				int initialIndex = subBeatsUntilFirstBeat + i * subBeatsPerBeat;
-				int finalTime = beatTimes.get(i + 1);
+				int finalTime = beatTimes[i + 1];
 				
 				timePerTatum = (finalTime - initialTime) / tatumsPerBeat;
 				timePerSubBeat = timePerTatum * tatumsPerSubBeat;
 				
 				for (int j = 1; j < subBeatsPerBeat; j++) {
 					int time = (int) Math.round(initialTime + timePerSubBeat * j);
-					subBeatTimes.set(initialIndex + j, time);
+					subBeatTimes[initialIndex + j] = time;
 				}
 			}
+			
+			subBeatTimesList.add(subBeatTimes);
 		}
 		
-		Set<List<Integer>> nudgedSubBeatTimesList = new HashSet<List<Integer>>();
-		
 		// Handle first beat
 		if (subBeatsUntilFirstBeat > 0) {
-			for (List<Integer> subBeatTimes : subBeatTimesList) {
-				nudgedSubBeatTimesList.addAll(nudgeTimes(subBeatTimes, 0, subBeatsUntilFirstBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT));
-			}
-			subBeatTimesList = new ArrayList<List<Integer>>(nudgedSubBeatTimesList);
+			subBeatTimesList = nudgeTimes(subBeatTimesList, 0, subBeatsUntilFirstBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT, scratch);
 		}
 		
 		// Handle remaining beats
 		for (int i = 0; i < beatsUntilDownbeat; i++) {
 			int initialIndex = subBeatsUntilFirstBeat + i * subBeatsPerBeat;
-			nudgedSubBeatTimesList = new HashSet<List<Integer>>();
-			
-			for (List<Integer> subBeatTimes : subBeatTimesList) {
-				nudgedSubBeatTimesList.addAll(nudgeTimes(subBeatTimes, initialIndex + 1, initialIndex + subBeatsPerBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT));
-			}
-			subBeatTimesList = new ArrayList<List<Integer>>(nudgedSubBeatTimesList);
+			subBeatTimesList = nudgeTimes(subBeatTimesList, initialIndex + 1, initialIndex + subBeatsPerBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT, scratch);
 		}
 		
-		for (List<Integer> subBeatTimes : subBeatTimesList) {
-			// Place tatums
-			List<Integer> tatumTimes = new ArrayList<Integer>(tatumsUntilDownbeat + 1);
-			tatumTimesList.add(tatumTimes);
-			for (int i = 0; i <= tatumsUntilDownbeat; i++) {
-				tatumTimes.add(-1);
-			}
+		for (int layout = 0; layout < subBeatTimesList.size(); layout++) {
+			// Place tatums. This array is used directly by the new state's tatums.
+			int[] tatumTimes = new int[tatumsUntilDownbeat + 1];
 			
 			// Add sub beats into tatums list
-			for (int i = 0; i < subBeatTimes.size(); i++) {
-				tatumTimes.set(tatumsUntilFirstSubBeat + i * tatumsPerSubBeat, subBeatTimes.get(i));
+			for (int i = 0; i <= subBeatsUntilDownbeat; i++) {
+				tatumTimes[tatumsUntilFirstSubBeat + i * tatumsPerSubBeat] = subBeatTimesList.get(layout, i);
 			}
 			
 			// Add tatum times
 			if (tatumsUntilFirstSubBeat > 0) {
-				timePerTatum = (subBeatTimes.get(0) - firstNoteTime) / tatumsUntilFirstSubBeat;
+				int firstSubBeatTime = subBeatTimesList.get(layout, 0);
+				timePerTatum = (firstSubBeatTime - firstNoteTime) / tatumsUntilFirstSubBeat;
 				
 				// Handle until first sub beat
 				for (int i = 1; i <= tatumsUntilFirstSubBeat; i++) {
-					int time = (int) Math.round(subBeatTimes.get(0) - timePerTatum * i);
-					tatumTimes.set(tatumsUntilFirstSubBeat - i, time);
+					int time = (int) Math.round(firstSubBeatTime - timePerTatum * i);
+					tatumTimes[tatumsUntilFirstSubBeat - i] = time;
 				}
 			}
 			
 			// Handle remaining sub beats
 			for (int i = 0; i < subBeatsUntilDownbeat; i++) {
-				int initialTime = subBeatTimes.get(i);
+				int initialTime = subBeatTimesList.get(layout, i);
 				int initialIndex = tatumsUntilFirstSubBeat + i * tatumsPerSubBeat;
-				int finalTime = subBeatTimes.get(i + 1);
+				int finalTime = subBeatTimesList.get(layout, i + 1);
 				
 				timePerTatum = (finalTime - initialTime) / tatumsPerSubBeat;
 				
 				for (int j = 1; j < tatumsPerSubBeat; j++) {
 					int time = (int) Math.round(initialTime + timePerTatum * j);
-					tatumTimes.set(initialIndex + j, time);
+					tatumTimes[initialIndex + j] = time;
 				}
 			}
-		}
-		
-		for (int i = 0; i < tatumTimesList.size(); i++) {
+			
+			// Branch
 			HmmBeatTrackingModelState newState = this.deepCopy();
 			newState.logProb = 0.0;
 			
-			List<Integer> tatumTimes = tatumTimesList.get(i);
-			
-			List<Integer> beatTimes = new ArrayList<Integer>(beatsUntilDownbeat + 1);
-			for (int j = 0; j <= beatsUntilDownbeat; j++) {
-				beatTimes.add(tatumTimes.get(tatumsUntilFirstBeat + j * tatumsPerBeat));
-			}
-			
-			newState.addSpacingProbability(beatTimes);
-			
-			List<Integer> subBeatTimes = new ArrayList<Integer>(subBeatsUntilDownbeat + 1);
-			for (int j = 0; j <= subBeatsUntilDownbeat; j++) {
-				subBeatTimes.add(tatumTimes.get(tatumsUntilFirstSubBeat + j * tatumsPerSubBeat));
-			}
+			// Beat spacings
+			newState.addSpacingProbability(tatumTimes, tatumsUntilFirstBeat, tatumsPerBeat, beatsUntilDownbeat + 1);
 			
-			newState.addSpacingProbability(subBeatTimes.subList(0, subBeatsUntilFirstBeat));
+			// Sub beat spacings
+			newState.addSpacingProbability(tatumTimes, tatumsUntilFirstSubBeat, tatumsPerSubBeat, subBeatsUntilFirstBeat);
 			for (int j = 0; j < beatsUntilDownbeat; j++) {
 				int initialIndex = subBeatsUntilFirstBeat + j * subBeatsPerBeat;
-				newState.addSpacingProbability(subBeatTimes.subList(initialIndex, initialIndex + subBeatsPerBeat + 1));
+				newState.addSpacingProbability(tatumTimes, tatumsUntilFirstSubBeat + initialIndex * tatumsPerSubBeat, tatumsPerSubBeat, subBeatsPerBeat + 1);
 			}
 			
-			newState.addSpacingProbability(tatumTimes.subList(0, tatumsUntilFirstSubBeat));
+			// Tatum spacings
+			newState.addSpacingProbability(tatumTimes, 0, 1, tatumsUntilFirstSubBeat);
 			for (int j = 0; j < subBeatsUntilDownbeat; j++) {
 				int initialIndex = tatumsUntilFirstSubBeat + j * tatumsPerSubBeat;
-				newState.addSpacingProbability(tatumTimes.subList(initialIndex, initialIndex + tatumsPerSubBeat + 1));
+				newState.addSpacingProbability(tatumTimes, initialIndex, 1, tatumsPerSubBeat + 1);
 			}
 			
 			// Add tatum times into tatums
-			for (int j = 0; j < tatumTimes.size(); j++) {
-				int time = tatumTimes.get(j);
-				newState.tatums.add(time);
-			}
+			newState.tatums = newState.tatums.append(tatumTimes);
 			
 			// Get note probabilities and removed from unused notes list
-			for (int j = 0; j < newState.unusedNoteTimes.size(); j++) {
-				int time = newState.unusedNoteTimes.get(j);
-				
-				if (time < newState.tatums.get(newState.tatums.size() - 1)) {
-					newState.addNoteError(time);
-					newState.unusedNoteTimes.remove(j);
-					j--;
-					
-				} else {
-					break;
-				}
+			while (!newState.unusedNoteTimes.isEmpty() && newState.unusedNoteTimes.getFirst() < newState.tatums.getLast()) {
+				newState.addNoteError(newState.unusedNoteTimes.removeFirst());
 			}
 			
-			timePerTatum = ((double) (tatumTimes.get(tatumTimes.size() - 1) - tatumTimes.get(0))) / (tatumTimes.size() - 1);
+			timePerTatum = ((double) (tatumTimes[tatumsUntilDownbeat] - tatumTimes[0])) / tatumsUntilDownbeat;
 			timePerBeat = timePerTatum * tatumsPerBeat;
 			newState.previousTempo = timePerBeat;
 			
 			if (timePerBeat >= params.MINIMUM_TEMPO && timePerBeat <= params.MAXIMUM_TEMPO) {
-				newState.logProb += Math.log(MathUtils.getStandardNormal(timePerBeat, params.INITIAL_TEMPO_MEAN, params.INITIAL_TEMPO_STD));
+				newState.logProb += MathUtils.logStandardNormal(timePerBeat, params.INITIAL_TEMPO_MEAN, params.INITIAL_TEMPO_STD);
 				
 				if (beatsUntilDownbeat == beatsPerBar) {
 					newState.barCount = 1;
@@ -465,34 +433,30 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		double timePerSubBeat = previousTempo / subBeatsPerBeat;
 		double timePerTatum = timePerSubBeat / tatumsPerSubBeat;
 		
-		// Add times, initially 0
-		List<List<Integer>> subBeatTimesList = new ArrayList<List<Integer>>();
-		List<List<Integer>> tatumTimesList = new ArrayList<List<Integer>>();
+		LayoutScratch scratch = SCRATCH.get();
 		
 		// Move beats to any note within 1 sub beat, then nudge
-		Set<List<Integer>> beatTimesList = new HashSet<List<Integer>>();
+		Set<BeatLayout> beatTimesList = new HashSet<BeatLayout>();
 		
 		// Evenly spaced beats times
-		List<Integer> defaultBeatTimes = new ArrayList<Integer>(beatsPerBar + 1);
+		int[] defaultBeatTimes = new int[beatsPerBar + 1];
 		for (int beat = 0; beat <= beatsPerBar; beat++) {
-			defaultBeatTimes.add((int) Math.round(getLastTatumTime() + beat * timePerBeat));
+			defaultBeatTimes[beat] = (int) Math.round(getLastTatumTime() + beat * timePerBeat);
 		}
-		beatTimesList.add(defaultBeatTimes);
+		beatTimesList.add(new BeatLayout(defaultBeatTimes));
 		
 		// TODO: Shifting and nudging 1 beat at a time?
 		
 		// Shift beats to notes within a sub beat away
-		Set<List<Integer>> shiftedBeatTimesList = new HashSet<List<Integer>>();
+		Set<BeatLayout> shiftedBeatTimesList = new HashSet<BeatLayout>();
 		
 		// Move the rest of the beats (except the last one)
 		for (int beat = 1; beat <= beatsPerBar; beat++) {
-			for (int time : getCloseNotes(defaultBeatTimes.get(beat), timePerSubBeat)) {
+			for (int time : getCloseNotes(defaultBeatTimes[beat], timePerSubBeat)) {
 				// Shift and add
-				for (List<Integer> list : beatTimesList) {
-					if (time != list.get(beat)) {
-						List<Integer> shiftedBeatTimesListTmp = new ArrayList<Integer>(list);
-						shiftedBeatTimesListTmp.set(beat, time);
-						shiftedBeatTimesList.add(shiftedBeatTimesListTmp);
+				for (BeatLayout list : beatTimesList) {
+					if (time != list.times[beat]) {
+						shiftedBeatTimesList.add(list.with(beat, time));
 					}
 				}
 			}
@@ -502,133 +466,99 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		beatTimesList.addAll(shiftedBeatTimesList);
 		
 		// Nudge beats
-		Set<List<Integer>> nudgedBeatTimesList = new HashSet<List<Integer>>();
-		for (List<Integer> beatTimes : beatTimesList) {
-			nudgedBeatTimesList.addAll(nudgeTimes(beatTimes, 1, beatTimes.size(), timePerTatum, params.MAGNETISM_BEAT));
+		Set<BeatLayout> nudgedBeatTimesList = new HashSet<BeatLayout>();
+		for (BeatLayout beatTimes : beatTimesList) {
+			nudgeBeatTimes(beatTimes, 1, timePerTatum, nudgedBeatTimesList, scratch);
 		}
-		beatTimesList = new HashSet<List<Integer>>(nudgedBeatTimesList);
+		beatTimesList = new HashSet<BeatLayout>(nudgedBeatTimesList);
 		
 		// Add sub beats
-		for (List<Integer> beatTimes : beatTimesList) {
-			// Place sub beats
-			List<Integer> subBeatTimes = new ArrayList<Integer>(subBeatsPerBar + 1);
-			subBeatTimesList.add(subBeatTimes);
-			
-			for (int i = 0; i <= subBeatsPerBar; i++) {
-				subBeatTimes.add(-1);
-			}
+		TimeLayoutSet subBeatTimesList = scratch.layouts;
+		subBeatTimesList.reset(subBeatsPerBar + 1);
+		int[] subBeatTimes = scratch.getTimes(subBeatsPerBar + 1);
+		
+		for (BeatLayout beatLayout : beatTimesList) {
+			int[] beatTimes = beatLayout.times;
 			
 			// Add beats into sub beat list
-			for (int i = 0; i < beatTimes.size(); i++) {
-				subBeatTimes.set(i * subBeatsPerBeat, beatTimes.get(i));
+			for (int i = 0; i < beatTimes.length; i++) {
+				subBeatTimes[i * subBeatsPerBeat] = beatTimes[i];
 			}
 			
 			// Add sub beat times
 			for (int i = 0; i < beatsPerBar; i++) {
-				int initialTime = beatTimes.get(i);
+				int initialTime = beatTimes[i];
 				int initialIndex = i * subBeatsPerBeat;
-				int finalTime = beatTimes.get(i + 1);
+				int finalTime = beatTimes[i + 1];
 				
 				timePerTatum = (finalTime - initialTime) / tatumsPerBeat;
 				timePerSubBeat = timePerTatum * tatumsPerSubBeat;
 				
 				for (int j = 1; j < subBeatsPerBeat; j++) {
 					int time = (int) Math.round(initialTime + timePerSubBeat * j);
-					subBeatTimes.set(initialIndex + j, time);
+					subBeatTimes[initialIndex + j] = time;
 				}
 			}
+			
+			subBeatTimesList.add(subBeatTimes);
 		}
 		
 		// Nudge sub beats
 		for (int i = 0; i < beatsPerBar; i++) {
 			int initialIndex = i * subBeatsPerBeat;
-			Set<List<Integer>> nudgedSubBeatTimesList = new HashSet<List<Integer>>();
-			
-			for (List<Integer> subBeatTimes : subBeatTimesList) {
-				nudgedSubBeatTimesList.addAll(nudgeTimes(subBeatTimes, initialIndex + 1, initialIndex + subBeatsPerBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT));
-			}
-			
-			subBeatTimesList = new ArrayList<List<Integer>>(nudgedSubBeatTimesList);
+			subBeatTimesList = nudgeTimes(subBeatTimesList, initialIndex + 1, initialIndex + subBeatsPerBeat, timePerTatum * 2, params.MAGNETISM_SUB_BEAT, scratch);
 		}
 		
 		// Add tatums
-		for (List<Integer> subBeatTimes : subBeatTimesList) {
-			// Place tatums
-			List<Integer> tatumTimes = new ArrayList<Integer>(tatumsPerBar + 1);
-			tatumTimesList.add(tatumTimes);
-			for (int i = 0; i <= tatumsPerBar; i++) {
-				tatumTimes.add(-1);
-			}
-			
+		int[] tatumTimes = scratch.getTimes(tatumsPerBar + 1);
+		for (int layout = 0; layout < subBeatTimesList.size(); layout++) {
 			// Add sub beats into tatums list
-			for (int i = 0; i < subBeatTimes.size(); i++) {
-				tatumTimes.set(i * tatumsPerSubBeat, subBeatTimes.get(i));
+			for (int i = 0; i <= subBeatsPerBar; i++) {
+				tatumTimes[i * tatumsPerSubBeat] = subBeatTimesList.get(layout, i);
 			}
 			
 			// Add tatum times
 			for (int i = 0; i < subBeatsPerBar; i++) {
-				int initialTime = subBeatTimes.get(i);
+				int initialTime = subBeatTimesList.get(layout, i);
 				int initialIndex = i * tatumsPerSubBeat;
-				int finalTime = subBeatTimes.get(i + 1);
+				int finalTime = subBeatTimesList.get(layout, i + 1);
 				
 				timePerTatum = (finalTime - initialTime) / tatumsPerSubBeat;
 				
 				for (int j = 1; j < tatumsPerSubBeat; j++) {
 					int time = (int) Math.round(initialTime + timePerTatum * j);
-					tatumTimes.set(initialIndex + j, time);
+					tatumTimes[initialIndex + j] = time;
 				}
 			}
-		}
-		
-		// Branch
-		for (List<Integer> tatumTimes : tatumTimesList) {
+			
+			// Branch
 			HmmBeatTrackingModelState newState = this.deepCopy();
 			
 			// TODO: Set bar and tatum number correctly? Now that we have it...
 			// Add tatums into tatums list
-			for (int i = 1; i < tatumTimes.size(); i++) {
-				int time = tatumTimes.get(i);
-				newState.tatums.add(time);
-			}
+			newState.tatums = newState.tatums.append(Arrays.copyOfRange(tatumTimes, 1, tatumsPerBar + 1));
 			
 			// Get note probabilities and removed from unused notes list
-			for (int i = 0; i < newState.unusedNoteTimes.size(); i++) {
-				int time = newState.unusedNoteTimes.get(i);
-				
-				if (time < newState.tatums.get(newState.tatums.size() - 1)) {
-					newState.addNoteError(time);
-					newState.unusedNoteTimes.remove(i);
-					i--;
-					
-				} else {
-					break;
-				}
+			while (!newState.unusedNoteTimes.isEmpty() && newState.unusedNoteTimes.getFirst() < newState.tatums.getLast()) {
+				newState.addNoteError(newState.unusedNoteTimes.removeFirst());
 			}
 			
 			// Beat spacings
-			List<Integer> beatTimes = new ArrayList<Integer>(beatsPerBar + 1);
-			for (int i = 0; i < beatsPerBar + 1; i++) {
-				beatTimes.add(tatumTimes.get(i * tatumsPerBeat));
-			}
-			newState.addSpacingProbability(beatTimes);
+			newState.addSpacingProbability(tatumTimes, 0, tatumsPerBeat, beatsPerBar + 1);
 			
 			// Sub beat spacings
 			for (int beatNum = 0; beatNum < beatsPerBar; beatNum++) {
-				List<Integer> subBeatTimes = new ArrayList<Integer>(subBeatsPerBeat + 1);
-				for (int i = 0; i < subBeatsPerBeat + 1; i++) {
-					subBeatTimes.add(tatumTimes.get(beatNum * tatumsPerBeat + i * tatumsPerSubBeat));
-				}
-				newState.addSpacingProbability(subBeatTimes);
+				newState.addSpacingProbability(tatumTimes, beatNum * tatumsPerBeat, tatumsPerSubBeat, subBeatsPerBeat + 1);
 			}
 			
 			// Tatum spacings
 			for (int beatNum = 0; beatNum < beatsPerBar; beatNum++) {
 				for (int subBeatNum = 0; subBeatNum < subBeatsPerBeat; subBeatNum++) {
-					newState.addSpacingProbability(tatumTimes.subList(beatNum * tatumsPerBeat + subBeatNum * tatumsPerSubBeat, beatNum * tatumsPerBeat + subBeatNum * tatumsPerSubBeat + tatumsPerSubBeat + 1));
+					newState.addSpacingProbability(tatumTimes, beatNum * tatumsPerBeat + subBeatNum * tatumsPerSubBeat, 1, tatumsPerSubBeat + 1);
 				}
 			}
 			
-			timePerBeat = ((double) (beatTimes.get(beatsPerBar) - beatTimes.get(0))) / beatsPerBar;
+			timePerBeat = ((double) (tatumTimes[tatumsPerBar] - tatumTimes[0])) / beatsPerBar;
 			newState.updateTempoProbability(timePerBeat);
 			newState.barCount++;
 			newStates.add(newState);
@@ -643,33 +573,39 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	 * @param newTempo The new tempo
 	 */
 	private void updateTempoProbability(double newTempo) {
-		logProb += Math.log(MathUtils.getStandardNormal(0.0, (newTempo - previousTempo) / previousTempo, params.TEMPO_PERCENT_CHANGE_STD));
+		logProb += MathUtils.logStandardNormal(0.0, (newTempo - previousTempo) / previousTempo, params.TEMPO_PERCENT_CHANGE_STD);
 		
 		previousTempo = newTempo;
 	}
 
 	/**
-	 * Measure the evenness of the given list of times and add that probability into {@link #logProb}.
+	 * Measure the evenness of the given times and add that probability into {@link #logProb}.
 	 * 
-	 * @param times The List of times whose evenness we want to measure.
+	 * @param times An array containing the times whose evenness we want to measure.
+	 * @param start The index of the first time to measure.
+	 * @param step The distance between consecutive times to measure in the array.
+	 * @param count The number of times to measure.
 	 */
-	private void addSpacingProbability(List<Integer> times) {
-		if (times.size() <= 2) {
+	private void addSpacingProbability(int[] times, int start, int step, int count) {
+		if (count <= 2) {
 			return;
 		}
 		
-		logProb += getSpacingLogProbability(times, params);
+		logProb += getSpacingLogProbability(times, start, step, count, params);
 	}
 	
 	/**
 	 * Get the log probability of the given spacing times.
 	 * 
-	 * @param times The times
+	 * @param times An array containing the times.
+	 * @param start The index of the first time.
+	 * @param step The distance between consecutive times in the array.
+	 * @param count The number of times.
 	 * @param params The parameters
 	 * @return The log probability.
 	 */
-	private static double getSpacingLogProbability(List<Integer> times, HmmBeatTrackingModelParameters params) {
-		if (times.size() <= 2) {
+	private static double getSpacingLogProbability(int[] times, int start, int step, int count, HmmBeatTrackingModelParameters params) {
+		if (count <= 2) {
 			return 0.0;
 		}
 		
@@ -678,59 +614,83 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		double sum = 0.0;
 		double sumSquared = 0.0;
 			
-		for (int i = 1; i < times.size(); i++) {
-			double element = times.get(i) - times.get(i - 1);
+		for (int i = 1; i < count; i++) {
+			int index = start + i * step;
+			double element = times[index] - times[index - step];
 			sum += element;
 			sumSquared += element * element;
 		}
 			
-		double mean = sum / (times.size() - 1);
-		double variance = sumSquared / (times.size() - 1) - mean * mean;
+		double mean = sum / (count - 1);
+		double variance = sumSquared / (count - 1) - mean * mean;
 		std = Math.sqrt(variance);
 		
 		double percentStd = std / mean;
-		double prob = percentStd < params.BEAT_SPACING_MEAN ?
-				MathUtils.getStandardNormal(0.0, 0.0, params.BEAT_SPACING_STD) :
-					MathUtils.getStandardNormal(params.BEAT_SPACING_MEAN, percentStd, params.BEAT_SPACING_STD);
+		double logDensity = percentStd < params.BEAT_SPACING_MEAN ?
+				MathUtils.logStandardNormal(0.0, 0.0, params.BEAT_SPACING_STD) :
+					MathUtils.logStandardNormal(params.BEAT_SPACING_MEAN, percentStd, params.BEAT_SPACING_STD);
 				
-		return Math.log(prob / params.BEAT_SPACING_NORM_FACTOR);
+		return logDensity - params.LOG_BEAT_SPACING_NORM_FACTOR;
+	}
+	
+	/**
+	 * Nudge the given beat times towards notes from {@link #unusedNoteTimes}, and add each resulting
+	 * layout into the given Set, in the order in which they are generated.
+	 * 
+	 * @param beatTimes The beat times we want to nudge.
+	 * @param from The first index we want to nudge, inclusive. All beats after it are also nudged.
+	 * @param timePerTatum The average time per tatum in this bar (before nudging).
+	 * @param nudgedBeatTimesList The Set to add the nudged beat times into.
+	 * @param scratch The scratch space to use.
+	 */
+	private void nudgeBeatTimes(BeatLayout beatTimes, int from, double timePerTatum, Set<BeatLayout> nudgedBeatTimesList, LayoutScratch scratch) {
+		TimeLayoutSet layouts = scratch.layouts;
+		layouts.reset(beatTimes.times.length);
+		layouts.add(beatTimes.times);
+		
+		layouts = nudgeTimes(layouts, from, beatTimes.times.length, timePerTatum, params.MAGNETISM_BEAT, scratch);
+		
+		for (int layout = 0; layout < layouts.size(); layout++) {
+			nudgedBeatTimesList.add(new BeatLayout(layouts.toArray(layout)));
+		}
 	}
 
 	/**
-	 * Nudge the times in the given List towards notes from {@link #unusedNoteTimes}.
+	 * Nudge the times in the given layouts towards notes from {@link #unusedNoteTimes}.
 	 * 
-	 * @param times The List of times we want to nudge.
+	 * @param layouts The layouts of times we want to nudge. This must be one of the sets in the given scratch space.
 	 * @param from the first index we want to nudge, inclusive.
 	 * @param to The last index we want to nudge, exclusive.
 	 * @param timePerTatum The average time per tatum in this bar (before nudging).
 	 * @param strength The strength of the nudge. A value from 0.0-1.0, representing the proportion.
 	 * of time to move the note.
+	 * @param scratch The scratch space to use.
 	 * 
-	 * @return The possible resulting times lists, in a List.
+	 * @return The possible resulting layouts of times, without duplicates. This is one of the sets in the given
+	 * scratch space, and is only valid until that is next used.
 	 */
-	private List<List<Integer>> nudgeTimes(List<Integer> times, int from, int to, double timePerTatum, double strength) {
-		List<List<Integer>> nudgedTimes = new ArrayList<List<Integer>>();
-		nudgedTimes.add(new ArrayList<Integer>(times));
+	private TimeLayoutSet nudgeTimes(TimeLayoutSet layouts, int from, int to, double timePerTatum, double strength, LayoutScratch scratch) {
+		int[] possibleNudgedTimes = scratch.nudgedTimes;
 		
 		// Go through each beat to nudge
 		for (int toNudgeIndex = from; toNudgeIndex < to; toNudgeIndex++) {
-			List<List<Integer>> newNudgedTimes = new ArrayList<List<Integer>>();
+			TimeLayoutSet newLayouts = layouts == scratch.layouts ? scratch.spareLayouts : scratch.layouts;
+			newLayouts.reset(layouts.getLength());
 			
 			// Go through each previous nudge hypothesis
-			for (int prevTimesIndex = 0; prevTimesIndex < nudgedTimes.size(); prevTimesIndex++) {
-				List<Integer> possibleNudgedTimes = nudgeTime(nudgedTimes.get(prevTimesIndex).get(toNudgeIndex), timePerTatum, strength);
+			for (int layout = 0; layout < layouts.size(); layout++) {
+				int numNudgedTimes = nudgeTime(layouts.get(layout, toNudgeIndex), timePerTatum, strength, possibleNudgedTimes);
 				
 				// Go through each resulting nudge location
-				for (int i = 0; i < possibleNudgedTimes.size(); i++) {
-					newNudgedTimes.add(new ArrayList<Integer>(nudgedTimes.get(prevTimesIndex)));
-					newNudgedTimes.get(newNudgedTimes.size() - 1).set(toNudgeIndex, possibleNudgedTimes.get(i));
+				for (int i = 0; i < numNudgedTimes; i++) {
+					newLayouts.addModified(layouts, layout, toNudgeIndex, possibleNudgedTimes[i]);
 				}
 			}
 			
-			nudgedTimes = newNudgedTimes;
+			layouts = newLayouts;
 		}
 		
-		return nudgedTimes;
+		return layouts;
 	}
 
 	/**
@@ -740,52 +700,78 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	 * @param time The tatum's original time.
 	 * @param timePerTatum The time per tatum.
 	 * @param strength The strength of the nudge. A value from 0.0-1.0, representing the proportion.
-	 * @return The possible nudged times.
+	 * @param nudgedTimes An array of length at least 3, into which the possible nudged times are written.
+	 * @return The number of possible nudged times.
 	 */
-	private List<Integer> nudgeTime(int time, double timePerTatum, double strength) {
-		List<Integer> notes = getCloseNotes(time, timePerTatum);
-		List<Integer> nudgedTimes = new ArrayList<Integer>();
-		nudgedTimes.add(time);
-		
-		if (notes.isEmpty()) {
-			return nudgedTimes;
-		}
+	private int nudgeTime(int time, double timePerTatum, double strength, int[] nudgedTimes) {
+		int numNudgedTimes = 0;
+		nudgedTimes[numNudgedTimes++] = time;
 		
-		// Get closest time
+		// Find closest and average time of close notes
+		int numNotes = 0;
 		int smallestDiff = Integer.MAX_VALUE;
-		for (int i = 0; i < notes.size(); i++) {
-			int diff = notes.get(i) - time;
-			
-			if (Math.abs(diff) < Math.abs(smallestDiff)) {
-				smallestDiff = diff;
+		double sum = 0.0;
+		for (int i = unusedNoteTimes.getFirstIndexNear(time, timePerTatum / 2); i < unusedNoteTimes.size(); i++) {
+			int noteTime = unusedNoteTimes.get(i);
+			if (Math.abs(noteTime - time) <= timePerTatum / 2) {
+				int diff = noteTime - time;
+				
+				if (Math.abs(diff) < Math.abs(smallestDiff)) {
+					smallestDiff = diff;
+				}
+				
+				sum += noteTime;
+				numNotes++;
+				
+			} else {
+				break;
 			}
 		}
-		int nudgedTime = (int) Math.round(time + smallestDiff * strength);
-		if (!nudgedTimes.contains(nudgedTime)) {
-			nudgedTimes.add(nudgedTime);
+		
+		if (numNotes == 0) {
+			return numNudgedTimes;
 		}
 		
-		// Get average time of close notes
-		if (notes.size() > 1) {
-			double avg = notes.get(0);
-			for (int j = 1; j < notes.size(); j++) {
-				avg += notes.get(j);
-			}
-			avg /= notes.size();
+		// Closest time
+		int nudgedTime = (int) Math.round(time + smallestDiff * strength);
+		if (nudgedTime != time) {
+			nudgedTimes[numNudgedTimes++] = nudgedTime;
+		}
 		
+		// Average time of close notes
+		if (numNotes > 1) {
+			double avg = sum / numNotes;
 			double diff = avg - time;
 			
 			if (strength == 0.5) {
-				nudgedTimes.clear();
+				numNudgedTimes = 0;
 			}
 			
 			nudgedTime = (int) Math.round(time + diff * strength);
-			if (!nudgedTimes.contains(nudgedTime)) {
-				nudgedTimes.add(nudgedTime);
+			if (!contains(nudgedTimes, numNudgedTimes, nudgedTime)) {
+				nudgedTimes[numNudgedTimes++] = nudgedTime;
+			}
+		}
+		
+		return numNudgedTimes;
+	}
+	
+	/**
+	 * Check whether the first elements of the given array contain the given value.
+	 * 
+	 * @param array The array to search.
+	 * @param length The number of elements of the array to search.
+	 * @param value The value to search for.
+	 * @return True if the value was found. False otherwise.
+	 */
+	private static boolean contains(int[] array, int length, int value) {
+		for (int i = 0; i < length; i++) {
+			if (array[i] == value) {
+				return true;
 			}
 		}
 		
-		return nudgedTimes;
+		return false;
 	}
 
 	/**
@@ -797,10 +783,13 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	 */
 	private List<Integer> getCloseNotes(int time, double window) {
 		List<Integer> times = new ArrayList<Integer>();
-		for (int noteTime : unusedNoteTimes) {
-			if (Math.abs(noteTime - time) <= window / 2) {
-				times.add(noteTime);
+		for (int i = unusedNoteTimes.getFirstIndexNear(time, window / 2); i < unusedNoteTimes.size(); i++) {
+			int noteTime = unusedNoteTimes.get(i);
+			if (Math.abs(noteTime - time) > window / 2) {
+				break;
 			}
+			
+			times.add(noteTime);
 		}
 		
 		return times;
@@ -814,7 +803,7 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	private void addNoteError(int time) {
 		int closestTatum = getClosestTatumToTime(time, tatums);
 		
-		logProb += Math.log(MathUtils.getStandardNormal(0, Math.abs(closestTatum - time), params.NOTE_STD));
+		logProb += MathUtils.logStandardNormal(0, Math.abs(closestTatum - time), params.NOTE_STD);
 	}
 
 	/**
@@ -823,29 +812,29 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 	 * @param time The time which we are searching for.
 	 * @return The closest tatum time to the given note in time.
 	 */
-	private static int getClosestTatumToTime(int time, List<Integer> tatums) {
+	private static int getClosestTatumToTime(int time, TatumList tatums) {
 		double minDiff = Double.MAX_VALUE;
 		int minIndex = -1;
 		
 		for (int i = tatums.size() - 1; i >= 0; i--) {
-			double diff = Math.abs(tatums.get(i) - time);
+			double diff = Math.abs(tatums.getInt(i) - time);
 			
 			if (diff < minDiff) {
 				minDiff = diff;
 				minIndex = i;
 				
 			} else {
-				return tatums.get(minIndex);
+				return tatums.getInt(minIndex);
 			}
 		}
 		
 		// No tatums found
-		return minIndex == -1 ? 0 : tatums.get(minIndex);
+		return minIndex == -1 ? 0 : tatums.getInt(minIndex);
 	}
 	
 	@Override
 	public int getLastTatumTime() {
-		return tatums.isEmpty() ? -1 : tatums.get(tatums.size() - 1);
+		return tatums.getLast();
 	}
 
 	@Override
@@ -886,7 +875,7 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		List<Beat> beats = new ArrayList<Beat>(tatums.size());
 		
 		for (int i = 0; i < tatums.size(); i++) {
-			beats.add(new Beat(0, i, tatums.get(i), tatums.get(i)));
+			beats.add(new Beat(0, i, tatums.getInt(i), tatums.getInt(i)));
 		}
 		
 		return beats;
@@ -913,6 +902,41 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		return Math.abs(previousTempo - hmm.previousTempo) < params.DIFF_MIN &&
 				Math.abs(getLastTatumTime() - hmm.getLastTatumTime()) < params.DIFF_MIN;
 	}
+	
+	/**
+	 * The tempo and last tatum time are each bucketed into windows of width {@link HmmBeatTrackingModelParameters#DIFF_MIN}.
+	 * Any duplicate must then lie in this state's bucket, or in one of the 8 buckets surrounding it.
+	 */
+	@Override
+	public long[] getDuplicateKeys() {
+		long tempoBucket = (long) Math.floor(previousTempo / params.DIFF_MIN);
+		long tatumBucket = (long) Math.floor(getLastTatumTime() / params.DIFF_MIN);
+		
+		long[] keys = new long[9];
+		keys[0] = getDuplicateKey(tempoBucket, tatumBucket);
+		
+		int i = 1;
+		for (int tempoOffset = -1; tempoOffset <= 1; tempoOffset++) {
+			for (int tatumOffset = -1; tatumOffset <= 1; tatumOffset++) {
+				if (tempoOffset != 0 || tatumOffset != 0) {
+					keys[i++] = getDuplicateKey(tempoBucket + tempoOffset, tatumBucket + tatumOffset);
+				}
+			}
+		}
+		
+		return keys;
+	}
+	
+	/**
+	 * Get the duplicate key of the given tempo and tatum buckets.
+	 * 
+	 * @param tempoBucket The tempo bucket.
+	 * @param tatumBucket The last tatum time bucket.
+	 * @return The duplicate key for the given buckets.
+	 */
+	private static long getDuplicateKey(long tempoBucket, long tatumBucket) {
+		return (tempoBucket << 32) ^ tatumBucket;
+	}
 
 	@Override
 	public int compareTo(MidiModelState other) {
@@ -927,30 +951,16 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 			return result;
 		}
 		
-		result = tatums.size() - o.tatums.size();
+		result = tatums.compareTo(o.tatums);
 		if (result != 0) {
 			return result;
 		}
 		
-		for (int i = 0; i < tatums.size(); i++) {
-			result = tatums.get(i).compareTo(o.tatums.get(i));
-			if (result != 0) {
-				return result;
-			}
-		}
-		
-		result = unusedNoteTimes.size() - o.unusedNoteTimes.size();
+		result = unusedNoteTimes.compareTo(o.unusedNoteTimes);
 		if (result != 0) {
 			return result;
 		}
 		
-		for (int i = 0; i < unusedNoteTimes.size(); i++) {
-			result = unusedNoteTimes.get(i).compareTo(o.unusedNoteTimes.get(i));
-			if (result != 0) {
-				return result;
-			}
-		}
-		
 		result = Double.compare(previousTempo, o.previousTempo);
 		if (result != 0) {
 			return result;
@@ -973,30 +983,16 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 			return result;
 		}
 		
-		result = tatums.size() - o.tatums.size();
+		result = tatums.compareTo(o.tatums);
 		if (result != 0) {
 			return result;
 		}
 		
-		for (int i = 0; i < tatums.size(); i++) {
-			result = tatums.get(i).compareTo(o.tatums.get(i));
-			if (result != 0) {
-				return result;
-			}
-		}
-		
-		result = unusedNoteTimes.size() - o.unusedNoteTimes.size();
+		result = unusedNoteTimes.compareTo(o.unusedNoteTimes);
 		if (result != 0) {
 			return result;
 		}
 		
-		for (int i = 0; i < unusedNoteTimes.size(); i++) {
-			result = unusedNoteTimes.get(i).compareTo(o.unusedNoteTimes.get(i));
-			if (result != 0) {
-				return result;
-			}
-		}
-		
 		result = Double.compare(previousTempo, o.previousTempo);
 		if (result != 0) {
 			return result;
@@ -1004,4 +1000,101 @@ public class HmmBeatTrackingModelState extends BeatTrackingModelState {
 		
 		return 0;
 	}
+	
+	/**
+	 * A <code>BeatLayout</code> is an immutable layout of beat times, used while branching.
+	 * <br>
+	 * Its hash code is the same as that of a List of the same Integers, so that HashSets of BeatLayouts
+	 * are iterated in the same order as HashSets of those Lists would be. This order matters, since the
+	 * window for nudging sub beats is taken from the last beat layout.
+	 */
+	private static class BeatLayout {
+		/**
+		 * The beat times.
+		 */
+		private final int[] times;
+		
+		/**
+		 * The hash code of {@link #times}.
+		 */
+		private final int hash;
+		
+		/**
+		 * Create a new BeatLayout.
+		 * 
+		 * @param times {@link #times}. This array is used directly, and must not be changed afterwards.
+		 */
+		private BeatLayout(int[] times) {
+			this.times = times;
+			hash = Arrays.hashCode(times);
+		}
+		
+		/**
+		 * Get a copy of this layout, with one of its times changed.
+		 * 
+		 * @param index The index of the time to change.
+		 * @param time The new time.
+		 * @return A new BeatLayout.
+		 */
+		private BeatLayout with(int index, int time) {
+			int[] newTimes = times.clone();
+			newTimes[index] = time;
+			return new BeatLayout(newTimes);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof BeatLayout)) {
+				return false;
+			}
+			
+			BeatLayout o = (BeatLayout) other;
+			return hash == o.hash && Arrays.equals(times, o.times);
+		}
+	}
+	
+	/**
+	 * A <code>LayoutScratch</code> holds the reusable working space used for branching, so that only
+	 * the resulting states need to be allocated.
+	 */
+	private static class LayoutScratch {
+		/**
+		 * One of the two sets of layouts which are nudged back and forth.
+		 */
+		private final TimeLayoutSet layouts = new TimeLayoutSet();
+		
+		/**
+		 * The other of the two sets of layouts which are nudged back and forth.
+		 */
+		private final TimeLayoutSet spareLayouts = new TimeLayoutSet();
+		
+		/**
+		 * The possible nudged times of a single time.
+		 */
+		private final int[] nudgedTimes = new int[3];
+		
+		/**
+		 * A buffer for building a single layout of times.
+		 */
+		private int[] times = new int[0];
+		
+		/**
+		 * Get {@link #times}, making sure that it is at least the given length.
+		 * 
+		 * @param length The length we need.
+		 * @return {@link #times}
+		 */
+		private int[] getTimes(int length) {
+			if (times.length < length) {
+				times = new int[length];
+			}
+			
+			return times;
+		}
+	}
 }
@@ -0,0 +1,222 @@
+package metalign.beat.hmm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import metalign.beat.Beat;
+import metalign.utils.RunningStatistics;
+
+/**
+ * An <code>HmmBeatTrackingModelStatistics</code> object holds the sufficient statistics needed to
+ * train the {@link HmmBeatTrackingModelParameters}, as measured by the {@link HmmBeatTrackingModelTrainer}.
+ * Each file is summarized into its own object, and objects can be merged in any grouping, so files can be
+ * summarized in parallel, and saved statistics can be combined with those of new files.
+ *
+ * @author Andrew McLeod
+ */
+public class HmmBeatTrackingModelStatistics implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The percent change in tempo from each bar to the next.
+	 */
+	private final RunningStatistics tempoPercentChange;
+
+	/**
+	 * The tempo of the first bar of each file.
+	 */
+	private final RunningStatistics initialTempo;
+
+	/**
+	 * The standard deviation of the beat lengths within each bar, as a percentage of that bar's tempo.
+	 */
+	private final RunningStatistics beatSpacing;
+
+	/**
+	 * The deviation of each note's onset from its closest tatum.
+	 */
+	private final RunningStatistics noteDeviation;
+
+	/**
+	 * The minimum tempo of any bar.
+	 */
+	private double minTempo;
+
+	/**
+	 * The maximum tempo of any bar.
+	 */
+	private double maxTempo;
+
+	/**
+	 * Create a new empty statistics object.
+	 */
+	public HmmBeatTrackingModelStatistics() {
+		tempoPercentChange = new RunningStatistics();
+		initialTempo = new RunningStatistics();
+		beatSpacing = new RunningStatistics();
+		noteDeviation = new RunningStatistics();
+
+		minTempo = Double.MAX_VALUE;
+		maxTempo = Double.MIN_VALUE;
+	}
+
+	/**
+	 * Add the bar tempos and beat spacings of the given beats from a single file.
+	 *
+	 * @param beats The beats of a file, in order.
+	 */
+	public void addBeats(List<Beat> beats) {
+		double previousBarTempo = -1.0;
+		RunningStatistics beatLengths = new RunningStatistics();
+
+		for (int i = 1; i < beats.size(); i++) {
+			Beat currentBeat = beats.get(i);
+			Beat previousBeat = beats.get(i - 1);
+
+			beatLengths.add(currentBeat.getTime() - previousBeat.getTime());
+
+			if (previousBeat.getBar() != currentBeat.getBar()) {
+				double tempo = beatLengths.getMean();
+				minTempo = Double.min(minTempo, tempo);
+				maxTempo = Double.max(maxTempo, tempo);
+
+				beatSpacing.add(beatLengths.getStd() / tempo);
+
+				if (previousBarTempo > 0.0) {
+					tempoPercentChange.add((tempo - previousBarTempo) / previousBarTempo);
+
+				} else {
+					initialTempo.add(tempo);
+				}
+
+				previousBarTempo = tempo;
+				beatLengths = new RunningStatistics();
+			}
+		}
+
+		if (beatLengths.getCount() > 0) {
+			double tempo = beatLengths.getMean();
+
+			beatSpacing.add(beatLengths.getStd() / tempo);
+
+			if (previousBarTempo > 0.0) {
+				tempoPercentChange.add((tempo - previousBarTempo) / previousBarTempo);
+			}
+		}
+	}
+
+	/**
+	 * Add the deviation of a note's onset from its closest tatum.
+	 *
+	 * @param deviation The deviation.
+	 */
+	public void addNoteDeviation(double deviation) {
+		noteDeviation.add(deviation);
+	}
+
+	/**
+	 * Merge the given statistics into this object.
+	 *
+	 * @param other The statistics to merge into this one. It is not changed.
+	 */
+	public void merge(HmmBeatTrackingModelStatistics other) {
+		tempoPercentChange.merge(other.tempoPercentChange);
+		initialTempo.merge(other.initialTempo);
+		beatSpacing.merge(other.beatSpacing);
+		noteDeviation.merge(other.noteDeviation);
+
+		minTempo = Double.min(minTempo, other.minTempo);
+		maxTempo = Double.max(maxTempo, other.maxTempo);
+	}
+
+	/**
+	 * Print the trained parameters to the given stream, one per line, in the form <code>NAME = VALUE</code>.
+	 *
+	 * @param out The stream to print to.
+	 */
+	public void printParameters(PrintStream out) {
+		out.println("TEMPO_PERCENT_CHANGE_STD = " + tempoPercentChange.getStd());
+		out.println("INITIAL_TEMPO_MEAN = " + initialTempo.getMean());
+		out.println("INITIAL_TEMPO_STD = " + initialTempo.getStd());
+		out.println("MINIMUM_TEMPO = " + minTempo);
+		out.println("MAXIMUM_TEMPO = " + maxTempo);
+		out.println("BEAT_SPACING_MEAN = " + beatSpacing.getMean());
+		out.println("BEAT_SPACING_STD = " + beatSpacing.getStd());
+		out.println("NOTE_STD = " + noteDeviation.getStd());
+	}
+
+	/**
+	 * Get beat tracking parameters with the trained values from these statistics. Untrained parameters
+	 * take their default values.
+	 *
+	 * @return The trained parameters.
+	 */
+	public HmmBeatTrackingModelParameters toParameters() {
+		Properties properties = new Properties();
+
+		properties.setProperty("TEMPO_PERCENT_CHANGE_STD", Double.toString(tempoPercentChange.getStd()));
+		properties.setProperty("INITIAL_TEMPO_MEAN", Double.toString(initialTempo.getMean()));
+		properties.setProperty("INITIAL_TEMPO_STD", Double.toString(initialTempo.getStd()));
+		properties.setProperty("MINIMUM_TEMPO", Double.toString(minTempo));
+		properties.setProperty("MAXIMUM_TEMPO", Double.toString(maxTempo));
+		properties.setProperty("BEAT_SPACING_MEAN", Double.toString(beatSpacing.getMean()));
+		properties.setProperty("BEAT_SPACING_STD", Double.toString(beatSpacing.getStd()));
+		properties.setProperty("NOTE_STD", Double.toString(noteDeviation.getStd()));
+
+		return new HmmBeatTrackingModelParameters(properties);
+	}
+
+	/**
+	 * Serialize the given statistics and write them out to the given file.
+	 *
+	 * @param statistics The statistics we want to serialize.
+	 * @param file The file to write out the statistics to.
+	 *
+	 * @throws FileNotFoundException The file could not be opened for writing.
+	 * @throws IOException Some IO error occurred.
+	 *
+	 * @see #deserialize(File)
+	 */
+	public static void serialize(HmmBeatTrackingModelStatistics statistics, File file) throws FileNotFoundException, IOException {
+		ObjectOutputStream streamOutput = new ObjectOutputStream(
+				new GZIPOutputStream(
+						new FileOutputStream(file)));
+		streamOutput.writeObject(statistics);
+		streamOutput.flush();
+		streamOutput.close();
+	}
+
+	/**
+	 * Load statistics from a serialized file.
+	 *
+	 * @param serialized The file containing serialized statistics.
+	 * @return The statistics loaded from the given file.
+	 *
+	 * @throws ClassNotFoundException The class could not be deserialized properly.
+	 * @throws IOException Some IO error occurred.
+	 *
+	 * @see #serialize(HmmBeatTrackingModelStatistics, File)
+	 */
+	public static HmmBeatTrackingModelStatistics deserialize(File serialized) throws ClassNotFoundException, IOException {
+		ObjectInputStream streamInput = new ObjectInputStream(
+				new GZIPInputStream(
+						new FileInputStream(serialized)));
+		HmmBeatTrackingModelStatistics statistics = (HmmBeatTrackingModelStatistics) streamInput.readObject();
+		streamInput.close();
+		return statistics;
+	}
+}
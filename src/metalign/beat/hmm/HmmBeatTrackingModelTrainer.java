@@ -4,12 +4,18 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
+import metalign.HmmParameters;
 import metalign.Main;
 import metalign.Runner;
 import metalign.beat.Beat;
@@ -24,10 +30,19 @@ import metalign.utils.MidiNote;
  * The <code>HmmBeatTrackingModelTrainer</code> class is used to train the parameters for
  * HmmBeatTrackingModelParameters. It just reads in notes and beat/subBeat locations,
  * and then measures the different parameters.
+ * <br>
+ * Each file is summarized separately into an {@link HmmBeatTrackingModelStatistics} object (in parallel
+ * with the -p option), and these are merged. The merged statistics can be saved with -o, and merged
+ * into a later run with -i, so that new files can be added without re-parsing the old ones.
+ * The trained parameters can be written to a parameter file with -w (see {@link metalign.HmmParameters}).
  * 
  * @author Andrew McLeod - 28 July, 2017
  */
 public class HmmBeatTrackingModelTrainer {
+	/**
+	 * The number of files to summarize in parallel.
+	 */
+	public static int NUM_PROCS = 1;
 	
 	/**
 	 * The main method for running training the beat-tracker parameters. For help, run with no arguments.
@@ -39,6 +54,9 @@ public class HmmBeatTrackingModelTrainer {
 		boolean xml = false;
 		List<File> files = new ArrayList<File>();
 		List<File> anacrusisFiles = new ArrayList<File>();
+		List<File> statisticsFiles = new ArrayList<File>();
+		File exportStatisticsFile = null;
+		File exportParametersFile = null;
 		
 		// No args given
 		if (args.length == 0) {
@@ -88,6 +106,49 @@ public class HmmBeatTrackingModelTrainer {
 							anacrusisFiles.addAll(Main.getAllFilesRecursive(file));
 							break;
 							
+						case 'p':
+							i++;
+							if (args.length == i) {
+								argumentError("No process count given for -p option.");
+							}
+							try {
+								NUM_PROCS = Integer.parseInt(args[i]);
+							} catch (NumberFormatException e) {
+								argumentError("Exception reading process count. Must be an integer: " + args[i]);
+							}
+							if (NUM_PROCS < 1) {
+								argumentError("Process count must be at least 1: " + args[i]);
+							}
+							break;
+							
+						// Saved statistics to merge
+						case 'i':
+							if (args.length <= ++i) {
+								argumentError("No statistics File given after -i");
+							}
+							File statisticsFile = new File(args[i]);
+							if (!statisticsFile.exists()) {
+								argumentError("Statistics File " + args[i] + " not found");
+							}
+							statisticsFiles.add(statisticsFile);
+							break;
+							
+						// Save statistics
+						case 'o':
+							if (args.length <= ++i) {
+								argumentError("No File given after -o");
+							}
+							exportStatisticsFile = new File(args[i]);
+							break;
+							
+						// Write parameter file
+						case 'w':
+							if (args.length <= ++i) {
+								argumentError("No File given after -w");
+							}
+							exportParametersFile = new File(args[i]);
+							break;
+							
 						// Error
 						default:
 							argumentError("Unrecognized option: " + args[i]);
@@ -104,7 +165,7 @@ public class HmmBeatTrackingModelTrainer {
 			}
 		}
 		
-		if (files.isEmpty()) {
+		if (files.isEmpty() && statisticsFiles.isEmpty()) {
 			argumentError("No files found");
 		}
 		
@@ -119,225 +180,164 @@ public class HmmBeatTrackingModelTrainer {
 			}
 		}
 		
-		parseFiles(files, useChannel);
-	}
-	
-	private static void parseFiles(List<File> files, boolean useChannel) {
-		int barChangeCount = 0;
-		//double tempoDiffSum = 0.0;
-		//double tempoDiffSumSquared = 0.0;
-		
-		double tempoPercentDiffSum = 0.0;
-		double tempoPercentDiffSumSquared = 0.0;
-		
-		double initialTempoSum = 0.0;
-		double initialTempoSumSquared = 0.0;
-		int initialBarCount = 0;
+		HmmBeatTrackingModelStatistics statistics = new HmmBeatTrackingModelStatistics();
+		for (File statisticsFile : statisticsFiles) {
+			try {
+				statistics.merge(HmmBeatTrackingModelStatistics.deserialize(statisticsFile));
+			} catch (ClassNotFoundException | IOException e) {
+				System.err.println("Error loading statistics from " + statisticsFile + ":\n" + e.getLocalizedMessage());
+				System.exit(1);
+			}
+		}
 		
-		int barCount = 0;
-		//double barStdSum = 0.0;
-		//double barStdSumSquared = 0.0;
+		try {
+			parseFiles(files, useChannel, statistics);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Error summarizing files: " + e.getLocalizedMessage(), e);
+		}
 		
-		double barPercentStdSum = 0.0;
-		double barPercentStdSumSquared = 0.0;
+		if (exportStatisticsFile != null) {
+			try {
+				HmmBeatTrackingModelStatistics.serialize(statistics, exportStatisticsFile);
+			} catch (IOException e) {
+				System.err.println("Error saving statistics to " + exportStatisticsFile + ":\n" + e.getLocalizedMessage());
+			}
+		}
 		
-		int deviationCount = 0;
-		double deviationSum = 0.0;
-		double deviationSumSquared = 0.0;
+		if (exportParametersFile != null) {
+			HmmParameters parameters = new HmmParameters(exportParametersFile.getPath(), statistics.toParameters(),
+					HmmParameters.DEFAULT.getVoiceParameters());
+			try {
+				parameters.write(exportParametersFile);
+			} catch (IOException e) {
+				System.err.println("Error writing parameters to " + exportParametersFile + ":\n" + e.getLocalizedMessage());
+			}
+		}
 		
-		double minTempo = Double.MAX_VALUE;
-		double maxTempo = Double.MIN_VALUE;
+		statistics.printParameters(System.out);
+	}
+	
+	/**
+	 * Summarize the given files and merge their statistics, in order, into the given statistics. If
+	 * {@link #NUM_PROCS} is greater than 1, the files are summarized in parallel.
+	 * 
+	 * @param files The files to summarize.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
+	 * @param statistics The statistics to merge each file's statistics into.
+	 * 
+	 * @throws InterruptedException We were interrupted while waiting for the files to be summarized.
+	 * @throws ExecutionException An exception was thrown while summarizing a file.
+	 */
+	private static void parseFiles(List<File> files, final boolean useChannel, HmmBeatTrackingModelStatistics statistics)
+			throws InterruptedException, ExecutionException {
+		if (NUM_PROCS <= 1) {
+			for (File file : files) {
+				HmmBeatTrackingModelStatistics fileStatistics = getStatistics(file, useChannel);
+				if (fileStatistics != null) {
+					statistics.merge(fileStatistics);
+				}
+			}
+			return;
+		}
 		
-		for (File file : files) {
-			System.out.println("File: " + file);
-			
-			List<Beat> beats = new ArrayList<Beat>();
-			List<Beat> tatums = null;
-			XMLParser parser = null;
-			NoteListGenerator nlg = null;
-			
-			if (file.toString().endsWith(".xml")) {
-				File deviationFile = new File(file.getParentFile() + File.separator + "deviation_nodoctype.xml");
-			
-				try {
-					parser = new XMLParser(deviationFile, file);
-				} catch (ParserConfigurationException | SAXException | IOException e) {
-					System.err.println("Error parsing " + file + "\n" + e.getLocalizedMessage());
-					continue;
+		List<Callable<HmmBeatTrackingModelStatistics>> callables = new ArrayList<Callable<HmmBeatTrackingModelStatistics>>(files.size());
+		for (final File file : files) {
+			callables.add(new Callable<HmmBeatTrackingModelStatistics>() {
+				@Override
+				public HmmBeatTrackingModelStatistics call() {
+					return getStatistics(file, useChannel);
 				}
-				
-				parser.run();
-				
-				beats = parser.getBeats();
-				
-			} else {
-				TimeTracker tt = new TimeTracker(Main.SUB_BEAT_LENGTH);
-				nlg = new NoteListGenerator(tt);
-				
-				try {
-					if (file.toString().endsWith(".nb")) {
-						// NoteB
-						tt = new NoteBTimeTracker(Main.SUB_BEAT_LENGTH);
-						nlg = new NoteListGenerator(tt);
-						new NoteBParser(file, nlg, (NoteBTimeTracker) tt).run();
-						
-					} else {
-						// Midi or krn
-						Runner.parseFile(file, nlg, tt, useChannel);
-					}
-					
-				} catch (IOException | InvalidMidiDataException | InterruptedException e) {
-					System.err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
-					continue;
+			});
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_PROCS);
+		try {
+			// Merge in file order, so that the result does not depend on the number of processes
+			for (Future<HmmBeatTrackingModelStatistics> result : executor.invokeAll(callables)) {
+				HmmBeatTrackingModelStatistics fileStatistics = result.get();
+				if (fileStatistics != null) {
+					statistics.merge(fileStatistics);
 				}
-				
-				beats = tt.getBeatsOnly();
-				tatums = tt.getTatums();
 			}
 			
-			if (!beats.isEmpty()) {
-				barCount++;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Parse the given file and summarize its beats and note deviations.
+	 * 
+	 * @param file The file to summarize.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
+	 * @return The statistics of the given file, or null if it could not be parsed.
+	 */
+	public static HmmBeatTrackingModelStatistics getStatistics(File file, boolean useChannel) {
+		System.out.println("File: " + file);
+		
+		List<Beat> beats = new ArrayList<Beat>();
+		List<Beat> tatums = null;
+		XMLParser parser = null;
+		NoteListGenerator nlg = null;
+		
+		if (file.toString().endsWith(".xml")) {
+			File deviationFile = new File(file.getParentFile() + File.separator + "deviation_nodoctype.xml");
+		
+			try {
+				parser = new XMLParser(deviationFile, file);
+			} catch (ParserConfigurationException | SAXException | IOException e) {
+				System.err.println("Error parsing " + file + "\n" + e.getLocalizedMessage());
+				return null;
 			}
 			
-			double previousBarTempo = -1.0;
-			Beat previousBeat = beats.isEmpty() ? null : beats.get(0);
-			Beat currentBeat;
+			parser.run();
 			
-			double beatLengthSum = 0;
-			double beatLengthSumSquared = 0;
-			int numBeats = 0;
+			beats = parser.getBeats();
 			
-			for (int i = 1; i < beats.size(); i++) {
-				currentBeat = beats.get(i);
-				previousBeat = beats.get(i - 1);
-				
-				beatLengthSum += currentBeat.getTime() - previousBeat.getTime();
-				beatLengthSumSquared += (currentBeat.getTime() - previousBeat.getTime()) * (currentBeat.getTime() - previousBeat.getTime());
-				numBeats++;
-				
-				if (previousBeat.getBar() != currentBeat.getBar()) {
-					double tempo = beatLengthSum / numBeats;
-					minTempo = Double.min(minTempo, tempo);
-					maxTempo = Double.max(maxTempo, tempo);
-					
-					double beatLengthStd = Math.sqrt(beatLengthSumSquared / numBeats - tempo * tempo);
-					//barStdSum += beatLengthStd;
-					//barStdSumSquared += beatLengthStd * beatLengthStd;
-					
-					barPercentStdSum += beatLengthStd / tempo;
-					barPercentStdSumSquared += (beatLengthStd / tempo) * (beatLengthStd / tempo);
-					
-					if (previousBarTempo > 0.0) {
-						barChangeCount++;
-						barCount++;
-						
-						double diff = tempo - previousBarTempo;
-						double percentDiff = diff / previousBarTempo;
-						
-						//tempoDiffSum += diff;
-						//tempoDiffSumSquared += diff * diff;
-						
-						tempoPercentDiffSum += percentDiff;
-						tempoPercentDiffSumSquared += percentDiff * percentDiff;
-						
-					} else {
-						initialBarCount++;
-						initialTempoSum += tempo;
-						initialTempoSumSquared += tempo * tempo;
-					}
-					
-					previousBarTempo = tempo;
-					beatLengthSum = 0.0;
-					beatLengthSumSquared = 0.0;
-					numBeats = 0;
-				}
-			}
+		} else {
+			TimeTracker tt = new TimeTracker(Main.SUB_BEAT_LENGTH);
+			nlg = new NoteListGenerator(tt);
 			
-			if (numBeats > 0) {
-				double tempo = beatLengthSum / numBeats;
-				
-				double beatLengthStd = Math.sqrt(beatLengthSumSquared / numBeats - tempo * tempo);
-				//barStdSum += beatLengthStd;
-				//barStdSumSquared += beatLengthStd * beatLengthStd;
-				
-				barPercentStdSum += beatLengthStd / tempo;
-				barPercentStdSumSquared += (beatLengthStd / tempo) * (beatLengthStd / tempo);
-				
-				if (previousBarTempo > 0.0) {
-					barChangeCount++;
-					barCount++;
-					
-					double diff = tempo - previousBarTempo;
-					double percentDiff = diff / previousBarTempo;
+			try {
+				if (file.toString().endsWith(".nb")) {
+					// NoteB
+					tt = new NoteBTimeTracker(Main.SUB_BEAT_LENGTH);
+					nlg = new NoteListGenerator(tt);
+					new NoteBParser(file, nlg, (NoteBTimeTracker) tt).run();
 					
-					//tempoDiffSum += diff;
-					//tempoDiffSumSquared += diff * diff;
-					
-					tempoPercentDiffSum += percentDiff;
-					tempoPercentDiffSumSquared += percentDiff * percentDiff;
+				} else {
+					// Midi or krn
+					Runner.parseFile(file, nlg, tt, useChannel);
 				}
+				
+			} catch (IOException | InvalidMidiDataException | InterruptedException e) {
+				System.err.println("Error parsing file " + file + ":\n" + e.getLocalizedMessage());
+				return null;
 			}
 			
+			beats = tt.getBeatsOnly();
+			tatums = tt.getTatums();
+		}
+		
+		HmmBeatTrackingModelStatistics statistics = new HmmBeatTrackingModelStatistics();
+		statistics.addBeats(beats);
+		
+		// Calculate note deviations from tatums
+		if (parser != null) {
+			for (double deviation : parser.getNoteDeviations()) {
+				statistics.addNoteDeviation(deviation);
+			}
 			
-			// Calculate note deviations from tatums
-			if (parser != null) {
-				for (double deviation : parser.getNoteDeviations()) {
-					deviationCount++;
-					deviationSum += deviation;
-					deviationSumSquared += deviation * deviation;
-				}
-				
-			} else if (tatums != null && nlg != null) {
-				for (List<MidiNote> noteList : nlg.getIncomingLists()) {
-					for (MidiNote note : noteList) {
-						Beat closestTatum = note.getOnsetBeat(tatums);
-						
-						double diff = Math.abs(closestTatum.getTime() - note.getOnsetTime());
-						deviationCount++;
-						deviationSum += diff;
-						deviationSumSquared += diff * diff;
-					}
+		} else if (tatums != null && nlg != null) {
+			for (List<MidiNote> noteList : nlg.getIncomingLists()) {
+				for (MidiNote note : noteList) {
+					Beat closestTatum = note.getOnsetBeat(tatums);
+					statistics.addNoteDeviation(Math.abs(closestTatum.getTime() - note.getOnsetTime()));
 				}
 			}
 		}
 		
-		//double tempoDiffMean = tempoDiffSum / barChangeCount;
-		//double tempoDiffVariance = tempoDiffSumSquared / barChangeCount - tempoDiffMean * tempoDiffMean;
-		
-		double tempoPercentDiffMean = tempoPercentDiffSum / barChangeCount;
-		double tempoPercentDiffVariance = tempoPercentDiffSumSquared / barChangeCount - tempoPercentDiffMean * tempoPercentDiffMean;
-		
-		double initialTempoMean = initialTempoSum / initialBarCount;
-		double initialTempoVariance = initialTempoSumSquared / initialBarCount - initialTempoMean * initialTempoMean;
-		
-		//System.out.println("Bar Change Count = " + barChangeCount);
-		//System.out.println("Tempo Diff Mean = " + tempoDiffMean);
-		//System.out.println("Tempo Diff St Dev = " + Math.sqrt(tempoDiffVariance));
-		//System.out.println("Tempo Percent Diff Mean = " + tempoPercentDiffMean);
-		System.out.println("TEMPO_PERCENT_CHANGE_STD = " + Math.sqrt(tempoPercentDiffVariance));
-		System.out.println("INITIAL_TEMPO_MEAN = " + initialTempoMean);
-		System.out.println("INITIAL_TEMPO_STD = " + Math.sqrt(initialTempoVariance));
-		System.out.println("MINIMUM_TEMPO = " + minTempo);
-		System.out.println("MAXIMUM_TEMPO = " + maxTempo);
-		
-		//double barStdMean = barStdSum / barCount;
-		//double barStdVariance = barStdSumSquared / barCount - barStdMean * barStdMean;
-		
-		double barPercentStdMean = barPercentStdSum / barCount;
-		double barPercentStdVariance = barPercentStdSumSquared / barCount - barPercentStdMean * barPercentStdMean;
-		
-		//System.out.println("Bar Count = " + barCount);
-		//System.out.println("Bar Std Mean = " + barStdMean);
-		//System.out.println("Bar Std Std Dev = " + Math.sqrt(barStdVariance));
-		System.out.println("BEAT_SPACING_MEAN = " + barPercentStdMean);
-		System.out.println("BEAT_SPACING_STD = " + Math.sqrt(barPercentStdVariance));
-		
-		double deviationMean = deviationSum / deviationCount;
-		double deviationVariance = deviationSumSquared / deviationCount - deviationMean * deviationMean;
-		
-		//System.out.println("Deviation Count = " + deviationCount);
-		//System.out.println("Deviation Mean = " + deviationMean);
-		System.out.println("NOTE_STD = " + Math.sqrt(deviationVariance));
+		return statistics;
 	}
 
 	/**
@@ -358,6 +358,10 @@ public class HmmBeatTrackingModelTrainer {
 		sb.append("-X = Input files are xml directories from CrestMusePEDB.\n");
 		sb.append("-s INT = Use INT as the sub beat length. Defaults to 4.\n");
 		sb.append("-a FILE = Search recursively under the given FILE for anacrusis files.\n");
+		sb.append("-p INT = Summarize files in parallel with the given number of processes.\n");
+		sb.append("-i FILE = Merge the statistics saved in FILE (with -o) into these ones. May be given multiple times.\n");
+		sb.append("-o FILE = Save the merged statistics to FILE, to be merged into a later run with -i.\n");
+		sb.append("-w FILE = Write the trained parameters to the parameter FILE, to be loaded with the -r option of metalign.Main.\n");
 		
 		System.err.println(sb.toString());
 		System.exit(1);
@@ -0,0 +1,180 @@
+package metalign.beat.hmm;
+
+import java.util.Arrays;
+
+/**
+ * A <code>NoteTimeBuffer</code> holds a sorted sequence of note onset times in a primitive int array.
+ * Times are normally added in order at the end (an earlier time is shifted into its sorted place),
+ * and are removed from the front (by moving a pointer). The times near any given time can be found
+ * with a binary search.
+ * <br>
+ * The live times lie in <code>times[head, tail)</code>. When there is no room left at the end, they
+ * are moved back to the start of the array, which is grown only if they already fill it.
+ *
+ * @author Andrew McLeod
+ */
+public class NoteTimeBuffer implements Comparable<NoteTimeBuffer> {
+	/**
+	 * The times, sorted, in the range [{@link #head}, {@link #tail}).
+	 */
+	private int[] times;
+
+	/**
+	 * The index of the first time in {@link #times}.
+	 */
+	private int head;
+
+	/**
+	 * The index after the last time in {@link #times}.
+	 */
+	private int tail;
+
+	/**
+	 * Create a new empty NoteTimeBuffer.
+	 */
+	public NoteTimeBuffer() {
+		times = new int[16];
+		head = 0;
+		tail = 0;
+	}
+
+	/**
+	 * Create a new NoteTimeBuffer, a copy of the given one.
+	 *
+	 * @param buffer The buffer to copy.
+	 */
+	public NoteTimeBuffer(NoteTimeBuffer buffer) {
+		int size = buffer.size();
+		times = new int[Math.max(size, 16)];
+		System.arraycopy(buffer.times, buffer.head, times, 0, size);
+		head = 0;
+		tail = size;
+	}
+
+	/**
+	 * Add a time into this buffer. Times are normally added in order, so this is constant time, but
+	 * an earlier time is still inserted into its sorted place (after any equal times).
+	 *
+	 * @param time The time to add.
+	 */
+	public void add(int time) {
+		if (tail == times.length) {
+			if (head > 0) {
+				System.arraycopy(times, head, times, 0, size());
+			} else {
+				times = Arrays.copyOf(times, times.length * 2);
+			}
+			tail -= head;
+			head = 0;
+		}
+
+		int index = tail++;
+		while (index > head && times[index - 1] > time) {
+			times[index] = times[index - 1];
+			index--;
+		}
+		times[index] = time;
+	}
+
+	/**
+	 * Remove the first time from this buffer.
+	 *
+	 * @return The removed time.
+	 */
+	public int removeFirst() {
+		return times[head++];
+	}
+
+	/**
+	 * Get a time from this buffer.
+	 *
+	 * @param index The index of the time, where 0 is the first time.
+	 * @return The time at the given index.
+	 */
+	public int get(int index) {
+		return times[head + index];
+	}
+
+	/**
+	 * Get the first time in this buffer. This should only be called if it is not empty.
+	 *
+	 * @return The first time.
+	 */
+	public int getFirst() {
+		return times[head];
+	}
+
+	/**
+	 * Get the last time in this buffer. This should only be called if it is not empty.
+	 *
+	 * @return The last time.
+	 */
+	public int getLast() {
+		return times[tail - 1];
+	}
+
+	/**
+	 * Get the index of the first time in this buffer which is no more than the given distance before
+	 * the given time. Together with the times after it which are no more than the given distance
+	 * after the given time, these are the times within that distance of it.
+	 *
+	 * @param time The time to search around.
+	 * @param distance The maximum distance from the time.
+	 * @return The index of the first time <code>t</code> for which <code>t - time >= -distance</code>,
+	 * or {@link #size()} if there is none.
+	 */
+	public int getFirstIndexNear(int time, double distance) {
+		int low = head;
+		int high = tail;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (times[mid] - time < -distance) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low - head;
+	}
+
+	/**
+	 * Get the number of times in this buffer.
+	 *
+	 * @return The number of times in this buffer.
+	 */
+	public int size() {
+		return tail - head;
+	}
+
+	/**
+	 * Decide whether this buffer is empty.
+	 *
+	 * @return True if this buffer contains no times. False otherwise.
+	 */
+	public boolean isEmpty() {
+		return head == tail;
+	}
+
+	/**
+	 * Compare by size, and then by the first differing time.
+	 */
+	@Override
+	public int compareTo(NoteTimeBuffer o) {
+		int result = size() - o.size();
+		if (result != 0) {
+			return result;
+		}
+
+		for (int i = 0; i < size(); i++) {
+			result = Integer.compare(get(i), o.get(i));
+			if (result != 0) {
+				return result;
+			}
+		}
+
+		return 0;
+	}
+}
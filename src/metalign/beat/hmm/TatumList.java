@@ -0,0 +1,178 @@
+package metalign.beat.hmm;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A <code>TatumList</code> is an immutable, persistent List of tatum times. Each TatumList holds a
+ * chunk of times (usually a single bar) and a pointer to the TatumList it extends, so that many
+ * hypotheses which share a history also share the memory for it, and appending a bar only costs
+ * the length of that bar.
+ * <br>
+ * Each TatumList also keeps a jump pointer to an earlier ancestor (as in Myers' applicative random
+ * access stacks), so that {@link #getInt(int)} takes time logarithmic in the number of chunks, and
+ * constant time for indices within the most recent chunk.
+ *
+ * @author Andrew McLeod
+ */
+public class TatumList extends AbstractList<Integer> implements RandomAccess, Comparable<TatumList> {
+	/**
+	 * The empty TatumList, which all others extend.
+	 */
+	public static final TatumList EMPTY = new TatumList();
+
+	/**
+	 * The TatumList which this one extends, or null for {@link #EMPTY}.
+	 */
+	private final TatumList parent;
+
+	/**
+	 * An ancestor of this TatumList used to skip quickly over many chunks, or null for {@link #EMPTY}.
+	 */
+	private final TatumList jump;
+
+	/**
+	 * The tatum times added by this TatumList.
+	 */
+	private final int[] chunk;
+
+	/**
+	 * The index of the first time in {@link #chunk}. This is the size of {@link #parent}.
+	 */
+	private final int start;
+
+	/**
+	 * The number of chunks in this TatumList, including its own.
+	 */
+	private final int depth;
+
+	/**
+	 * Create the empty TatumList.
+	 */
+	private TatumList() {
+		parent = null;
+		jump = null;
+		chunk = new int[0];
+		start = 0;
+		depth = 0;
+	}
+
+	/**
+	 * Create a new TatumList by appending the given chunk to the given parent.
+	 *
+	 * @param parent {@link #parent}
+	 * @param chunk {@link #chunk}
+	 */
+	private TatumList(TatumList parent, int[] chunk) {
+		this.parent = parent;
+		this.chunk = chunk;
+		start = parent.size();
+		depth = parent.depth + 1;
+
+		if (parent.jump != null && parent.jump.jump != null &&
+				parent.depth - parent.jump.depth == parent.jump.depth - parent.jump.jump.depth) {
+			jump = parent.jump.jump;
+		} else {
+			jump = parent;
+		}
+	}
+
+	/**
+	 * Get a new TatumList which is this one with the given times appended to it. This one is not changed.
+	 *
+	 * @param times The times to append. This array is used directly, and must not be changed afterwards.
+	 * @return A new TatumList, or this one if times is empty.
+	 */
+	public TatumList append(int[] times) {
+		return times.length == 0 ? this : new TatumList(this, times);
+	}
+
+	/**
+	 * Get the time at the given index, without boxing it.
+	 *
+	 * @param index The index of the time we want.
+	 * @return The time at the given index.
+	 */
+	public int getInt(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+
+		TatumList list = getChunkList(index);
+		return list.chunk[index - list.start];
+	}
+
+	/**
+	 * Get the TatumList whose {@link #chunk} holds the time at the given index.
+	 *
+	 * @param index The index of a time in this TatumList. This must be in range.
+	 * @return The TatumList, this one or an ancestor, whose chunk holds the given index.
+	 */
+	private TatumList getChunkList(int index) {
+		TatumList list = this;
+		while (list.start > index) {
+			list = list.jump.size() > index ? list.jump : list.parent;
+		}
+
+		return list;
+	}
+
+	/**
+	 * Get the last time in this TatumList.
+	 *
+	 * @return The last time, or -1 if this TatumList is empty.
+	 */
+	public int getLast() {
+		return chunk.length == 0 ? -1 : chunk[chunk.length - 1];
+	}
+
+	@Override
+	public Integer get(int index) {
+		return getInt(index);
+	}
+
+	@Override
+	public int size() {
+		return start + chunk.length;
+	}
+
+	/**
+	 * Compare by size, and then by the first differing time. Chunks which are shared by both
+	 * TatumLists are not checked element by element.
+	 */
+	@Override
+	public int compareTo(TatumList o) {
+		int result = size() - o.size();
+		if (result != 0 || this == o) {
+			return result;
+		}
+
+		// Find the shared history. It is the same size in both lists, since chunks are never empty.
+		TatumList shared = this;
+		TatumList otherShared = o;
+		while (shared != otherShared) {
+			if (shared.size() >= otherShared.size()) {
+				shared = shared.parent;
+			} else {
+				otherShared = otherShared.parent;
+			}
+		}
+
+		// Compare the rest, a chunk at a time
+		int index = shared.size();
+		while (index < size()) {
+			TatumList list = getChunkList(index);
+			TatumList otherList = o.getChunkList(index);
+			int end = Math.min(list.size(), otherList.size());
+
+			for (; index < end; index++) {
+				result = Integer.compare(list.chunk[index - list.start], otherList.chunk[index - otherList.start]);
+				if (result != 0) {
+					return result;
+				}
+			}
+		}
+
+		return 0;
+	}
+}
@@ -0,0 +1,216 @@
+package metalign.beat.hmm;
+
+import java.util.Arrays;
+
+/**
+ * A <code>TimeLayoutSet</code> is a set of layouts of times (for example, the sub beat times of one bar),
+ * all of the same length. The layouts are stored back to back in a single int array, and duplicates are
+ * found by content with an open-addressed hash table, so that once a set has grown large enough, adding
+ * a layout to it allocates nothing. Sets are meant to be {@link #reset(int)} and reused.
+ * <br>
+ * Layouts are indexed from 0, in the order in which they were first added.
+ *
+ * @author Andrew McLeod
+ */
+public class TimeLayoutSet {
+	/**
+	 * The number of times in each layout.
+	 */
+	private int length;
+
+	/**
+	 * The number of layouts in this set.
+	 */
+	private int size;
+
+	/**
+	 * The times of each layout, back to back. Layout i begins at index i * {@link #length}.
+	 */
+	private int[] times;
+
+	/**
+	 * The hash code of each layout.
+	 */
+	private int[] hashes;
+
+	/**
+	 * The hash table, holding the index of a layout in each used slot.
+	 */
+	private int[] table;
+
+	/**
+	 * The generation in which each slot of {@link #table} was last used. A slot is only in use if
+	 * its stamp is equal to {@link #generation}, so that {@link #reset(int)} doesn't have to clear the table.
+	 */
+	private int[] stamps;
+
+	/**
+	 * The current generation of {@link #table}.
+	 */
+	private int generation;
+
+	/**
+	 * Create a new empty TimeLayoutSet, with layouts of length 0.
+	 */
+	public TimeLayoutSet() {
+		length = 0;
+		size = 0;
+		times = new int[64];
+		hashes = new int[16];
+		table = new int[32];
+		stamps = new int[32];
+		generation = 1;
+	}
+
+	/**
+	 * Remove all layouts from this set, and set the length of the layouts it will hold from now on.
+	 *
+	 * @param length {@link #length}
+	 */
+	public void reset(int length) {
+		this.length = length;
+		size = 0;
+
+		if (++generation == 0) {
+			Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * Add the given layout to this set, if it is not already in it.
+	 *
+	 * @param layout An array whose first {@link #length} times are the layout to add.
+	 * @return True if the layout was added. False if it was already in this set.
+	 */
+	public boolean add(int[] layout) {
+		ensureCapacity();
+		System.arraycopy(layout, 0, times, size * length, length);
+		return addLast();
+	}
+
+	/**
+	 * Add a copy of a layout from the given set, with one of its times changed, to this set,
+	 * if it is not already in it.
+	 *
+	 * @param source The set containing the layout to copy. Its layouts must be the same length as ours.
+	 * @param layout The index of the layout to copy in the source set.
+	 * @param index The index of the time to change.
+	 * @param time The new time to use at the given index.
+	 * @return True if the layout was added. False if it was already in this set.
+	 */
+	public boolean addModified(TimeLayoutSet source, int layout, int index, int time) {
+		ensureCapacity();
+		int offset = size * length;
+		System.arraycopy(source.times, layout * source.length, times, offset, length);
+		times[offset + index] = time;
+		return addLast();
+	}
+
+	/**
+	 * Get a time from a layout in this set.
+	 *
+	 * @param layout The index of the layout.
+	 * @param index The index of the time within the layout.
+	 * @return The time.
+	 */
+	public int get(int layout, int index) {
+		return times[layout * length + index];
+	}
+
+	/**
+	 * Get a copy of a layout from this set.
+	 *
+	 * @param layout The index of the layout.
+	 * @return A new array containing the times of the layout.
+	 */
+	public int[] toArray(int layout) {
+		return Arrays.copyOfRange(times, layout * length, (layout + 1) * length);
+	}
+
+	/**
+	 * Get the number of times in each layout of this set.
+	 *
+	 * @return {@link #length}
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the number of layouts in this set.
+	 *
+	 * @return {@link #size}
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Make sure that there is room for one more layout after the last one.
+	 */
+	private void ensureCapacity() {
+		if ((size + 1) * length > times.length) {
+			times = Arrays.copyOf(times, Math.max(times.length * 2, (size + 1) * length));
+		}
+
+		if (size == hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+	}
+
+	/**
+	 * Keep the layout written just after the last one in this set, if it is not a duplicate.
+	 *
+	 * @return True if the layout was kept. False if it was a duplicate.
+	 */
+	private boolean addLast() {
+		int offset = size * length;
+		int hash = 1;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + times[offset + i];
+		}
+
+		int mask = table.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (stamps[slot] == generation) {
+			int other = table[slot];
+			if (hashes[other] == hash && Arrays.equals(times, other * length, (other + 1) * length, times, offset, offset + length)) {
+				return false;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		stamps[slot] = generation;
+		table[slot] = size;
+		hashes[size] = hash;
+		size++;
+
+		if (size * 2 > table.length) {
+			growTable();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Double the size of {@link #table}, and re-insert all of the layouts.
+	 */
+	private void growTable() {
+		table = new int[table.length * 2];
+		stamps = new int[stamps.length * 2];
+		generation = 1;
+
+		int mask = table.length - 1;
+		for (int layout = 0; layout < size; layout++) {
+			int slot = (hashes[layout] ^ (hashes[layout] >>> 16)) & mask;
+			while (stamps[slot] == generation) {
+				slot = (slot + 1) & mask;
+			}
+
+			stamps[slot] = generation;
+			table[slot] = layout;
+		}
+	}
+}
@@ -61,6 +61,16 @@ public abstract class HierarchyModelState extends MidiModelState {
 	 */
 	public abstract boolean isDuplicateOf(HierarchyModelState state);
 	
+	/**
+	 * Get a hash such that any two states which are {@link #isDuplicateOf(HierarchyModelState)} each other
+	 * have the same hash. By default, this is the same for all states.
+	 * 
+	 * @return The duplicate hash of this state.
+	 */
+	public int getDuplicateHash() {
+		return 0;
+	}
+	
 	@Override
 	public abstract TreeSet<? extends HierarchyModelState> handleIncoming(List<MidiNote> notes);
 	
@@ -9,15 +9,16 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import javax.sound.midi.InvalidMidiDataException;
 
-import metalign.Main;
+import metalign.RunConfiguration;
 import metalign.Runner;
 import metalign.beat.fromfile.FromFileBeatTrackingModelState;
 import metalign.hierarchy.Measure;
@@ -42,9 +43,42 @@ public class MetricalLpcfg implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	/**
-	 * A List of the trees contained in this lpcfg.
+	 * A List of the trees contained in this lpcfg. This may be shared with other grammars
+	 * (see {@link #sharedTrees}).
 	 */
-	private final List<MetricalLpcfgTree> trees;
+	private List<MetricalLpcfgTree> trees;
+	
+	/**
+	 * True if {@link #trees} may be shared with another grammar, in which case it must be
+	 * copied before it is changed. Shallow copies share their trees until one of them changes.
+	 */
+	private transient volatile boolean sharedTrees = false;
+	
+	/**
+	 * Sections of binary grammar files holding trees of this grammar which have not been loaded into
+	 * {@link #trees} yet, or null if there are none. This List is never changed, only replaced, so it
+	 * can be shared by shallow copies.
+	 */
+	private transient volatile List<MetricalLpcfgBinaryFormat.TreeSection> lazyTrees = null;
+	
+	/**
+	 * The counts of each file this grammar was generated from, and where its trees are in {@link #trees},
+	 * keyed by the file's canonical path. These let a file be extracted from this grammar (and added back)
+	 * with only count subtractions (see {@link #extract(File, List, boolean)}). This is null if no file's
+	 * counts have been saved, for example in a grammar generated before they were.
+	 */
+	private Map<String, MetricalLpcfgFileCounts> files = null;
+	
+	/**
+	 * The section of a binary grammar file holding {@link #files}, if it has not been loaded yet, or null.
+	 */
+	private transient volatile MetricalLpcfgBinaryFormat.FileSection lazyFiles = null;
+	
+	/**
+	 * True if this grammar only keeps its counts, and not its trees. A hypothesis' local grammar
+	 * never needs its trees, and saving them would make every hypothesis hold its whole history.
+	 */
+	private transient boolean countsOnly = false;
 	
 	/**
 	 * The probability tracker for this grammar.
@@ -55,8 +89,34 @@ public class MetricalLpcfg implements Serializable {
 	 * Create a new empty grammar.
 	 */
 	public MetricalLpcfg() {
+		this(true);
+	}
+	
+	/**
+	 * Create a new empty grammar.
+	 * 
+	 * @param saveTrees False if this grammar should only keep its counts, and not the trees added to it.
+	 * Such a grammar cannot have trees extracted from it.
+	 */
+	public MetricalLpcfg(boolean saveTrees) {
 		trees = new ArrayList<MetricalLpcfgTree>();
 		probabilities = new MetricalLpcfgProbabilityTracker();
+		countsOnly = !saveTrees;
+	}
+	
+	/**
+	 * Create a new grammar with the given probability tracker, used by {@link MetricalLpcfgBinaryFormat}.
+	 * 
+	 * @param probabilities {@link #probabilities}
+	 * @param lazyTrees {@link #lazyTrees}
+	 * @param lazyFiles {@link #lazyFiles}
+	 */
+	MetricalLpcfg(MetricalLpcfgProbabilityTracker probabilities, List<MetricalLpcfgBinaryFormat.TreeSection> lazyTrees,
+			MetricalLpcfgBinaryFormat.FileSection lazyFiles) {
+		trees = new ArrayList<MetricalLpcfgTree>();
+		this.probabilities = probabilities;
+		this.lazyTrees = lazyTrees;
+		this.lazyFiles = lazyFiles;
 	}
 	
 	/**
@@ -66,15 +126,22 @@ public class MetricalLpcfg implements Serializable {
 	 * @param deep True if this is to be a deep copy. False otherwise.
 	 */
 	private MetricalLpcfg(MetricalLpcfg lpcfg, boolean deep) {
-		trees = new ArrayList<MetricalLpcfgTree>();
 		if (deep) {
-			for (MetricalLpcfgTree tree : lpcfg.trees) {
+			trees = new ArrayList<MetricalLpcfgTree>();
+			for (MetricalLpcfgTree tree : lpcfg.getTrees()) {
 				trees.add(tree.deepCopy());
 			}
+			files = copyFiles(lpcfg.getFiles());
 		} else {
-			trees.addAll(lpcfg.trees);
+			trees = lpcfg.trees;
+			sharedTrees = true;
+			lpcfg.sharedTrees = true;
+			lazyTrees = lpcfg.lazyTrees;
+			files = copyFiles(lpcfg.files);
+			lazyFiles = lpcfg.lazyFiles;
 		}
 		
+		countsOnly = lpcfg.countsOnly;
 		probabilities = lpcfg.probabilities.deepCopy();
 	}
 	
@@ -101,10 +168,26 @@ public class MetricalLpcfg implements Serializable {
 		
 		if (node instanceof MetricalLpcfgNonterminal) {
 			MetricalLpcfgNonterminal nonterminal = (MetricalLpcfgNonterminal) node;
+			String typeString = nonterminal.getTypeString();
+			
+			// Beat and sub beat subtrees repeat often, so we save their log probabilities in a compiled grammar
+			// (a local grammar changes after almost every tree it scores, so saving them there costs more than
+			// it saves). They are saved by measure, type (and level), and parent head, and then by quantum pattern,
+			// since a beat or sub beat subtree is built only from its quantums (see MetricalLpcfgTreeFactory).
+			Map<MetricalLpcfgPattern, Double> subtreeLogProbabilities = null;
+			MetricalLpcfgPattern subtreeKey = null;
+			if (!(nonterminal instanceof MetricalLpcfgMeasure) && probabilities.isCompiled()) {
+				subtreeLogProbabilities = probabilities.getSubtreeLogProbabilities(MetricalLpcfgSymbolTable.getKeyId(measure, typeString, parentHead));
+				subtreeKey = nonterminal.getTerminal().getPackedPattern();
+				
+				Double saved = subtreeLogProbabilities.get(subtreeKey);
+				if (saved != null) {
+					return saved;
+				}
+			}
 			
 			List<MetricalLpcfgNode> children = nonterminal.getChildren();
 			String transitionString = nonterminal.getTransitionString();
-			String typeString = nonterminal.getTypeString();
 			MetricalLpcfgHead head = nonterminal.getHead();
 			MetricalLpcfgLevel level = nonterminal.getLevel();
 
@@ -125,6 +208,10 @@ public class MetricalLpcfg implements Serializable {
 			for (MetricalLpcfgNode child : children) {
 				logProbability += getNodeLogProbability(child, head, measure);
 			}
+			
+			if (subtreeLogProbabilities != null) {
+				subtreeLogProbabilities.put(subtreeKey, logProbability);
+			}
 		}
 		
 		return logProbability;
@@ -138,21 +225,27 @@ public class MetricalLpcfg implements Serializable {
 	 * in the grammar.
 	 */
 	public void extractTree(MetricalLpcfgTree toExtract) throws MetricalLpcfgElementNotFoundException {
-		Iterator<MetricalLpcfgTree> treeIterator = trees.iterator();
-		while (treeIterator.hasNext()) {
-			if (treeIterator.next().equals(toExtract)) {
-				// Tree found
-				treeIterator.remove();
-				
-				try {
-					updateCounts(toExtract.getMeasure(), toExtract.getMeasure().getHead(), toExtract.getMeasure().getMeasure(), false);
-				} catch (MetricalLpcfgElementNotFoundException e) {
-					System.err.println(e);
-					throw new MetricalLpcfgElementNotFoundException(toExtract);
-				}
-				
-				return;
+		loadLazyTrees();
+		ensureOwnTrees();
+		
+		int index = trees.indexOf(toExtract);
+		if (index != -1) {
+			// Tree found
+			trees.remove(index);
+			
+			// Keep any saved files' trees where they are
+			if (getFiles() != null) {
+				shiftFiles(null, index + 1, -1);
+			}
+			
+			try {
+				updateCounts(toExtract.getMeasure(), toExtract.getMeasure().getHead(), toExtract.getMeasure().getMeasure(), false);
+			} catch (MetricalLpcfgElementNotFoundException e) {
+				System.err.println(e);
+				throw new MetricalLpcfgElementNotFoundException(toExtract);
 			}
+			
+			return;
 		}
 		
 		throw new MetricalLpcfgElementNotFoundException(toExtract);
@@ -164,7 +257,9 @@ public class MetricalLpcfg implements Serializable {
 	 * @param tree A new tree we want to add to this grammar.
 	 */
 	public void addTree(MetricalLpcfgTree tree) {
-		if (MetricalLpcfgGeneratorRunner.SAVE_TREES) {
+		if (MetricalLpcfgGeneratorRunner.SAVE_TREES && !countsOnly) {
+			loadLazyTrees();
+			ensureOwnTrees();
 			trees.add(tree);
 		}
 		
@@ -176,6 +271,147 @@ public class MetricalLpcfg implements Serializable {
 		}
 	}
 	
+	/**
+	 * Remove the given tree's counts from this grammar, as well as the tree itself, if this grammar saves
+	 * its trees and contains it. Unlike {@link #extractTree(MetricalLpcfgTree)}, this works even if this
+	 * grammar was generated without saving its trees.
+	 * 
+	 * @param tree The tree we want to remove from this grammar.
+	 * @throws MetricalLpcfgElementNotFoundException If the tree's counts are not found in the grammar.
+	 */
+	public void removeTree(MetricalLpcfgTree tree) throws MetricalLpcfgElementNotFoundException {
+		if (MetricalLpcfgGeneratorRunner.SAVE_TREES && !countsOnly) {
+			loadLazyTrees();
+			ensureOwnTrees();
+			
+			int index = trees.indexOf(tree);
+			if (index != -1) {
+				trees.remove(index);
+				
+				// Keep any saved files' trees where they are
+				if (getFiles() != null) {
+					shiftFiles(null, index + 1, -1);
+				}
+			}
+		}
+		
+		updateCounts(tree.getMeasure(), tree.getMeasure().getHead(), tree.getMeasure().getMeasure(), false);
+	}
+	
+	/**
+	 * Save the counts of a file whose trees have just been added to this grammar with {@link #addTree(MetricalLpcfgTree)},
+	 * so that it can later be extracted without being parsed again. Any counts already saved for the file are replaced.
+	 * 
+	 * @param path The canonical path of the file.
+	 * @param fileTrees The trees the file added to this grammar, in order.
+	 */
+	public synchronized void addFileCounts(String path, List<MetricalLpcfgTree> fileTrees) {
+		int firstTree = -1;
+		if (MetricalLpcfgGeneratorRunner.SAVE_TREES && !countsOnly) {
+			firstTree = getTrees().size() - fileTrees.size();
+		}
+		
+		if (getFiles() == null) {
+			files = new LinkedHashMap<String, MetricalLpcfgFileCounts>();
+		}
+		files.put(path, new MetricalLpcfgFileCounts(fileTrees, firstTree));
+	}
+	
+	/**
+	 * Get the saved counts of the given file.
+	 * 
+	 * @param path The canonical path of the file.
+	 * @return The counts of the given file, or null if none were saved.
+	 */
+	public MetricalLpcfgFileCounts getFileCounts(String path) {
+		Map<String, MetricalLpcfgFileCounts> files = getFiles();
+		return files == null ? null : files.get(path);
+	}
+	
+	/**
+	 * Remove the given file from this grammar for good: its counts, its trees, and its saved counts.
+	 * 
+	 * @param path The canonical path of the file.
+	 * @return The removed counts of the file, or null if none were saved (in which case nothing is removed).
+	 * @throws MetricalLpcfgElementNotFoundException If the file's counts are not found in the grammar.
+	 */
+	public MetricalLpcfgFileCounts removeFile(String path) throws MetricalLpcfgElementNotFoundException {
+		MetricalLpcfgFileCounts fileCounts = getFileCounts(path);
+		if (fileCounts == null) {
+			return null;
+		}
+		
+		if (!fileCounts.isExtracted()) {
+			extractFile(fileCounts);
+		}
+		files.remove(path);
+		
+		return fileCounts;
+	}
+	
+	/**
+	 * Subtract the given file's counts from this grammar, and take its trees out of {@link #trees}.
+	 * 
+	 * @param fileCounts The counts of the file, which has not been extracted.
+	 * @throws MetricalLpcfgElementNotFoundException If the file's counts are not found in the grammar.
+	 * In that case, this grammar is unchanged.
+	 */
+	private void extractFile(MetricalLpcfgFileCounts fileCounts) throws MetricalLpcfgElementNotFoundException {
+		probabilities.removeCounts(fileCounts.getCounts());
+		
+		List<MetricalLpcfgTree> extractedTrees = null;
+		int firstTree = fileCounts.getFirstTree();
+		if (firstTree != -1) {
+			loadLazyTrees();
+			ensureOwnTrees();
+			
+			List<MetricalLpcfgTree> fileTrees = trees.subList(firstTree, firstTree + fileCounts.getNumTrees());
+			extractedTrees = new ArrayList<MetricalLpcfgTree>(fileTrees);
+			fileTrees.clear();
+			
+			shiftFiles(fileCounts, firstTree + 1, -fileCounts.getNumTrees());
+		}
+		
+		fileCounts.setExtracted(true, extractedTrees);
+	}
+	
+	/**
+	 * Add the given extracted file's counts back into this grammar, and put its trees back into {@link #trees}.
+	 * 
+	 * @param fileCounts The counts of the file, which has been extracted.
+	 */
+	private void unextractFile(MetricalLpcfgFileCounts fileCounts) {
+		probabilities.addCounts(fileCounts.getCounts());
+		
+		int firstTree = fileCounts.getFirstTree();
+		if (firstTree != -1) {
+			loadLazyTrees();
+			ensureOwnTrees();
+			
+			trees.addAll(firstTree, fileCounts.getExtractedTrees());
+			
+			shiftFiles(fileCounts, firstTree, fileCounts.getNumTrees());
+		}
+		
+		fileCounts.setExtracted(false, null);
+	}
+	
+	/**
+	 * Move the saved trees index of each file whose trees start at or after the given index, once trees
+	 * have been taken out of (or put back into) {@link #trees} there.
+	 * 
+	 * @param changed The counts of the file whose trees were moved, which are not changed.
+	 * @param index The index of the first tree which may have been moved.
+	 * @param shift The number of places the trees moved.
+	 */
+	private void shiftFiles(MetricalLpcfgFileCounts changed, int index, int shift) {
+		for (MetricalLpcfgFileCounts fileCounts : files.values()) {
+			if (fileCounts != changed && fileCounts.getFirstTree() >= index) {
+				fileCounts.setFirstTree(fileCounts.getFirstTree() + shift);
+			}
+		}
+	}
+	
 	/**
 	 * Update the counts maps recursively for each node under the given one.
 	 * 
@@ -248,11 +484,115 @@ public class MetricalLpcfg implements Serializable {
 	}
 	
 	/**
-	 * Get the trees contained in this grammar.
+	 * Decide whether this grammar is empty. This uses the counts, so it works even if this grammar
+	 * does not save its trees.
+	 * 
+	 * @return True if no tree has been added to this grammar. False otherwise.
+	 */
+	public boolean isEmpty() {
+		return probabilities.isEmpty();
+	}
+	
+	/**
+	 * Get the number of trees in this grammar, without loading any trees from a binary grammar file,
+	 * unless the file does not say how many it holds.
+	 * 
+	 * @return The number of trees in this grammar.
+	 */
+	private int getNumTrees() {
+		List<MetricalLpcfgBinaryFormat.TreeSection> sections = lazyTrees;
+		if (sections == null) {
+			return trees.size();
+		}
+		
+		int numTrees = trees.size();
+		for (MetricalLpcfgBinaryFormat.TreeSection section : sections) {
+			if (section.getNumTrees() == -1) {
+				return getTrees().size();
+			}
+			numTrees += section.getNumTrees();
+		}
+		
+		return numTrees;
+	}
+	
+	/**
+	 * Copy {@link #trees} if it may be shared with another grammar, so that we can change it.
+	 */
+	private void ensureOwnTrees() {
+		if (sharedTrees) {
+			trees = new ArrayList<MetricalLpcfgTree>(trees);
+			sharedTrees = false;
+		}
+	}
+	
+	/**
+	 * Load any trees of this grammar which are still in {@link #lazyTrees} into {@link #trees}.
+	 */
+	private synchronized void loadLazyTrees() {
+		if (lazyTrees == null) {
+			return;
+		}
+		
+		ensureOwnTrees();
+		for (MetricalLpcfgBinaryFormat.TreeSection section : lazyTrees) {
+			try {
+				trees.addAll(section.load());
+			} catch (IOException | ClassNotFoundException e) {
+				throw new RuntimeException("Error loading grammar trees: " + e.getLocalizedMessage(), e);
+			}
+		}
+		
+		lazyTrees = null;
+	}
+	
+	/**
+	 * Get the saved counts of the files of this grammar, loading them first if they have not been loaded
+	 * from a binary grammar file yet.
+	 * 
+	 * @return {@link #files}
+	 */
+	synchronized Map<String, MetricalLpcfgFileCounts> getFiles() {
+		if (lazyFiles != null) {
+			try {
+				files = lazyFiles.load();
+			} catch (IOException | ClassNotFoundException e) {
+				throw new RuntimeException("Error loading grammar file counts: " + e.getLocalizedMessage(), e);
+			}
+			
+			lazyFiles = null;
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Copy the given saved file counts, so that the copies' tree indices can be changed independently.
+	 * 
+	 * @param files The saved file counts, or null.
+	 * @return A new Map holding copies of the given file counts, or null if they were null.
+	 */
+	private static Map<String, MetricalLpcfgFileCounts> copyFiles(Map<String, MetricalLpcfgFileCounts> files) {
+		if (files == null) {
+			return null;
+		}
+		
+		Map<String, MetricalLpcfgFileCounts> copy = new LinkedHashMap<String, MetricalLpcfgFileCounts>();
+		for (Map.Entry<String, MetricalLpcfgFileCounts> entry : files.entrySet()) {
+			copy.put(entry.getKey(), new MetricalLpcfgFileCounts(entry.getValue()));
+		}
+		
+		return copy;
+	}
+	
+	/**
+	 * Get the trees contained in this grammar, loading them first if they have not been loaded
+	 * from a binary grammar file yet. This List may be shared with other grammars, and must not be changed.
 	 * 
 	 * @return {@link #trees}
 	 */
 	public List<MetricalLpcfgTree> getTrees() {
+		loadLazyTrees();
 		return trees;
 	}
 	
@@ -265,19 +605,60 @@ public class MetricalLpcfg implements Serializable {
 		return probabilities;
 	}
 	
+	/**
+	 * Get the cache of the log probabilities of whole measures in this grammar.
+	 * 
+	 * @return The tree cache of {@link #probabilities}.
+	 */
+	public MetricalLpcfgTreeCache getTreeCache() {
+		return probabilities.getTreeCache();
+	}
+	
 	/**
 	 * Merge the given other grammar into this one.
 	 * 
 	 * @param other The grammar to merge into this one.
 	 */
 	public void mergeGrammar(MetricalLpcfg other) {
+		// The other grammar's trees go after ours
+		Map<String, MetricalLpcfgFileCounts> otherFiles = other.getFiles();
+		int treeOffset = otherFiles == null ? 0 : getNumTrees();
+		
 		// Don't use addTree() here because that also updates probabilities.
 		// We do it separately in case the other grammar was built with -x (i.e. has no trees).
-		for (MetricalLpcfgTree tree : other.getTrees()) {
-			trees.add(tree);
+		List<MetricalLpcfgBinaryFormat.TreeSection> otherLazyTrees = other.lazyTrees;
+		if (otherLazyTrees != null && other.trees.isEmpty()) {
+			// Leave the other grammar's trees unloaded until they are needed
+			List<MetricalLpcfgBinaryFormat.TreeSection> newLazyTrees = new ArrayList<MetricalLpcfgBinaryFormat.TreeSection>();
+			if (lazyTrees != null) {
+				newLazyTrees.addAll(lazyTrees);
+			}
+			newLazyTrees.addAll(otherLazyTrees);
+			lazyTrees = newLazyTrees;
+			
+		} else {
+			loadLazyTrees();
+			ensureOwnTrees();
+			for (MetricalLpcfgTree tree : other.getTrees()) {
+				trees.add(tree);
+			}
 		}
 		
 		probabilities.merge(other.getProbabilityTracker());
+		
+		if (otherFiles != null) {
+			if (getFiles() == null) {
+				files = new LinkedHashMap<String, MetricalLpcfgFileCounts>();
+			}
+			
+			for (Map.Entry<String, MetricalLpcfgFileCounts> entry : otherFiles.entrySet()) {
+				MetricalLpcfgFileCounts fileCounts = new MetricalLpcfgFileCounts(entry.getValue());
+				if (fileCounts.getFirstTree() != -1) {
+					fileCounts.setFirstTree(fileCounts.getFirstTree() + treeOffset);
+				}
+				files.put(entry.getKey(), fileCounts);
+			}
+		}
 	}
 	
 	/**
@@ -290,7 +671,8 @@ public class MetricalLpcfg implements Serializable {
 	}
 	
 	/**
-	 * Get a shallow copy of this grammar.
+	 * Get a shallow copy of this grammar. The copy shares its trees and counts with this grammar
+	 * until either one is changed.
 	 * 
 	 * @return A shallow copy of this grammar.
 	 */
@@ -302,7 +684,7 @@ public class MetricalLpcfg implements Serializable {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		
-		for (MetricalLpcfgTree tree : trees) {
+		for (MetricalLpcfgTree tree : getTrees()) {
 			sb.append(tree).append('\n');
 		}
 		
@@ -322,7 +704,7 @@ public class MetricalLpcfg implements Serializable {
 	public String toStringPretty(String tab) {
 		StringBuilder sb = new StringBuilder();
 		
-		for (MetricalLpcfgTree tree : trees) {
+		for (MetricalLpcfgTree tree : getTrees()) {
 			sb.append(tree.toStringPretty(tab)).append('\n');
 		}
 		
@@ -334,49 +716,107 @@ public class MetricalLpcfg implements Serializable {
 	}
 	
 	/**
-	 * Extract the grammar from the given file from this grammar.
+	 * Extract the grammar from the given file from this grammar. If the file's counts were saved when this grammar
+	 * was generated (see {@link #addFileCounts(String, List)}), only those counts are subtracted, and the file's
+	 * trees are taken out by their saved index. Otherwise, the file is parsed again, and each of its trees is found
+	 * and extracted. If the file has already been extracted, this does nothing.
 	 * 
 	 * @param file The file to extract.
+	 * @param anacrusisFiles The anacrusis files, used if the file must be parsed.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
 	 * @throws InterruptedException 
 	 * @throws InvalidMidiDataException 
 	 * @throws IOException 
 	 * @throws MetricalLpcfgElementNotFoundException 
 	 */
 	public void extract(File file, List<File> anacrusisFiles, boolean useChannel) throws IOException, InvalidMidiDataException, InterruptedException, MetricalLpcfgElementNotFoundException {
-		TimeTracker tt = new TimeTracker(Main.SUB_BEAT_LENGTH);
-		tt.setAnacrusis(MetricalLpcfgGeneratorRunner.getAnacrusisLength(file, anacrusisFiles));
-		NoteListGenerator nlg = new NoteListGenerator(tt);
+		MetricalLpcfgFileCounts fileCounts = getFileCounts(file.getCanonicalPath());
 		
-		// PARSE!
-		EventParser ep = Runner.parseFile(file, nlg, tt, useChannel);
-		
-		// RUN!
-		JointModel jm = new JointModel(
-				new FromFileVoiceSplittingModelState(ep),
-				new FromFileBeatTrackingModelState(tt),
-				new FromFileHierarchyModelState(tt));
-		
-		Runner.performInference(jm, nlg);
-		
-		// GRAMMARIZE
-		MetricalLpcfgGenerator generator = new MetricalLpcfgGenerator();
-		generator.parseSong(jm, tt);
-		
-		for (MetricalLpcfgTree tree : generator.getGrammar().trees) {
-			extractTree(tree);
+		if (fileCounts == null) {
+			for (MetricalLpcfgTree tree : parseTrees(file, anacrusisFiles, useChannel, new RunConfiguration())) {
+				extractTree(tree);
+			}
+			
+		} else if (!fileCounts.isExtracted()) {
+			extractFile(fileCounts);
 		}
 	}
 
 	/**
-	 * Add the grammar from the given file back into this grammar.
+	 * Add the grammar from the given file back into this grammar, as in {@link #extract(File, List, boolean)}.
+	 * If the file has saved counts but has not been extracted, this does nothing.
 	 * 
 	 * @param file The file to add back into the grammar.
+	 * @param anacrusisFiles The anacrusis files, used if the file must be parsed.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
 	 * @throws InterruptedException 
 	 * @throws InvalidMidiDataException 
 	 * @throws IOException 
 	 */
 	public void unextract(File file, List<File> anacrusisFiles, boolean useChannel) throws IOException, InvalidMidiDataException, InterruptedException {
-		TimeTracker tt = new TimeTracker();
+		MetricalLpcfgFileCounts fileCounts = getFileCounts(file.getCanonicalPath());
+		
+		if (fileCounts == null) {
+			for (MetricalLpcfgTree tree : parseTrees(file, anacrusisFiles, useChannel, new RunConfiguration())) {
+				addTree(tree);
+			}
+			
+		} else if (fileCounts.isExtracted()) {
+			unextractFile(fileCounts);
+		}
+	}
+	
+	/**
+	 * Get a copy of this grammar with the given file extracted from it, as in {@link #extract(File, List, boolean)},
+	 * leaving this grammar unchanged. The copy keeps only counts, and shares them with this grammar until they are
+	 * changed (see {@link MetricalLpcfgProbabilityTracker#deepCopy()}), so it costs little more than subtracting
+	 * the file's counts. Since this grammar is not changed, copies for different files can be used at the same time.
+	 * 
+	 * @param file The file to extract.
+	 * @param anacrusisFiles The anacrusis files, used if the file must be parsed.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
+	 * @param config The configuration of the run, used if the file must be parsed.
+	 * @return A counts-only copy of this grammar, without the given file.
+	 * @throws InterruptedException 
+	 * @throws InvalidMidiDataException 
+	 * @throws IOException 
+	 * @throws MetricalLpcfgElementNotFoundException 
+	 */
+	public MetricalLpcfg getExtractedCopy(File file, List<File> anacrusisFiles, boolean useChannel, RunConfiguration config) throws IOException, InvalidMidiDataException, InterruptedException, MetricalLpcfgElementNotFoundException {
+		MetricalLpcfg copy = new MetricalLpcfg(probabilities.deepCopy(), null, null);
+		copy.countsOnly = true;
+		
+		MetricalLpcfgFileCounts fileCounts = getFileCounts(file.getCanonicalPath());
+		
+		if (fileCounts == null) {
+			for (MetricalLpcfgTree tree : parseTrees(file, anacrusisFiles, useChannel, config)) {
+				copy.removeTree(tree);
+			}
+			
+		} else if (!fileCounts.isExtracted()) {
+			copy.probabilities.removeCounts(fileCounts.getCounts());
+		}
+		
+		// The copy is not changed again, so it can be scored from compiled tables
+		copy.probabilities.setCompiled(true);
+		
+		return copy;
+	}
+	
+	/**
+	 * Parse the given file into its trees, as the {@link MetricalLpcfgGeneratorRunner} does.
+	 * 
+	 * @param file The file to parse.
+	 * @param anacrusisFiles The anacrusis files.
+	 * @param useChannel True to use channels as the gold standard voice in MIDI files. False for tracks.
+	 * @param config The configuration whose sub beat length, minimum note length, and note extension are used.
+	 * @return The trees of the given file.
+	 * @throws InterruptedException 
+	 * @throws InvalidMidiDataException 
+	 * @throws IOException 
+	 */
+	private static List<MetricalLpcfgTree> parseTrees(File file, List<File> anacrusisFiles, boolean useChannel, RunConfiguration config) throws IOException, InvalidMidiDataException, InterruptedException {
+		TimeTracker tt = new TimeTracker(config.SUB_BEAT_LENGTH);
 		tt.setAnacrusis(MetricalLpcfgGeneratorRunner.getAnacrusisLength(file, anacrusisFiles));
 		NoteListGenerator nlg = new NoteListGenerator(tt);
 		
@@ -384,7 +824,7 @@ public class MetricalLpcfg implements Serializable {
 		EventParser ep = Runner.parseFile(file, nlg, tt, useChannel);
 		
 		// RUN!
-		JointModel jm = new JointModel(
+		JointModel jm = new JointModel(new RunConfiguration(config, false),
 				new FromFileVoiceSplittingModelState(ep),
 				new FromFileBeatTrackingModelState(tt),
 				new FromFileHierarchyModelState(tt));
@@ -392,12 +832,22 @@ public class MetricalLpcfg implements Serializable {
 		Runner.performInference(jm, nlg);
 		
 		// GRAMMARIZE
-		MetricalLpcfgGenerator generator = new MetricalLpcfgGenerator();
+		MetricalLpcfgGenerator generator = new MetricalLpcfgGenerator(config);
 		generator.parseSong(jm, tt);
 		
-		for (MetricalLpcfgTree tree : generator.getGrammar().trees) {
-			addTree(tree);
-		}
+		return generator.getParsedTrees();
+	}
+	
+	/**
+	 * Serialize this grammar, first loading any trees and file counts which have not been loaded yet.
+	 * 
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		loadLazyTrees();
+		getFiles();
+		out.defaultWriteObject();
 	}
 	
 	/**
@@ -412,7 +862,12 @@ public class MetricalLpcfg implements Serializable {
 	 * @see #deserialize(File)
 	 */
 	public static void serialize(MetricalLpcfg grammar, File file) throws FileNotFoundException, IOException {
-		grammar.probabilities.smooth();
+		grammar.probabilities.updateSmoothing();
+		
+		// Load the trees and file counts first, since they may be lazily loaded from the file being overwritten
+		grammar.loadLazyTrees();
+		grammar.getFiles();
+		
 		ObjectOutputStream streamOutput = new ObjectOutputStream(
 				new GZIPOutputStream(
 						new FileOutputStream(file)));
@@ -422,7 +877,21 @@ public class MetricalLpcfg implements Serializable {
 	}
 	
 	/**
-	 * Load a grammar from a serialized file.
+	 * Write the given grammar out to the given file in the binary format of {@link MetricalLpcfgBinaryFormat},
+	 * which loads much faster than a serialized grammar. It can be loaded with {@link #deserialize(File)}.
+	 * 
+	 * @param grammar The grammar we want to write.
+	 * @param file The file to write out the grammar to.
+	 * 
+	 * @throws IOException Some IO error occurred.
+	 */
+	public static void serializeBinary(MetricalLpcfg grammar, File file) throws IOException {
+		MetricalLpcfgBinaryFormat.write(grammar, file);
+	}
+	
+	/**
+	 * Load a grammar from a serialized file, or from a binary grammar file (see
+	 * {@link #serializeBinary(MetricalLpcfg, File)}), whose trees are only loaded once they are needed.
 	 * 
 	 * @param serialized The file containing a serialized grammar.
 	 * @return The grammar loaded from the given file.
@@ -433,6 +902,10 @@ public class MetricalLpcfg implements Serializable {
 	 * @see #serialize(MetricalLpcfg, File)
 	 */
 	public static MetricalLpcfg deserialize(File serialized) throws ClassNotFoundException, IOException {
+		if (MetricalLpcfgBinaryFormat.isBinaryGrammar(serialized)) {
+			return MetricalLpcfgBinaryFormat.read(serialized);
+		}
+		
 		ObjectInputStream streamInput = new ObjectInputStream(
 				new GZIPInputStream(
 						new FileInputStream(serialized)));
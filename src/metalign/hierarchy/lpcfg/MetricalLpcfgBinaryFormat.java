@@ -0,0 +1,560 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import metalign.hierarchy.Measure;
+import metalign.hierarchy.lpcfg.MetricalLpcfgCountMap.KeyType;
+
+/**
+ * The <code>MetricalLpcfgBinaryFormat</code> class reads and writes grammars in a compact, versioned binary
+ * format, which is much faster to load than the Java serialization used by
+ * {@link MetricalLpcfg#serialize(MetricalLpcfg, File)}. A binary grammar file contains, in order:
+ * <ol>
+ * <li>The magic number {@link #MAGIC} and the format {@link #VERSION}.</li>
+ * <li>A symbol table of every String used as a conditioning key or a transition, and of every measure.</li>
+ * <li>The transition, head, and measure head counts: for each key, a flat list of (outcome, count) pairs.</li>
+ * <li>The smoothing of each key: a flat list of (count, probability, log probability) triples.</li>
+ * <li>The trees of the grammar, if it has any, as their number and a single GZIPped Java serialized List.</li>
+ * <li>The saved counts of each of the grammar's files ({@link MetricalLpcfgFileCounts}), if it has any,
+ * as a single GZIPped Java serialized Map.</li>
+ * </ol>
+ * The file is memory-mapped to be read, and everything but the trees and file counts is read straight from
+ * the mapping. Those are only loaded once they are needed (for example, to extract a song with -x).
+ * Files of version 1, which have no file counts, and do not give the number of trees, can still be read.
+ * <br>
+ * Keys and outcomes are written in the iteration order of their maps, and read back into maps which
+ * iterate in the same order as those of a deserialized grammar, so that re-smoothing a loaded grammar
+ * gives exactly the same results.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgBinaryFormat {
+	/**
+	 * The first 4 bytes of every binary grammar file ("MLPG"). A GZIPped serialized grammar cannot
+	 * start with these.
+	 */
+	public static final int MAGIC = 0x4D4C5047;
+
+	/**
+	 * The version of the format written by this class.
+	 */
+	public static final int VERSION = 2;
+
+	/**
+	 * Private constructor, since this class only has static methods.
+	 */
+	private MetricalLpcfgBinaryFormat() {}
+
+	/**
+	 * Decide whether the given file is a binary grammar file.
+	 *
+	 * @param file The file to check.
+	 * @return True if the given file starts with {@link #MAGIC}. False otherwise.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static boolean isBinaryGrammar(File file) throws IOException {
+		DataInputStream streamInput = new DataInputStream(new FileInputStream(file));
+
+		try {
+			return streamInput.readInt() == MAGIC;
+
+		} catch (EOFException e) {
+			return false;
+
+		} finally {
+			streamInput.close();
+		}
+	}
+
+	/**
+	 * Write the given grammar out to the given file in the binary format.
+	 *
+	 * @param grammar The grammar to write.
+	 * @param file The file to write the grammar to.
+	 * @throws IOException If the file cannot be written.
+	 *
+	 * @see #read(File)
+	 */
+	public static void write(MetricalLpcfg grammar, File file) throws IOException {
+		MetricalLpcfgProbabilityTracker probabilities = grammar.getProbabilityTracker().getFlattened();
+
+		// Build the symbol table
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		for (Map.Entry<String, MetricalLpcfgCountMap<String>> entry : probabilities.getTransitionCountMaps().entrySet()) {
+			addSymbol(entry.getKey(), stringIds, strings);
+
+			for (String transition : entry.getValue().keySet()) {
+				addSymbol(transition, stringIds, strings);
+			}
+		}
+		for (String key : probabilities.getTransitionSmoothedMaps().keySet()) {
+			addSymbol(key, stringIds, strings);
+		}
+		for (String key : probabilities.getHeadCountMaps().keySet()) {
+			addSymbol(key, stringIds, strings);
+		}
+		for (String key : probabilities.getHeadSmoothedMaps().keySet()) {
+			addSymbol(key, stringIds, strings);
+		}
+
+		Map<Measure, Integer> measureIds = new HashMap<Measure, Integer>();
+		List<Measure> measures = new ArrayList<Measure>();
+		for (Measure measure : probabilities.getMeasureHeadCountMaps().keySet()) {
+			addSymbol(measure, measureIds, measures);
+		}
+		for (Measure measure : probabilities.getMeasureHeadSmoothedMaps().keySet()) {
+			addSymbol(measure, measureIds, measures);
+		}
+
+		// Load the trees and file counts first, since they may be lazily loaded from the file being overwritten
+		List<MetricalLpcfgTree> trees = grammar.getTrees();
+		Map<String, MetricalLpcfgFileCounts> files = grammar.getFiles();
+
+		DataOutputStream streamOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+		try {
+			streamOutput.writeInt(MAGIC);
+			streamOutput.writeInt(VERSION);
+
+			// Symbol table
+			streamOutput.writeInt(strings.size());
+			for (String string : strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				streamOutput.writeInt(bytes.length);
+				streamOutput.write(bytes);
+			}
+
+			streamOutput.writeInt(measures.size());
+			for (Measure measure : measures) {
+				streamOutput.writeInt(measure.getBeatsPerMeasure());
+				streamOutput.writeInt(measure.getSubBeatsPerBeat());
+				streamOutput.writeInt(measure.getLength());
+				streamOutput.writeInt(measure.getAnacrusis());
+			}
+
+			// Counts
+			writeCounts(streamOutput, probabilities.getTransitionCountMaps(), stringIds, stringIds);
+			writeCounts(streamOutput, probabilities.getHeadCountMaps(), stringIds, null);
+			writeCounts(streamOutput, probabilities.getMeasureHeadCountMaps(), measureIds, null);
+
+			// Smoothing
+			writeSmoothed(streamOutput, probabilities.getTransitionSmoothedMaps(), stringIds);
+			writeSmoothed(streamOutput, probabilities.getHeadSmoothedMaps(), stringIds);
+			writeSmoothed(streamOutput, probabilities.getMeasureHeadSmoothedMaps(), measureIds);
+
+			// Trees
+			if (trees.isEmpty()) {
+				streamOutput.writeInt(0);
+
+			} else {
+				streamOutput.writeInt(trees.size());
+				writeObject(streamOutput, new ArrayList<MetricalLpcfgTree>(trees));
+			}
+
+			// File counts
+			if (files == null || files.isEmpty()) {
+				streamOutput.writeInt(0);
+
+			} else {
+				writeObject(streamOutput, new LinkedHashMap<String, MetricalLpcfgFileCounts>(files));
+			}
+
+		} finally {
+			streamOutput.close();
+		}
+	}
+
+	/**
+	 * Read a grammar from the given binary grammar file. The file is memory-mapped, and its trees
+	 * are not loaded until they are needed.
+	 *
+	 * @param file The binary grammar file.
+	 * @return The grammar read from the given file.
+	 * @throws IOException If the file cannot be read, or is not a binary grammar file of a known version.
+	 *
+	 * @see #write(MetricalLpcfg, File)
+	 */
+	public static MetricalLpcfg read(File file) throws IOException {
+		ByteBuffer buffer;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+		} finally {
+			randomAccessFile.close();
+		}
+
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a binary grammar file: " + file);
+		}
+
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported binary grammar version " + version + " (expected at most " + VERSION + "): " + file);
+		}
+
+		// Symbol table
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		Measure[] measures = new Measure[buffer.getInt()];
+		for (int i = 0; i < measures.length; i++) {
+			int beatsPerMeasure = buffer.getInt();
+			int subBeatsPerBeat = buffer.getInt();
+			int length = buffer.getInt();
+			int anacrusis = buffer.getInt();
+
+			measures[i] = new Measure(beatsPerMeasure, subBeatsPerBeat, length, anacrusis);
+		}
+
+		// Counts
+		Map<String, MetricalLpcfgCountMap<String>> transitionMap = readCounts(buffer, strings, strings, KeyType.TRANSITION);
+		Map<String, MetricalLpcfgCountMap<Double>> headMap = readCounts(buffer, strings, strings, KeyType.HEAD_LENGTH);
+		Map<Measure, MetricalLpcfgCountMap<Double>> measureHeadMap = readCounts(buffer, measures, strings, KeyType.HEAD_LENGTH);
+
+		// Smoothing
+		Map<String, MetricalLpcfgSmoothedMap> transitionMapSmoothed = readSmoothed(buffer, strings);
+		Map<String, MetricalLpcfgSmoothedMap> headMapSmoothed = readSmoothed(buffer, strings);
+		Map<Measure, MetricalLpcfgSmoothedMap> measureHeadMapSmoothed = readSmoothed(buffer, measures);
+
+		MetricalLpcfgProbabilityTracker probabilities = new MetricalLpcfgProbabilityTracker(
+				transitionMap, transitionMapSmoothed,
+				headMap, headMapSmoothed,
+				measureHeadMap, measureHeadMapSmoothed);
+
+		// Trees
+		List<TreeSection> lazyTrees = null;
+		int numTrees = version == 1 ? -1 : buffer.getInt();
+		if (numTrees != 0) {
+			ByteBuffer treeBuffer = readSection(buffer);
+			if (treeBuffer != null) {
+				lazyTrees = Collections.singletonList(new TreeSection(treeBuffer, numTrees));
+			}
+		}
+
+		// File counts
+		FileSection lazyFiles = null;
+		if (version > 1) {
+			ByteBuffer fileBuffer = readSection(buffer);
+			if (fileBuffer != null) {
+				lazyFiles = new FileSection(fileBuffer);
+			}
+		}
+
+		return new MetricalLpcfg(probabilities, lazyTrees, lazyFiles);
+	}
+
+	/**
+	 * Write the given object out as a section: its length, and then its GZIPped Java serialization.
+	 *
+	 * @param streamOutput The stream to write to.
+	 * @param object The object to write.
+	 * @throws IOException If the stream cannot be written.
+	 *
+	 * @see #readSection(ByteBuffer)
+	 */
+	private static void writeObject(DataOutputStream streamOutput, Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOutput = new ObjectOutputStream(new GZIPOutputStream(bytes));
+		objectOutput.writeObject(object);
+		objectOutput.close();
+
+		streamOutput.writeInt(bytes.size());
+		bytes.writeTo(streamOutput);
+	}
+
+	/**
+	 * Read a section, written by {@link #writeObject(DataOutputStream, Object)}, from the given buffer,
+	 * without deserializing it.
+	 *
+	 * @param buffer The buffer to read from. It is moved past the section.
+	 * @return The bytes of the section, or null if it is empty.
+	 */
+	private static ByteBuffer readSection(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == 0) {
+			return null;
+		}
+
+		ByteBuffer section = buffer.slice();
+		section.limit(length);
+		buffer.position(buffer.position() + length);
+		return section;
+	}
+
+	/**
+	 * Deserialize the GZIPped Java serialized object in the given bytes.
+	 *
+	 * @param bytes The bytes of a section. They are not moved.
+	 * @return The deserialized object.
+	 * @throws IOException If the object cannot be read.
+	 * @throws ClassNotFoundException If a class in the object cannot be found.
+	 */
+	private static Object readObject(ByteBuffer bytes) throws IOException, ClassNotFoundException {
+		byte[] objectBytes = new byte[bytes.remaining()];
+		bytes.duplicate().get(objectBytes);
+
+		ObjectInputStream streamInput = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(objectBytes)));
+		try {
+			return streamInput.readObject();
+
+		} finally {
+			streamInput.close();
+		}
+	}
+
+	/**
+	 * Add the given symbol to a symbol table, if it is not already in it.
+	 *
+	 * @param symbol The symbol.
+	 * @param ids The ID of each symbol in the table.
+	 * @param symbols The symbols of the table, in ID order.
+	 */
+	private static <T> void addSymbol(T symbol, Map<T, Integer> ids, List<T> symbols) {
+		if (!ids.containsKey(symbol)) {
+			ids.put(symbol, symbols.size());
+			symbols.add(symbol);
+		}
+	}
+
+	/**
+	 * Write the given counts out.
+	 *
+	 * @param streamOutput The stream to write to.
+	 * @param counts The counts to write, indexed by key.
+	 * @param keyIds The symbol table ID of each key.
+	 * @param transitionIds The symbol table ID of each transition, if the counts are of transitions.
+	 * Null if the counts are of head lengths.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	private static <K, V> void writeCounts(DataOutputStream streamOutput, Map<K, MetricalLpcfgCountMap<V>> counts,
+			Map<K, Integer> keyIds, Map<String, Integer> transitionIds) throws IOException {
+		streamOutput.writeInt(counts.size());
+
+		for (Map.Entry<K, MetricalLpcfgCountMap<V>> entry : counts.entrySet()) {
+			streamOutput.writeInt(keyIds.get(entry.getKey()));
+			streamOutput.writeInt(entry.getValue().size());
+
+			for (Map.Entry<V, Integer> countEntry : entry.getValue().entrySet()) {
+				if (transitionIds == null) {
+					streamOutput.writeDouble((Double) countEntry.getKey());
+				} else {
+					streamOutput.writeInt(transitionIds.get(countEntry.getKey()));
+				}
+
+				streamOutput.writeInt(countEntry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Write the given smoothing out.
+	 *
+	 * @param streamOutput The stream to write to.
+	 * @param smoothed The smoothing to write, indexed by key.
+	 * @param keyIds The symbol table ID of each key.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	private static <K> void writeSmoothed(DataOutputStream streamOutput, Map<K, MetricalLpcfgSmoothedMap> smoothed,
+			Map<K, Integer> keyIds) throws IOException {
+		streamOutput.writeInt(smoothed.size());
+
+		for (Map.Entry<K, MetricalLpcfgSmoothedMap> entry : smoothed.entrySet()) {
+			streamOutput.writeInt(keyIds.get(entry.getKey()));
+			streamOutput.writeInt(entry.getValue().size());
+
+			for (Map.Entry<Integer, Double> smoothedEntry : entry.getValue().entrySet()) {
+				streamOutput.writeInt(smoothedEntry.getKey());
+				streamOutput.writeDouble(smoothedEntry.getValue());
+				streamOutput.writeDouble(entry.getValue().getLogProbability(smoothedEntry.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * Read counts in from the given buffer.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @param keys The symbol table of the keys.
+	 * @param strings The symbol table of Strings, used for transitions.
+	 * @param keyType The type of key of the conditioned counts.
+	 * @return The counts, indexed by key.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> Map<K, MetricalLpcfgCountMap<V>> readCounts(ByteBuffer buffer, K[] keys, String[] strings,
+			KeyType keyType) {
+		int size = buffer.getInt();
+		Map<K, MetricalLpcfgCountMap<V>> counts = newDeserializedHashMap(size);
+
+		for (int i = 0; i < size; i++) {
+			K key = keys[buffer.getInt()];
+			int conditionedSize = buffer.getInt();
+
+			MetricalLpcfgCountMap<V> conditionedCounts = MetricalLpcfgCountMap.newDeserializedMap(keyType, conditionedSize);
+			for (int j = 0; j < conditionedSize; j++) {
+				if (keyType == KeyType.TRANSITION) {
+					V transition = (V) strings[buffer.getInt()];
+					conditionedCounts.setCount(transition, buffer.getInt());
+
+				} else {
+					double headLength = buffer.getDouble();
+					conditionedCounts.setCount(headLength, buffer.getInt());
+				}
+			}
+
+			counts.put(key, conditionedCounts);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Read smoothing in from the given buffer.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @param keys The symbol table of the keys.
+	 * @return The smoothing, indexed by key.
+	 */
+	private static <K> Map<K, MetricalLpcfgSmoothedMap> readSmoothed(ByteBuffer buffer, K[] keys) {
+		int size = buffer.getInt();
+		Map<K, MetricalLpcfgSmoothedMap> smoothed = newDeserializedHashMap(size);
+
+		for (int i = 0; i < size; i++) {
+			K key = keys[buffer.getInt()];
+			int conditionedSize = buffer.getInt();
+
+			int[] counts = new int[conditionedSize];
+			double[] probabilities = new double[conditionedSize];
+			double[] logProbabilities = new double[conditionedSize];
+			for (int j = 0; j < conditionedSize; j++) {
+				counts[j] = buffer.getInt();
+				probabilities[j] = buffer.getDouble();
+				logProbabilities[j] = buffer.getDouble();
+			}
+
+			smoothed.put(key, new MetricalLpcfgSmoothedMap(counts, probabilities, logProbabilities));
+		}
+
+		return smoothed;
+	}
+
+	/**
+	 * Create a new HashMap which, once the given number of mappings are added to it in their written order,
+	 * iterates in the same order as a deserialized one.
+	 *
+	 * @param size The number of mappings which will be added.
+	 * @return A new empty HashMap.
+	 */
+	private static <K, V> Map<K, V> newDeserializedHashMap(int size) {
+		return size == 0 ? new HashMap<K, V>() : new HashMap<K, V>(MetricalLpcfgCountMap.getDeserializedCapacity(size));
+	}
+
+	/**
+	 * A <code>TreeSection</code> is the section of a binary grammar file holding the grammar's trees.
+	 * It keeps the memory-mapped bytes, and only deserializes them once they are needed.
+	 */
+	static class TreeSection {
+		/**
+		 * The memory-mapped bytes of the section.
+		 */
+		private final ByteBuffer bytes;
+
+		/**
+		 * The number of trees in the section, or -1 if the file does not say (version 1).
+		 */
+		private final int numTrees;
+
+		/**
+		 * Create a new tree section of the given bytes.
+		 *
+		 * @param bytes {@link #bytes}
+		 * @param numTrees {@link #numTrees}
+		 */
+		private TreeSection(ByteBuffer bytes, int numTrees) {
+			this.bytes = bytes;
+			this.numTrees = numTrees;
+		}
+
+		/**
+		 * Get the number of trees in this section, without loading them.
+		 *
+		 * @return {@link #numTrees}
+		 */
+		int getNumTrees() {
+			return numTrees;
+		}
+
+		/**
+		 * Load the trees of this section.
+		 *
+		 * @return A new List of the trees of this section.
+		 * @throws IOException If the trees cannot be read.
+		 * @throws ClassNotFoundException If a class in the trees cannot be found.
+		 */
+		@SuppressWarnings("unchecked")
+		List<MetricalLpcfgTree> load() throws IOException, ClassNotFoundException {
+			return (List<MetricalLpcfgTree>) readObject(bytes);
+		}
+	}
+
+	/**
+	 * A <code>FileSection</code> is the section of a binary grammar file holding the saved counts of the
+	 * grammar's files. Like a {@link TreeSection}, it is only deserialized once it is needed.
+	 */
+	static class FileSection {
+		/**
+		 * The memory-mapped bytes of the section.
+		 */
+		private final ByteBuffer bytes;
+
+		/**
+		 * Create a new file section of the given bytes.
+		 *
+		 * @param bytes {@link #bytes}
+		 */
+		private FileSection(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Load the file counts of this section.
+		 *
+		 * @return A new Map of the file counts of this section, keyed by canonical path, in order.
+		 * @throws IOException If the file counts cannot be read.
+		 * @throws ClassNotFoundException If a class in the file counts cannot be found.
+		 */
+		@SuppressWarnings("unchecked")
+		Map<String, MetricalLpcfgFileCounts> load() throws IOException, ClassNotFoundException {
+			return (Map<String, MetricalLpcfgFileCounts>) readObject(bytes);
+		}
+	}
+}
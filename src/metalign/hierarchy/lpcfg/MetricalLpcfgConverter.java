@@ -0,0 +1,110 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The <code>MetricalLpcfgConverter</code> class converts a grammar file between the serialized format
+ * written by {@link MetricalLpcfg#serialize(MetricalLpcfg, File)} and the binary format written by
+ * {@link MetricalLpcfg#serializeBinary(MetricalLpcfg, File)}. The input format is detected automatically.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgConverter {
+
+	/**
+	 * The main method for converting a grammar file. Run with no args to print help.
+	 *
+	 * @param args The args as described.
+	 */
+	public static void main(String[] args) {
+		boolean toBinary = true;
+		File inputFile = null;
+		File outputFile = null;
+
+		// No args given
+		if (args.length == 0) {
+			argumentError("No arguments given");
+		}
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i].charAt(0)) {
+				// ARGS
+				case '-':
+					if (args[i].length() == 1) {
+						argumentError("Unrecognized option: " + args[i]);
+					}
+
+					switch (args[i].charAt(1)) {
+						// Write a serialized grammar
+						case 's':
+							toBinary = false;
+							break;
+
+						// Error
+						default:
+							argumentError("Unrecognized option: " + args[i]);
+					}
+					break;
+
+				// Input or output file
+				default:
+					if (inputFile == null) {
+						inputFile = new File(args[i]);
+						if (!inputFile.exists()) {
+							argumentError("Grammar file " + args[i] + " not found");
+						}
+
+					} else if (outputFile == null) {
+						outputFile = new File(args[i]);
+
+					} else {
+						argumentError("Too many files given: " + args[i]);
+					}
+			}
+		}
+
+		if (outputFile == null) {
+			argumentError("No output file given");
+		}
+
+		MetricalLpcfg grammar = null;
+		try {
+			grammar = MetricalLpcfg.deserialize(inputFile);
+		} catch (ClassNotFoundException | IOException e) {
+			argumentError("Exception loading grammar file " + inputFile + ": " + e.getLocalizedMessage());
+		}
+
+		try {
+			if (toBinary) {
+				MetricalLpcfg.serializeBinary(grammar, outputFile);
+			} else {
+				MetricalLpcfg.serialize(grammar, outputFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Error writing grammar file " + outputFile + ": " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * An argument error occurred. Print the usage help info to standard error, and then exit.
+	 * <p>
+	 * NOTE: This method calls <code>System.exit(1)</code> and WILL NOT return.
+	 *
+	 * @param message The error message to print at the beginning of the exception.
+	 */
+	private static void argumentError(String message) {
+		StringBuilder sb = new StringBuilder("MetricalLpcfgConverter: Argument error: ");
+
+		sb.append(message).append('\n');
+
+		sb.append("Usage: java -cp bin metalign.hierarchy.lpcfg.MetricalLpcfgConverter ARGS INPUT_FILE OUTPUT_FILE\n");
+
+		sb.append("Converts the grammar in INPUT_FILE (of either format) into a binary grammar file.\n");
+		sb.append("-s = Write a serialized grammar file instead.");
+
+		System.err.println(sb.toString());
+		System.exit(1);
+	}
+}
@@ -0,0 +1,620 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A <code>MetricalLpcfgCountMap</code> holds the counts of a single conditioned distribution of a
+ * {@link MetricalLpcfgProbabilityTracker}. Its keys are stored as primitive longs (transition IDs from the
+ * {@link MetricalLpcfgSymbolTable}, or the raw bits of head lengths) and its counts as primitive ints, in an
+ * open-addressed hash table, so that {@link #getCount(Object)} and {@link #setCount(Object, int)} do no boxing.
+ * <br>
+ * The Good-Turing smoothing of a distribution depends (in its last bits) on the order in which its counts are
+ * iterated. This Map therefore iterates in exactly the order a {@link HashMap} with the same history of insertions
+ * and removals would: by the bucket of each key's hash code in a table growing as HashMap's does, and then by
+ * insertion order. (The only case not reproduced is a HashMap bucket being turned into a tree, which requires 9
+ * keys in a single bucket of a table of at least 64.) It is serialized as such a HashMap, so grammar files are
+ * unchanged.
+ *
+ * @author Andrew McLeod
+ *
+ * @param <K> The type of key: String for transitions, and Double for head lengths.
+ */
+public class MetricalLpcfgCountMap<K> extends AbstractMap<K, Integer> implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The types of key a MetricalLpcfgCountMap can hold.
+	 */
+	public enum KeyType {
+		/**
+		 * Transition Strings, stored by their {@link MetricalLpcfgSymbolTable} ID.
+		 */
+		TRANSITION,
+
+		/**
+		 * Head lengths (Doubles), stored by their raw bits.
+		 */
+		HEAD_LENGTH;
+	}
+
+	/**
+	 * The initial capacity of a HashMap.
+	 */
+	private static final int HASH_MAP_DEFAULT_CAPACITY = 16;
+
+	/**
+	 * The number of keys in a single HashMap bucket which causes the HashMap to grow (or the bucket
+	 * to be turned into a tree) when another key is added to it.
+	 */
+	private static final int HASH_MAP_TREEIFY_THRESHOLD = 8;
+
+	/**
+	 * The capacity from which a HashMap turns full buckets into trees, rather than growing.
+	 */
+	private static final int HASH_MAP_MIN_TREEIFY_CAPACITY = 64;
+
+	/**
+	 * A key which is never stored, used to signal a missing key. This is a non-canonical NaN,
+	 * and so is never the bits of a head length, and is negative, so never a transition ID.
+	 */
+	private static final long NO_KEY = -1L;
+
+	/**
+	 * The type of key this Map holds.
+	 */
+	private final KeyType keyType;
+
+	/**
+	 * The keys of this Map, in insertion order, in [0, {@link #size}).
+	 */
+	private long[] keys;
+
+	/**
+	 * The count of each key.
+	 */
+	private int[] counts;
+
+	/**
+	 * The hash code of each key, as a HashMap would see it.
+	 */
+	private int[] hashes;
+
+	/**
+	 * The number of keys in this Map.
+	 */
+	private int size;
+
+	/**
+	 * The open-addressed hash table, holding 1 + the index of a key in each used slot, and 0 in empty ones.
+	 */
+	private int[] slots;
+
+	/**
+	 * The capacity of the table of a HashMap with the same history as this Map, or 0 if it would
+	 * not have allocated one yet.
+	 */
+	private int hashMapCapacity;
+
+	/**
+	 * The indices of the keys in iteration order, or null if they must be recalculated.
+	 */
+	private int[] order;
+
+	/**
+	 * Create a new empty count Map.
+	 *
+	 * @param keyType {@link #keyType}
+	 * @param hashMapCapacity {@link #hashMapCapacity}
+	 */
+	private MetricalLpcfgCountMap(KeyType keyType, int hashMapCapacity) {
+		this.keyType = keyType;
+		this.hashMapCapacity = hashMapCapacity;
+
+		keys = new long[2];
+		counts = new int[2];
+		hashes = new int[2];
+		size = 0;
+		slots = new int[4];
+		order = null;
+	}
+
+	/**
+	 * Create a new empty count Map for transition Strings.
+	 *
+	 * @return A new empty count Map.
+	 */
+	public static MetricalLpcfgCountMap<String> newTransitionMap() {
+		return new MetricalLpcfgCountMap<String>(KeyType.TRANSITION, 0);
+	}
+
+	/**
+	 * Create a new empty count Map for head lengths.
+	 *
+	 * @return A new empty count Map.
+	 */
+	public static MetricalLpcfgCountMap<Double> newHeadLengthMap() {
+		return new MetricalLpcfgCountMap<Double>(KeyType.HEAD_LENGTH, 0);
+	}
+
+	/**
+	 * Get a count Map holding the counts of the given Map, which has just been deserialized (so that
+	 * our iteration order is that of the deserialized HashMap).
+	 *
+	 * @param keyType The type of key of the given Map.
+	 * @param map The deserialized Map.
+	 * @return The given Map, if it is already a count Map, or a new count Map with the same counts.
+	 */
+	public static <K> MetricalLpcfgCountMap<K> fromDeserialized(KeyType keyType, Map<K, Integer> map) {
+		if (map instanceof MetricalLpcfgCountMap) {
+			return (MetricalLpcfgCountMap<K>) map;
+		}
+
+		MetricalLpcfgCountMap<K> countMap = newDeserializedMap(keyType, map.size());
+		for (Map.Entry<K, Integer> entry : map.entrySet()) {
+			countMap.setCount(entry.getKey(), entry.getValue());
+		}
+
+		return countMap;
+	}
+
+	/**
+	 * Create a new empty count Map which will iterate in the same order as a HashMap with the given number
+	 * of mappings does while it is being deserialized. The mappings should then be added in the order in which
+	 * they were serialized.
+	 *
+	 * @param keyType The type of key of the new Map.
+	 * @param size The number of mappings which will be added.
+	 * @return A new empty count Map.
+	 */
+	public static <K> MetricalLpcfgCountMap<K> newDeserializedMap(KeyType keyType, int size) {
+		return new MetricalLpcfgCountMap<K>(keyType, size == 0 ? 0 : getDeserializedCapacity(size));
+	}
+
+	/**
+	 * Get the table capacity of a HashMap which is deserialized with the given number of mappings.
+	 * Creating a HashMap with this initial capacity and adding the mappings in their serialized order
+	 * gives the same iteration order as deserializing it.
+	 *
+	 * @param size The number of mappings, at least 1.
+	 * @return The capacity HashMap.readObject uses.
+	 */
+	public static int getDeserializedCapacity(int size) {
+		float capacityFloat = size / 0.75f + 1.0f;
+		return capacityFloat < HASH_MAP_DEFAULT_CAPACITY ? HASH_MAP_DEFAULT_CAPACITY : Integer.highestOneBit((int) capacityFloat - 1) << 1;
+	}
+
+	/**
+	 * Get a copy of this Map, as if its counts had been put one by one into a new HashMap.
+	 *
+	 * @return A copy of this Map.
+	 */
+	public MetricalLpcfgCountMap<K> copy() {
+		MetricalLpcfgCountMap<K> copy = new MetricalLpcfgCountMap<K>(keyType, 0);
+
+		for (int index : getOrder()) {
+			copy.insert(keys[index], hashes[index], counts[index]);
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Get the count of the given key.
+	 *
+	 * @param key The key.
+	 * @return The count of the given key, or 0 if it is not in this Map.
+	 */
+	public int getCount(Object key) {
+		int index = indexOf(findKey(key));
+		return index == -1 ? 0 : counts[index];
+	}
+
+	/**
+	 * Set the count of the given key, adding it to this Map if it is not already in it.
+	 *
+	 * @param key The key.
+	 * @param count The new count.
+	 */
+	public void setCount(K key, int count) {
+		long primitiveKey = toPrimitiveKey(key);
+		int index = indexOf(primitiveKey);
+
+		if (index == -1) {
+			insert(primitiveKey, key.hashCode(), count);
+		} else {
+			counts[index] = count;
+		}
+	}
+
+	/**
+	 * Get the count of the given head length, without boxing it. This Map must hold head lengths.
+	 *
+	 * @param headLength The head length.
+	 * @return The count of the given head length, or 0 if it is not in this Map.
+	 */
+	public int getCount(double headLength) {
+		int index = indexOf(Double.doubleToLongBits(headLength));
+		return index == -1 ? 0 : counts[index];
+	}
+
+	/**
+	 * Set the count of the given head length, without boxing it. This Map must hold head lengths.
+	 *
+	 * @param headLength The head length.
+	 * @param count The new count.
+	 */
+	public void setCount(double headLength, int count) {
+		long primitiveKey = Double.doubleToLongBits(headLength);
+		int index = indexOf(primitiveKey);
+
+		if (index == -1) {
+			// This is Double.hashCode(headLength)
+			insert(primitiveKey, (int) (primitiveKey ^ (primitiveKey >>> 32)), count);
+		} else {
+			counts[index] = count;
+		}
+	}
+
+	/**
+	 * Remove the given key from this Map.
+	 *
+	 * @param key The key.
+	 * @return The count the key had, or 0 if it was not in this Map.
+	 */
+	public int removeKey(Object key) {
+		return removeIndex(indexOf(findKey(key)));
+	}
+
+	/**
+	 * Remove the given head length from this Map, without boxing it. This Map must hold head lengths.
+	 *
+	 * @param headLength The head length.
+	 * @return The count the head length had, or 0 if it was not in this Map.
+	 */
+	public int removeKey(double headLength) {
+		return removeIndex(indexOf(Double.doubleToLongBits(headLength)));
+	}
+
+	/**
+	 * Remove the key at the given index from this Map.
+	 *
+	 * @param index The index of the key, or -1.
+	 * @return The count the key had, or 0 if the index was -1.
+	 */
+	private int removeIndex(int index) {
+		if (index == -1) {
+			return 0;
+		}
+
+		int count = counts[index];
+
+		// Keep the keys in insertion order
+		int numMoved = size - index - 1;
+		System.arraycopy(keys, index + 1, keys, index, numMoved);
+		System.arraycopy(counts, index + 1, counts, index, numMoved);
+		System.arraycopy(hashes, index + 1, hashes, index, numMoved);
+		size--;
+
+		rehash(slots.length);
+		order = null;
+
+		return count;
+	}
+
+	@Override
+	public Integer get(Object key) {
+		int index = indexOf(findKey(key));
+		return index == -1 ? null : counts[index];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(findKey(key)) != -1;
+	}
+
+	@Override
+	public Integer put(K key, Integer value) {
+		Integer old = get(key);
+		setCount(key, value);
+		return old;
+	}
+
+	@Override
+	public Integer remove(Object key) {
+		Integer old = get(key);
+		removeKey(key);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		Arrays.fill(slots, 0);
+		order = null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<K, Integer>> entrySet() {
+		return new AbstractSet<Map.Entry<K, Integer>>() {
+			@Override
+			public Iterator<Map.Entry<K, Integer>> iterator() {
+				final int[] iterationOrder = getOrder();
+
+				return new Iterator<Map.Entry<K, Integer>>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < iterationOrder.length;
+					}
+
+					@Override
+					public Map.Entry<K, Integer> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+
+						int index = iterationOrder[next++];
+						return new AbstractMap.SimpleImmutableEntry<K, Integer>(fromPrimitiveKey(keys[index]), counts[index]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Add a new key to the end of this Map, and grow the emulated HashMap table as a HashMap would.
+	 *
+	 * @param key The primitive key, which must not already be in this Map.
+	 * @param hash The key's hash code.
+	 * @param count The key's count.
+	 */
+	private void insert(long key, int hash, int count) {
+		if (hashMapCapacity == 0) {
+			hashMapCapacity = HASH_MAP_DEFAULT_CAPACITY;
+		}
+
+		// Count the keys already in the new key's HashMap bucket, if it could cause a resize
+		int bucketSize = 0;
+		if (hashMapCapacity < HASH_MAP_MIN_TREEIFY_CAPACITY && size >= HASH_MAP_TREEIFY_THRESHOLD) {
+			int bucket = getBucket(hash);
+			for (int i = 0; i < size; i++) {
+				if (getBucket(hashes[i]) == bucket) {
+					bucketSize++;
+				}
+			}
+		}
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+
+		keys[size] = key;
+		counts[size] = count;
+		hashes[size] = hash;
+		size++;
+
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		} else {
+			addSlot(size - 1);
+		}
+
+		if (bucketSize >= HASH_MAP_TREEIFY_THRESHOLD) {
+			hashMapCapacity *= 2;
+		}
+		if (size > hashMapCapacity / 4 * 3) {
+			hashMapCapacity *= 2;
+		}
+
+		order = null;
+	}
+
+	/**
+	 * Get the indices of our keys, in the order a HashMap with the same history would iterate them.
+	 *
+	 * @return {@link #order}, recalculated if needed.
+	 */
+	private int[] getOrder() {
+		if (order != null) {
+			return order;
+		}
+
+		// Stable counting sort by bucket (the keys are already in insertion order)
+		int[] bucketStarts = new int[hashMapCapacity + 1];
+		for (int i = 0; i < size; i++) {
+			bucketStarts[getBucket(hashes[i]) + 1]++;
+		}
+		for (int bucket = 0; bucket < hashMapCapacity; bucket++) {
+			bucketStarts[bucket + 1] += bucketStarts[bucket];
+		}
+
+		int[] newOrder = new int[size];
+		for (int i = 0; i < size; i++) {
+			newOrder[bucketStarts[getBucket(hashes[i])]++] = i;
+		}
+
+		order = newOrder;
+		return order;
+	}
+
+	/**
+	 * Get the bucket of the given hash code in the emulated HashMap table.
+	 *
+	 * @param hash The hash code of a key.
+	 * @return The bucket a HashMap would put the key in.
+	 */
+	private int getBucket(int hash) {
+		return (hash ^ (hash >>> 16)) & (hashMapCapacity - 1);
+	}
+
+	/**
+	 * Get the index of the given primitive key.
+	 *
+	 * @param key The primitive key.
+	 * @return The index of the key, or -1 if it is not in this Map.
+	 */
+	private int indexOf(long key) {
+		if (key == NO_KEY) {
+			return -1;
+		}
+
+		int mask = slots.length - 1;
+		for (int slot = mix(key) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys[slots[slot] - 1] == key) {
+				return slots[slot] - 1;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Add the key at the given index into {@link #slots}.
+	 *
+	 * @param index The index of the key.
+	 */
+	private void addSlot(int index) {
+		int mask = slots.length - 1;
+		int slot = mix(keys[index]) & mask;
+		while (slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+
+		slots[slot] = index + 1;
+	}
+
+	/**
+	 * Rebuild {@link #slots} with the given length.
+	 *
+	 * @param length The new length, a power of 2 greater than {@link #size}.
+	 */
+	private void rehash(int length) {
+		if (length == slots.length) {
+			Arrays.fill(slots, 0);
+		} else {
+			slots = new int[length];
+		}
+
+		for (int i = 0; i < size; i++) {
+			addSlot(i);
+		}
+	}
+
+	/**
+	 * Get the primitive key of the given key, giving it a new transition ID if needed.
+	 *
+	 * @param key The key.
+	 * @return The primitive key.
+	 */
+	private long toPrimitiveKey(K key) {
+		switch (keyType) {
+			case TRANSITION:
+				return MetricalLpcfgSymbolTable.getTransitionId((String) key);
+
+			default:
+				return Double.doubleToLongBits((Double) key);
+		}
+	}
+
+	/**
+	 * Get the primitive key of the given key, if it can be in this Map.
+	 *
+	 * @param key The key.
+	 * @return The primitive key, or {@link #NO_KEY} if the given key cannot be in this Map.
+	 */
+	private long findKey(Object key) {
+		switch (keyType) {
+			case TRANSITION:
+				return key instanceof String ? MetricalLpcfgSymbolTable.findTransitionId((String) key) : NO_KEY;
+
+			default:
+				return key instanceof Double ? Double.doubleToLongBits((Double) key) : NO_KEY;
+		}
+	}
+
+	/**
+	 * Get the key of the given primitive key.
+	 *
+	 * @param key The primitive key.
+	 * @return The key.
+	 */
+	@SuppressWarnings("unchecked")
+	private K fromPrimitiveKey(long key) {
+		switch (keyType) {
+			case TRANSITION:
+				return (K) MetricalLpcfgSymbolTable.getTransition((int) key);
+
+			default:
+				return (K) Double.valueOf(Double.longBitsToDouble(key));
+		}
+	}
+
+	/**
+	 * Mix the bits of the given primitive key, for use in {@link #slots}.
+	 *
+	 * @param key The primitive key.
+	 * @return A well-mixed hash of the key.
+	 */
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Serialize this Map as a HashMap with the same iteration order.
+	 *
+	 * @return A HashMap with the same counts and iteration order as this Map.
+	 */
+	private Object writeReplace() {
+		Map<Object, Integer> map = hashMapCapacity == 0 ? new HashMap<Object, Integer>() : new HashMap<Object, Integer>(hashMapCapacity);
+
+		if (size == 0 && hashMapCapacity != 0) {
+			// Allocate the table, as a HashMap which has been emptied would have
+			Object placeholder = new Object();
+			map.put(placeholder, 0);
+			map.remove(placeholder);
+		}
+
+		for (int index : getOrder()) {
+			map.put(fromPrimitiveKey(keys[index]), counts[index]);
+		}
+
+		return map;
+	}
+}
@@ -0,0 +1,150 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A <code>MetricalLpcfgFileCounts</code> object records what a single training file added to a
+ * {@link MetricalLpcfg}: the counts of its trees, and where its trees are in the grammar's List of trees.
+ * A grammar saves one of these for each file it is generated from, so that a file can be extracted from
+ * the grammar (and added back) by subtracting (and adding) only its own counts, without parsing the file
+ * again or searching for its trees.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgFileCounts implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The counts of the file's trees. This tracker is never changed once created, so it can be
+	 * shared by copies.
+	 */
+	private final MetricalLpcfgProbabilityTracker counts;
+
+	/**
+	 * The number of trees the file added to the grammar.
+	 */
+	private final int numTrees;
+
+	/**
+	 * The index of the file's first tree in the grammar's List of trees, or -1 if the grammar does not
+	 * save its trees. The file's trees are all together, starting here. If the file has been extracted,
+	 * this is the index its trees will be put back at.
+	 */
+	private int firstTree;
+
+	/**
+	 * The trees which were taken out of the grammar when the file was extracted, or null if it
+	 * has not been extracted, or the grammar does not save its trees.
+	 */
+	private transient List<MetricalLpcfgTree> extractedTrees = null;
+
+	/**
+	 * True if the file has been extracted from the grammar, and not yet added back.
+	 */
+	private transient boolean extracted = false;
+
+	/**
+	 * Create new file counts from the given trees.
+	 *
+	 * @param trees The trees the file added to the grammar.
+	 * @param firstTree {@link #firstTree}
+	 */
+	public MetricalLpcfgFileCounts(List<MetricalLpcfgTree> trees, int firstTree) {
+		MetricalLpcfg fileGrammar = new MetricalLpcfg(false);
+		for (MetricalLpcfgTree tree : trees) {
+			fileGrammar.addTree(tree);
+		}
+
+		counts = fileGrammar.getProbabilityTracker();
+		numTrees = trees.size();
+		this.firstTree = firstTree;
+	}
+
+	/**
+	 * Create a copy of the given file counts. The copy shares the given object's counts.
+	 *
+	 * @param fileCounts The file counts to copy.
+	 */
+	MetricalLpcfgFileCounts(MetricalLpcfgFileCounts fileCounts) {
+		counts = fileCounts.counts;
+		numTrees = fileCounts.numTrees;
+		firstTree = fileCounts.firstTree;
+		extractedTrees = fileCounts.extractedTrees;
+		extracted = fileCounts.extracted;
+	}
+
+	/**
+	 * Get the counts of the file's trees. These must not be changed.
+	 *
+	 * @return {@link #counts}
+	 */
+	public MetricalLpcfgProbabilityTracker getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Get the number of trees the file added to the grammar.
+	 *
+	 * @return {@link #numTrees}
+	 */
+	public int getNumTrees() {
+		return numTrees;
+	}
+
+	/**
+	 * Get the index of the file's first tree in the grammar's List of trees.
+	 *
+	 * @return {@link #firstTree}
+	 */
+	public int getFirstTree() {
+		return firstTree;
+	}
+
+	/**
+	 * Set the index of the file's first tree, once trees before it have been taken out of
+	 * (or put back into) the grammar.
+	 *
+	 * @param firstTree {@link #firstTree}
+	 */
+	void setFirstTree(int firstTree) {
+		this.firstTree = firstTree;
+	}
+
+	/**
+	 * Decide whether the file has been extracted from the grammar.
+	 *
+	 * @return {@link #extracted}
+	 */
+	public boolean isExtracted() {
+		return extracted;
+	}
+
+	/**
+	 * Set whether the file has been extracted from the grammar.
+	 *
+	 * @param extracted {@link #extracted}
+	 * @param extractedTrees {@link #extractedTrees}
+	 */
+	void setExtracted(boolean extracted, List<MetricalLpcfgTree> extractedTrees) {
+		this.extracted = extracted;
+		this.extractedTrees = extractedTrees;
+	}
+
+	/**
+	 * Get the trees which were taken out of the grammar when the file was extracted.
+	 *
+	 * @return {@link #extractedTrees}
+	 */
+	List<MetricalLpcfgTree> getExtractedTrees() {
+		return extractedTrees;
+	}
+
+	@Override
+	public String toString() {
+		return "{trees=" + (firstTree == -1 ? "" : firstTree + "+") + numTrees + (extracted ? ", extracted" : "") + "}";
+	}
+}
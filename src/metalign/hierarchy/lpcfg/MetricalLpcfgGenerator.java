@@ -1,10 +1,11 @@
 package metalign.hierarchy.lpcfg;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
-import metalign.Main;
+import metalign.RunConfiguration;
 import metalign.beat.Beat;
 import metalign.joint.JointModel;
 import metalign.time.NoteBTimeTracker;
@@ -26,6 +27,12 @@ public class MetricalLpcfgGenerator {
 	 */
 	private final MetricalLpcfg grammar;
 	
+	/**
+	 * Every tree we have added to {@link #grammar}, in order. These are kept even if the grammar
+	 * does not save its trees.
+	 */
+	private final List<MetricalLpcfgTree> parsedTrees;
+	
 	/**
 	 * The number of beats per measure, used in the {@link #parseSong(JointModel, TimeTracker)} method.
 	 */
@@ -42,10 +49,27 @@ public class MetricalLpcfgGenerator {
 	private int notes32PerMeasure;
 	
 	/**
-	 * Create a new default MetricalGrammarGenerator.
+	 * The configuration whose sub beat length, minimum note length, and note extension are used
+	 * to make the trees.
+	 */
+	private final RunConfiguration config;
+	
+	/**
+	 * Create a new default MetricalGrammarGenerator, using the current settings in {@link metalign.Main}.
 	 */
 	public MetricalLpcfgGenerator() {
+		this(new RunConfiguration());
+	}
+	
+	/**
+	 * Create a new MetricalGrammarGenerator with the given configuration.
+	 * 
+	 * @param config {@link #config}
+	 */
+	public MetricalLpcfgGenerator(RunConfiguration config) {
 		grammar = new MetricalLpcfg();
+		parsedTrees = new ArrayList<MetricalLpcfgTree>();
+		this.config = config;
 	}
 	
 	/**
@@ -95,7 +119,7 @@ public class MetricalLpcfgGenerator {
 				MidiNote note = notes.get(i);
 				MidiNote previous = i == 0 ? null : notes.get(i - 1);
 				
-				if (previous == null || Main.MIN_NOTE_LENGTH == -1 || note.getOnsetTime() - previous.getOnsetTime() >= Main.MIN_NOTE_LENGTH) {
+				if (previous == null || config.MIN_NOTE_LENGTH == -1 || note.getOnsetTime() - previous.getOnsetTime() >= config.MIN_NOTE_LENGTH) {
 					addNote(note, beats, quantums, notes32PerMeasure);
 				}
 			}
@@ -104,7 +128,7 @@ public class MetricalLpcfgGenerator {
 			boolean hasBegun = false;
 			for (int i = 0; i < numMeasures; i++) {
 				if (quantums[i] != null) {
-					if (Main.EXTEND_NOTES) {
+					if (config.EXTEND_NOTES) {
 						boolean firstOnsetFound = false;
 						for (int j = 0; j < quantums[i].length; j++) {
 							if (!firstOnsetFound) {
@@ -120,7 +144,8 @@ public class MetricalLpcfgGenerator {
 						}
 					}
 					
-					MetricalLpcfgTree tree = MetricalLpcfgTreeFactory.makeTree(Arrays.asList(quantums[i]), beatsPerMeasure[i], subBeatsPerBeat[i]);
+					MetricalLpcfgTree tree = MetricalLpcfgTreeFactory.makeTree(Arrays.asList(quantums[i]), beatsPerMeasure[i], subBeatsPerBeat[i],
+							config.SUB_BEAT_LENGTH == -1);
 					if (!hasBegun) {
 						hasBegun = true;
 						
@@ -130,6 +155,7 @@ public class MetricalLpcfgGenerator {
 						}
 					}
 					grammar.addTree(tree);
+					parsedTrees.add(tree);
 				}
 			}
 		}
@@ -228,6 +254,15 @@ public class MetricalLpcfgGenerator {
 		return notes32PerMeasure / beatsPerMeasure / subBeatsPerBeat;
 	}
 	
+	/**
+	 * Get every tree we have added to the grammar, in order.
+	 * 
+	 * @return {@link #parsedTrees}
+	 */
+	public List<MetricalLpcfgTree> getParsedTrees() {
+		return parsedTrees;
+	}
+	
 	/**
 	 * Get the MetricalGrammar we have generated.
 	 * 
@@ -6,6 +6,8 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -40,6 +42,7 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 	public static boolean LEXICALIZATION = true;
 	public static int NUM_PROCS = 1;
 	public static boolean SAVE_TREES = true;
+	public static boolean BINARY = false;
 
 	/**
 	 * The main method for generating an LPCFG grammar file. Run with no args to print help.
@@ -53,6 +56,7 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 	public static void main(String[] args) throws InterruptedException, IOException, ExecutionException {
 		boolean useChannel = true;
 		boolean generate = false;
+		boolean update = false;
 		File exportModelFile = null;
 		List<File> testFiles = new ArrayList<File>();
 		List<File> anacrusisFiles = new ArrayList<File>();
@@ -113,6 +117,14 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 							SAVE_TREES = false;
 							break;
 							
+						case 'b':
+							BINARY = true;
+							break;
+							
+						case 'u':
+							update = true;
+							break;
+							
 						case 'p':
 							i++;
 							if (args.length == i) {
@@ -172,59 +184,192 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 			argumentError("No music files given for testing");
 		}
 		
+		if (update && !generate) {
+			argumentError("No grammar File given with -g to update with -u");
+		}
+		
 		MetricalLpcfg grammar;
+		File manifestFile = MetricalLpcfgManifest.getManifestFile(exportModelFile);
 		
+		// Update grammar
+		if (update && exportModelFile.exists()) {
+			if (!manifestFile.exists()) {
+				argumentError("No manifest found for grammar " + exportModelFile + " (expected " + manifestFile +
+						"). Generate it again without -u first.");
+			}
+			
+			try {
+				grammar = MetricalLpcfg.deserialize(exportModelFile);
+				MetricalLpcfgManifest manifest = MetricalLpcfgManifest.deserialize(manifestFile);
+				
+				updateGrammar(grammar, manifest, testFiles, anacrusisFiles, useChannel);
+				
+				writeGrammar(grammar, exportModelFile);
+				MetricalLpcfgManifest.serialize(manifest, manifestFile);
+				
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Error loading grammar " + exportModelFile + ": " + e.getLocalizedMessage(), e);
+			}
+			
 		// Generate grammar
-		if (generate) {
+		} else if (generate) {
 			if (VERBOSE) {
 				System.out.println("Generating grammar into " + exportModelFile);
 				System.out.println("Using " + NUM_PROCS + " process(es).");
 			}
 			
-			if (NUM_PROCS > 1) {
-				grammar = new MetricalLpcfg();
-				double filesPerProc = ((double) testFiles.size()) / ((double) NUM_PROCS);
-				
-				// Create callables
-				List<Callable<MetricalLpcfgGenerator>> callables = new ArrayList<Callable<MetricalLpcfgGenerator>>(NUM_PROCS);
-			    for (int i = 0; i < NUM_PROCS; i++) {
-			    	callables.add(new MetricalLpcfgGeneratorRunner(
-			    			testFiles.subList((int) Math.round(i * filesPerProc), (int) Math.round((i + 1) * filesPerProc)),
-			    			anacrusisFiles, useChannel)
-			    	);
-			    }
+			MetricalLpcfgManifest manifest = new MetricalLpcfgManifest();
+			grammar = generateGrammar(testFiles, anacrusisFiles, useChannel, manifest);
+			
+			writeGrammar(grammar, exportModelFile);
+			MetricalLpcfgManifest.serialize(manifest, manifestFile);
+		}
+	}
+	
+	/**
+	 * Update the given grammar with the given files. Files whose contents are unchanged since they were
+	 * saved in the manifest are skipped. Any files in the manifest which no longer exist, and the old versions
+	 * of any files which have changed, have their trees removed from the grammar. New and changed files are then
+	 * parsed and their trees are added to the grammar. Adding and removing trees only marks the affected contexts
+	 * to be re-smoothed, so only those are re-smoothed when the grammar is written.
+	 * 
+	 * @param grammar The grammar to update.
+	 * @param manifest The manifest of the grammar, which is updated as well.
+	 * @param midiFiles The Files we want to update the grammar with.
+	 * @param anacrusisFiles The anacrusis files for the given midiFiles.
+	 * @param useChannel True if to use channels as the gold standard voice in MIDI files.
+	 * False for tracks.
+	 * 
+	 * @throws IOException A file could not be read, or a tree in the manifest is not found in the grammar.
+	 * @throws InterruptedException We were interrupted while waiting for a task.
+	 * @throws ExecutionException An exception was thrown by a task.
+	 */
+	private static void updateGrammar(MetricalLpcfg grammar, MetricalLpcfgManifest manifest, List<File> midiFiles,
+			List<File> anacrusisFiles, boolean useChannel) throws IOException, InterruptedException, ExecutionException {
+		// Remove deleted files
+		int numRemoved = 0;
+		for (String path : manifest.getPaths()) {
+			if (!new File(path).exists()) {
+				removeFile(grammar, manifest.remove(path), path);
+				numRemoved++;
+			}
+		}
+		
+		// Find new and changed files
+		List<File> changedFiles = new ArrayList<File>();
+		for (File file : midiFiles) {
+			if (manifest.isChanged(file, MetricalLpcfgManifest.hash(file))) {
+				changedFiles.add(file);
+			}
+		}
+		
+		if (VERBOSE) {
+			System.out.println("Updating grammar: " + changedFiles.size() + " new or changed file(s), " +
+					(midiFiles.size() - changedFiles.size()) + " unchanged, " + numRemoved + " deleted.");
+		}
+		
+		// Parse them
+		MetricalLpcfgManifest parsed = new MetricalLpcfgManifest();
+		if (!changedFiles.isEmpty()) {
+			generateGrammar(changedFiles, anacrusisFiles, useChannel, parsed);
+		}
+		
+		// Swap their trees into the grammar
+		for (File file : changedFiles) {
+			MetricalLpcfgManifest.Entry oldEntry = manifest.get(file);
+			if (oldEntry != null) {
+				removeFile(grammar, oldEntry, file.getCanonicalPath());
+				manifest.remove(file.getCanonicalPath());
+			}
+			
+			MetricalLpcfgManifest.Entry newEntry = parsed.get(file);
+			if (newEntry != null) {
+				for (MetricalLpcfgTree tree : newEntry.getTrees()) {
+					grammar.addTree(tree);
+				}
+				grammar.addFileCounts(file.getCanonicalPath(), newEntry.getTrees());
+				manifest.put(file, newEntry.getHash(), newEntry.getTrees());
+			}
+		}
+	}
 	
-			    // Execute the callables
-			    ExecutorService executor = Executors.newFixedThreadPool(NUM_PROCS);
-			    List<Future<MetricalLpcfgGenerator>> results = executor.invokeAll(callables);
-			    
-			    // Grab the results and save the best
-			    for (Future<MetricalLpcfgGenerator> result : results) {
-			    	MetricalLpcfgGenerator generator = result.get();
-			    	
-			    	grammar.mergeGrammar(generator.getGrammar());
-			    }
-			    
-			    executor.shutdown();
-			    
-			} else {
-				grammar = generateGrammar(testFiles, anacrusisFiles, useChannel).getGrammar();
+	/**
+	 * Remove the given file from the given grammar, using its saved counts in the grammar if it has any,
+	 * or else its trees from the manifest.
+	 * 
+	 * @param grammar The grammar.
+	 * @param entry The manifest entry of the file.
+	 * @param path The canonical path of the file.
+	 * @throws IOException If the file's counts or trees are not found in the grammar.
+	 */
+	private static void removeFile(MetricalLpcfg grammar, MetricalLpcfgManifest.Entry entry, String path) throws IOException {
+		try {
+			if (grammar.removeFile(path) == null) {
+				for (MetricalLpcfgTree tree : entry.getTrees()) {
+					grammar.removeTree(tree);
+				}
 			}
 			
-			MetricalLpcfg.serialize(grammar, exportModelFile);	
+		} catch (MetricalLpcfgElementNotFoundException e) {
+			throw new IOException("Tree of " + path + " not found in grammar. Does the manifest belong to this grammar?", e);
+		}
+	}
+	
+	/**
+	 * Write the given grammar out to the given file, in the binary format if {@link #BINARY} is true.
+	 * 
+	 * @param grammar The grammar to write.
+	 * @param file The file to write to.
+	 * @throws IOException Some IO error occurred.
+	 */
+	private static void writeGrammar(MetricalLpcfg grammar, File file) throws IOException {
+		if (BINARY) {
+			MetricalLpcfg.serializeBinary(grammar, file);
+		} else {
+			MetricalLpcfg.serialize(grammar, file);
+		}
+	}
+	
+	/**
+	 * Generate a grammar from the given files, in parallel if {@link #NUM_PROCS} is greater than 1.
+	 * 
+	 * @param midiFiles The Files we want to generate a grammar from.
+	 * @param anacrusisFiles The anacrusis files for the given midiFiles.
+	 * @param useChannel True if to use channels as the gold standard voice in MIDI files.
+	 * False for tracks.
+	 * @param manifest The manifest to save each parsed file's hash and trees into.
+	 * @return The generated grammar.
+	 * 
+	 * @throws InterruptedException We were interrupted while waiting for a task.
+	 * @throws ExecutionException An exception was thrown by a task.
+	 */
+	private static MetricalLpcfg generateGrammar(List<File> midiFiles, List<File> anacrusisFiles, boolean useChannel,
+			MetricalLpcfgManifest manifest) throws InterruptedException, ExecutionException {
+		if (NUM_PROCS <= 1) {
+			return parseFiles(midiFiles, anacrusisFiles, useChannel, manifest).getGrammar();
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_PROCS);
+		try {
+			return generateGrammarParallel(midiFiles, anacrusisFiles, useChannel, manifest, executor);
+		} finally {
+			executor.shutdown();
 		}
 	}
 
 	/**
-	 * Generate a grammar from the given files with the given Runner.
+	 * Parse the given files, one at a time, into a single generator.
 	 * 
 	 * @param midiFiles The Files we want to generate a grammar from.
 	 * @param anacrusisFiles The anacrusis files for the given midiFiles.
 	 * @param useChannel True if to use channels as the gold standard voice in MIDI files.
 	 * False for tracks.
+	 * @param manifest The manifest to save each parsed file's hash and trees into, or null.
+	 * @return The generator, holding the grammar of the given files.
 	 * @throws InterruptedException An interrupt occurred in GUI mode.
 	 */
-	private static MetricalLpcfgGenerator generateGrammar(List<File> midiFiles, List<File> anacrusisFiles, boolean useChannel) throws InterruptedException {
+	private static MetricalLpcfgGenerator parseFiles(List<File> midiFiles, List<File> anacrusisFiles, boolean useChannel,
+			MetricalLpcfgManifest manifest) throws InterruptedException {
 		// We have files and are ready to run!
 		MetricalLpcfgGenerator generator = new MetricalLpcfgGenerator();
 		int fileNum = 0;
@@ -236,7 +381,17 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 					System.out.print(Thread.currentThread().getId() + ": ");
 				}
 				
-				System.out.println("Parsing " + fileNum + "/" + midiFiles.size() + ": " + file);
+				System.out.println("Parsing " + (midiFiles.size() == 1 ? "" : fileNum + "/" + midiFiles.size() + ": ") + file);
+			}
+			
+			String hash = null;
+			if (manifest != null) {
+				try {
+					hash = MetricalLpcfgManifest.hash(file);
+				} catch (IOException e) {
+					System.err.println("Error reading file " + file + ":\n" + e.getLocalizedMessage());
+					continue;
+				}
 			}
 			
 			TimeTracker tt = new TimeTracker(Main.SUB_BEAT_LENGTH);
@@ -308,6 +463,7 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 			Runner.performInference(jm, nlg);
 			
 			// GRAMMARIZE
+			int firstTree = generator.getParsedTrees().size();
 			try {
 				generator.parseSong(jm, tt);
 			} catch (Exception e) {
@@ -317,11 +473,94 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 					e.printStackTrace();
 				}
 			}
+			
+			// Save even a partly parsed file's trees, since they are in the grammar
+			List<MetricalLpcfgTree> fileTrees = generator.getParsedTrees().subList(firstTree, generator.getParsedTrees().size());
+			try {
+				generator.getGrammar().addFileCounts(file.getCanonicalPath(), fileTrees);
+				
+				if (manifest != null) {
+					manifest.put(file, hash, fileTrees);
+				}
+			} catch (IOException e) {
+				System.err.println("Error saving the counts of file " + file + ":\n" + e.getLocalizedMessage());
+			}
 		}
 		
 		return generator;
 	}
 
+	/**
+	 * Generate a grammar from the given files in parallel. Each file is parsed by its own task, and the
+	 * tasks are queued largest file first, so that each thread takes the next file as soon as it is free,
+	 * and no thread is left parsing a long piece at the end. The resulting grammars are then merged
+	 * pairwise, in parallel, in the order of the given files, so that the final grammar does not depend
+	 * on the number of threads or on which thread parsed which file.
+	 * 
+	 * @param midiFiles The Files we want to generate a grammar from.
+	 * @param anacrusisFiles The anacrusis files for the given midiFiles.
+	 * @param useChannel True if to use channels as the gold standard voice in MIDI files.
+	 * False for tracks.
+	 * @param manifest The manifest to save each parsed file's hash and trees into, or null.
+	 * @param executor The executor to run the tasks on.
+	 * @return The generated grammar.
+	 * 
+	 * @throws InterruptedException We were interrupted while waiting for a task.
+	 * @throws ExecutionException An exception was thrown by a task.
+	 */
+	private static MetricalLpcfg generateGrammarParallel(List<File> midiFiles, List<File> anacrusisFiles, boolean useChannel,
+			MetricalLpcfgManifest manifest, ExecutorService executor) throws InterruptedException, ExecutionException {
+		// Largest first
+		List<Integer> order = new ArrayList<Integer>(midiFiles.size());
+		for (int i = 0; i < midiFiles.size(); i++) {
+			order.add(i);
+		}
+		final List<File> files = midiFiles;
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(files.get(o2).length(), files.get(o1).length());
+			}
+		});
+		
+		List<Future<MetricalLpcfgGenerator>> results = new ArrayList<Future<MetricalLpcfgGenerator>>(Collections.nCopies(midiFiles.size(), (Future<MetricalLpcfgGenerator>) null));
+		for (int i : order) {
+			results.set(i, executor.submit(new MetricalLpcfgGeneratorRunner(midiFiles.subList(i, i + 1), anacrusisFiles, useChannel, manifest)));
+		}
+		
+		List<MetricalLpcfg> grammars = new ArrayList<MetricalLpcfg>(midiFiles.size());
+		for (Future<MetricalLpcfgGenerator> result : results) {
+			grammars.add(result.get().getGrammar());
+		}
+		
+		// Merge pairwise
+		while (grammars.size() > 1) {
+			List<Future<MetricalLpcfg>> merged = new ArrayList<Future<MetricalLpcfg>>((grammars.size() + 1) / 2);
+			
+			for (int i = 0; i < grammars.size(); i += 2) {
+				final MetricalLpcfg first = grammars.get(i);
+				final MetricalLpcfg second = i + 1 < grammars.size() ? grammars.get(i + 1) : null;
+				
+				merged.add(executor.submit(new Callable<MetricalLpcfg>() {
+					@Override
+					public MetricalLpcfg call() {
+						if (second != null) {
+							first.mergeGrammar(second);
+						}
+						return first;
+					}
+				}));
+			}
+			
+			grammars = new ArrayList<MetricalLpcfg>(merged.size());
+			for (Future<MetricalLpcfg> result : merged) {
+				grammars.add(result.get());
+			}
+		}
+		
+		return grammars.isEmpty() ? new MetricalLpcfg() : grammars.get(0);
+	}
+
 	/**
 	 * Get the anacrusis length for the given test file given the anacrusis files.
 	 * 
@@ -371,8 +610,11 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 		sb.append("-m INT = Throw out notes whose length is shorter than INT microseconds, once extended. Defaults to 100000.\n");
 		sb.append("-s INT = Use INT as the sub beat length. Defaults to 4.\n");
 		sb.append("-a FILE = Search recursively under the given FILE for anacrusis files.\n");
-		sb.append("-p INT = Run multi-threaded with the given number of processes.\n");
-		sb.append("-x = Do NOT save trees in the grammar file (saves memory, cannot extract when testing).");
+		sb.append("-p INT = Run multi-threaded with the given number of processes, parsing one file at a time each, largest first.\n");
+		sb.append("-x = Do NOT save trees in the grammar file (saves memory). Files can still be extracted when testing.\n");
+		sb.append("-b = Write the grammar in the binary format, which loads faster.\n");
+		sb.append("-u = Update the grammar given with -g (if it exists) with only those files which are new or have changed since it was\n");
+		sb.append("     written, and remove the trees of any of its files which no longer exist. Uses the grammar's manifest (FILE" + MetricalLpcfgManifest.EXTENSION + ").");
 		
 		System.err.println(sb.toString());
 		System.exit(1);
@@ -385,15 +627,17 @@ public class MetricalLpcfgGeneratorRunner implements Callable<MetricalLpcfgGener
 	private List<File> testFiles;
 	private List<File> anacrusisFiles;
 	private boolean useChannel;
+	private MetricalLpcfgManifest manifest;
 	
-	public MetricalLpcfgGeneratorRunner(List<File> testFiles, List<File> anacrusisFiles, boolean useChannel) {
+	public MetricalLpcfgGeneratorRunner(List<File> testFiles, List<File> anacrusisFiles, boolean useChannel, MetricalLpcfgManifest manifest) {
 		this.testFiles = testFiles;
 		this.anacrusisFiles = anacrusisFiles;
 		this.useChannel = useChannel;
+		this.manifest = manifest;
 	}
 	
 	@Override
 	public MetricalLpcfgGenerator call() throws InterruptedException {
-		return MetricalLpcfgGeneratorRunner.generateGrammar(testFiles, anacrusisFiles, useChannel);
+		return MetricalLpcfgGeneratorRunner.parseFiles(testFiles, anacrusisFiles, useChannel, manifest);
 	}
 }
@@ -2,13 +2,12 @@ package metalign.hierarchy.lpcfg;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
 import java.util.TreeSet;
 
-import metalign.Main;
+import metalign.RunConfiguration;
 import metalign.generic.MidiModelState;
 import metalign.hierarchy.HierarchyModelState;
 import metalign.hierarchy.Measure;
@@ -46,13 +45,10 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 		WRONG;
 	}
 
-	public static double LOCAL_WEIGHT = 0.5;
-
 	/**
-	 * Object to save tree log probabilities so as not to regenerate every time.
+	 * The settings to use for this run.
 	 */
-	public static List<List<Map<List<MetricalLpcfgQuantum>, Double>>> treeMap = new ArrayList<List<Map<List<MetricalLpcfgQuantum>, Double>>>();
-
+	private final RunConfiguration config;
 
 	/**
 	 * The length of the terminals which we are looking for.
@@ -148,16 +144,28 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 	 * @param grammar {@link #grammar}
 	 */
 	public MetricalLpcfgHierarchyModelState(MetricalLpcfg grammar) {
+		this(grammar, new RunConfiguration());
+	}
+
+	/**
+	 * Create a new state based on the given grammar and configuration. The {@link #measure} and {@link #subBeatLength}
+	 * fields will be null and 0 respectively, as in {@link #MetricalLpcfgHierarchyModelState(MetricalLpcfg)}.
+	 *
+	 * @param grammar {@link #grammar}
+	 * @param config {@link #config}
+	 */
+	public MetricalLpcfgHierarchyModelState(MetricalLpcfg grammar, RunConfiguration config) {
+		this.config = config;
 		subBeatLength = 0;
 		anacrusisLength = 0;
 		measure = null;
 		this.grammar = grammar;
 
-		subBeatMatches = Main.USE_CONGRUENCE ? 0 : 1;
-		beatMatches = Main.USE_CONGRUENCE ? 0 : 1;;
+		subBeatMatches = config.USE_CONGRUENCE ? 0 : 1;
+		beatMatches = config.USE_CONGRUENCE ? 0 : 1;
 		wrongMatches = 0;
 
-		localGrammar = new MetricalLpcfg();
+		localGrammar = new MetricalLpcfg(false);
 
 		logProbability = 0.0;
 		localLogProb = 0.0;
@@ -183,6 +191,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 	 * @param anacrusisLength {@link #anacrusisLength}
 	 */
 	public MetricalLpcfgHierarchyModelState(MetricalLpcfgHierarchyModelState state, MetricalLpcfg grammar, Measure measure, int terminalLength, int anacrusisLength) {
+		config = state.config;
 		this.subBeatLength = terminalLength;
 		this.anacrusisLength = anacrusisLength;
 		this.measure = measure;
@@ -290,7 +299,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 			if (!isWrong()) {
 				newStates.add(this);
 
-			} else if (Main.SUPER_VERBOSE) {
+			} else if (config.SUPER_VERBOSE) {
 				System.out.println("ELIMINATING (Match):" + beatState + this);
 			}
 		}
@@ -310,7 +319,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 
 		// Add measure hypotheses
 		for (int subBeatLength = 1; subBeatLength <= 8; subBeatLength++) {
-			if (Main.SUB_BEAT_LENGTH != -1 && Main.SUB_BEAT_LENGTH != subBeatLength) {
+			if (config.SUB_BEAT_LENGTH != -1 && config.SUB_BEAT_LENGTH != subBeatLength) {
 				continue;
 			}
 
@@ -339,7 +348,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 						if (!newState.isWrong()) {
 							newStates.add(newState);
 
-							if (Main.SUPER_VERBOSE) {
+							if (config.SUPER_VERBOSE) {
 								System.out.println("Adding " + newState);
 							}
 						}
@@ -371,7 +380,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 			}*/
 			newStates.add(this);
 
-		} else if (Main.SUPER_VERBOSE) {
+		} else if (config.SUPER_VERBOSE) {
 			System.out.println("ELIMINATING (No match): " + this);
 		}
 
@@ -393,19 +402,11 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 		for (int voiceIndex = 0; voiceIndex < unfinishedNotes.size(); voiceIndex++) {
 			List<MidiNote> voice = unfinishedNotes.get(voiceIndex);
 
-			List <MetricalLpcfgQuantum> quantums = MetricalLpcfgTreeFactory.makeQuantumList(
+			MetricalLpcfgPattern quantums = MetricalLpcfgTreeFactory.makeQuantumPattern(
 					voice, beatState.getBeatTimes(), measure, subBeatLength, anacrusisLength,
-					measureNum, hasBegun.get(voiceIndex));
+					measureNum, hasBegun.get(voiceIndex), config.EXTEND_NOTES);
 
-			boolean isEmpty = true;
-			for (MetricalLpcfgQuantum quantum : quantums) {
-				if (quantum != MetricalLpcfgQuantum.REST) {
-					isEmpty = false;
-					break;
-				}
-			}
-
-			if (!isEmpty) {
+			if (!quantums.isAllRests()) {
 				if (!hasBegun.get(voiceIndex)) {
 					hasBegun.set(voiceIndex, Boolean.TRUE);
 
@@ -417,32 +418,26 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 				measureUsed = true;
 				int beatsPerMeasure = measure.getBeatsPerMeasure();
 				int subBeatsPerBeat = measure.getSubBeatsPerBeat();
-				while (treeMap.size() <= beatsPerMeasure) {
-					treeMap.add(new ArrayList<Map<List<MetricalLpcfgQuantum>, Double>>());
-				}
-
-				while (treeMap.get(beatsPerMeasure).size() <= subBeatsPerBeat) {
-					treeMap.get(beatsPerMeasure).add(new HashMap<List<MetricalLpcfgQuantum>, Double>());
-				}
-
-				Map<List<MetricalLpcfgQuantum>, Double> nestedTreeMap = treeMap.get(beatsPerMeasure).get(subBeatsPerBeat);
+				boolean reduce = config.SUB_BEAT_LENGTH == -1;
+				MetricalLpcfgTreeCache treeCache = grammar.getTreeCache();
+				MetricalLpcfgTreeCache.Key treeKey = new MetricalLpcfgTreeCache.Key(quantums, beatsPerMeasure, subBeatsPerBeat, reduce);
 
 				MetricalLpcfgTree tree = null;
-				Double logProb = nestedTreeMap.get(quantums);
+				Double logProb = treeCache.get(treeKey);
 				if (logProb == null) {
-					tree = MetricalLpcfgTreeFactory.makeTree(quantums, beatsPerMeasure, subBeatsPerBeat);
+					tree = MetricalLpcfgTreeFactory.makeTree(quantums, beatsPerMeasure, subBeatsPerBeat, reduce);
 					logProb = grammar.getTreeLogProbability(tree);
-					nestedTreeMap.put(quantums, logProb);
+					treeCache.put(treeKey, logProb);
 				}
 				logProbability += logProb;
 
 
-				if (LOCAL_WEIGHT != 0.0) {
+				if (config.LOCAL_WEIGHT != 0.0) {
 					if (tree == null) {
-						tree = MetricalLpcfgTreeFactory.makeTree(quantums, beatsPerMeasure, subBeatsPerBeat);
+						tree = MetricalLpcfgTreeFactory.makeTree(quantums, beatsPerMeasure, subBeatsPerBeat, reduce);
 					}
 
-					if (!localGrammar.getTrees().isEmpty()) {
+					if (!localGrammar.isEmpty()) {
 						localLogProb += localGrammar.getTreeLogProbability(tree);
 					}
 
@@ -535,7 +530,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 				for (int voiceIndex = 0; voiceIndex < voiceState.getVoices().size(); voiceIndex++) {
 					Voice voice = voiceState.getVoices().get(voiceIndex);
 
-					if (voice.getNotes().contains(note)) {
+					if (voice.contains(note)) {
 						if (voice.isNew(note.getOnsetTime())) {
 							// This was a new voice
 							List<MidiNote> newNote = new ArrayList<MidiNote>();
@@ -640,13 +635,13 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 		MidiNote firstNote = iterator.next();
 		numNotesToRemove++;
 		MidiNote nextNote = iterator.hasNext() ? iterator.next() : null;
-		if (Main.EXTEND_NOTES && nextNote == null) {
+		if (config.EXTEND_NOTES && nextNote == null) {
 			return false;
 		}
 
 		int startBeatIndex = firstNote.getOnsetBeatIndex(beats);
 		// Cut this note at the onset of the next note if they overlap
-		int endBeatIndex = firstNote.overlaps(nextNote) || Main.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : firstNote.getOffsetBeatIndex(beats);
+		int endBeatIndex = firstNote.overlaps(nextNote) || config.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : firstNote.getOffsetBeatIndex(beats);
 
 		int startTactus = startBeatIndex;
 		int endTactus = endBeatIndex;
@@ -687,13 +682,13 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 			MidiNote note = nextNote;
 			numNotesToRemove++;
 			nextNote = iterator.hasNext() ? iterator.next() : null;
-			if (Main.EXTEND_NOTES && nextNote == null) {
+			if (config.EXTEND_NOTES && nextNote == null) {
 				break;
 			}
 
 			startBeatIndex = note.getOnsetBeatIndex(beats);
 			// Cut off at beginning of next note if one exists and they overlap
-			endBeatIndex = note.overlaps(nextNote) || Main.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : note.getOffsetBeatIndex(beats);
+			endBeatIndex = note.overlaps(nextNote) || config.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : note.getOffsetBeatIndex(beats);
 
 			startTactus = startBeatIndex;
 			endTactus = endBeatIndex;
@@ -780,13 +775,13 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 	 * @param note The note we need to check for a match.
 	 */
 	private void updateMatchType(MidiNote note, MidiNote nextNote) {
-		if (Main.EXTEND_NOTES && nextNote == null) {
+		if (config.EXTEND_NOTES && nextNote == null) {
 			return;
 		}
 		List<Integer> beats = beatState.getBeatTimes();
 		int startBeatIndex = note.getOnsetBeatIndex(beats);
 		// Cut off note at next onset, if it overlaps
-		int endBeatIndex = note.overlaps(nextNote) || Main.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : note.getOffsetBeatIndex(beats);
+		int endBeatIndex = note.overlaps(nextNote) || config.EXTEND_NOTES ? nextNote.getOnsetBeatIndex(beats) : note.getOffsetBeatIndex(beats);
 
 		int startTactus = startBeatIndex;
 		int endTactus = endBeatIndex;
@@ -1070,7 +1065,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 	}
 
 	/**
-	 * Get the local grammar of this model.
+	 * Get the local grammar of this model. This grammar only keeps its counts, not its trees.
 	 *
 	 * @return {@link #localGrammar}
 	 */
@@ -1090,7 +1085,7 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 
 	@Override
 	public double getScore() {
-		return logProbability + LOCAL_WEIGHT * localLogProb;
+		return logProbability + config.LOCAL_WEIGHT * localLogProb;
 	}
 
 	@Override
@@ -1104,6 +1099,11 @@ public class MetricalLpcfgHierarchyModelState extends HierarchyModelState {
 		return measure.equals(lpcfg.measure) && subBeatLength == lpcfg.subBeatLength && anacrusisLength == lpcfg.anacrusisLength;
 	}
 
+	@Override
+	public int getDuplicateHash() {
+		return Objects.hash(measure, subBeatLength, anacrusisLength);
+	}
+
 	@Override
 	public int compareTo(MidiModelState other) {
 		if (!(other instanceof MetricalLpcfgHierarchyModelState)) {
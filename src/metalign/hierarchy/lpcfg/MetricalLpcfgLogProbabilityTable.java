@@ -0,0 +1,120 @@
+package metalign.hierarchy.lpcfg;
+
+/**
+ * A <code>MetricalLpcfgLogProbabilityTable</code> holds the final log probability of every outcome of a single
+ * context of a compiled {@link MetricalLpcfgProbabilityTracker} (with any back-off already included), keyed by
+ * the primitive key of each outcome, as well as the log probability of any unseen outcome. It is immutable,
+ * and a lookup is a single probe of an open-addressed hash table.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgLogProbabilityTable {
+	/**
+	 * The primitive key of each slot.
+	 */
+	private final long[] keys;
+
+	/**
+	 * The log probability of each slot.
+	 */
+	private final double[] logProbabilities;
+
+	/**
+	 * True for each slot which is used.
+	 */
+	private final boolean[] used;
+
+	/**
+	 * The log probability of any outcome which is not in this table.
+	 */
+	private final double unseenLogProbability;
+
+	/**
+	 * The number of outcomes in this table.
+	 */
+	private final int size;
+
+	/**
+	 * Create a new table with the given outcomes.
+	 *
+	 * @param outcomeKeys The primitive key of each outcome. These must be unique.
+	 * @param outcomeLogProbabilities The log probability of each outcome.
+	 * @param numOutcomes The number of outcomes to use from the given arrays.
+	 * @param unseenLogProbability {@link #unseenLogProbability}
+	 */
+	public MetricalLpcfgLogProbabilityTable(long[] outcomeKeys, double[] outcomeLogProbabilities, int numOutcomes,
+			double unseenLogProbability) {
+		this.unseenLogProbability = unseenLogProbability;
+		size = numOutcomes;
+
+		int length = Integer.highestOneBit(Math.max(numOutcomes * 2, 1)) * 2;
+		keys = new long[length];
+		logProbabilities = new double[length];
+		used = new boolean[length];
+
+		int mask = length - 1;
+		for (int i = 0; i < numOutcomes; i++) {
+			int slot = mix(outcomeKeys[i]) & mask;
+			while (used[slot]) {
+				slot = (slot + 1) & mask;
+			}
+
+			keys[slot] = outcomeKeys[i];
+			logProbabilities[slot] = outcomeLogProbabilities[i];
+			used[slot] = true;
+		}
+	}
+
+	/**
+	 * Get the log probability of the given outcome.
+	 *
+	 * @param outcomeKey The primitive key of the outcome.
+	 * @return The log probability of the given outcome, or {@link #unseenLogProbability} if it is not in this table.
+	 */
+	public double getLogProbability(long outcomeKey) {
+		int mask = keys.length - 1;
+		for (int slot = mix(outcomeKey) & mask; used[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == outcomeKey) {
+				return logProbabilities[slot];
+			}
+		}
+
+		return unseenLogProbability;
+	}
+
+	/**
+	 * Get the log probability of any outcome which is not in this table.
+	 *
+	 * @return {@link #unseenLogProbability}
+	 */
+	public double getUnseenLogProbability() {
+		return unseenLogProbability;
+	}
+
+	/**
+	 * Get the number of outcomes in this table.
+	 *
+	 * @return {@link #size}
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Mix the bits of the given primitive key.
+	 *
+	 * @param key The primitive key.
+	 * @return A well-mixed hash of the key.
+	 */
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	@Override
+	public String toString() {
+		return "{size=" + size + ", unseen=" + unseenLogProbability + "}";
+	}
+}
@@ -0,0 +1,250 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A <code>MetricalLpcfgManifest</code> records which files a grammar was generated from, by the hash of
+ * each file's contents, along with the trees each file added to the grammar. It is saved alongside its grammar
+ * (see {@link #getManifestFile(File)}), so that the grammar can later be updated with only the files which are
+ * new or have changed since, and so that the trees of a changed or deleted file can be taken back out of the
+ * grammar, even if the grammar itself does not save its trees.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgManifest implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The extension added to a grammar file's name to get its manifest file's name.
+	 */
+	public static final String EXTENSION = ".manifest";
+
+	/**
+	 * The entry of each file, keyed by its canonical path.
+	 */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * Create a new empty manifest.
+	 */
+	public MetricalLpcfgManifest() {
+		entries = new TreeMap<String, Entry>();
+	}
+
+	/**
+	 * Get the entry of the given file.
+	 *
+	 * @param file The file.
+	 * @return The entry of the given file, or null if it has none.
+	 * @throws IOException If the file's canonical path cannot be found.
+	 */
+	public synchronized Entry get(File file) throws IOException {
+		return entries.get(file.getCanonicalPath());
+	}
+
+	/**
+	 * Save the given file's hash and trees, replacing any entry it already has.
+	 *
+	 * @param file The file.
+	 * @param hash The hash of the file's contents, from {@link #hash(File)}.
+	 * @param trees The trees the file added to the grammar.
+	 * @throws IOException If the file's canonical path cannot be found.
+	 */
+	public synchronized void put(File file, String hash, List<MetricalLpcfgTree> trees) throws IOException {
+		entries.put(file.getCanonicalPath(), new Entry(hash, trees));
+	}
+
+	/**
+	 * Remove the entry of the file with the given canonical path.
+	 *
+	 * @param path The canonical path of the file.
+	 * @return The removed entry, or null if there was none.
+	 */
+	public synchronized Entry remove(String path) {
+		return entries.remove(path);
+	}
+
+	/**
+	 * Get the canonical paths of all of the files in this manifest, in order.
+	 *
+	 * @return A new List of the canonical paths of the files in this manifest.
+	 */
+	public synchronized List<String> getPaths() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Decide whether the given file is new or has changed since it was saved in this manifest.
+	 *
+	 * @param file The file.
+	 * @param hash The hash of the file's current contents, from {@link #hash(File)}.
+	 * @return True if the file has no entry, or its entry has a different hash. False otherwise.
+	 * @throws IOException If the file's canonical path cannot be found.
+	 */
+	public boolean isChanged(File file, String hash) throws IOException {
+		Entry entry = get(file);
+		return entry == null || !entry.hash.equals(hash);
+	}
+
+	/**
+	 * Get the number of files in this manifest.
+	 *
+	 * @return The number of files in this manifest.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the hash of the contents of the given file.
+	 *
+	 * @param file The file.
+	 * @return The SHA-256 hash of the given file's contents, in hexadecimal.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available: " + e.getLocalizedMessage(), e);
+		}
+
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			input.close();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the manifest file which is saved alongside the given grammar file.
+	 *
+	 * @param grammarFile The grammar file.
+	 * @return The manifest file of the given grammar file.
+	 */
+	public static File getManifestFile(File grammarFile) {
+		return new File(grammarFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Serialize the given manifest and write it out to the given file.
+	 *
+	 * @param manifest The manifest we want to serialize.
+	 * @param file The file to write out the manifest to.
+	 *
+	 * @throws FileNotFoundException The file could not be opened for writing.
+	 * @throws IOException Some IO error occurred.
+	 *
+	 * @see #deserialize(File)
+	 */
+	public static void serialize(MetricalLpcfgManifest manifest, File file) throws FileNotFoundException, IOException {
+		ObjectOutputStream streamOutput = new ObjectOutputStream(
+				new GZIPOutputStream(
+						new FileOutputStream(file)));
+		synchronized (manifest) {
+			streamOutput.writeObject(manifest);
+		}
+		streamOutput.flush();
+		streamOutput.close();
+	}
+
+	/**
+	 * Load a manifest from a serialized file.
+	 *
+	 * @param serialized The file containing a serialized manifest.
+	 * @return The manifest loaded from the given file.
+	 *
+	 * @throws ClassNotFoundException The class could not be deserialized properly.
+	 * @throws IOException Some IO error occurred.
+	 *
+	 * @see #serialize(MetricalLpcfgManifest, File)
+	 */
+	public static MetricalLpcfgManifest deserialize(File serialized) throws ClassNotFoundException, IOException {
+		ObjectInputStream streamInput = new ObjectInputStream(
+				new GZIPInputStream(
+						new FileInputStream(serialized)));
+		MetricalLpcfgManifest manifest = (MetricalLpcfgManifest) streamInput.readObject();
+		streamInput.close();
+		return manifest;
+	}
+
+	/**
+	 * An <code>Entry</code> holds the hash and trees of a single file.
+	 */
+	public static class Entry implements Serializable {
+		/**
+		 * Version 1
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The hash of the file's contents.
+		 */
+		private final String hash;
+
+		/**
+		 * The trees the file added to the grammar.
+		 */
+		private final List<MetricalLpcfgTree> trees;
+
+		/**
+		 * Create a new entry.
+		 *
+		 * @param hash {@link #hash}
+		 * @param trees {@link #trees}
+		 */
+		public Entry(String hash, List<MetricalLpcfgTree> trees) {
+			this.hash = hash;
+			this.trees = new ArrayList<MetricalLpcfgTree>(trees);
+		}
+
+		/**
+		 * Get the hash of the file's contents.
+		 *
+		 * @return {@link #hash}
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Get the trees the file added to the grammar.
+		 *
+		 * @return {@link #trees}
+		 */
+		public List<MetricalLpcfgTree> getTrees() {
+			return trees;
+		}
+	}
+}
@@ -80,6 +80,26 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 	 */
 	private final List<MetricalLpcfgNode> children;
 	
+	/**
+	 * The type String of each type (with null first) and level, as returned by {@link #getTypeString()}.
+	 */
+	private static final String[][] TYPE_STRINGS = new String[MetricalLpcfgType.values().length + 1][MetricalLpcfgLevel.values().length];
+	static {
+		for (MetricalLpcfgLevel level : MetricalLpcfgLevel.values()) {
+			TYPE_STRINGS[0][level.ordinal()] = ("NULL_" + level).intern();
+			
+			for (MetricalLpcfgType type : MetricalLpcfgType.values()) {
+				TYPE_STRINGS[type.ordinal() + 1][level.ordinal()] = (type + "_" + level).intern();
+			}
+		}
+	}
+	
+	/**
+	 * The transition String of this non-terminal, saved by {@link #getTransitionString()}, or null
+	 * if it has not been calculated since the children last changed.
+	 */
+	private transient String transitionString = null;
+	
 	/**
 	 * Create a new non-terminal, initially of {@link #type} {@link MetricalLpcfgType#EVEN}.
 	 * 
@@ -139,6 +159,7 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 	 */
 	public void addChild(MetricalLpcfgNode child) {
 		children.add(child);
+		transitionString = null;
 	}
 	
 	/**
@@ -156,7 +177,7 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 	 * @return {@link #type}'s toString.
 	 */
 	public String getTypeString() {
-		return (type == null ? "NULL" : type.toString()) + "_" + level.toString();
+		return TYPE_STRINGS[type == null ? 0 : type.ordinal() + 1][level.ordinal()];
 	}
 	
 	/**
@@ -179,15 +200,16 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 			return terminal;
 		}
 		
-		List<MetricalLpcfgQuantum> quantumsList = new ArrayList<MetricalLpcfgQuantum>();
+		List<MetricalLpcfgPattern> patterns = new ArrayList<MetricalLpcfgPattern>(children.size());
+		boolean reduce = false;
 		
 		for (MetricalLpcfgNode child : children) {
-			for (MetricalLpcfgQuantum quantum : child.getTerminal().getOriginalPattern()) {
-				quantumsList.add(quantum);
-			}
+			MetricalLpcfgTerminal childTerminal = child.getTerminal();
+			patterns.add(childTerminal.getPackedPattern());
+			reduce |= childTerminal.isReduced();
 		}
 		
-		terminal = new MetricalLpcfgTerminal(quantumsList, getLength());
+		terminal = new MetricalLpcfgTerminal(MetricalLpcfgPattern.concatenate(patterns), getLength(), reduce);
 		return terminal;
 	}
 	
@@ -197,6 +219,10 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 	 * @return The transition String of this non-terminal.
 	 */
 	public String getTransitionString() {
+		if (transitionString != null) {
+			return transitionString;
+		}
+		
 		List<String> childrenList = new ArrayList<String>(children.size());
 		
 		for (MetricalLpcfgNode node : children) {
@@ -208,7 +234,8 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 			}
 		}
 		
-		return childrenList.toString();
+		transitionString = childrenList.toString();
+		return transitionString;
 	}
 	
 	/**
@@ -227,6 +254,8 @@ public class MetricalLpcfgNonterminal implements MetricalLpcfgNode, Serializable
 	 * a terminal node, do nothing to it.
 	 */
 	public void fixChildrenTypes() {
+		transitionString = null;
+		
 		MetricalLpcfgHead min = new MetricalLpcfgHead(Double.MAX_VALUE, 0, false);
 		MetricalLpcfgHead max = new MetricalLpcfgHead();
 		
@@ -0,0 +1,291 @@
+package metalign.hierarchy.lpcfg;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A <code>MetricalLpcfgPattern</code> is an immutable pattern of {@link MetricalLpcfgQuantum}s, packed
+ * 2 bits each (by ordinal) into an array of longs. A whole measure fits into only a few longs, so patterns
+ * are cheap to build, split, hash, and compare, and they are used in place of Lists of quantums while
+ * building and scoring trees.
+ * <br>
+ * Since {@link MetricalLpcfgQuantum#REST} has ordinal 0, a newly allocated bit array is all rests.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgPattern {
+	/**
+	 * The quantums, indexed by ordinal.
+	 */
+	private static final MetricalLpcfgQuantum[] QUANTUMS = MetricalLpcfgQuantum.values();
+
+	/**
+	 * The number of quantums packed into each long.
+	 */
+	private static final int QUANTUMS_PER_WORD = 32;
+
+	/**
+	 * The pattern with a single rest.
+	 */
+	public static final MetricalLpcfgPattern SINGLE_REST = new MetricalLpcfgPattern(newBits(1), 1);
+
+	/**
+	 * The packed quantums.
+	 */
+	private final long[] bits;
+
+	/**
+	 * The number of quantums in this pattern.
+	 */
+	private final int length;
+
+	/**
+	 * The hash code of this pattern, calculated once in the constructor.
+	 */
+	private final int hash;
+
+	/**
+	 * The String of this pattern, saved by {@link #toString()}, or null if it has not been created yet.
+	 */
+	private String string = null;
+
+	/**
+	 * Create a new pattern from the given packed quantums.
+	 *
+	 * @param bits The packed quantums, as set by {@link #set(long[], int, MetricalLpcfgQuantum)}. Any
+	 * quantums past the given length must be rests. This array is not copied unless it is too long, so
+	 * it must not be changed afterwards.
+	 * @param length {@link #length}
+	 */
+	MetricalLpcfgPattern(long[] bits, int length) {
+		int numWords = getNumWords(length);
+		this.bits = bits.length == numWords ? bits : Arrays.copyOf(bits, numWords);
+		this.length = length;
+		hash = 31 * Arrays.hashCode(this.bits) + length;
+	}
+
+	/**
+	 * Create a new pattern with the same quantums as the given List.
+	 *
+	 * @param quantums The quantums.
+	 * @return A pattern of the given quantums.
+	 */
+	public static MetricalLpcfgPattern fromList(List<MetricalLpcfgQuantum> quantums) {
+		long[] bits = newBits(quantums.size());
+
+		for (int i = 0; i < quantums.size(); i++) {
+			set(bits, i, quantums.get(i));
+		}
+
+		return new MetricalLpcfgPattern(bits, quantums.size());
+	}
+
+	/**
+	 * Create a new pattern by joining the given patterns, in order.
+	 *
+	 * @param patterns The patterns to join.
+	 * @return A pattern of all of the given patterns' quantums.
+	 */
+	public static MetricalLpcfgPattern concatenate(List<MetricalLpcfgPattern> patterns) {
+		if (patterns.size() == 1) {
+			return patterns.get(0);
+		}
+
+		int length = 0;
+		for (MetricalLpcfgPattern pattern : patterns) {
+			length += pattern.length;
+		}
+
+		long[] bits = newBits(length);
+		int index = 0;
+		for (MetricalLpcfgPattern pattern : patterns) {
+			for (int i = 0; i < pattern.length; i++) {
+				setOrdinal(bits, index++, pattern.getOrdinal(i));
+			}
+		}
+
+		return new MetricalLpcfgPattern(bits, length);
+	}
+
+	/**
+	 * Get a new bit array of all rests, big enough to hold the given number of quantums.
+	 *
+	 * @param length The number of quantums.
+	 * @return A new bit array.
+	 */
+	static long[] newBits(int length) {
+		return new long[getNumWords(length)];
+	}
+
+	/**
+	 * Get the quantum at the given index of the given bit array.
+	 *
+	 * @param bits The bit array.
+	 * @param index The index.
+	 * @return The quantum at the given index.
+	 */
+	static MetricalLpcfgQuantum get(long[] bits, int index) {
+		return QUANTUMS[(int) (bits[index / QUANTUMS_PER_WORD] >>> ((index % QUANTUMS_PER_WORD) * 2)) & 3];
+	}
+
+	/**
+	 * Set the quantum at the given index of the given bit array.
+	 *
+	 * @param bits The bit array.
+	 * @param index The index.
+	 * @param quantum The quantum to set.
+	 */
+	static void set(long[] bits, int index, MetricalLpcfgQuantum quantum) {
+		setOrdinal(bits, index, quantum.ordinal());
+	}
+
+	/**
+	 * Set the quantum ordinal at the given index of the given bit array.
+	 *
+	 * @param bits The bit array.
+	 * @param index The index.
+	 * @param ordinal The ordinal of the quantum to set.
+	 */
+	private static void setOrdinal(long[] bits, int index, int ordinal) {
+		int shift = (index % QUANTUMS_PER_WORD) * 2;
+		bits[index / QUANTUMS_PER_WORD] = (bits[index / QUANTUMS_PER_WORD] & ~(3L << shift)) | (((long) ordinal) << shift);
+	}
+
+	/**
+	 * Get the number of longs needed to hold the given number of quantums.
+	 *
+	 * @param length The number of quantums.
+	 * @return The number of longs needed.
+	 */
+	private static int getNumWords(int length) {
+		return (length + QUANTUMS_PER_WORD - 1) / QUANTUMS_PER_WORD;
+	}
+
+	/**
+	 * Get the quantum at the given index.
+	 *
+	 * @param index The index.
+	 * @return The quantum at the given index.
+	 * @throws IndexOutOfBoundsException If the index is not within this pattern.
+	 */
+	public MetricalLpcfgQuantum get(int index) {
+		return QUANTUMS[getOrdinal(index)];
+	}
+
+	/**
+	 * Get the ordinal of the quantum at the given index.
+	 *
+	 * @param index The index.
+	 * @return The ordinal of the quantum at the given index.
+	 * @throws IndexOutOfBoundsException If the index is not within this pattern.
+	 */
+	private int getOrdinal(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+		}
+
+		return (int) (bits[index / QUANTUMS_PER_WORD] >>> ((index % QUANTUMS_PER_WORD) * 2)) & 3;
+	}
+
+	/**
+	 * Get the number of quantums in this pattern.
+	 *
+	 * @return {@link #length}
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Check whether this pattern is all rests.
+	 *
+	 * @return True if this pattern contains no onsets or ties. False otherwise.
+	 */
+	public boolean isAllRests() {
+		for (long word : bits) {
+			if (word != 0L) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get a new pattern holding the given range of this one.
+	 *
+	 * @param fromIndex The first index of the range, inclusive.
+	 * @param toIndex The last index of the range, exclusive.
+	 * @return A pattern of the quantums in the given range.
+	 */
+	public MetricalLpcfgPattern subPattern(int fromIndex, int toIndex) {
+		if (fromIndex == 0 && toIndex == length) {
+			return this;
+		}
+
+		long[] subBits = newBits(toIndex - fromIndex);
+		for (int i = fromIndex; i < toIndex; i++) {
+			setOrdinal(subBits, i - fromIndex, getOrdinal(i));
+		}
+
+		return new MetricalLpcfgPattern(subBits, toIndex - fromIndex);
+	}
+
+	/**
+	 * Get an unmodifiable List view of this pattern.
+	 *
+	 * @return A List of the quantums of this pattern.
+	 */
+	public List<MetricalLpcfgQuantum> toList() {
+		return new AbstractList<MetricalLpcfgQuantum>() {
+			@Override
+			public MetricalLpcfgQuantum get(int index) {
+				return MetricalLpcfgPattern.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return length;
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof MetricalLpcfgPattern)) {
+			return false;
+		}
+
+		MetricalLpcfgPattern o = (MetricalLpcfgPattern) other;
+		return hash == o.hash && length == o.length && Arrays.equals(bits, o.bits);
+	}
+
+	/**
+	 * Get the String of this pattern, which is the same as the String of a List of its quantums.
+	 *
+	 * @return The String of this pattern.
+	 */
+	@Override
+	public String toString() {
+		if (string == null) {
+			StringBuilder sb = new StringBuilder("[");
+
+			for (int i = 0; i < length; i++) {
+				if (i != 0) {
+					sb.append(", ");
+				}
+				sb.append(get(i));
+			}
+
+			string = sb.append(']').toString();
+		}
+
+		return string;
+	}
+}
@@ -1,14 +1,20 @@
 package metalign.hierarchy.lpcfg;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import metalign.Main;
 import metalign.hierarchy.Measure;
+import metalign.hierarchy.lpcfg.MetricalLpcfgCountMap.KeyType;
 import metalign.hierarchy.lpcfg.MetricalLpcfgNonterminal.MetricalLpcfgLevel;
 import metalign.utils.SmoothingUtils;
 
@@ -29,72 +35,380 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	/**
 	 * The map used for modeling: p(nonterminal -- children | measure, nonterminal, head(nonterminal))
 	 */
-	private final Map<String, Map<String, Integer>> transitionMap;
+	private final Map<String, MetricalLpcfgCountMap<String>> transitionMap;
 	
-	private Map<String, Map<Integer, Double>> transitionMapSmoothed = null;
+	private volatile Map<String, MetricalLpcfgSmoothedMap> transitionMapSmoothed = null;
+	
+	/**
+	 * The keys of {@link #transitionMap} whose smoothing in {@link #transitionMapSmoothed} is out of date.
+	 * This is only used while {@link #transitionMapSmoothed} is not null.
+	 */
+	private transient Set<String> dirtyTransitionKeys = null;
 	
 	/**
 	 * The map used for modeling: p(head(nonterminal) | measure, nonterminal, parentHeadLength)
 	 */
-	private final Map<String, Map<Double, Integer>> headMap;
+	private final Map<String, MetricalLpcfgCountMap<Double>> headMap;
+	
+	private volatile Map<String, MetricalLpcfgSmoothedMap> headMapSmoothed = null;
 	
-	private Map<String, Map<Integer, Double>> headMapSmoothed = null;
+	/**
+	 * The keys of {@link #headMap} whose smoothing in {@link #headMapSmoothed} is out of date.
+	 * This is only used while {@link #headMapSmoothed} is not null.
+	 */
+	private transient Set<String> dirtyHeadKeys = null;
 	
 	/**
 	 * The map used for modeling: p(head(measure) | measure)
 	 */
-	private final Map<Measure, Map<Double, Integer>> measureHeadMap;
+	private final Map<Measure, MetricalLpcfgCountMap<Double>> measureHeadMap;
+	
+	private volatile Map<Measure, MetricalLpcfgSmoothedMap> measureHeadMapSmoothed = null;
+	
+	/**
+	 * The keys of {@link #measureHeadMap} whose smoothing in {@link #measureHeadMapSmoothed} is out of date.
+	 * This is only used while {@link #measureHeadMapSmoothed} is not null.
+	 */
+	private transient Set<Measure> dirtyMeasureHeadKeys = null;
+	
+	/**
+	 * The maximum number of layers which a tracker can overlay before they are flattened into one.
+	 */
+	private static final int MAX_DEPTH = 16;
+	
+	/**
+	 * The tracker whose counts this one overlays, or null if this tracker holds all of its counts itself.
+	 * <br>
+	 * If this is not null, each of the count maps above holds only those keys whose counts differ from the
+	 * parent's, with the full conditioned counts for each such key (an empty conditioned map meaning that
+	 * the key has been removed), and each smoothed map holds only the smoothing of those keys.
+	 * A parent is an immutable layer, created by {@link #freeze()}, which can be shared by many trackers.
+	 */
+	private MetricalLpcfgProbabilityTracker parent = null;
+	
+	/**
+	 * The number of layers below this tracker, through {@link #parent}.
+	 */
+	private transient int depth = 0;
+	
+	/**
+	 * An immutable layer holding the same counts as this tracker, to be used as the parent of its copies,
+	 * or null if it has not been created since this tracker was last changed.
+	 */
+	private transient MetricalLpcfgProbabilityTracker frozen = null;
+	
+	/**
+	 * The compiled transition log probabilities, indexed by level ordinal and then by the
+	 * {@link MetricalLpcfgSymbolTable} ID of each key, or null if this tracker is not compiled.
+	 * See {@link #setCompiled(boolean)}.
+	 */
+	private transient volatile MetricalLpcfgLogProbabilityTable[][] compiledTransitions = null;
+	
+	/**
+	 * The compiled head log probabilities, indexed by level ordinal and then by the
+	 * {@link MetricalLpcfgSymbolTable} ID of each key, or null if this tracker is not compiled.
+	 */
+	private transient volatile MetricalLpcfgLogProbabilityTable[][] compiledHeads = null;
+	
+	/**
+	 * The compiled measure head log probabilities of each measure, or null if this tracker is not compiled.
+	 */
+	private transient volatile Map<Measure, MetricalLpcfgLogProbabilityTable> compiledMeasureHeads = null;
+	
+	/**
+	 * The log probabilities of the beat and sub beat subtrees which have been scored with our current
+	 * counts, indexed by the {@link MetricalLpcfgSymbolTable} ID of their key and then by their quantum
+	 * pattern, or null if none have been saved since our counts last changed.
+	 */
+	private transient volatile Map<Integer, Map<MetricalLpcfgPattern, Double>> subtreeLogProbabilities = null;
 	
-	private Map<Measure, Map<Integer, Double>> measureHeadMapSmoothed = null;
+	/**
+	 * The log probabilities of whole measures which have been scored with our current counts,
+	 * or null if none have been saved since our counts last changed.
+	 */
+	private transient volatile MetricalLpcfgTreeCache treeCache = null;
 	
 	/**
 	 * Create a new empty probability tracker.
 	 */
 	public MetricalLpcfgProbabilityTracker() {
-		transitionMap = new HashMap<String, Map<String, Integer>>();
+		transitionMap = new HashMap<String, MetricalLpcfgCountMap<String>>();
 		
-		headMap = new HashMap<String, Map<Double, Integer>>();
+		headMap = new HashMap<String, MetricalLpcfgCountMap<Double>>();
 		
-		measureHeadMap = new HashMap<Measure, Map<Double, Integer>>();
+		measureHeadMap = new HashMap<Measure, MetricalLpcfgCountMap<Double>>();
 	}
 	
 	/**
-	 * Create a new probability tracker as a deep copy of the given one.
+	 * Create a new probability tracker as a copy of the given one. The copy overlays an immutable layer
+	 * holding the given tracker's counts (see {@link #freeze()}), so this takes time proportional only to
+	 * the number of keys the given tracker has changed since it was itself created or copied. After this,
+	 * the two trackers can be changed independently.
 	 * 
-	 * @param probabilities The probability tracker we want to be a deep copy of.
+	 * @param probabilities The probability tracker we want to be a copy of.
 	 */
 	private MetricalLpcfgProbabilityTracker(MetricalLpcfgProbabilityTracker probabilities) {
-		transitionMap = new HashMap<String, Map<String, Integer>>();
-		for (String key : probabilities.transitionMap.keySet()) {
+		transitionMap = new HashMap<String, MetricalLpcfgCountMap<String>>();
+		
+		headMap = new HashMap<String, MetricalLpcfgCountMap<Double>>();
+		
+		measureHeadMap = new HashMap<Measure, MetricalLpcfgCountMap<Double>>();
+		
+		parent = probabilities.freeze();
+		depth = parent == null ? 0 : parent.depth + 1;
+	}
+	
+	/**
+	 * Create a new immutable layer holding the counts and smoothing of the given tracker, which must
+	 * be fully smoothed. This is used by {@link #freeze()}.
+	 * 
+	 * @param probabilities The tracker whose counts the new layer should hold.
+	 * @param flatten True to copy all of the given tracker's layers into the new one, which then has
+	 * no parent. False to copy only the given tracker's own counts, and share its parent.
+	 */
+	private MetricalLpcfgProbabilityTracker(MetricalLpcfgProbabilityTracker probabilities, boolean flatten) {
+		if (flatten) {
+			List<MetricalLpcfgProbabilityTracker> layers = probabilities.getLayers();
 			
-			Map<String, Integer> conditionedMap = new HashMap<String, Integer>();
-			for (String transition : probabilities.transitionMap.get(key).keySet()) {
-				conditionedMap.put(transition, probabilities.transitionMap.get(key).get(transition));
+			transitionMap = probabilities.getAllTransitionCounts();
+			headMap = probabilities.getAllHeadCounts();
+			measureHeadMap = probabilities.getAllMeasureHeadCounts();
+			
+			List<Map<String, MetricalLpcfgSmoothedMap>> transitionSmoothedLayers = new ArrayList<Map<String, MetricalLpcfgSmoothedMap>>();
+			List<Map<String, MetricalLpcfgSmoothedMap>> headSmoothedLayers = new ArrayList<Map<String, MetricalLpcfgSmoothedMap>>();
+			List<Map<Measure, MetricalLpcfgSmoothedMap>> measureHeadSmoothedLayers = new ArrayList<Map<Measure, MetricalLpcfgSmoothedMap>>();
+			for (MetricalLpcfgProbabilityTracker layer : layers) {
+				transitionSmoothedLayers.add(layer.transitionMapSmoothed);
+				headSmoothedLayers.add(layer.headMapSmoothed);
+				measureHeadSmoothedLayers.add(layer.measureHeadMapSmoothed);
 			}
-						
-			transitionMap.put(key, conditionedMap);
+			
+			transitionMapSmoothed = flattenSmoothed(transitionSmoothedLayers, transitionMap);
+			headMapSmoothed = flattenSmoothed(headSmoothedLayers, headMap);
+			measureHeadMapSmoothed = flattenSmoothed(measureHeadSmoothedLayers, measureHeadMap);
+			
+			parent = null;
+			depth = 0;
+			
+		} else {
+			transitionMap = copyCounts(probabilities.transitionMap);
+			headMap = copyCounts(probabilities.headMap);
+			measureHeadMap = copyCounts(probabilities.measureHeadMap);
+			
+			// The smoothed conditioned maps are never changed once built, so they can be shared
+			transitionMapSmoothed = new HashMap<String, MetricalLpcfgSmoothedMap>(probabilities.transitionMapSmoothed);
+			headMapSmoothed = new HashMap<String, MetricalLpcfgSmoothedMap>(probabilities.headMapSmoothed);
+			measureHeadMapSmoothed = new HashMap<Measure, MetricalLpcfgSmoothedMap>(probabilities.measureHeadMapSmoothed);
+			
+			parent = probabilities.parent;
+			depth = probabilities.depth;
+		}
+	}
+	
+	/**
+	 * Create a new probability tracker with the given counts and smoothing, which must be up to date.
+	 * This is used by {@link MetricalLpcfgBinaryFormat} to load a grammar.
+	 * 
+	 * @param transitionMap {@link #transitionMap}
+	 * @param transitionMapSmoothed {@link #transitionMapSmoothed}
+	 * @param headMap {@link #headMap}
+	 * @param headMapSmoothed {@link #headMapSmoothed}
+	 * @param measureHeadMap {@link #measureHeadMap}
+	 * @param measureHeadMapSmoothed {@link #measureHeadMapSmoothed}
+	 */
+	MetricalLpcfgProbabilityTracker(Map<String, MetricalLpcfgCountMap<String>> transitionMap,
+			Map<String, MetricalLpcfgSmoothedMap> transitionMapSmoothed,
+			Map<String, MetricalLpcfgCountMap<Double>> headMap,
+			Map<String, MetricalLpcfgSmoothedMap> headMapSmoothed,
+			Map<Measure, MetricalLpcfgCountMap<Double>> measureHeadMap,
+			Map<Measure, MetricalLpcfgSmoothedMap> measureHeadMapSmoothed) {
+		this.transitionMap = transitionMap;
+		this.transitionMapSmoothed = transitionMapSmoothed;
+		
+		this.headMap = headMap;
+		this.headMapSmoothed = headMapSmoothed;
+		
+		this.measureHeadMap = measureHeadMap;
+		this.measureHeadMapSmoothed = measureHeadMapSmoothed;
+	}
+	
+	/**
+	 * Get an immutable layer holding the same counts as this tracker, for its copies to overlay. The layer
+	 * is fully smoothed, so that it can be read from multiple threads. It is saved in {@link #frozen}, and
+	 * only recreated once this tracker has changed. If this tracker has no counts of its own, its parent
+	 * is used. If this tracker already has {@link #MAX_DEPTH} layers, the new layer is flattened.
+	 * 
+	 * @return A layer holding the same counts as this tracker, or null if it has no counts at all.
+	 */
+	private synchronized MetricalLpcfgProbabilityTracker freeze() {
+		if (transitionMap.isEmpty() && headMap.isEmpty() && measureHeadMap.isEmpty()) {
+			return parent;
+		}
+		
+		if (frozen == null) {
+			updateSmoothing();
+			frozen = new MetricalLpcfgProbabilityTracker(this, depth >= MAX_DEPTH);
 		}
 		
-		headMap = new HashMap<String, Map<Double, Integer>>();
-		for (String key : probabilities.headMap.keySet()) {
+		return frozen;
+	}
+	
+	/**
+	 * Get a tracker holding the same counts as this one, with no parent and with up to date smoothing,
+	 * whose maps can be read by {@link MetricalLpcfgBinaryFormat} to save a grammar. It must not be changed.
+	 * 
+	 * @return This tracker, if it has no parent. Otherwise, a new flattened layer.
+	 */
+	synchronized MetricalLpcfgProbabilityTracker getFlattened() {
+		updateSmoothing();
+		return parent == null ? this : new MetricalLpcfgProbabilityTracker(this, true);
+	}
+	
+	/**
+	 * Get the transition counts of this tracker, which must have no parent. These must not be changed.
+	 * 
+	 * @return {@link #transitionMap}
+	 */
+	Map<String, MetricalLpcfgCountMap<String>> getTransitionCountMaps() {
+		return transitionMap;
+	}
+	
+	/**
+	 * Get the transition smoothing of this tracker, which must have no parent. This must not be changed.
+	 * 
+	 * @return {@link #transitionMapSmoothed}
+	 */
+	Map<String, MetricalLpcfgSmoothedMap> getTransitionSmoothedMaps() {
+		return transitionMapSmoothed;
+	}
+	
+	/**
+	 * Get the head counts of this tracker, which must have no parent. These must not be changed.
+	 * 
+	 * @return {@link #headMap}
+	 */
+	Map<String, MetricalLpcfgCountMap<Double>> getHeadCountMaps() {
+		return headMap;
+	}
+	
+	/**
+	 * Get the head smoothing of this tracker, which must have no parent. This must not be changed.
+	 * 
+	 * @return {@link #headMapSmoothed}
+	 */
+	Map<String, MetricalLpcfgSmoothedMap> getHeadSmoothedMaps() {
+		return headMapSmoothed;
+	}
+	
+	/**
+	 * Get the measure head counts of this tracker, which must have no parent. These must not be changed.
+	 * 
+	 * @return {@link #measureHeadMap}
+	 */
+	Map<Measure, MetricalLpcfgCountMap<Double>> getMeasureHeadCountMaps() {
+		return measureHeadMap;
+	}
+	
+	/**
+	 * Get the measure head smoothing of this tracker, which must have no parent. This must not be changed.
+	 * 
+	 * @return {@link #measureHeadMapSmoothed}
+	 */
+	Map<Measure, MetricalLpcfgSmoothedMap> getMeasureHeadSmoothedMaps() {
+		return measureHeadMapSmoothed;
+	}
+	
+	/**
+	 * Set whether this tracker is compiled. A compiled tracker scores each outcome with a single lookup
+	 * into a {@link MetricalLpcfgLogProbabilityTable} of final log probabilities (with back-off already
+	 * included), rather than looking up counts and smoothing. The table of each context is built the
+	 * first time that context is scored, and they are all discarded whenever the counts change. The
+	 * log probabilities returned are identical either way.
+	 * 
+	 * @param compiled True to compile this tracker. False to go back to using counts and smoothing directly.
+	 */
+	public synchronized void setCompiled(boolean compiled) {
+		if (!compiled) {
+			compiledTransitions = null;
+			compiledHeads = null;
+			compiledMeasureHeads = null;
 			
-			Map<Double, Integer> conditionedMap = new HashMap<Double, Integer>();
-			for (Double headLength : probabilities.headMap.get(key).keySet()) {
-				conditionedMap.put(headLength, probabilities.headMap.get(key).get(headLength));
-			}
+		} else if (compiledTransitions == null) {
+			compiledTransitions = new MetricalLpcfgLogProbabilityTable[MetricalLpcfgLevel.values().length][0];
+			compiledHeads = new MetricalLpcfgLogProbabilityTable[MetricalLpcfgLevel.values().length][0];
+			compiledMeasureHeads = new ConcurrentHashMap<Measure, MetricalLpcfgLogProbabilityTable>();
+		}
+	}
+	
+	/**
+	 * Check whether this tracker is compiled.
+	 * 
+	 * @return True if this tracker is compiled. False otherwise.
+	 */
+	public boolean isCompiled() {
+		return compiledTransitions != null;
+	}
+	
+	/**
+	 * Get the saved log probabilities of the beat and sub beat subtrees with the given key which have been
+	 * scored with our current counts. These are used by {@link MetricalLpcfg} to avoid rescoring repeated subtrees.
+	 * 
+	 * @param keyId The {@link MetricalLpcfgSymbolTable} ID of the subtrees' key.
+	 * @return The saved log probabilities from {@link #subtreeLogProbabilities} of the subtrees with the
+	 * given key, indexed by quantum pattern, created if needed.
+	 */
+	Map<MetricalLpcfgPattern, Double> getSubtreeLogProbabilities(int keyId) {
+		Map<Integer, Map<MetricalLpcfgPattern, Double>> subtrees = subtreeLogProbabilities;
+		if (subtrees == null) {
+			subtrees = new ConcurrentHashMap<Integer, Map<MetricalLpcfgPattern, Double>>();
+			subtreeLogProbabilities = subtrees;
+		}
 		
-			headMap.put(key, conditionedMap);
+		Map<MetricalLpcfgPattern, Double> keySubtrees = subtrees.get(keyId);
+		if (keySubtrees == null) {
+			keySubtrees = new ConcurrentHashMap<MetricalLpcfgPattern, Double>();
+			Map<MetricalLpcfgPattern, Double> existing = subtrees.putIfAbsent(keyId, keySubtrees);
+			if (existing != null) {
+				keySubtrees = existing;
+			}
 		}
 		
-		measureHeadMap = new HashMap<Measure, Map<Double, Integer>>();
-		for (Measure measure : probabilities.measureHeadMap.keySet()) {
-				
-			Map<Double, Integer> measureHeadLengthMap = new HashMap<Double, Integer>();
-			for (Double headLength : probabilities.measureHeadMap.get(measure).keySet()) {
-				measureHeadLengthMap.put(headLength, probabilities.measureHeadMap.get(measure).get(headLength));
+		return keySubtrees;
+	}
+	
+	/**
+	 * Get the cache of the log probabilities of whole measures which have been scored with our current counts.
+	 * It is discarded (with its statistics) whenever our counts change.
+	 * 
+	 * @return {@link #treeCache}, created if needed.
+	 */
+	public MetricalLpcfgTreeCache getTreeCache() {
+		MetricalLpcfgTreeCache cache = treeCache;
+		if (cache == null) {
+			synchronized (this) {
+				if (treeCache == null) {
+					treeCache = new MetricalLpcfgTreeCache();
+				}
+				cache = treeCache;
 			}
-			
-			measureHeadMap.put(measure, measureHeadLengthMap);
+		}
+		
+		return cache;
+	}
+	
+	/**
+	 * Discard any compiled or saved log probabilities, since our counts are about to change.
+	 * This tracker stays compiled, if it was.
+	 */
+	private void clearCompiled() {
+		subtreeLogProbabilities = null;
+		treeCache = null;
+		
+		if (compiledTransitions != null) {
+			compiledTransitions = null;
+			compiledHeads = null;
+			compiledMeasureHeads = null;
+			setCompiled(true);
 		}
 	}
 	
@@ -104,54 +418,178 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 * @param other The probability tracker to merge into this one.
 	 */
 	public void merge(MetricalLpcfgProbabilityTracker other) {
+		flattenInPlace();
+		
 		transitionMapSmoothed = null;
 		headMapSmoothed = null;
 		measureHeadMapSmoothed = null;
+		frozen = null;
+		clearCompiled();
+		
+		Map<String, MetricalLpcfgCountMap<String>> otherTransitionMap = other.getAllTransitionCounts();
+		Map<String, MetricalLpcfgCountMap<Double>> otherHeadMap = other.getAllHeadCounts();
+		Map<Measure, MetricalLpcfgCountMap<Double>> otherMeasureHeadMap = other.getAllMeasureHeadCounts();
 		
-		for (String key : other.transitionMap.keySet()) {
-			Map<String, Integer> nestedMap = transitionMap.get(key);
+		for (String key : otherTransitionMap.keySet()) {
+			MetricalLpcfgCountMap<String> nestedMap = transitionMap.get(key);
 			if (nestedMap == null) {
-				nestedMap = new HashMap<String, Integer>();
+				nestedMap = MetricalLpcfgCountMap.newTransitionMap();
 				transitionMap.put(key, nestedMap);
 			}
 			
-			for (String nestedKey : other.transitionMap.get(key).keySet()) {
-				Integer oldCountObject = nestedMap.get(nestedKey);
-				int oldCount = oldCountObject == null ? 0 : oldCountObject;
-				
-				nestedMap.put(nestedKey, oldCount + other.transitionMap.get(key).get(nestedKey));
+			for (Map.Entry<String, Integer> entry : otherTransitionMap.get(key).entrySet()) {
+				nestedMap.setCount(entry.getKey(), nestedMap.getCount(entry.getKey()) + entry.getValue());
 			}
 		}
 		
-		for (String key : other.headMap.keySet()) {
-			Map<Double, Integer> nestedMap = headMap.get(key);
+		for (String key : otherHeadMap.keySet()) {
+			MetricalLpcfgCountMap<Double> nestedMap = headMap.get(key);
 			if (nestedMap == null) {
-				nestedMap = new HashMap<Double, Integer>();
+				nestedMap = MetricalLpcfgCountMap.newHeadLengthMap();
 				headMap.put(key, nestedMap);
 			}
 			
-			for (Double nestedKey : other.headMap.get(key).keySet()) {
-				Integer oldCountObject = nestedMap.get(nestedKey);
-				int oldCount = oldCountObject == null ? 0 : oldCountObject;
-				
-				nestedMap.put(nestedKey, oldCount + other.headMap.get(key).get(nestedKey));
+			for (Map.Entry<Double, Integer> entry : otherHeadMap.get(key).entrySet()) {
+				nestedMap.setCount(entry.getKey(), nestedMap.getCount(entry.getKey()) + entry.getValue());
 			}
 		}
 		
-		for (Measure key : other.measureHeadMap.keySet()) {
-			Map<Double, Integer> nestedMap = measureHeadMap.get(key);
+		for (Measure key : otherMeasureHeadMap.keySet()) {
+			MetricalLpcfgCountMap<Double> nestedMap = measureHeadMap.get(key);
 			if (nestedMap == null) {
-				nestedMap = new HashMap<Double, Integer>();
+				nestedMap = MetricalLpcfgCountMap.newHeadLengthMap();
 				measureHeadMap.put(key, nestedMap);
 			}
 			
-			for (Double nestedKey : other.measureHeadMap.get(key).keySet()) {
-				Integer oldCountObject = nestedMap.get(nestedKey);
-				int oldCount = oldCountObject == null ? 0 : oldCountObject;
-				
-				nestedMap.put(nestedKey, oldCount + other.measureHeadMap.get(key).get(nestedKey));
+			for (Map.Entry<Double, Integer> entry : otherMeasureHeadMap.get(key).entrySet()) {
+				nestedMap.setCount(entry.getKey(), nestedMap.getCount(entry.getKey()) + entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Add the counts of the given tracker to this one, as if the trees they were counted from had each been
+	 * added with the add methods. Only the keys of the given tracker are changed, and marked to be re-smoothed.
+	 * 
+	 * @param other The tracker whose counts we want to add. It is not changed.
+	 */
+	public void addCounts(MetricalLpcfgProbabilityTracker other) {
+		for (Map.Entry<String, MetricalLpcfgCountMap<String>> entry : other.getAllTransitionCounts().entrySet()) {
+			changeCounts(getWritableTransitionCounts(entry.getKey()), entry.getValue(), 1);
+			dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, entry.getKey());
+		}
+		
+		for (Map.Entry<String, MetricalLpcfgCountMap<Double>> entry : other.getAllHeadCounts().entrySet()) {
+			changeCounts(getWritableHeadCounts(entry.getKey()), entry.getValue(), 1);
+			dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, entry.getKey());
+		}
+		
+		for (Map.Entry<Measure, MetricalLpcfgCountMap<Double>> entry : other.getAllMeasureHeadCounts().entrySet()) {
+			changeCounts(getWritableMeasureHeadCounts(entry.getKey()), entry.getValue(), 1);
+			dirtyMeasureHeadKeys = markDirty(dirtyMeasureHeadKeys, measureHeadMapSmoothed, entry.getKey());
+		}
+	}
+	
+	/**
+	 * Remove the counts of the given tracker from this one, as if the trees they were counted from had each been
+	 * removed with the remove methods. Only the keys of the given tracker are changed, and marked to be re-smoothed.
+	 * Every count is checked before any is removed, so if this throws an exception, this tracker is unchanged.
+	 * 
+	 * @param other The tracker whose counts we want to remove. It is not changed.
+	 * @throws MetricalLpcfgElementNotFoundException If this tracker does not contain all of the given counts.
+	 */
+	public void removeCounts(MetricalLpcfgProbabilityTracker other) throws MetricalLpcfgElementNotFoundException {
+		Map<String, MetricalLpcfgCountMap<String>> otherTransitionMap = other.getAllTransitionCounts();
+		Map<String, MetricalLpcfgCountMap<Double>> otherHeadMap = other.getAllHeadCounts();
+		Map<Measure, MetricalLpcfgCountMap<Double>> otherMeasureHeadMap = other.getAllMeasureHeadCounts();
+		
+		for (Map.Entry<String, MetricalLpcfgCountMap<String>> entry : otherTransitionMap.entrySet()) {
+			if (!containsCounts(getTransitionCounts(entry.getKey()), entry.getValue())) {
+				throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
+			}
+		}
+		
+		for (Map.Entry<String, MetricalLpcfgCountMap<Double>> entry : otherHeadMap.entrySet()) {
+			if (!containsCounts(getHeadCounts(entry.getKey()), entry.getValue())) {
+				throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
+			}
+		}
+		
+		for (Map.Entry<Measure, MetricalLpcfgCountMap<Double>> entry : otherMeasureHeadMap.entrySet()) {
+			if (!containsCounts(getMeasureHeadCounts(entry.getKey()), entry.getValue())) {
+				throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 			}
 		}
+		
+		for (Map.Entry<String, MetricalLpcfgCountMap<String>> entry : otherTransitionMap.entrySet()) {
+			MetricalLpcfgCountMap<String> counts = getWritableTransitionCounts(entry.getKey());
+			changeCounts(counts, entry.getValue(), -1);
+			
+			if (counts.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
+				transitionMap.remove(entry.getKey());
+			}
+			
+			dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, entry.getKey());
+		}
+		
+		for (Map.Entry<String, MetricalLpcfgCountMap<Double>> entry : otherHeadMap.entrySet()) {
+			MetricalLpcfgCountMap<Double> counts = getWritableHeadCounts(entry.getKey());
+			changeCounts(counts, entry.getValue(), -1);
+			
+			if (counts.isEmpty() && parent == null) {
+				headMap.remove(entry.getKey());
+			}
+			
+			dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, entry.getKey());
+		}
+		
+		for (Map.Entry<Measure, MetricalLpcfgCountMap<Double>> entry : otherMeasureHeadMap.entrySet()) {
+			MetricalLpcfgCountMap<Double> counts = getWritableMeasureHeadCounts(entry.getKey());
+			changeCounts(counts, entry.getValue(), -1);
+			
+			if (counts.isEmpty() && parent == null) {
+				measureHeadMap.remove(entry.getKey());
+			}
+			
+			dirtyMeasureHeadKeys = markDirty(dirtyMeasureHeadKeys, measureHeadMapSmoothed, entry.getKey());
+		}
+	}
+	
+	/**
+	 * Add (or subtract) the given counts to some conditioned counts. Any outcome whose count reaches 0 is removed.
+	 * 
+	 * @param counts The conditioned counts to change.
+	 * @param delta The counts to add.
+	 * @param sign 1 to add the given counts, or -1 to subtract them.
+	 */
+	private static <V> void changeCounts(MetricalLpcfgCountMap<V> counts, MetricalLpcfgCountMap<V> delta, int sign) {
+		for (Map.Entry<V, Integer> entry : delta.entrySet()) {
+			int newCount = counts.getCount(entry.getKey()) + sign * entry.getValue();
+			
+			if (newCount != 0) {
+				counts.setCount(entry.getKey(), newCount);
+			} else {
+				counts.removeKey(entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Decide whether the given conditioned counts are each at least as large as the given ones.
+	 * 
+	 * @param counts The conditioned counts, or null if there are none.
+	 * @param delta The counts to check for.
+	 * @return True if the given counts can be subtracted from the conditioned counts. False otherwise.
+	 */
+	private static <V> boolean containsCounts(MetricalLpcfgCountMap<V> counts, MetricalLpcfgCountMap<V> delta) {
+		for (Map.Entry<V, Integer> entry : delta.entrySet()) {
+			if (counts == null || counts.getCount(entry.getKey()) < entry.getValue()) {
+				return false;
+			}
+		}
+		
+		return true;
 	}
 
 	/**
@@ -164,23 +602,15 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	public void addMeasureHead(Measure measure, MetricalLpcfgHead head) {
 		double headLength = head.getLength();
 		// Ensure sub map exists
-		Map<Double, Integer> measureMapConditioned = measureHeadMap.get(measure);
-		if (measureMapConditioned == null) {
-			measureMapConditioned = new HashMap<Double, Integer>();
-			measureHeadMap.put(measure, measureMapConditioned);	
-		}
+		MetricalLpcfgCountMap<Double> measureMapConditioned = getWritableMeasureHeadCounts(measure);
 		
 		// Get count
-		Integer oldCount = measureMapConditioned.get(headLength);
-		int newCount = 1;
-		if (oldCount != null) {
-			newCount = oldCount + 1;
-		}
+		int newCount = measureMapConditioned.getCount(headLength) + 1;
 		
 		// Add count to conditioned map
-		measureMapConditioned.put(headLength, newCount);
+		measureMapConditioned.setCount(headLength, newCount);
 		
-		measureHeadMapSmoothed = null;
+		dirtyMeasureHeadKeys = markDirty(dirtyMeasureHeadKeys, measureHeadMapSmoothed, measure);
 	}
 	
 	/**
@@ -195,32 +625,32 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 		double headLength = head.getLength();
 		
 		// Ensure sub map exists
-		Map<Double, Integer> measureMapConditioned = measureHeadMap.get(measure);
-		if (measureMapConditioned == null) {
+		if (getMeasureHeadCounts(measure) == null) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
+		MetricalLpcfgCountMap<Double> measureMapConditioned = getWritableMeasureHeadCounts(measure);
 		
 		// Get count
-		Integer oldCount = measureMapConditioned.get(headLength);
-		if (oldCount == null) {
+		int oldCount = measureMapConditioned.getCount(headLength);
+		if (oldCount == 0) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		int newCount = oldCount - 1;
 		if (newCount != 0) {
-			measureMapConditioned.put(headLength, newCount);
+			measureMapConditioned.setCount(headLength, newCount);
 			
 		} else {
 			// We need to remove the measure head
-			measureMapConditioned.remove(headLength);
+			measureMapConditioned.removeKey(headLength);
 			
-			if (measureMapConditioned.isEmpty()) {
-				// We need to remove the whole conditioned map
+			if (measureMapConditioned.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
 				measureHeadMap.remove(measure);
 			}
 		}
 		
-		measureHeadMapSmoothed = null;
+		dirtyMeasureHeadKeys = markDirty(dirtyMeasureHeadKeys, measureHeadMapSmoothed, measure);
 	}
 
 	/**
@@ -231,22 +661,72 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 * @return p(headLength | measure)
 	 */
 	public double getMeasureHeadProbability(Measure measure, MetricalLpcfgHead head) {
-		if (measureHeadMapSmoothed == null) {
-			smooth();
+		Map<Measure, MetricalLpcfgLogProbabilityTable> compiled = compiledMeasureHeads;
+		if (compiled != null) {
+			MetricalLpcfgLogProbabilityTable table = compiled.get(measure);
+			if (table == null) {
+				table = compileMeasureHeads(measure);
+			}
+			
+			return table.getLogProbability(Double.doubleToLongBits(head.getLength()));
 		}
 		
-		double headLength = head.getLength();
-		Map<Double, Integer> measureMapConditioned = measureHeadMap.get(measure);
+		if (measureHeadMapSmoothed == null || isDirty(dirtyMeasureHeadKeys)) {
+			updateSmoothing();
+		}
+		
+		return getMeasureHeadLogProbability(measure, head.getLength());
+	}
+	
+	/**
+	 * Calculate log(p(headLength | measure)) from our counts and smoothing, which must be up to date.
+	 * 
+	 * @param measure The measure.
+	 * @param headLength The head length, or NaN for one which has never been seen.
+	 * @return log(p(headLength | measure))
+	 */
+	private double getMeasureHeadLogProbability(Measure measure, double headLength) {
+		MetricalLpcfgProbabilityTracker owner = getMeasureHeadOwner(measure);
+		MetricalLpcfgCountMap<Double> measureMapConditioned = owner == null ? null : nonEmpty(owner.measureHeadMap.get(measure));
 		if (measureMapConditioned == null) {
 			return 0.0;
 		}
 		
-		Integer count = measureMapConditioned.get(headLength);
-		if (count == null) {
-			count = 0;
+		int count = measureMapConditioned.getCount(headLength);
+		
+		return owner.measureHeadMapSmoothed.get(measure).getLogProbability(count);
+	}
+	
+	/**
+	 * Build the compiled measure head log probabilities of the given measure, and save them in
+	 * {@link #compiledMeasureHeads} if this tracker is still compiled.
+	 * 
+	 * @param measure The measure.
+	 * @return The compiled log probabilities of the given measure.
+	 */
+	private synchronized MetricalLpcfgLogProbabilityTable compileMeasureHeads(Measure measure) {
+		if (measureHeadMapSmoothed == null || isDirty(dirtyMeasureHeadKeys)) {
+			updateSmoothing();
+		}
+		
+		Set<Double> outcomes = new HashSet<Double>();
+		addOutcomes(outcomes, getMeasureHeadCounts(measure));
+		
+		long[] outcomeKeys = new long[outcomes.size()];
+		double[] logProbabilities = new double[outcomes.size()];
+		int i = 0;
+		for (Double headLength : outcomes) {
+			outcomeKeys[i] = Double.doubleToLongBits(headLength);
+			logProbabilities[i++] = getMeasureHeadLogProbability(measure, headLength);
 		}
 		
-		return Math.log(measureHeadMapSmoothed.get(measure).get(count));
+		MetricalLpcfgLogProbabilityTable table = new MetricalLpcfgLogProbabilityTable(outcomeKeys, logProbabilities, i,
+				getMeasureHeadLogProbability(measure, Double.NaN));
+		
+		if (compiledMeasureHeads != null) {
+			compiledMeasureHeads.put(measure, table);
+		}
+		return table;
 	}
 
 	/**
@@ -265,38 +745,23 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 		String backoffKey = encodeBackoff(measure, typeString, head, level);
 		
 		// Ensure measure map exists
-		Map<String, Integer> transitionMapConditioned = transitionMap.get(key);
-		if (transitionMapConditioned == null) {
-			transitionMapConditioned = new HashMap<String, Integer>();
-			transitionMap.put(key, transitionMapConditioned);
-		}
+		MetricalLpcfgCountMap<String> transitionMapConditioned = getWritableTransitionCounts(key);
 		
 		// Ensure backoff measure map exists
-		Map<String, Integer> transitionMapBackoffConditioned = transitionMap.get(backoffKey);
-		if (transitionMapBackoffConditioned == null) {
-			transitionMapBackoffConditioned = new HashMap<String, Integer>();
-			transitionMap.put(backoffKey, transitionMapBackoffConditioned);
-		}
+		MetricalLpcfgCountMap<String> transitionMapBackoffConditioned = getWritableTransitionCounts(backoffKey);
 		
 		// Get count
-		Integer oldCount = transitionMapConditioned.get(transitionString);
-		int newCount = 1;
-		if (oldCount != null) {
-			newCount = oldCount + 1;
-		}
+		int newCount = transitionMapConditioned.getCount(transitionString) + 1;
 		
 		// Get backoff count
-		Integer oldCountBackoff = transitionMapBackoffConditioned.get(transitionString);
-		int newCountBackoff = 1;
-		if (oldCountBackoff != null) {
-			newCountBackoff = oldCountBackoff + 1;
-		}
+		int newCountBackoff = transitionMapBackoffConditioned.getCount(transitionString) + 1;
 		
 		// Add count to conditioned maps
-		transitionMapConditioned.put(transitionString, newCount);
-		transitionMapBackoffConditioned.put(transitionString, newCountBackoff);
+		transitionMapConditioned.setCount(transitionString, newCount);
+		transitionMapBackoffConditioned.setCount(transitionString, newCountBackoff);
 		
-		transitionMapSmoothed = null;
+		dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, key);
+		dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, backoffKey);
 	}
 	
 	/**
@@ -316,58 +781,60 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 		String backoffKey = encodeBackoff(measure, typeString, head, level);
 		
 		// Ensure measure map exists
-		Map<String, Integer> transitionMapConditioned = transitionMap.get(key);
-		if (transitionMapConditioned == null) {
+		if (getTransitionCounts(key) == null) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		// Ensure backoff measure map exists
-		Map<String, Integer> transitionMapBackoffConditioned = transitionMap.get(backoffKey);
-		if (transitionMapBackoffConditioned == null) {
+		if (getTransitionCounts(backoffKey) == null) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
+		MetricalLpcfgCountMap<String> transitionMapConditioned = getWritableTransitionCounts(key);
+		MetricalLpcfgCountMap<String> transitionMapBackoffConditioned = getWritableTransitionCounts(backoffKey);
+		
 		// Get count
-		Integer oldCount = transitionMapConditioned.get(transitionString);
-		if (oldCount == null) {
+		int oldCount = transitionMapConditioned.getCount(transitionString);
+		if (oldCount == 0) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		int newCount = oldCount - 1;
 		if (newCount != 0) {
-			transitionMapConditioned.put(transitionString, newCount);
+			transitionMapConditioned.setCount(transitionString, newCount);
 			
 		} else {
 			// We need to delete the key
-			transitionMapConditioned.remove(transitionString);
+			transitionMapConditioned.removeKey(transitionString);
 			
-			if (transitionMapConditioned.isEmpty()) {
-				// We need to remove the whole conditioned map
+			if (transitionMapConditioned.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
 				transitionMap.remove(key);
 			}
 		}
 		
 		// Get backoff count
-		Integer oldCountBackoff = transitionMapBackoffConditioned.get(transitionString);
-		if (oldCountBackoff == null) {
+		int oldCountBackoff = transitionMapBackoffConditioned.getCount(transitionString);
+		if (oldCountBackoff == 0) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		int newCountBackoff = oldCountBackoff - 1;
 		if (newCountBackoff != 0) {
-			transitionMapBackoffConditioned.put(transitionString, newCountBackoff);
+			transitionMapBackoffConditioned.setCount(transitionString, newCountBackoff);
 			
 		} else {
 			// We need to delete the key
-			transitionMapBackoffConditioned.remove(transitionString);
+			transitionMapBackoffConditioned.removeKey(transitionString);
 			
-			if (transitionMapBackoffConditioned.isEmpty()) {
-				// We need to remove the whole conditioned map
+			if (transitionMapBackoffConditioned.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
 				transitionMap.remove(backoffKey);
 			}
 		}
 		
-		transitionMapSmoothed = null;
+		dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, key);
+		dirtyTransitionKeys = markDirty(dirtyTransitionKeys, transitionMapSmoothed, backoffKey);
 	}
 	
 	/**
@@ -382,91 +849,133 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 */
 	public double getTransitionProbability(Measure measure, String typeString, MetricalLpcfgHead head, String transitionString,
 			MetricalLpcfgLevel level) {
-		if (transitionMapSmoothed == null) {
-			smooth();
+		MetricalLpcfgLogProbabilityTable[][] compiled = compiledTransitions;
+		if (compiled != null) {
+			int keyId = MetricalLpcfgSymbolTable.getKeyId(measure, typeString, head);
+			MetricalLpcfgLogProbabilityTable table = getCompiled(compiled, level, keyId);
+			if (table == null) {
+				table = compileTransitions(measure, typeString, head, level, keyId);
+			}
+			
+			return table.getLogProbability(MetricalLpcfgSymbolTable.findTransitionId(transitionString));
 		}
 		
-		String key = encode(measure, typeString, head);
-		String backoffKey = encodeBackoff(measure, typeString, head, level);
+		if (transitionMapSmoothed == null || isDirty(dirtyTransitionKeys)) {
+			updateSmoothing();
+		}
 		
-		Map<String, Integer> transitionMapConditioned = transitionMap.get(key);
-		Map<String, Integer> transitionMapBackoffConditioned = transitionMap.get(backoffKey);
+		return getTransitionLogProbability(encode(measure, typeString, head), encodeBackoff(measure, typeString, head, level),
+				transitionString);
+	}
+	
+	/**
+	 * Calculate log(p(transition | measure, type, headLength)) from our counts and smoothing, which must be up to date.
+	 * 
+	 * @param key The key.
+	 * @param backoffKey The back-off key.
+	 * @param transitionString The transition String, or null for one which has never been seen.
+	 * @return log(p(transition | measure, type, headLength))
+	 */
+	private double getTransitionLogProbability(String key, String backoffKey, String transitionString) {
+		MetricalLpcfgProbabilityTracker owner = getTransitionOwner(key);
+		MetricalLpcfgProbabilityTracker backoffOwner = getTransitionOwner(backoffKey);
+		
+		MetricalLpcfgCountMap<String> transitionMapConditioned = owner == null ? null : nonEmpty(owner.transitionMap.get(key));
+		MetricalLpcfgCountMap<String> transitionMapBackoffConditioned = backoffOwner == null ? null : nonEmpty(backoffOwner.transitionMap.get(backoffKey));
 		
 		double logProbability = 0.0;
 		
 		// Get main probability
-		Integer count = 0;
+		int count = 0;
 		if (transitionMapConditioned != null) {
-			count = transitionMapConditioned.get(transitionString);
-			if (count == null) {
-				count = 0;
-			}
+			count = transitionMapConditioned.getCount(transitionString);
 			
-			logProbability = Math.log(transitionMapSmoothed.get(key).get(count)); 
+			logProbability = owner.transitionMapSmoothed.get(key).getLogProbability(count);
 		}
 		
 		// Get backoff probability if needed
 		if (count == 0 && transitionMapBackoffConditioned != null) {
-			count = transitionMapBackoffConditioned.get(transitionString);
-			if (count == null) {
-				count = 0;
-			}
+			count = transitionMapBackoffConditioned.getCount(transitionString);
 			
-			logProbability += Math.log(transitionMapSmoothed.get(backoffKey).get(count)); 
+			logProbability += backoffOwner.transitionMapSmoothed.get(backoffKey).getLogProbability(count);
 		}
 		
 		return logProbability;
 	}
-
+	
 	/**
-	 * Add a new head mapping. This models p(headLength | measure, type, parentHeadLength). It updates
-	 * {@link #headMap}.
+	 * Build the compiled transition log probabilities of the given context, and save them in
+	 * {@link #compiledTransitions} if this tracker is still compiled.
 	 * 
 	 * @param measure The measure.
 	 * @param typeString The type.
-	 * @param parentHead The parent's head.
 	 * @param head The head.
-	 * @param level The level to use for back-off probabilities.
+	 * @param level The level to use in case we need to back off.
+	 * @param keyId The {@link MetricalLpcfgSymbolTable} ID of the key.
+	 * @return The compiled log probabilities of the given context.
 	 */
-	public void addHead(Measure measure, String typeString, MetricalLpcfgHead parentHead, MetricalLpcfgHead head,
-			MetricalLpcfgLevel level) {
-		String key = encode(measure, typeString, parentHead);
-		String backoffKey = encodeBackoff(measure, typeString, parentHead, level);
-		double headLength = head.getLength();
-		
-		// Ensure measure map exists
-		Map<Double, Integer> headMapConditioned = headMap.get(key);
-		if (headMapConditioned == null) {
-			headMapConditioned = new HashMap<Double, Integer>();
-			headMap.put(key, headMapConditioned);
+	private synchronized MetricalLpcfgLogProbabilityTable compileTransitions(Measure measure, String typeString,
+			MetricalLpcfgHead head, MetricalLpcfgLevel level, int keyId) {
+		if (transitionMapSmoothed == null || isDirty(dirtyTransitionKeys)) {
+			updateSmoothing();
 		}
 		
-		// Ensure backoff map exists
-		Map<Double, Integer> headMapBackoffConditioned = headMap.get(backoffKey);
-		if (headMapBackoffConditioned == null) {
-			headMapBackoffConditioned = new HashMap<Double, Integer>();
-			headMap.put(backoffKey, headMapBackoffConditioned);
-		}
+		String key = MetricalLpcfgSymbolTable.getKey(keyId);
+		String backoffKey = encodeBackoff(measure, typeString, head, level);
 		
-		// Get count
-		Integer oldCount = headMapConditioned.get(headLength);
-		int newCount = 1;
-		if (oldCount != null) {
-			newCount = oldCount + 1;
+		Set<String> outcomes = new HashSet<String>();
+		addOutcomes(outcomes, getTransitionCounts(key));
+		addOutcomes(outcomes, getTransitionCounts(backoffKey));
+		
+		long[] outcomeKeys = new long[outcomes.size()];
+		double[] logProbabilities = new double[outcomes.size()];
+		int i = 0;
+		for (String transitionString : outcomes) {
+			outcomeKeys[i] = MetricalLpcfgSymbolTable.getTransitionId(transitionString);
+			logProbabilities[i++] = getTransitionLogProbability(key, backoffKey, transitionString);
 		}
 		
+		MetricalLpcfgLogProbabilityTable table = new MetricalLpcfgLogProbabilityTable(outcomeKeys, logProbabilities, i,
+				getTransitionLogProbability(key, backoffKey, null));
+		
+		compiledTransitions = putCompiled(compiledTransitions, level, keyId, table);
+		return table;
+	}
+
+	/**
+	 * Add a new head mapping. This models p(headLength | measure, type, parentHeadLength). It updates
+	 * {@link #headMap}.
+	 * 
+	 * @param measure The measure.
+	 * @param typeString The type.
+	 * @param parentHead The parent's head.
+	 * @param head The head.
+	 * @param level The level to use for back-off probabilities.
+	 */
+	public void addHead(Measure measure, String typeString, MetricalLpcfgHead parentHead, MetricalLpcfgHead head,
+			MetricalLpcfgLevel level) {
+		String key = encode(measure, typeString, parentHead);
+		String backoffKey = encodeBackoff(measure, typeString, parentHead, level);
+		double headLength = head.getLength();
+		
+		// Ensure measure map exists
+		MetricalLpcfgCountMap<Double> headMapConditioned = getWritableHeadCounts(key);
+		
+		// Ensure backoff map exists
+		MetricalLpcfgCountMap<Double> headMapBackoffConditioned = getWritableHeadCounts(backoffKey);
+		
 		// Get count
-		Integer oldCountBackoff = headMapBackoffConditioned.get(headLength);
-		int newCountBackoff = 1;
-		if (oldCountBackoff != null) {
-			newCountBackoff = oldCountBackoff + 1;
-		}
+		int newCount = headMapConditioned.getCount(headLength) + 1;
+		
+		// Get count
+		int newCountBackoff = headMapBackoffConditioned.getCount(headLength) + 1;
 		
 		// Add count to conditioned maps
-		headMapConditioned.put(headLength, newCount);
-		headMapBackoffConditioned.put(headLength, newCountBackoff);
+		headMapConditioned.setCount(headLength, newCount);
+		headMapBackoffConditioned.setCount(headLength, newCountBackoff);
 		
-		headMapSmoothed = null;
+		dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, key);
+		dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, backoffKey);
 	}
 
 	/**
@@ -487,58 +996,60 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 		double headLength = head.getLength();
 		
 		// Ensure measure map exists
-		Map<Double, Integer> headMapConditioned = headMap.get(key);
-		if (headMapConditioned == null) {
+		if (getHeadCounts(key) == null) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		// Ensure backoff map exists
-		Map<Double, Integer> headMapBackoffConditioned = headMap.get(backoffKey);
-		if (headMapBackoffConditioned == null) {
+		if (getHeadCounts(backoffKey) == null) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
+		MetricalLpcfgCountMap<Double> headMapConditioned = getWritableHeadCounts(key);
+		MetricalLpcfgCountMap<Double> headMapBackoffConditioned = getWritableHeadCounts(backoffKey);
+		
 		// Get count
-		Integer oldCount = headMapConditioned.get(headLength);
-		if (oldCount == null) {
+		int oldCount = headMapConditioned.getCount(headLength);
+		if (oldCount == 0) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		int newCount = oldCount - 1;
 		if (newCount != 0) {
-			headMapConditioned.put(headLength, newCount);
+			headMapConditioned.setCount(headLength, newCount);
 			
 		} else {
 			// We need to delete the key
-			headMapConditioned.remove(headLength);
+			headMapConditioned.removeKey(headLength);
 			
-			if (headMapConditioned.isEmpty()) {
-				// We need to remove the whole conditioned map
+			if (headMapConditioned.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
 				headMap.remove(key);
 			}
 		}
 		
 		// Get backoff count
-		Integer oldCountBackoff = headMapBackoffConditioned.get(headLength);
-		if (oldCountBackoff == null) {
+		int oldCountBackoff = headMapBackoffConditioned.getCount(headLength);
+		if (oldCountBackoff == 0) {
 			throw new MetricalLpcfgElementNotFoundException((MetricalLpcfgTree) null);
 		}
 		
 		int newCountBackoff = oldCountBackoff - 1;
 		if (newCountBackoff != 0) {
-			headMapBackoffConditioned.put(headLength, newCountBackoff);
+			headMapBackoffConditioned.setCount(headLength, newCountBackoff);
 			
 		} else {
 			// We need to delete the key
-			headMapBackoffConditioned.remove(headLength);
+			headMapBackoffConditioned.removeKey(headLength);
 			
-			if (headMapBackoffConditioned.isEmpty()) {
-				// We need to remove the whole conditioned map
+			if (headMapBackoffConditioned.isEmpty() && parent == null) {
+				// We need to remove the whole conditioned map (if we have a parent, the empty map hides its counts)
 				headMap.remove(backoffKey);
 			}
 		}
 		
-		headMapSmoothed = null;
+		dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, key);
+		dirtyHeadKeys = markDirty(dirtyHeadKeys, headMapSmoothed, backoffKey);
 	}
 
 	/**
@@ -553,43 +1064,153 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 */
 	public double getHeadProbability(Measure measure, String typeString, MetricalLpcfgHead parentHead, MetricalLpcfgHead head,
 			MetricalLpcfgLevel level) {
-		if (headMapSmoothed == null) {
-			smooth();
+		MetricalLpcfgLogProbabilityTable[][] compiled = compiledHeads;
+		if (compiled != null) {
+			int keyId = MetricalLpcfgSymbolTable.getKeyId(measure, typeString, parentHead);
+			MetricalLpcfgLogProbabilityTable table = getCompiled(compiled, level, keyId);
+			if (table == null) {
+				table = compileHeads(measure, typeString, parentHead, level, keyId);
+			}
+			
+			return table.getLogProbability(Double.doubleToLongBits(head.getLength()));
 		}
 		
-		String key = encode(measure, typeString, parentHead);
-		String backoffKey = encodeBackoff(measure, typeString, parentHead, level);
-		double headLength = head.getLength();
+		if (headMapSmoothed == null || isDirty(dirtyHeadKeys)) {
+			updateSmoothing();
+		}
 		
-		Map<Double, Integer> headMapConditioned = headMap.get(key);
-		Map<Double, Integer> headMapBackoffConditioned = headMap.get(backoffKey);
+		return getHeadLogProbability(encode(measure, typeString, parentHead), encodeBackoff(measure, typeString, parentHead, level),
+				head.getLength());
+	}
+	
+	/**
+	 * Calculate log(p(headLength | measure, type, parentHeadLength)) from our counts and smoothing, which must be up to date.
+	 * 
+	 * @param key The key.
+	 * @param backoffKey The back-off key.
+	 * @param headLength The head length, or NaN for one which has never been seen.
+	 * @return log(p(headLength | measure, type, parentHeadLength))
+	 */
+	private double getHeadLogProbability(String key, String backoffKey, double headLength) {
+		MetricalLpcfgProbabilityTracker owner = getHeadOwner(key);
+		MetricalLpcfgProbabilityTracker backoffOwner = getHeadOwner(backoffKey);
+		
+		MetricalLpcfgCountMap<Double> headMapConditioned = owner == null ? null : nonEmpty(owner.headMap.get(key));
+		MetricalLpcfgCountMap<Double> headMapBackoffConditioned = backoffOwner == null ? null : nonEmpty(backoffOwner.headMap.get(backoffKey));
 		
 		double logProbability = 0.0;
 		
 		// Get main probability
-		Integer count = 0;
+		int count = 0;
 		if (headMapConditioned != null) {
-			count = headMapConditioned.get(headLength);
-			if (count == null) {
-				count = 0;
-			}
+			count = headMapConditioned.getCount(headLength);
 			
-			logProbability = Math.log(headMapSmoothed.get(key).get(count)); 
+			logProbability = owner.headMapSmoothed.get(key).getLogProbability(count);
 		}
 		
 		// Get backoff probability if needed
 		if (count == 0 && headMapBackoffConditioned != null) {
-			count = headMapBackoffConditioned.get(headLength);
-			if (count == null) {
-				count = 0;
-			}
+			count = headMapBackoffConditioned.getCount(headLength);
 			
-			logProbability += Math.log(headMapSmoothed.get(backoffKey).get(count)); 
+			logProbability += backoffOwner.headMapSmoothed.get(backoffKey).getLogProbability(count);
 		}
 		
 		return logProbability;
 	}
 	
+	/**
+	 * Build the compiled head log probabilities of the given context, and save them in
+	 * {@link #compiledHeads} if this tracker is still compiled.
+	 * 
+	 * @param measure The measure.
+	 * @param typeString The type.
+	 * @param parentHead The parent's head.
+	 * @param level The level to use in case we need to back off.
+	 * @param keyId The {@link MetricalLpcfgSymbolTable} ID of the key.
+	 * @return The compiled log probabilities of the given context.
+	 */
+	private synchronized MetricalLpcfgLogProbabilityTable compileHeads(Measure measure, String typeString,
+			MetricalLpcfgHead parentHead, MetricalLpcfgLevel level, int keyId) {
+		if (headMapSmoothed == null || isDirty(dirtyHeadKeys)) {
+			updateSmoothing();
+		}
+		
+		String key = MetricalLpcfgSymbolTable.getKey(keyId);
+		String backoffKey = encodeBackoff(measure, typeString, parentHead, level);
+		
+		Set<Double> outcomes = new HashSet<Double>();
+		addOutcomes(outcomes, getHeadCounts(key));
+		addOutcomes(outcomes, getHeadCounts(backoffKey));
+		
+		long[] outcomeKeys = new long[outcomes.size()];
+		double[] logProbabilities = new double[outcomes.size()];
+		int i = 0;
+		for (Double headLength : outcomes) {
+			outcomeKeys[i] = Double.doubleToLongBits(headLength);
+			logProbabilities[i++] = getHeadLogProbability(key, backoffKey, headLength);
+		}
+		
+		MetricalLpcfgLogProbabilityTable table = new MetricalLpcfgLogProbabilityTable(outcomeKeys, logProbabilities, i,
+				getHeadLogProbability(key, backoffKey, Double.NaN));
+		
+		compiledHeads = putCompiled(compiledHeads, level, keyId, table);
+		return table;
+	}
+	
+	/**
+	 * Get the compiled log probabilities of the given context.
+	 * 
+	 * @param compiled The compiled tables, indexed by level ordinal and then by key ID.
+	 * @param level The level.
+	 * @param keyId The {@link MetricalLpcfgSymbolTable} ID of the key.
+	 * @return The compiled log probabilities of the given context, or null if they have not been compiled yet.
+	 */
+	private static MetricalLpcfgLogProbabilityTable getCompiled(MetricalLpcfgLogProbabilityTable[][] compiled,
+			MetricalLpcfgLevel level, int keyId) {
+		MetricalLpcfgLogProbabilityTable[] tables = compiled[level.ordinal()];
+		return keyId < tables.length ? tables[keyId] : null;
+	}
+	
+	/**
+	 * Save the given compiled log probabilities. Tables are immutable, so a thread which reads a stale
+	 * null from the given arrays will just compile the same table again.
+	 * 
+	 * @param compiled The compiled tables, indexed by level ordinal and then by key ID, or null if this
+	 * tracker is no longer compiled.
+	 * @param level The level.
+	 * @param keyId The {@link MetricalLpcfgSymbolTable} ID of the key.
+	 * @param table The compiled log probabilities of the given context.
+	 * @return The compiled tables with the given table saved, which may be a grown copy of the given arrays.
+	 */
+	private static MetricalLpcfgLogProbabilityTable[][] putCompiled(MetricalLpcfgLogProbabilityTable[][] compiled,
+			MetricalLpcfgLevel level, int keyId, MetricalLpcfgLogProbabilityTable table) {
+		if (compiled == null) {
+			return null;
+		}
+		
+		MetricalLpcfgLogProbabilityTable[] tables = compiled[level.ordinal()];
+		if (keyId >= tables.length) {
+			tables = Arrays.copyOf(tables, Math.max(keyId + 1, tables.length * 2));
+			compiled = compiled.clone();
+			compiled[level.ordinal()] = tables;
+		}
+		
+		tables[keyId] = table;
+		return compiled;
+	}
+	
+	/**
+	 * Add the outcomes of the given counts to the given Set.
+	 * 
+	 * @param outcomes The Set of outcomes.
+	 * @param counts The counts, or null if there are none.
+	 */
+	private static <V> void addOutcomes(Set<V> outcomes, MetricalLpcfgCountMap<V> counts) {
+		if (counts != null) {
+			outcomes.addAll(counts.keySet());
+		}
+	}
+	
 	/**
 	 * Estimates the probability p(headLength | measure, type, parentHeadLength).
 	 * (Here we do not know parentHeadLength).
@@ -598,10 +1219,11 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 * @param typeString The type.
 	 * @param head The head.
 	 * @param level The level to use in case we need to back off.
+	 * @param subBeatLength The sub beat length, or -1 to allow any, used to step through the possible parent heads.
 	 * @return The estimate of p(headLength | measure, type, parentHeadLength)
 	 */
 	public double getHeadProbabilityEstimate(Measure measure, String typeString, MetricalLpcfgHead head,
-			MetricalLpcfgLevel level) {
+			MetricalLpcfgLevel level, int subBeatLength) {
 		String keyBase = encode(measure, typeString, new MetricalLpcfgHead());
 		keyBase = keyBase.substring(0, keyBase.length() - 3);
 		double headLength = head.getLength();
@@ -617,14 +1239,14 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 			maxHead = measure.getSubBeatsPerBeat() * measure.getBeatsPerMeasure();
 			maxHead -= measure.getSubBeatsPerBeat() - headLength;
 		}
-		double headStep = Main.SUB_BEAT_LENGTH <= 0 ? 0.25 : 1.0 / Main.SUB_BEAT_LENGTH;
+		double headStep = subBeatLength <= 0 ? 0.25 : 1.0 / subBeatLength;
 		for (double length = headLength; length <= maxHead; length += headStep) {
 			possibleParentHeads.add(Double.toString(length));
 		}
 		
-		List<Map<Double, Integer>> headMapConditioneds = new ArrayList<Map<Double, Integer>>();
+		List<MetricalLpcfgCountMap<Double>> headMapConditioneds = new ArrayList<MetricalLpcfgCountMap<Double>>();
 		for (String parentHead : possibleParentHeads) {
-			Map<Double, Integer> map = headMap.get(keyBase + parentHead);
+			MetricalLpcfgCountMap<Double> map = getHeadCounts(keyBase + parentHead);
 			
 			if (map != null) {
 				headMapConditioneds.add(map);
@@ -634,13 +1256,10 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 		double logProbability = 0.0;
 		
 		// Get main probability
-		for (Map<Double, Integer> headMapConditioned : headMapConditioneds) {
-			Integer count = 0;
+		for (MetricalLpcfgCountMap<Double> headMapConditioned : headMapConditioneds) {
+			int count = 0;
 			if (headMapConditioned != null) {
-				count = headMapConditioned.get(headLength);
-				if (count == null) {
-					count = 0;
-				}
+				count = headMapConditioned.getCount(headLength);
 				
 				Map<Integer, Double> smoothed = SmoothingUtils.getGoodTuringSmoothing(
 						SmoothingUtils.getFrequencyMap(headMapConditioned.values()),
@@ -659,13 +1278,35 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	 * @return The Set of the measure types within this grammar.
 	 */
 	public Set<Measure> getMeasures() {
-		return measureHeadMap.keySet();
+		return parent == null ? measureHeadMap.keySet() : getAllMeasureHeadCounts().keySet();
 	}
 	
 	/**
-	 * Get a deep copy of this probability tracker.
+	 * Decide whether this tracker has no counts. Unlike {@link #getMeasures()}, this does not need to
+	 * flatten our layers, since the first layer holding a measure holds all of its counts.
 	 * 
-	 * @return A deep copy of this probability tracker.
+	 * @return True if this tracker has no measure head counts. False otherwise.
+	 */
+	public boolean isEmpty() {
+		Set<Measure> seen = new HashSet<Measure>();
+		
+		for (MetricalLpcfgProbabilityTracker layer = this; layer != null; layer = layer.parent) {
+			for (Map.Entry<Measure, MetricalLpcfgCountMap<Double>> entry : layer.measureHeadMap.entrySet()) {
+				if (seen.add(entry.getKey()) && !entry.getValue().isEmpty()) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Get a copy of this probability tracker. The copy shares memory with this tracker (see
+	 * {@link #MetricalLpcfgProbabilityTracker(MetricalLpcfgProbabilityTracker)}), but changes to
+	 * either one do not affect the other.
+	 * 
+	 * @return A copy of this probability tracker.
 	 */
 	public MetricalLpcfgProbabilityTracker deepCopy() {
 		return new MetricalLpcfgProbabilityTracker(this);
@@ -673,109 +1314,527 @@ public class MetricalLpcfgProbabilityTracker implements Serializable {
 	
 	@Override
 	public String toString() {
-		return transitionMap + "\n" + headMap + "\n" + measureHeadMap;
+		if (parent == null) {
+			return transitionMap + "\n" + headMap + "\n" + measureHeadMap;
+		}
+		
+		return getAllTransitionCounts() + "\n" + getAllHeadCounts() + "\n" + getAllMeasureHeadCounts();
 	}
 	
 	/**
-	 * Calculate and save Good-Turing smoothing
+	 * Calculate and save Good-Turing smoothing for every key. The smoothed Maps are each built fully
+	 * before being published, so that a grammar can be read safely from multiple threads.
 	 */
-	public void smooth() {
-		transitionMapSmoothed = new HashMap<String, Map<Integer, Double>>();
-		for (String key : transitionMap.keySet()) {
-			
-			Map<Integer, Double> smoothed = SmoothingUtils.getGoodTuringSmoothing(
-					SmoothingUtils.getFrequencyMap(transitionMap.get(key).values()),
-					SmoothingUtils.getTotalCount(transitionMap.get(key).values()));
+	public synchronized void smooth() {
+		Map<String, MetricalLpcfgSmoothedMap> newTransitionMapSmoothed = updateSmoothing(transitionMap, null, null);
+		Map<String, MetricalLpcfgSmoothedMap> newHeadMapSmoothed = updateSmoothing(headMap, null, null);
+		Map<Measure, MetricalLpcfgSmoothedMap> newMeasureHeadMapSmoothed = updateSmoothing(measureHeadMap, null, null);
+		
+		transitionMapSmoothed = newTransitionMapSmoothed;
+		dirtyTransitionKeys = null;
+		
+		headMapSmoothed = newHeadMapSmoothed;
+		dirtyHeadKeys = null;
+		
+		measureHeadMapSmoothed = newMeasureHeadMapSmoothed;
+		dirtyMeasureHeadKeys = null;
+	}
+	
+	/**
+	 * Bring the Good-Turing smoothing up to date. Each smoothed Map which doesn't exist yet is built
+	 * fully before being published, as in {@link #smooth()}. In the others, only the keys whose counts
+	 * have changed since they were last smoothed are re-smoothed. Since the smoothing of each key
+	 * depends only on that key's counts, the result is exactly the same as a full re-smooth.
+	 */
+	synchronized void updateSmoothing() {
+		transitionMapSmoothed = updateSmoothing(transitionMap, transitionMapSmoothed, dirtyTransitionKeys);
+		dirtyTransitionKeys = null;
+		
+		headMapSmoothed = updateSmoothing(headMap, headMapSmoothed, dirtyHeadKeys);
+		dirtyHeadKeys = null;
+		
+		measureHeadMapSmoothed = updateSmoothing(measureHeadMap, measureHeadMapSmoothed, dirtyMeasureHeadKeys);
+		dirtyMeasureHeadKeys = null;
+	}
+	
+	/**
+	 * Bring the given smoothed Map up to date with the given counts.
+	 * 
+	 * @param counts The counts, indexed by key.
+	 * @param smoothed The current smoothed Map, or null if it has not been built yet.
+	 * @param dirtyKeys The keys whose counts have changed since they were last smoothed, or null if there are none.
+	 * @return The up to date smoothed Map. If smoothed was not null, this is smoothed, updated in place.
+	 */
+	private static <K, V> Map<K, MetricalLpcfgSmoothedMap> updateSmoothing(Map<K, MetricalLpcfgCountMap<V>> counts,
+			Map<K, MetricalLpcfgSmoothedMap> smoothed, Set<K> dirtyKeys) {
+		if (smoothed == null) {
+			Map<K, MetricalLpcfgSmoothedMap> newSmoothed = new HashMap<K, MetricalLpcfgSmoothedMap>();
+			for (K key : counts.keySet()) {
+				if (!counts.get(key).isEmpty()) {
+					newSmoothed.put(key, getSmoothing(counts.get(key)));
+				}
+			}
 			
-			transitionMapSmoothed.put(key, smoothed);
+			return newSmoothed;
 		}
 		
-		headMapSmoothed = new HashMap<String, Map<Integer, Double>>();
-		for (String key : headMap.keySet()) {
-			
-			Map<Integer, Double> smoothed = SmoothingUtils.getGoodTuringSmoothing(
-					SmoothingUtils.getFrequencyMap(headMap.get(key).values()),
-					SmoothingUtils.getTotalCount(headMap.get(key).values()));
-			
-			headMapSmoothed.put(key, smoothed);
+		if (dirtyKeys != null) {
+			for (K key : dirtyKeys) {
+				MetricalLpcfgCountMap<V> conditionedCounts = counts.get(key);
+				
+				if (conditionedCounts == null || conditionedCounts.isEmpty()) {
+					smoothed.remove(key);
+				} else {
+					smoothed.put(key, getSmoothing(conditionedCounts));
+				}
+			}
 		}
 		
-		measureHeadMapSmoothed = new HashMap<Measure, Map<Integer, Double>>();
-		for (Measure key : measureHeadMap.keySet()) {
-			
-			Map<Integer, Double> smoothed = SmoothingUtils.getGoodTuringSmoothing(
-					SmoothingUtils.getFrequencyMap(measureHeadMap.get(key).values()),
-					SmoothingUtils.getTotalCount(measureHeadMap.get(key).values()));
-			
-			measureHeadMapSmoothed.put(key, smoothed);
+		return smoothed;
+	}
+	
+	/**
+	 * Get the Good-Turing smoothing of the given conditioned counts.
+	 * 
+	 * @param conditionedCounts The counts for a single key.
+	 * @return A Map from each count to its smoothed probability.
+	 */
+	private static MetricalLpcfgSmoothedMap getSmoothing(MetricalLpcfgCountMap<?> conditionedCounts) {
+		return new MetricalLpcfgSmoothedMap(SmoothingUtils.getGoodTuringSmoothing(
+				SmoothingUtils.getFrequencyMap(conditionedCounts.values()),
+				SmoothingUtils.getTotalCount(conditionedCounts.values())));
+	}
+	
+	/**
+	 * Mark the given key as needing to be re-smoothed.
+	 * 
+	 * @param dirtyKeys The current Set of dirty keys, or null if there are none.
+	 * @param smoothed The smoothed Map which the key belongs to. If this is null, the whole Map
+	 * will be smoothed anyway, so the key is not saved.
+	 * @param key The key whose counts have changed.
+	 * @return The new Set of dirty keys.
+	 */
+	private static <K> Set<K> markDirty(Set<K> dirtyKeys, Map<K, MetricalLpcfgSmoothedMap> smoothed, K key) {
+		if (smoothed == null) {
+			return dirtyKeys;
 		}
+		
+		if (dirtyKeys == null) {
+			dirtyKeys = new HashSet<K>();
+		}
+		dirtyKeys.add(key);
+		
+		return dirtyKeys;
 	}
 	
 	/**
-	 * Encode the given measure, typeString, and head into a single String key. This is done so
-	 * that we don't need huge nested Maps.
+	 * Decide whether the given Set of dirty keys contains any keys.
 	 * 
-	 * @param measure The measure we want to encode.
-	 * @param typeString The typeString to encode.
-	 * @param head The head to encode.
-	 * @return The encoded String.
+	 * @param dirtyKeys A Set of dirty keys, or null if there are none.
+	 * @return True if there are any dirty keys. False otherwise.
 	 */
-	private static String encode(Measure measure, String typeString, MetricalLpcfgHead head) {
-		StringBuilder sb = new StringBuilder();
+	private static boolean isDirty(Set<?> dirtyKeys) {
+		return dirtyKeys != null && !dirtyKeys.isEmpty();
+	}
+	
+	/**
+	 * Get the tracker which holds the counts of the given transition key: the first of this tracker and its
+	 * parents which has the key.
+	 * 
+	 * @param key The key.
+	 * @return The tracker holding the key's counts, or null if none has it.
+	 */
+	private MetricalLpcfgProbabilityTracker getTransitionOwner(String key) {
+		for (MetricalLpcfgProbabilityTracker layer = this; layer != null; layer = layer.parent) {
+			if (layer.transitionMap.containsKey(key)) {
+				return layer;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get the tracker which holds the counts of the given head key: the first of this tracker and its
+	 * parents which has the key.
+	 * 
+	 * @param key The key.
+	 * @return The tracker holding the key's counts, or null if none has it.
+	 */
+	private MetricalLpcfgProbabilityTracker getHeadOwner(String key) {
+		for (MetricalLpcfgProbabilityTracker layer = this; layer != null; layer = layer.parent) {
+			if (layer.headMap.containsKey(key)) {
+				return layer;
+			}
+		}
 		
-		sb.append(measure).append(';');
-		sb.append(typeString).append(';');
-		sb.append(head.getLength());
+		return null;
+	}
+	
+	/**
+	 * Get the tracker which holds the counts of the given measure: the first of this tracker and its
+	 * parents which has the measure.
+	 * 
+	 * @param measure The measure.
+	 * @return The tracker holding the measure's counts, or null if none has it.
+	 */
+	private MetricalLpcfgProbabilityTracker getMeasureHeadOwner(Measure measure) {
+		for (MetricalLpcfgProbabilityTracker layer = this; layer != null; layer = layer.parent) {
+			if (layer.measureHeadMap.containsKey(measure)) {
+				return layer;
+			}
+		}
 		
-		return sb.toString().intern();
+		return null;
 	}
 	
 	/**
-	 * Encode the given measure's backup type (based on the level), typeString, and headLength into
-	 * a single String key. This is done so we don't need huge nested Maps.
+	 * Get the transition counts of the given key, looking through our parents if needed.
+	 * These must not be changed.
 	 * 
-	 * @param measure The measure whose feature to encode.
-	 * @param typeString The typeString to encode.
-	 * @param head The head to encode.
-	 * @param level The level that decides which feature of the given measure to encode. 
-	 * @return The encoded String.
+	 * @param key The key.
+	 * @return The counts of the key, or null if it has none.
 	 */
-	private static String encodeBackoff(Measure measure, String typeString, MetricalLpcfgHead head, MetricalLpcfgLevel level) {
-		String measureKey = "";
-
-		switch (level) {
-			case SUB_BEAT:
-				measureKey = "SSB";
-				break;
-				
-			case BEAT:
-				measureKey = measure.getSubBeatsPerBeat() + "SB";
-				break;
-				
-			case MEASURE:
-				measureKey = measure.getBeatsPerMeasure() + "B";
-				break;
+	private MetricalLpcfgCountMap<String> getTransitionCounts(String key) {
+		MetricalLpcfgProbabilityTracker owner = getTransitionOwner(key);
+		return owner == null ? null : nonEmpty(owner.transitionMap.get(key));
+	}
+	
+	/**
+	 * Get the head counts of the given key, looking through our parents if needed.
+	 * These must not be changed.
+	 * 
+	 * @param key The key.
+	 * @return The counts of the key, or null if it has none.
+	 */
+	private MetricalLpcfgCountMap<Double> getHeadCounts(String key) {
+		MetricalLpcfgProbabilityTracker owner = getHeadOwner(key);
+		return owner == null ? null : nonEmpty(owner.headMap.get(key));
+	}
+	
+	/**
+	 * Get the head counts of the given measure, looking through our parents if needed.
+	 * These must not be changed.
+	 * 
+	 * @param measure The measure.
+	 * @return The counts of the measure, or null if it has none.
+	 */
+	private MetricalLpcfgCountMap<Double> getMeasureHeadCounts(Measure measure) {
+		MetricalLpcfgProbabilityTracker owner = getMeasureHeadOwner(measure);
+		return owner == null ? null : nonEmpty(owner.measureHeadMap.get(measure));
+	}
+	
+	/**
+	 * Get the transition counts of the given key from {@link #transitionMap}, so that they can be changed.
+	 * If we don't have them yet, they are created, as a copy of our parent's counts.
+	 * 
+	 * @param key The key.
+	 * @return Our own counts of the given key.
+	 */
+	private MetricalLpcfgCountMap<String> getWritableTransitionCounts(String key) {
+		frozen = null;
+		clearCompiled();
+		
+		MetricalLpcfgCountMap<String> counts = transitionMap.get(key);
+		if (counts == null) {
+			counts = parent == null ? null : parent.getTransitionCounts(key);
+			counts = counts == null ? MetricalLpcfgCountMap.newTransitionMap() : copyConditioned(counts);
+			transitionMap.put(key, counts);
 		}
 		
-		return encode(measureKey, typeString, head).intern();
+		return counts;
 	}
 	
 	/**
-	 * Encode the given measureKey, typeString, and headLength into a String. This is done
-	 * so we can use a single String key instead of large nested Maps.
+	 * Get the head counts of the given key from {@link #headMap}, so that they can be changed.
+	 * If we don't have them yet, they are created, as a copy of our parent's counts.
 	 * 
-	 * @param measureKey The measureKey to encode.
-	 * @param typeString The typeString to encode.
-	 * @param head The head to encode.
-	 * @return The encoded String.
+	 * @param key The key.
+	 * @return Our own counts of the given key.
 	 */
-	private static String encode(String measureKey, String typeString, MetricalLpcfgHead head) {
-		StringBuilder sb = new StringBuilder();
+	private MetricalLpcfgCountMap<Double> getWritableHeadCounts(String key) {
+		frozen = null;
+		clearCompiled();
+		
+		MetricalLpcfgCountMap<Double> counts = headMap.get(key);
+		if (counts == null) {
+			counts = parent == null ? null : parent.getHeadCounts(key);
+			counts = counts == null ? MetricalLpcfgCountMap.newHeadLengthMap() : copyConditioned(counts);
+			headMap.put(key, counts);
+		}
 		
-		sb.append(measureKey).append(';');
-		sb.append(typeString).append(';');
-		sb.append(head.getLength());
+		return counts;
+	}
+	
+	/**
+	 * Get the head counts of the given measure from {@link #measureHeadMap}, so that they can be changed.
+	 * If we don't have them yet, they are created, as a copy of our parent's counts.
+	 * 
+	 * @param measure The measure.
+	 * @return Our own counts of the given measure.
+	 */
+	private MetricalLpcfgCountMap<Double> getWritableMeasureHeadCounts(Measure measure) {
+		frozen = null;
+		clearCompiled();
+		
+		MetricalLpcfgCountMap<Double> counts = measureHeadMap.get(measure);
+		if (counts == null) {
+			counts = parent == null ? null : parent.getMeasureHeadCounts(measure);
+			counts = counts == null ? MetricalLpcfgCountMap.newHeadLengthMap() : copyConditioned(counts);
+			measureHeadMap.put(measure, counts);
+		}
 		
-		return sb.toString().intern();
+		return counts;
+	}
+	
+	/**
+	 * Get this tracker and all of its parents.
+	 * 
+	 * @return This tracker and its parents, from the one without a parent to this one.
+	 */
+	private List<MetricalLpcfgProbabilityTracker> getLayers() {
+		List<MetricalLpcfgProbabilityTracker> layers = new ArrayList<MetricalLpcfgProbabilityTracker>();
+		for (MetricalLpcfgProbabilityTracker layer = this; layer != null; layer = layer.parent) {
+			layers.add(layer);
+		}
+		Collections.reverse(layers);
+		
+		return layers;
+	}
+	
+	/**
+	 * Get all of the transition counts of this tracker, including those of its parents.
+	 * 
+	 * @return The transition counts. If we have no parent, this is {@link #transitionMap} itself.
+	 */
+	private Map<String, MetricalLpcfgCountMap<String>> getAllTransitionCounts() {
+		if (parent == null) {
+			return transitionMap;
+		}
+		
+		List<Map<String, MetricalLpcfgCountMap<String>>> layerCounts = new ArrayList<Map<String, MetricalLpcfgCountMap<String>>>();
+		for (MetricalLpcfgProbabilityTracker layer : getLayers()) {
+			layerCounts.add(layer.transitionMap);
+		}
+		
+		return flattenCounts(layerCounts);
+	}
+	
+	/**
+	 * Get all of the head counts of this tracker, including those of its parents.
+	 * 
+	 * @return The head counts. If we have no parent, this is {@link #headMap} itself.
+	 */
+	private Map<String, MetricalLpcfgCountMap<Double>> getAllHeadCounts() {
+		if (parent == null) {
+			return headMap;
+		}
+		
+		List<Map<String, MetricalLpcfgCountMap<Double>>> layerCounts = new ArrayList<Map<String, MetricalLpcfgCountMap<Double>>>();
+		for (MetricalLpcfgProbabilityTracker layer : getLayers()) {
+			layerCounts.add(layer.headMap);
+		}
+		
+		return flattenCounts(layerCounts);
+	}
+	
+	/**
+	 * Get all of the measure head counts of this tracker, including those of its parents.
+	 * 
+	 * @return The measure head counts. If we have no parent, this is {@link #measureHeadMap} itself.
+	 */
+	private Map<Measure, MetricalLpcfgCountMap<Double>> getAllMeasureHeadCounts() {
+		if (parent == null) {
+			return measureHeadMap;
+		}
+		
+		List<Map<Measure, MetricalLpcfgCountMap<Double>>> layerCounts = new ArrayList<Map<Measure, MetricalLpcfgCountMap<Double>>>();
+		for (MetricalLpcfgProbabilityTracker layer : getLayers()) {
+			layerCounts.add(layer.measureHeadMap);
+		}
+		
+		return flattenCounts(layerCounts);
+	}
+	
+	/**
+	 * Move all of our parents' counts into this tracker, so that it no longer has a parent.
+	 */
+	private void flattenInPlace() {
+		if (parent == null) {
+			return;
+		}
+		
+		Map<String, MetricalLpcfgCountMap<String>> allTransitionCounts = getAllTransitionCounts();
+		Map<String, MetricalLpcfgCountMap<Double>> allHeadCounts = getAllHeadCounts();
+		Map<Measure, MetricalLpcfgCountMap<Double>> allMeasureHeadCounts = getAllMeasureHeadCounts();
+		
+		transitionMap.clear();
+		transitionMap.putAll(allTransitionCounts);
+		
+		headMap.clear();
+		headMap.putAll(allHeadCounts);
+		
+		measureHeadMap.clear();
+		measureHeadMap.putAll(allMeasureHeadCounts);
+		
+		parent = null;
+		depth = 0;
+	}
+	
+	/**
+	 * Merge the given layers of counts into a single new Map. Each key's counts are taken from the last
+	 * layer which has that key, and keys whose counts are empty there are left out.
+	 * 
+	 * @param layerCounts The layers of counts, from the bottom layer to the top one.
+	 * @return A new Map, with new conditioned maps, containing the merged counts.
+	 */
+	private static <K, V> Map<K, MetricalLpcfgCountMap<V>> flattenCounts(List<Map<K, MetricalLpcfgCountMap<V>>> layerCounts) {
+		Map<K, MetricalLpcfgCountMap<V>> counts = new HashMap<K, MetricalLpcfgCountMap<V>>();
+		
+		for (Map<K, MetricalLpcfgCountMap<V>> layer : layerCounts) {
+			for (Map.Entry<K, MetricalLpcfgCountMap<V>> entry : layer.entrySet()) {
+				if (entry.getValue().isEmpty()) {
+					counts.remove(entry.getKey());
+				} else {
+					counts.put(entry.getKey(), copyConditioned(entry.getValue()));
+				}
+			}
+		}
+		
+		return counts;
+	}
+	
+	/**
+	 * Merge the given layers of smoothing into a single new Map, as in {@link #flattenCounts(List)}.
+	 * 
+	 * @param layerSmoothed The layers of smoothing, from the bottom layer to the top one.
+	 * @param counts The merged counts, whose keys are kept.
+	 * @return A new Map containing the merged smoothing. The smoothed conditioned maps are shared.
+	 */
+	private static <K> Map<K, MetricalLpcfgSmoothedMap> flattenSmoothed(List<Map<K, MetricalLpcfgSmoothedMap>> layerSmoothed,
+			Map<K, ?> counts) {
+		Map<K, MetricalLpcfgSmoothedMap> smoothed = new HashMap<K, MetricalLpcfgSmoothedMap>();
+		
+		for (Map<K, MetricalLpcfgSmoothedMap> layer : layerSmoothed) {
+			smoothed.putAll(layer);
+		}
+		smoothed.keySet().retainAll(counts.keySet());
+		
+		return smoothed;
+	}
+	
+	/**
+	 * Deep copy the given counts.
+	 * 
+	 * @param counts The counts to copy.
+	 * @return A new Map, with new conditioned maps, containing the same counts.
+	 */
+	private static <K, V> Map<K, MetricalLpcfgCountMap<V>> copyCounts(Map<K, MetricalLpcfgCountMap<V>> counts) {
+		Map<K, MetricalLpcfgCountMap<V>> copy = new HashMap<K, MetricalLpcfgCountMap<V>>();
+		
+		for (Map.Entry<K, MetricalLpcfgCountMap<V>> entry : counts.entrySet()) {
+			copy.put(entry.getKey(), copyConditioned(entry.getValue()));
+		}
+		
+		return copy;
+	}
+	
+	/**
+	 * Copy the given conditioned counts. The copy iterates in the same order as a HashMap into which the
+	 * counts were put one by one, as the original deep copy did: the Good-Turing smoothing of a conditioned
+	 * map depends (in its last bits) on the map's iteration order.
+	 * 
+	 * @param conditionedCounts The counts to copy.
+	 * @return A new map containing the same counts.
+	 */
+	private static <V> MetricalLpcfgCountMap<V> copyConditioned(MetricalLpcfgCountMap<V> conditionedCounts) {
+		return conditionedCounts.copy();
+	}
+	
+	/**
+	 * Get the given conditioned map, unless it is empty.
+	 * 
+	 * @param conditionedMap A conditioned map, or null.
+	 * @return The given map, or null if it was null or empty.
+	 */
+	private static <K> MetricalLpcfgCountMap<K> nonEmpty(MetricalLpcfgCountMap<K> conditionedMap) {
+		return conditionedMap == null || conditionedMap.isEmpty() ? null : conditionedMap;
+	}
+	
+	/**
+	 * Read a tracker from the given stream. The conditioned maps of grammar files are HashMaps and
+	 * TreeMaps, so they are converted into {@link MetricalLpcfgCountMap}s and {@link MetricalLpcfgSmoothedMap}s.
+	 * 
+	 * @param in The stream to read from.
+	 * @throws IOException If the stream cannot be read.
+	 * @throws ClassNotFoundException If a class in the stream cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		
+		convertCounts(transitionMap, KeyType.TRANSITION);
+		convertCounts(headMap, KeyType.HEAD_LENGTH);
+		convertCounts(measureHeadMap, KeyType.HEAD_LENGTH);
+		
+		convertSmoothed(transitionMapSmoothed);
+		convertSmoothed(headMapSmoothed);
+		convertSmoothed(measureHeadMapSmoothed);
+	}
+	
+	/**
+	 * Convert each deserialized conditioned map of the given counts into a {@link MetricalLpcfgCountMap}, in place.
+	 * 
+	 * @param counts The deserialized counts.
+	 * @param keyType The type of key of the conditioned maps.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void convertCounts(Map<?, ?> counts, KeyType keyType) {
+		for (Map.Entry entry : counts.entrySet()) {
+			entry.setValue(MetricalLpcfgCountMap.fromDeserialized(keyType, (Map) entry.getValue()));
+		}
+	}
+	
+	/**
+	 * Convert each deserialized conditioned map of the given smoothing into a {@link MetricalLpcfgSmoothedMap}, in place.
+	 * 
+	 * @param smoothed The deserialized smoothing, or null.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void convertSmoothed(Map<?, ?> smoothed) {
+		if (smoothed == null) {
+			return;
+		}
+		
+		for (Map.Entry entry : smoothed.entrySet()) {
+			entry.setValue(MetricalLpcfgSmoothedMap.fromDeserialized((Map) entry.getValue()));
+		}
+	}
+	
+	/**
+	 * Get the key for the given measure, typeString, and head. This is a single String, so
+	 * that we don't need huge nested Maps. It is looked up in the {@link MetricalLpcfgSymbolTable},
+	 * so that it is only built once.
+	 * 
+	 * @param measure The measure of the key.
+	 * @param typeString The typeString of the key.
+	 * @param head The head of the key.
+	 * @return The interned key String.
+	 */
+	private static String encode(Measure measure, String typeString, MetricalLpcfgHead head) {
+		return MetricalLpcfgSymbolTable.getKey(MetricalLpcfgSymbolTable.getKeyId(measure, typeString, head));
+	}
+	
+	/**
+	 * Get the back-off key for the given measure's backup type (based on the level), typeString,
+	 * and head, from the {@link MetricalLpcfgSymbolTable}.
+	 * 
+	 * @param measure The measure whose feature to use.
+	 * @param typeString The typeString of the key.
+	 * @param head The head of the key.
+	 * @param level The level that decides which feature of the given measure to use. 
+	 * @return The interned back-off key String.
+	 */
+	private static String encodeBackoff(Measure measure, String typeString, MetricalLpcfgHead head, MetricalLpcfgLevel level) {
+		return MetricalLpcfgSymbolTable.getKey(MetricalLpcfgSymbolTable.getBackoffKeyId(measure, typeString, head, level));
 	}
 }
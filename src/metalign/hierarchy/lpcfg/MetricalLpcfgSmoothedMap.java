@@ -0,0 +1,177 @@
+package metalign.hierarchy.lpcfg;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A <code>MetricalLpcfgSmoothedMap</code> is an immutable map from counts to their smoothed probabilities,
+ * as calculated by Good-Turing smoothing for a single conditioned distribution of a
+ * {@link MetricalLpcfgProbabilityTracker}. The counts, probabilities, and log probabilities are stored in
+ * parallel primitive arrays, sorted by count, so that {@link #getLogProbability(int)} does no boxing and
+ * takes no logarithm.
+ * <br>
+ * It is serialized as a {@link TreeMap}, so grammar files are unchanged.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgSmoothedMap extends AbstractMap<Integer, Double> implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The counts of this map, in increasing order.
+	 */
+	private final int[] counts;
+
+	/**
+	 * The smoothed probability of each count.
+	 */
+	private final double[] probabilities;
+
+	/**
+	 * The log of each smoothed probability.
+	 */
+	private final double[] logProbabilities;
+
+	/**
+	 * Create a new smoothed map with the same mappings as the given Map.
+	 *
+	 * @param smoothing A Map from counts to their smoothed probabilities.
+	 */
+	public MetricalLpcfgSmoothedMap(Map<Integer, Double> smoothing) {
+		counts = new int[smoothing.size()];
+		probabilities = new double[smoothing.size()];
+
+		int i = 0;
+		for (Integer count : smoothing.keySet()) {
+			counts[i++] = count;
+		}
+		Arrays.sort(counts);
+
+		logProbabilities = new double[smoothing.size()];
+		for (i = 0; i < counts.length; i++) {
+			probabilities[i] = smoothing.get(counts[i]);
+			logProbabilities[i] = Math.log(probabilities[i]);
+		}
+	}
+
+	/**
+	 * Create a new smoothed map with the given arrays, which are not copied.
+	 *
+	 * @param counts {@link #counts}
+	 * @param probabilities {@link #probabilities}
+	 * @param logProbabilities {@link #logProbabilities}
+	 */
+	MetricalLpcfgSmoothedMap(int[] counts, double[] probabilities, double[] logProbabilities) {
+		this.counts = counts;
+		this.probabilities = probabilities;
+		this.logProbabilities = logProbabilities;
+	}
+
+	/**
+	 * Get a smoothed map with the same mappings as the given Map, which has just been deserialized.
+	 *
+	 * @param smoothing The deserialized Map.
+	 * @return The given Map, if it is already a smoothed map, or a new one with the same mappings.
+	 */
+	public static MetricalLpcfgSmoothedMap fromDeserialized(Map<Integer, Double> smoothing) {
+		return smoothing instanceof MetricalLpcfgSmoothedMap ? (MetricalLpcfgSmoothedMap) smoothing : new MetricalLpcfgSmoothedMap(smoothing);
+	}
+
+	/**
+	 * Get the smoothed probability of the given count.
+	 *
+	 * @param count The count.
+	 * @return The smoothed probability of the given count, or NaN if it has none.
+	 */
+	public double getProbability(int count) {
+		int index = Arrays.binarySearch(counts, count);
+		return index < 0 ? Double.NaN : probabilities[index];
+	}
+
+	/**
+	 * Get the log of the smoothed probability of the given count.
+	 *
+	 * @param count The count.
+	 * @return The log of the smoothed probability of the given count, or NaN if it has none.
+	 */
+	public double getLogProbability(int count) {
+		int index = Arrays.binarySearch(counts, count);
+		return index < 0 ? Double.NaN : logProbabilities[index];
+	}
+
+	@Override
+	public Double get(Object key) {
+		if (!(key instanceof Integer)) {
+			return null;
+		}
+
+		int index = Arrays.binarySearch(counts, (Integer) key);
+		return index < 0 ? null : probabilities[index];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Integer && Arrays.binarySearch(counts, (Integer) key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return counts.length;
+	}
+
+	@Override
+	public Set<Map.Entry<Integer, Double>> entrySet() {
+		return new AbstractSet<Map.Entry<Integer, Double>>() {
+			@Override
+			public Iterator<Map.Entry<Integer, Double>> iterator() {
+				return new Iterator<Map.Entry<Integer, Double>>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < counts.length;
+					}
+
+					@Override
+					public Map.Entry<Integer, Double> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+
+						next++;
+						return new AbstractMap.SimpleImmutableEntry<Integer, Double>(counts[next - 1], probabilities[next - 1]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return counts.length;
+			}
+		};
+	}
+
+	/**
+	 * Serialize this map as a TreeMap.
+	 *
+	 * @return A TreeMap with the same mappings as this map.
+	 */
+	private Object writeReplace() {
+		return new TreeMap<Integer, Double>(this);
+	}
+}
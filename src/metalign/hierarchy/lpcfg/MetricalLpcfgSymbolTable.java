@@ -0,0 +1,321 @@
+package metalign.hierarchy.lpcfg;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import metalign.hierarchy.Measure;
+import metalign.hierarchy.lpcfg.MetricalLpcfgNonterminal.MetricalLpcfgLevel;
+
+/**
+ * A <code>MetricalLpcfgSymbolTable</code> maps the conditioning keys of a
+ * {@link MetricalLpcfgProbabilityTracker} to dense int IDs. A key is identified by its measure (or its
+ * back-off measure type), its type String, and its head length, and these are packed into a single long,
+ * so that looking up a key that has been seen before builds no Strings.
+ * <br>
+ * Each ID also has a canonical, interned key String, which is exactly the String that the tracker's
+ * count Maps are indexed by, and whose hash code is cached.
+ * <br>
+ * Transition Strings are given dense int IDs too, so that they can be stored as primitive keys in a
+ * {@link MetricalLpcfgCountMap}.
+ * <br>
+ * All methods are thread-safe.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgSymbolTable {
+	/**
+	 * The number of bits used to store each measure number in a packed key.
+	 */
+	private static final int MEASURE_BITS = 10;
+
+	/**
+	 * The number of bits used to store a type ID in a packed key.
+	 */
+	private static final int TYPE_BITS = 10;
+
+	/**
+	 * The number of bits used to store a head ID in a packed key.
+	 */
+	private static final int HEAD_BITS = 31;
+
+	/**
+	 * The kind of measure in a packed key which is a full measure (not a back-off).
+	 */
+	private static final int FULL_MEASURE = 0;
+
+	/**
+	 * A Map from each type String to its ID.
+	 */
+	private static final ConcurrentHashMap<String, Integer> typeIds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * A Map from the raw bits of each head length to its ID.
+	 */
+	private static final ConcurrentHashMap<Long, Integer> headIds = new ConcurrentHashMap<Long, Integer>();
+
+	/**
+	 * A Map from each packed key to its ID.
+	 */
+	private static final ConcurrentHashMap<Long, Integer> keyIds = new ConcurrentHashMap<Long, Integer>();
+
+	/**
+	 * The key String of each ID. An ID is only added to {@link #keyIds} once its String is in here.
+	 */
+	private static volatile String[] keys = new String[64];
+
+	/**
+	 * The number of key IDs which have been assigned.
+	 */
+	private static int numKeys = 0;
+
+	/**
+	 * A Map from each transition String to its ID.
+	 */
+	private static final ConcurrentHashMap<String, Integer> transitionIds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * The transition String of each ID. An ID is only added to {@link #transitionIds} once its String is in here.
+	 */
+	private static volatile String[] transitions = new String[64];
+
+	/**
+	 * Private constructor, since this class only has static methods.
+	 */
+	private MetricalLpcfgSymbolTable() {}
+
+	/**
+	 * Get the ID of the key for the given measure, type, and head.
+	 *
+	 * @param measure The measure.
+	 * @param typeString The type String.
+	 * @param head The head.
+	 * @return The ID of the key.
+	 */
+	public static int getKeyId(Measure measure, String typeString, MetricalLpcfgHead head) {
+		long packed = pack(FULL_MEASURE, measure.getBeatsPerMeasure(), measure.getSubBeatsPerBeat(), typeString, head);
+
+		Integer id = packed < 0 ? null : keyIds.get(packed);
+		if (id != null) {
+			return id;
+		}
+
+		return addKey(packed, encode(measure.toString(), typeString, head));
+	}
+
+	/**
+	 * Get the ID of the back-off key for the given measure, type, and head at the given level.
+	 * The back-off key uses only the feature of the measure which the level decides.
+	 *
+	 * @param measure The measure.
+	 * @param typeString The type String.
+	 * @param head The head.
+	 * @param level The level that decides which feature of the given measure to use.
+	 * @return The ID of the back-off key.
+	 */
+	public static int getBackoffKeyId(Measure measure, String typeString, MetricalLpcfgHead head, MetricalLpcfgLevel level) {
+		int number = 0;
+		String measureKey = "";
+
+		switch (level) {
+			case SUB_BEAT:
+				measureKey = "SSB";
+				break;
+
+			case BEAT:
+				number = measure.getSubBeatsPerBeat();
+				measureKey = number + "SB";
+				break;
+
+			case MEASURE:
+				number = measure.getBeatsPerMeasure();
+				measureKey = number + "B";
+				break;
+		}
+
+		long packed = pack(level.ordinal() + 1, number, 0, typeString, head);
+
+		Integer id = packed < 0 ? null : keyIds.get(packed);
+		if (id != null) {
+			return id;
+		}
+
+		return addKey(packed, encode(measureKey, typeString, head));
+	}
+
+	/**
+	 * Get the key String of the given ID.
+	 *
+	 * @param id The ID of a key, as returned by {@link #getKeyId(Measure, String, MetricalLpcfgHead)}
+	 * or {@link #getBackoffKeyId(Measure, String, MetricalLpcfgHead, MetricalLpcfgLevel)}.
+	 * @return The interned key String of the given ID.
+	 */
+	public static String getKey(int id) {
+		return keys[id];
+	}
+
+	/**
+	 * Get the ID of the given transition String, giving it a new ID if it doesn't have one yet.
+	 *
+	 * @param transition The transition String.
+	 * @return The ID of the transition String.
+	 */
+	public static int getTransitionId(String transition) {
+		Integer id = transitionIds.get(transition);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized (transitionIds) {
+			id = transitionIds.get(transition);
+			if (id == null) {
+				id = transitionIds.size();
+
+				if (id == transitions.length) {
+					transitions = Arrays.copyOf(transitions, transitions.length * 2);
+				}
+				transitions[id] = transition;
+				transitionIds.put(transition, id);
+			}
+		}
+
+		return id;
+	}
+
+	/**
+	 * Get the ID of the given transition String, without giving it a new one.
+	 *
+	 * @param transition The transition String.
+	 * @return The ID of the transition String, or -1 if it doesn't have one.
+	 */
+	public static int findTransitionId(String transition) {
+		Integer id = transitionIds.get(transition);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Get the transition String of the given ID.
+	 *
+	 * @param id The ID of a transition String, as returned by {@link #getTransitionId(String)}.
+	 * @return The transition String of the given ID.
+	 */
+	public static String getTransition(int id) {
+		return transitions[id];
+	}
+
+	/**
+	 * Get the number of key IDs which have been assigned. IDs are dense, from 0 to this number - 1.
+	 *
+	 * @return The number of key IDs.
+	 */
+	public static synchronized int size() {
+		return numKeys;
+	}
+
+	/**
+	 * Pack the given parts of a key into a single long.
+	 *
+	 * @param measureKind {@link #FULL_MEASURE}, or 1 + the ordinal of the back-off level.
+	 * @param first The first number of the measure.
+	 * @param second The second number of the measure.
+	 * @param typeString The type String.
+	 * @param head The head.
+	 * @return The packed key, or -1 if the numbers are out of range for packing.
+	 */
+	private static long pack(int measureKind, int first, int second, String typeString, MetricalLpcfgHead head) {
+		if (first < 0 || first >= (1 << MEASURE_BITS) || second < 0 || second >= (1 << MEASURE_BITS)) {
+			return -1;
+		}
+
+		int typeId = getId(typeIds, typeString);
+		int headId = getId(headIds, Double.doubleToLongBits(head.getLength()));
+		if (typeId >= (1 << TYPE_BITS) || headId >= (1L << HEAD_BITS)) {
+			return -1;
+		}
+
+		long packed = measureKind;
+		packed = (packed << MEASURE_BITS) | first;
+		packed = (packed << MEASURE_BITS) | second;
+		packed = (packed << TYPE_BITS) | typeId;
+		packed = (packed << HEAD_BITS) | headId;
+
+		return packed;
+	}
+
+	/**
+	 * Get the ID of the given value in the given Map, adding it with the next ID if it is not yet there.
+	 *
+	 * @param ids The Map of IDs.
+	 * @param value The value whose ID we want.
+	 * @return The ID of the given value.
+	 */
+	private static <K> int getId(ConcurrentHashMap<K, Integer> ids, K value) {
+		Integer id = ids.get(value);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized (ids) {
+			id = ids.get(value);
+			if (id == null) {
+				id = ids.size();
+				ids.put(value, id);
+			}
+		}
+
+		return id;
+	}
+
+	/**
+	 * Add the given key, if it is not already in this table.
+	 *
+	 * @param packed The packed key, or -1 if the key could not be packed, in which case it is only
+	 * given an ID (if it doesn't already have one) but can't be found by its parts.
+	 * @param key The key String.
+	 * @return The ID of the key.
+	 */
+	private static synchronized int addKey(long packed, String key) {
+		Integer id = packed < 0 ? null : keyIds.get(packed);
+		if (id != null) {
+			return id;
+		}
+
+		if (packed < 0) {
+			// Unpackable keys are rare, so a linear search is fine
+			for (int i = 0; i < numKeys; i++) {
+				if (keys[i] == key) {
+					return i;
+				}
+			}
+		}
+
+		if (numKeys == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+		}
+		keys[numKeys] = key;
+		id = numKeys++;
+
+		if (packed >= 0) {
+			keyIds.put(packed, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Encode the given measureKey, typeString, and head into a single interned String key.
+	 *
+	 * @param measureKey The measureKey to encode.
+	 * @param typeString The typeString to encode.
+	 * @param head The head to encode.
+	 * @return The encoded String.
+	 */
+	private static String encode(String measureKey, String typeString, MetricalLpcfgHead head) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(measureKey).append(';');
+		sb.append(typeString).append(';');
+		sb.append(head.getLength());
+
+		return sb.toString().intern();
+	}
+}
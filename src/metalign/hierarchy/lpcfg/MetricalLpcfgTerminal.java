@@ -1,18 +1,22 @@
 package metalign.hierarchy.lpcfg;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import metalign.Main;
 import metalign.utils.MathUtils;
 
 /**
  * A <code>MetricalLpcfgTerminal</code> object represents a terminal symbol in the
  * rhythmic grammar. That is, any pattern of ties, notes, and rests which make
  * up an entire sub-beat in a given song's metrical structure. It is made up of a
- * List of {@link MetricalLpcfgQuantum}s.
+ * {@link MetricalLpcfgPattern} of {@link MetricalLpcfgQuantum}s.
+ * <br>
+ * It is serialized with its patterns as Lists, so grammar files are unchanged.
  * 
  * @author Andrew McLeod - 24 February, 2016
  */
@@ -22,31 +26,54 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 */
 	private static final long serialVersionUID = 3L;
 	
+	/**
+	 * The serialized fields, which are the fields of earlier versions of this class.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("reducedPattern", List.class),
+		new ObjectStreamField("originalPattern", List.class),
+		new ObjectStreamField("baseLength", Integer.TYPE),
+		new ObjectStreamField("head", MetricalLpcfgHead.class)
+	};
+	
 	/**
 	 * The pattern of quantums that make up this terminal, in fully reduced form.
+	 * This is never changed, except when deserializing.
 	 */
-	private final List<MetricalLpcfgQuantum> reducedPattern;
+	private MetricalLpcfgPattern reducedPattern;
 	
 	/**
 	 * The pattern of quantums that make up this terminal, in unreduced form.
+	 * This is never changed, except when deserializing.
 	 */
-	private final List<MetricalLpcfgQuantum> originalPattern;
+	private MetricalLpcfgPattern originalPattern;
 	
 	/**
 	 * The base length of this terminal, used to normalize in {@link #getHead()}.
+	 * This is never changed, except when deserializing.
 	 */
-	private final int baseLength;
+	private int baseLength;
 	
 	/**
 	 * The head of this terminal.
+	 * This is never changed, except when deserializing.
+	 */
+	private MetricalLpcfgHead head;
+	
+	/**
+	 * Whether {@link #reducedPattern} was reduced by the GCF of its constituents' lengths. That is done only
+	 * when no sub beat length is set (see {@link metalign.RunConfiguration#SUB_BEAT_LENGTH}). Otherwise,
+	 * the reduced pattern is the original one.
+	 * <br>
+	 * This is not serialized. A deserialized terminal is taken to be reduced if its patterns differ.
 	 */
-	private final MetricalLpcfgHead head;
+	private boolean reduce;
 	
 	/**
 	 * Create a new terminal with just a single rest.
 	 */
 	public MetricalLpcfgTerminal() {
-		this(Arrays.asList(new MetricalLpcfgQuantum[] {MetricalLpcfgQuantum.REST}));
+		this(MetricalLpcfgPattern.SINGLE_REST, 1, false);
 	}
 	
 	/**
@@ -54,9 +81,10 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 * will convert the given pattern into reduced form before saving it.
 	 * 
 	 * @param subBeatQuantum The given pattern, in non-reduced form.
+	 * @param reduce {@link #reduce}
 	 */
-	public MetricalLpcfgTerminal(List<MetricalLpcfgQuantum> subBeatQuantum) {
-		this(subBeatQuantum, 1);
+	public MetricalLpcfgTerminal(List<MetricalLpcfgQuantum> subBeatQuantum, boolean reduce) {
+		this(subBeatQuantum, 1, reduce);
 	}
 
 	/**
@@ -65,15 +93,36 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 * 
 	 * @param beatQuantum The given pattern, in non-reduced form.
 	 * @param baseLength {@link #baseLength}
+	 * @param reduce {@link #reduce}
 	 */
-	public MetricalLpcfgTerminal(List<MetricalLpcfgQuantum> beatQuantum, int baseLength) {
-		if (!MetricalLpcfgGeneratorRunner.TESTING) {
-			originalPattern = new ArrayList<MetricalLpcfgQuantum>(beatQuantum);
-		} else {
-			originalPattern = beatQuantum;
-		}
-		reducedPattern = beatQuantum.size() == 0 ? new ArrayList<MetricalLpcfgQuantum>(0) : generateReducedPattern(originalPattern);
+	public MetricalLpcfgTerminal(List<MetricalLpcfgQuantum> beatQuantum, int baseLength, boolean reduce) {
+		this(MetricalLpcfgPattern.fromList(beatQuantum), baseLength, reduce);
+	}
+	
+	/**
+	 * Create a new MetricalGrammarTerminal with the given pattern and {@link #baseLength} of 1. This
+	 * will convert the given pattern into reduced form before saving it.
+	 * 
+	 * @param subBeatQuantum The given pattern, in non-reduced form.
+	 * @param reduce {@link #reduce}
+	 */
+	public MetricalLpcfgTerminal(MetricalLpcfgPattern subBeatQuantum, boolean reduce) {
+		this(subBeatQuantum, 1, reduce);
+	}
+	
+	/**
+	 * Create a new MetricalGrammarTerminal with the given pattern and base length. This will convert
+	 * the given pattern into reduced form before saving it.
+	 * 
+	 * @param beatQuantum The given pattern, in non-reduced form.
+	 * @param baseLength {@link #baseLength}
+	 * @param reduce {@link #reduce}
+	 */
+	public MetricalLpcfgTerminal(MetricalLpcfgPattern beatQuantum, int baseLength, boolean reduce) {
+		originalPattern = beatQuantum;
+		reducedPattern = beatQuantum.length() == 0 || !reduce ? beatQuantum : generateReducedPattern(originalPattern);
 		this.baseLength = baseLength;
+		this.reduce = reduce;
 		head = generateHead();
 	}
 	
@@ -85,6 +134,7 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 		originalPattern = terminal.originalPattern;
 		baseLength = terminal.baseLength;
 		head = terminal.head;
+		reduce = terminal.reduce;
 	}
 
 	/**
@@ -94,21 +144,18 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 * @param beatQuantum The pattern we want to reduce.
 	 * @return The given pattern in fully reduced form.
 	 */
-	private static List<MetricalLpcfgQuantum> generateReducedPattern(List<MetricalLpcfgQuantum> beatQuantum) {
-		if (Main.SUB_BEAT_LENGTH != -1) {
-			// Sub beat length is set, avoid this computation
-			return beatQuantum;
-		}
-		
+	private static MetricalLpcfgPattern generateReducedPattern(MetricalLpcfgPattern beatQuantum) {
 		int gcf = getGCF(beatQuantum);
 		
-		List<MetricalLpcfgQuantum> reducedPattern = new ArrayList<MetricalLpcfgQuantum>(beatQuantum.size() / gcf);
+		// Each constituent's reduced length is at most its original length
+		long[] reducedPattern = MetricalLpcfgPattern.newBits(beatQuantum.length());
+		int size = 0;
 		
 		// Are we initially in a rest?
 		boolean inRest = beatQuantum.get(0) == MetricalLpcfgQuantum.REST;
 		int currentLength = 1;
 		
-		for (int i = 1; i < beatQuantum.size(); i++) {
+		for (int i = 1; i < beatQuantum.length(); i++) {
 			switch (beatQuantum.get(i)) {
 			case REST:
 				if (inRest) {
@@ -120,11 +167,12 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 					int reducedLength = currentLength / gcf;
 					
 					// Add initial symbol (complex in case pattern begins with a TIE)
-					reducedPattern.add(reducedPattern.isEmpty() ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+					MetricalLpcfgPattern.set(reducedPattern, size, size == 0 ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+					size++;
 					
 					// Add all ties
 					for (int j = 1; j < reducedLength; j++) {
-						reducedPattern.add(MetricalLpcfgQuantum.TIE);
+						MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.TIE);
 					}
 					
 					inRest = true;
@@ -139,16 +187,17 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 				if (inRest) {
 					// Add all RESTs
 					for (int j = 0; j < reducedLength; j++) {
-						reducedPattern.add(MetricalLpcfgQuantum.REST);
+						MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.REST);
 					}
 					
 				} else {
 					// Add initial symbol (complex in case pattern begins with a TIE)
-					reducedPattern.add(reducedPattern.isEmpty() ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+					MetricalLpcfgPattern.set(reducedPattern, size, size == 0 ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+					size++;
 				
 					// Add all TIEs
 					for (int j = 1; j < reducedLength; j++) {
-						reducedPattern.add(MetricalLpcfgQuantum.TIE);
+						MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.TIE);
 					}
 				}
 				
@@ -163,7 +212,7 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 					reducedLength = currentLength / gcf;
 					
 					for (int j = 0; j < reducedLength; j++) {
-						reducedPattern.add(MetricalLpcfgQuantum.REST);
+						MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.REST);
 					}
 					
 					currentLength = 1;
@@ -183,20 +232,21 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 		if (inRest) {
 			// Add all RESTs
 			for (int j = 0; j < reducedLength; j++) {
-				reducedPattern.add(MetricalLpcfgQuantum.REST);
+				MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.REST);
 			}
 			
 		} else {
 			// Add initial symbol (complex in case pattern begins with a TIE)
-			reducedPattern.add(reducedPattern.isEmpty() ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+			MetricalLpcfgPattern.set(reducedPattern, size, size == 0 ? beatQuantum.get(0) : MetricalLpcfgQuantum.ONSET);
+			size++;
 		
 			// Add all TIEs
 			for (int j = 1; j < reducedLength; j++) {
-				reducedPattern.add(MetricalLpcfgQuantum.TIE);
+				MetricalLpcfgPattern.set(reducedPattern, size++, MetricalLpcfgQuantum.TIE);
 			}
 		}
 		
-		return reducedPattern;
+		return new MetricalLpcfgPattern(reducedPattern, size);
 	}
 
 	/**
@@ -206,17 +256,16 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 * @param beatQuantum The pattern we want to reduce.
 	 * @return The greatest common factor of the constituents of the given pattern.
 	 */
-	private static int getGCF(List<MetricalLpcfgQuantum> beatQuantum) {
-		// Find constituent lengths
-		List<Integer> lengths = new ArrayList<Integer>();
-		lengths.add(1);
+	private static int getGCF(MetricalLpcfgPattern beatQuantum) {
+		// Find constituent lengths (only the current one is needed)
+		int length = 1;
 		
 		int gcf = 0;
 		
 		// Are we initially in a rest?
 		boolean inRest = beatQuantum.get(0) == MetricalLpcfgQuantum.REST;
 		
-		for (int i = 1; i < beatQuantum.size(); i++) {
+		for (int i = 1; i < beatQuantum.length(); i++) {
 			if (gcf == 1) {
 				return 1;
 			}
@@ -225,60 +274,43 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 			case REST:
 				if (inRest) {
 					// Rest continues
-					incrementLast(lengths);
+					length++;
 					
 				} else {
 					// New rest
 					inRest = true;
-					int lastLength = lengths.get(lengths.size() - 1);
-					gcf = gcf == 0 ? lastLength : MathUtils.getGCF(gcf, lastLength);
-					lengths.add(1);
+					gcf = gcf == 0 ? length : MathUtils.getGCF(gcf, length);
+					length = 1;
 				}
 				break;
 				
 			case ONSET:
 				// New note
-				int lastLength = lengths.get(lengths.size() - 1);
-				gcf = gcf == 0 ? lastLength : MathUtils.getGCF(gcf, lastLength);
-				lengths.add(1);
+				gcf = gcf == 0 ? length : MathUtils.getGCF(gcf, length);
+				length = 1;
 				inRest = false;
 				break;
 				
 			case TIE:
 				if (inRest) {
 					System.err.println("ERROR: TIE after REST - Treating as ONSET");
-					lastLength = lengths.get(lengths.size() - 1);
-					gcf = gcf == 0 ? lastLength : MathUtils.getGCF(gcf, lastLength);
-					lengths.add(1);
+					gcf = gcf == 0 ? length : MathUtils.getGCF(gcf, length);
+					length = 1;
 					inRest = false;
 					
 				} else {
 					// Note continues
-					incrementLast(lengths);
+					length++;
 				}
 				break;
 			}
 		}
 		
 		// Add last constituent (if we already did, it won't affect the gcf anyways)
-		int lastLength = lengths.get(lengths.size() - 1);
-		gcf = gcf == 0 ? lastLength : MathUtils.getGCF(gcf, lastLength);
+		gcf = gcf == 0 ? length : MathUtils.getGCF(gcf, length);
 		
 		return gcf;
 	}
-
-	/**
-	 * Utility method to increment the last value in an Integer List.
-	 * 
-	 * @param list The Integer List whose last value we want to increment.
-	 */
-	private static void incrementLast(List<Integer> list) {
-		if (list.isEmpty()) {
-			return;
-		}
-		
-		list.set(list.size() - 1, list.get(list.size() - 1) + 1);
-	}
 	
 	/**
 	 * Get whether this terminal contains any notes or not.
@@ -287,12 +319,12 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 */
 	@Override
 	public boolean isEmpty() {
-		return equals(new MetricalLpcfgTerminal());
+		return reducedPattern.equals(MetricalLpcfgPattern.SINGLE_REST);
 	}
 	
 	@Override
 	public boolean startsWithRest() {
-		return reducedPattern.isEmpty() || reducedPattern.get(0) == MetricalLpcfgQuantum.REST;
+		return reducedPattern.length() == 0 || reducedPattern.get(0) == MetricalLpcfgQuantum.REST;
 	}
 	
 	/**
@@ -316,7 +348,7 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 		int currentNoteLength = 0;
 		int currentNoteIndex = 0;
 		
-		for (int i = 0; i < originalPattern.size(); i++) {
+		for (int i = 0; i < originalPattern.length(); i++) {
 			MetricalLpcfgQuantum quantum = originalPattern.get(i);
 			if (quantum == MetricalLpcfgQuantum.ONSET || quantum == MetricalLpcfgQuantum.REST) {
 				// Note ended
@@ -341,9 +373,9 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 			maxNoteIndex = currentNoteIndex;
 		}
 		
-		double length = ((double) maxNoteLength) / originalPattern.size() * baseLength;
+		double length = ((double) maxNoteLength) / originalPattern.length() * baseLength;
 		
-		return new MetricalLpcfgHead(length, ((double) maxNoteIndex) / originalPattern.size() * baseLength, originalPattern.get(maxNoteIndex) == MetricalLpcfgQuantum.TIE);
+		return new MetricalLpcfgHead(length, ((double) maxNoteIndex) / originalPattern.length() * baseLength, originalPattern.get(maxNoteIndex) == MetricalLpcfgQuantum.TIE);
 	}
 	
 	@Override
@@ -358,13 +390,13 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 	 * @return True if this pattern could be reduced to one. False otherwise.
 	 */
 	public boolean reducesToOne() {
-		// Infinite sub beat length, we already know this one
-		if (Main.SUB_BEAT_LENGTH == -1) {
-			return reducedPattern.size() == 1;
+		// Reduced by the GCF, we already know this one
+		if (reduce) {
+			return reducedPattern.length() == 1;
 		}
 		
 		// Length 1 anyways
-		if (reducedPattern.size() == 1) {
+		if (reducedPattern.length() == 1) {
 			return true;
 		}
 		
@@ -373,7 +405,7 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 				(reducedPattern.get(0) == reducedPattern.get(1) && reducedPattern.get(0) != MetricalLpcfgQuantum.ONSET)) {
 			
 			// Check if the rest are all equal
-			for (int i = 2; i < reducedPattern.size(); i++) {
+			for (int i = 2; i < reducedPattern.length(); i++) {
 				if (reducedPattern.get(i) != reducedPattern.get(i - 1)) {
 					return false;
 				}
@@ -385,12 +417,30 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 		return false;
 	}
 	
+	/**
+	 * Get whether this terminal's pattern was reduced by the GCF of its constituents' lengths.
+	 * 
+	 * @return {@link #reduce}
+	 */
+	public boolean isReduced() {
+		return reduce;
+	}
+	
 	/**
 	 * Get the original unreduced pattern of this terminal.
 	 * 
 	 * @return {@link #originalPattern}
 	 */
 	public List<MetricalLpcfgQuantum> getOriginalPattern() {
+		return originalPattern.toList();
+	}
+	
+	/**
+	 * Get the original unreduced pattern of this terminal, packed.
+	 * 
+	 * @return {@link #originalPattern}
+	 */
+	public MetricalLpcfgPattern getPackedPattern() {
 		return originalPattern;
 	}
 	
@@ -445,13 +495,51 @@ public class MetricalLpcfgTerminal implements MetricalLpcfgNode, Comparable<Metr
 		return reducedPattern.toString();
 	}
 
+	/**
+	 * Serialize this terminal, with its patterns as Lists.
+	 * 
+	 * @param out The stream to write to.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		List<MetricalLpcfgQuantum> original = new ArrayList<MetricalLpcfgQuantum>(originalPattern.toList());
+		
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("reducedPattern", reducedPattern == originalPattern ? original : new ArrayList<MetricalLpcfgQuantum>(reducedPattern.toList()));
+		fields.put("originalPattern", original);
+		fields.put("baseLength", baseLength);
+		fields.put("head", head);
+		out.writeFields();
+	}
+	
+	/**
+	 * Deserialize a terminal, packing its patterns.
+	 * 
+	 * @param in The stream to read from.
+	 * @throws IOException If an I/O error occurs.
+	 * @throws ClassNotFoundException If a class of the stream cannot be found.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		
+		List<MetricalLpcfgQuantum> original = (List<MetricalLpcfgQuantum>) fields.get("originalPattern", null);
+		List<MetricalLpcfgQuantum> reduced = (List<MetricalLpcfgQuantum>) fields.get("reducedPattern", null);
+		
+		originalPattern = MetricalLpcfgPattern.fromList(original);
+		reducedPattern = reduced.equals(original) ? originalPattern : MetricalLpcfgPattern.fromList(reduced);
+		baseLength = fields.get("baseLength", 0);
+		head = (MetricalLpcfgHead) fields.get("head", null);
+		reduce = reducedPattern != originalPattern;
+	}
+	
 	@Override
 	public int compareTo(MetricalLpcfgTerminal o) {
 		if (o == null) {
 			return 1;
 		}
 		
-		int result = reducedPattern.size() - o.reducedPattern.size();
+		int result = reducedPattern.length() - o.reducedPattern.length();
 		if (result != 0) {
 			return result;
 		}
@@ -0,0 +1,253 @@
+package metalign.hierarchy.lpcfg;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>MetricalLpcfgTreeCache</code> saves the log probabilities of whole measures' trees in a single
+ * grammar, so that a measure's tree does not have to be rebuilt and rescored every time its quantums are seen.
+ * Each grammar's {@link MetricalLpcfgProbabilityTracker} has its own cache, which is discarded whenever
+ * its counts change.
+ * <br>
+ * Measures are keyed by their packed quantums and structure (see {@link Key}), and by whether their
+ * terminals are reduced, so that runs with different settings can share one grammar. The cache is
+ * bounded: it is split into segments, each of which is a least recently used cache of at most its share
+ * of the maximum size, and which are locked separately so that it can be used from multiple threads.
+ *
+ * @author Andrew McLeod
+ */
+public class MetricalLpcfgTreeCache {
+	/**
+	 * The default maximum number of measures to save.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+	/**
+	 * The number of segments. This must be a power of 2.
+	 */
+	private static final int NUM_SEGMENTS = 16;
+
+	/**
+	 * The segments of this cache, chosen by the hash of each key.
+	 */
+	private final Segment[] segments;
+
+	/**
+	 * The number of lookups which found a saved log probability.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * The number of lookups which found nothing.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a new empty cache of size {@link #DEFAULT_MAX_SIZE}.
+	 */
+	public MetricalLpcfgTreeCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Create a new empty cache.
+	 *
+	 * @param maxSize The maximum number of measures to save.
+	 */
+	public MetricalLpcfgTreeCache(int maxSize) {
+		segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; i++) {
+			segments[i] = new Segment(Math.max(1, maxSize / NUM_SEGMENTS));
+		}
+	}
+
+	/**
+	 * Get the saved log probability of the given measure.
+	 *
+	 * @param key The key of the measure.
+	 * @return The saved log probability of the given measure, or null if it has none.
+	 */
+	public Double get(Key key) {
+		Segment segment = getSegment(key);
+
+		Double logProbability;
+		synchronized (segment) {
+			logProbability = segment.get(key);
+		}
+
+		if (logProbability == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return logProbability;
+	}
+
+	/**
+	 * Save the log probability of the given measure. If the measure's segment is full, its least
+	 * recently used measure is removed.
+	 *
+	 * @param key The key of the measure.
+	 * @param logProbability The log probability of the measure.
+	 */
+	public void put(Key key, double logProbability) {
+		Segment segment = getSegment(key);
+
+		synchronized (segment) {
+			segment.put(key, logProbability);
+		}
+	}
+
+	/**
+	 * Get the segment of the given key.
+	 *
+	 * @param key The key.
+	 * @return The segment which holds the given key.
+	 */
+	private Segment getSegment(Key key) {
+		int hash = key.hash;
+		return segments[(hash ^ (hash >>> 16)) & (NUM_SEGMENTS - 1)];
+	}
+
+	/**
+	 * Get the number of lookups which have found a saved log probability.
+	 *
+	 * @return {@link #hits}
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups which have found nothing.
+	 *
+	 * @return {@link #misses}
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of measures currently saved.
+	 *
+	 * @return The number of measures currently saved.
+	 */
+	public int size() {
+		int size = 0;
+
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+
+		return "{size=" + size() + ", hits=" + hits + ", misses=" + getMisses() + ", hitRate=" +
+				(lookups == 0 ? 0.0 : ((double) hits) / lookups) + "}";
+	}
+
+	/**
+	 * A <code>Segment</code> is a least recently used cache of a bounded size.
+	 */
+	private static class Segment extends LinkedHashMap<Key, Double> {
+		/**
+		 * Version 1
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The maximum number of measures in this segment.
+		 */
+		private final int maxSize;
+
+		/**
+		 * Create a new empty segment.
+		 *
+		 * @param maxSize {@link #maxSize}
+		 */
+		public Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	/**
+	 * A <code>Key</code> identifies a measure by its structure and its packed quantums.
+	 */
+	public static class Key {
+		/**
+		 * The quantums of the measure.
+		 */
+		private final MetricalLpcfgPattern quantums;
+
+		/**
+		 * The number of beats per measure.
+		 */
+		private final int beatsPerMeasure;
+
+		/**
+		 * The number of sub beats per beat.
+		 */
+		private final int subBeatsPerBeat;
+
+		/**
+		 * Whether the measure's terminals are reduced (see {@link MetricalLpcfgTerminal#isReduced()}).
+		 */
+		private final boolean reduce;
+
+		/**
+		 * The hash code of this key, calculated once in the constructor.
+		 */
+		private final int hash;
+
+		/**
+		 * Create a new key for the given measure.
+		 *
+		 * @param quantums {@link #quantums}
+		 * @param beatsPerMeasure {@link #beatsPerMeasure}
+		 * @param subBeatsPerBeat {@link #subBeatsPerBeat}
+		 * @param reduce {@link #reduce}
+		 */
+		public Key(MetricalLpcfgPattern quantums, int beatsPerMeasure, int subBeatsPerBeat, boolean reduce) {
+			this.quantums = quantums;
+			this.beatsPerMeasure = beatsPerMeasure;
+			this.subBeatsPerBeat = subBeatsPerBeat;
+			this.reduce = reduce;
+
+			int hash = quantums.hashCode();
+			hash = 31 * hash + beatsPerMeasure;
+			hash = 31 * hash + subBeatsPerBeat;
+			hash = 31 * hash + (reduce ? 1 : 0);
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+
+			Key o = (Key) other;
+			return hash == o.hash && beatsPerMeasure == o.beatsPerMeasure && subBeatsPerBeat == o.subBeatsPerBeat && reduce == o.reduce &&
+					quantums.equals(o.quantums);
+		}
+	}
+}
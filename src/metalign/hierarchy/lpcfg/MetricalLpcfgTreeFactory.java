@@ -1,9 +1,7 @@
 package metalign.hierarchy.lpcfg;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import metalign.Main;
 import metalign.hierarchy.Measure;
 import metalign.hierarchy.lpcfg.MetricalLpcfgNonterminal.MetricalLpcfgLevel;
 import metalign.utils.MidiNote;
@@ -29,20 +27,25 @@ public class MetricalLpcfgTreeFactory {
 	 * @param subBeatLength The sub beat length of the tree we will make.
 	 * @param anacrusisLengthSubBeats The anacrusis length of the current song, measured in sub beats.
 	 * @param measureNum The measure number of the tree we want.
-	 * @param hasBegun A boolean for whether this voice has begun or not. If it has, and Main.EXTEND_NOTES is true,
+	 * @param hasBegun A boolean for whether this voice has begun or not. If it has, and extendNotes is true,
 	 * we want to fill this tree with ties rather than rests (unless it is totally empty).
+	 * @param extendNotes Whether to extend each note to the next note's onset
+	 * (see {@link metalign.RunConfiguration#EXTEND_NOTES}).
+	 * @param reduce Whether to reduce terminals by the GCF of their constituents' lengths, which is done when
+	 * no sub beat length is set (see {@link MetricalLpcfgTerminal#isReduced()}).
 	 * 
 	 * @return A tree of the given measure type, containing the given notes.
 	 */
-	public static MetricalLpcfgTree makeTree(List<MidiNote> notes, List<Integer> list, Measure measure, int subBeatLength, int anacrusisLengthSubBeats, int measureNum, boolean hasBegun) {
+	public static MetricalLpcfgTree makeTree(List<MidiNote> notes, List<Integer> list, Measure measure, int subBeatLength, int anacrusisLengthSubBeats, int measureNum, boolean hasBegun,
+			boolean extendNotes, boolean reduce) {
 		int beatsPerMeasure = measure.getBeatsPerMeasure();
 		int subBeatsPerBeat = measure.getSubBeatsPerBeat();
 		
-		return makeTree(makeQuantumList(notes, list, measure, subBeatLength, anacrusisLengthSubBeats, measureNum, hasBegun), beatsPerMeasure, subBeatsPerBeat);
+		return makeTree(makeQuantumPattern(notes, list, measure, subBeatLength, anacrusisLengthSubBeats, measureNum, hasBegun, extendNotes), beatsPerMeasure, subBeatsPerBeat, reduce);
 	}
 	
 	/**
-	 * Make a new tree based on a List of MidiNotes.
+	 * Make the quantum pattern of a measure based on a List of MidiNotes.
 	 * 
 	 * @param notes A List of the notes which lie within the tree we want.
 	 * @param list A List of ALL of the beat times of the current song.
@@ -50,22 +53,23 @@ public class MetricalLpcfgTreeFactory {
 	 * @param subBeatLength The sub beat length of the tree we will make.
 	 * @param anacrusisLengthSubBeats The anacrusis length of the current song, measured in sub beats.
 	 * @param measureNum The measure number of the tree we want.
-	 * @param hasBegun A boolean for whether this voice has begun or not. If it has, and Main.EXTEND_NOTES is true,
+	 * @param hasBegun A boolean for whether this voice has begun or not. If it has, and extendNotes is true,
 	 * we want to fill this tree with ties rather than rests (unless it is totally empty).
+	 * @param extendNotes Whether to extend each note to the next note's onset
+	 * (see {@link metalign.RunConfiguration#EXTEND_NOTES}).
 	 * 
-	 * @return A tree of the given measure type, containing the given notes.
+	 * @return The packed quantums of the given measure, containing the given notes.
 	 */
-	public static List<MetricalLpcfgQuantum> makeQuantumList(List<MidiNote> notes, List<Integer> list, Measure measure, int subBeatLength, int anacrusisLengthSubBeats, int measureNum, boolean hasBegun) {
+	public static MetricalLpcfgPattern makeQuantumPattern(List<MidiNote> notes, List<Integer> list, Measure measure, int subBeatLength, int anacrusisLengthSubBeats, int measureNum, boolean hasBegun,
+			boolean extendNotes) {
 		int beatsPerMeasure = measure.getBeatsPerMeasure();
 		int subBeatsPerBeat = measure.getSubBeatsPerBeat();
 		
 		int measureLength = subBeatLength * beatsPerMeasure * subBeatsPerBeat;
 		int anacrusisLength = subBeatLength * anacrusisLengthSubBeats;
 		
-		List<MetricalLpcfgQuantum> quantums = new ArrayList<MetricalLpcfgQuantum>(measureLength);
-		for (int i = 0; i < measureLength; i++) {
-			quantums.add(MetricalLpcfgQuantum.REST);
-		}
+		// Initially all RESTs
+		long[] quantums = MetricalLpcfgPattern.newBits(measureLength);
 		
 		int firstBeatIndex = measureLength * measureNum + anacrusisLength; 
 		int lastBeatIndex = firstBeatIndex + measureLength;
@@ -79,23 +83,23 @@ public class MetricalLpcfgTreeFactory {
 		}
 		
 		// Check for first extend notes
-		if (Main.EXTEND_NOTES && !notes.isEmpty()) {
+		if (extendNotes && !notes.isEmpty()) {
 			boolean firstOnsetFound = false;
-			for (int i = 0; i < quantums.size(); i++) {
+			for (int i = 0; i < measureLength; i++) {
 				if (!firstOnsetFound) {
-					if (quantums.get(i) == MetricalLpcfgQuantum.ONSET) {
+					if (MetricalLpcfgPattern.get(quantums, i) == MetricalLpcfgQuantum.ONSET) {
 						firstOnsetFound = true;
 					}
 					
 				} else {
-					if (quantums.get(i) == MetricalLpcfgQuantum.REST) {
-						quantums.set(i, MetricalLpcfgQuantum.TIE);
+					if (MetricalLpcfgPattern.get(quantums, i) == MetricalLpcfgQuantum.REST) {
+						MetricalLpcfgPattern.set(quantums, i, MetricalLpcfgQuantum.TIE);
 					}
 				}
 			}
 		}
 		
-		return quantums;
+		return new MetricalLpcfgPattern(quantums, measureLength);
 	}
 
 	/**
@@ -103,13 +107,13 @@ public class MetricalLpcfgTreeFactory {
 	 * as a result of this call.
 	 * 
 	 * @param note The note we want to add into our quantums array.
-	 * @param quantums The quantums array for tracking the current tree's quantums. This array may be
+	 * @param quantums The packed quantums array for tracking the current tree's quantums. This array may be
 	 * changed as a result of this call.
 	 * @param list A List of ALL of the beats in the current song.
 	 * @param firstBeatIndex The index of the beat which represents the first quantum in the quantum array.
 	 * @param lastBeatIndex The index of the beat after the last quantum in the quantum array.
 	 */
-	private static void addNote(MidiNote note, List<MetricalLpcfgQuantum> quantums, List<Integer> list, List<Integer> toSearch, int firstBeatIndex, int lastBeatIndex) {
+	private static void addNote(MidiNote note, long[] quantums, List<Integer> list, List<Integer> toSearch, int firstBeatIndex, int lastBeatIndex) {
 		int fromIndex = Math.max(firstBeatIndex - 1, 0);
 		
 		int beatIndex = note.getOnsetBeatIndex(toSearch) + fromIndex;
@@ -134,13 +138,13 @@ public class MetricalLpcfgTreeFactory {
 	 * as a result of this call.
 	 * 
 	 * @param quantum The quantum we want to add to the quantums array.
-	 * @param quantums The quantums array. This array may be changed as a result of this call.
+	 * @param quantums The packed quantums array. This array may be changed as a result of this call.
 	 * @param index The index at which we want to try to insert the given quantum.
 	 */
-	private static void addQuantum(MetricalLpcfgQuantum quantum, List<MetricalLpcfgQuantum> quantums, int index) {
+	private static void addQuantum(MetricalLpcfgQuantum quantum, long[] quantums, int index) {
 		// Update value if not ONSET. (We don't want a TIE to overwrite an ONSET)
-		if (quantums.get(index) != MetricalLpcfgQuantum.ONSET) {
-			quantums.set(index, quantum);
+		if (MetricalLpcfgPattern.get(quantums, index) != MetricalLpcfgQuantum.ONSET) {
+			MetricalLpcfgPattern.set(quantums, index, quantum);
 		}
 	}
 
@@ -150,23 +154,34 @@ public class MetricalLpcfgTreeFactory {
 	 * @param quantums The quantums which will be contained by this tree, unreduced.
 	 * @param beatsPerMeasure The beats per measure which should be in this tree.
 	 * @param subBeatsPerBeat The sub beats per beat which should be in this tree.
+	 * @param reduce Whether to reduce terminals by the GCF of their constituents' lengths, which is done when
+	 * no sub beat length is set (see {@link MetricalLpcfgTerminal#isReduced()}).
 	 * 
 	 * @return A tree generated from the given quantums and measure structure.
 	 */
-	public static MetricalLpcfgTree makeTree(List<MetricalLpcfgQuantum> quantums, int beatsPerMeasure, int subBeatsPerBeat) {
+	public static MetricalLpcfgTree makeTree(List<MetricalLpcfgQuantum> quantums, int beatsPerMeasure, int subBeatsPerBeat, boolean reduce) {
+		return makeTree(MetricalLpcfgPattern.fromList(quantums), beatsPerMeasure, subBeatsPerBeat, reduce);
+	}
+	
+	/**
+	 * Make and return a tree from the given packed quantums with the given structure.
+	 * 
+	 * @param quantums The quantums which will be contained by this tree, unreduced.
+	 * @param beatsPerMeasure The beats per measure which should be in this tree.
+	 * @param subBeatsPerBeat The sub beats per beat which should be in this tree.
+	 * @param reduce Whether to reduce terminals by the GCF of their constituents' lengths, which is done when
+	 * no sub beat length is set (see {@link MetricalLpcfgTerminal#isReduced()}).
+	 * 
+	 * @return A tree generated from the given quantums and measure structure.
+	 */
+	public static MetricalLpcfgTree makeTree(MetricalLpcfgPattern quantums, int beatsPerMeasure, int subBeatsPerBeat, boolean reduce) {
 		MetricalLpcfgMeasure measure = new MetricalLpcfgMeasure(beatsPerMeasure, subBeatsPerBeat);
 		
-		int beatLength = quantums.size() / beatsPerMeasure;
-		
-		// Create beat quantum arrays
-		List<List<MetricalLpcfgQuantum>> beatQuantums = new ArrayList<List<MetricalLpcfgQuantum>>(beatsPerMeasure);
-		for (int beat = 0; beat < beatsPerMeasure; beat++) {
-			beatQuantums.add(quantums.subList(beatLength * beat, beatLength * (beat + 1)));
-		}
+		int beatLength = quantums.length() / beatsPerMeasure;
 		
 		// Create beat nodes
-		for (List<MetricalLpcfgQuantum> beatQuantum : beatQuantums) {
-			measure.addChild(makeBeatNonterminal(beatQuantum, subBeatsPerBeat));
+		for (int beat = 0; beat < beatsPerMeasure; beat++) {
+			measure.addChild(makeBeatNonterminal(quantums.subPattern(beatLength * beat, beatLength * (beat + 1)), subBeatsPerBeat, reduce));
 		}
 		measure.fixChildrenTypes();
 		
@@ -178,28 +193,23 @@ public class MetricalLpcfgTreeFactory {
 	 * 
 	 * @param beatQuantum The quantums which lie in this non-terminal.
 	 * @param subBeatsPerBeat The number of sub beats which lie in this non-terminal.
+	 * @param reduce Whether to reduce terminals by the GCF of their constituents' lengths.
 	 * @return The non-terminal representing the given quantums.
 	 */
-	private static MetricalLpcfgNonterminal makeBeatNonterminal(List<MetricalLpcfgQuantum> beatQuantum, int subBeatsPerBeat) {
+	private static MetricalLpcfgNonterminal makeBeatNonterminal(MetricalLpcfgPattern beatQuantum, int subBeatsPerBeat, boolean reduce) {
 		MetricalLpcfgNonterminal beatNonterminal = new MetricalLpcfgNonterminal(MetricalLpcfgLevel.BEAT);
 		
-		MetricalLpcfgTerminal beatTerminal = new MetricalLpcfgTerminal(beatQuantum, subBeatsPerBeat);
+		MetricalLpcfgTerminal beatTerminal = new MetricalLpcfgTerminal(beatQuantum, subBeatsPerBeat, reduce);
 		if (beatTerminal.reducesToOne()) {
 			beatNonterminal.addChild(beatTerminal);
 			
 		} else {
 			// Need to split into sub beats
-			int subBeatLength = beatQuantum.size() / subBeatsPerBeat;
-			
-			// Create sub beat quantum arrays
-			List<List<MetricalLpcfgQuantum>> subBeatQuantums = new ArrayList<List<MetricalLpcfgQuantum>>(subBeatsPerBeat);
-			for (int subBeat = 0; subBeat < subBeatsPerBeat; subBeat++) {
-				subBeatQuantums.add(beatQuantum.subList(subBeatLength * subBeat, subBeatLength * (subBeat + 1)));
-			}
+			int subBeatLength = beatQuantum.length() / subBeatsPerBeat;
 			
 			// Create sub beat nodes
-			for (List<MetricalLpcfgQuantum> subBeatQuantum : subBeatQuantums) {
-				beatNonterminal.addChild(makeSubBeatNonterminal(subBeatQuantum));
+			for (int subBeat = 0; subBeat < subBeatsPerBeat; subBeat++) {
+				beatNonterminal.addChild(makeSubBeatNonterminal(beatQuantum.subPattern(subBeatLength * subBeat, subBeatLength * (subBeat + 1)), reduce));
 			}
 			beatNonterminal.fixChildrenTypes();
 		}
@@ -211,12 +221,13 @@ public class MetricalLpcfgTreeFactory {
 	 * Make and return a non-terminal representing a sub beat.
 	 * 
 	 * @param subBeatQuantum The quantums which lie in this non-terminal.
+	 * @param reduce Whether to reduce terminals by the GCF of their constituents' lengths.
 	 * @return The non-terminal representing the given quantums.
 	 */
-	private static MetricalLpcfgNonterminal makeSubBeatNonterminal(List<MetricalLpcfgQuantum> subBeatQuantum) {
+	private static MetricalLpcfgNonterminal makeSubBeatNonterminal(MetricalLpcfgPattern subBeatQuantum, boolean reduce) {
 		MetricalLpcfgNonterminal subBeatNonterminal = new MetricalLpcfgNonterminal(MetricalLpcfgLevel.SUB_BEAT);
 		
-		subBeatNonterminal.addChild(new MetricalLpcfgTerminal(subBeatQuantum));
+		subBeatNonterminal.addChild(new MetricalLpcfgTerminal(subBeatQuantum, reduce));
 		
 		return subBeatNonterminal;
 	}
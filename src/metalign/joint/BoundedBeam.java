@@ -0,0 +1,110 @@
+package metalign.joint;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * A <code>BoundedBeam</code> keeps track of the top {@link #capacity} {@link JointModelState}s added to it,
+ * by score. It is stored as a min-heap, so that the worst state, whose score is the threshold for entry
+ * into the beam, can be found in constant time, and each addition takes O(log {@link #capacity}) time.
+ * <br>
+ * Ties in score are broken with {@link JointModelState#compareTo(metalign.generic.MidiModelState)}, so that
+ * the beam holds exactly the first {@link #capacity} states of a TreeSet of the same states, and
+ * {@link #getWorst()} can be used to cut such a TreeSet down to the beam.
+ *
+ * @author Andrew McLeod
+ */
+public class BoundedBeam {
+	/**
+	 * Orders states worst first: the reverse of {@link JointModelState#compareTo(metalign.generic.MidiModelState)}.
+	 * Scores are compared first, since the full comparison is only needed for ties.
+	 */
+	private static final Comparator<JointModelState> WORST_FIRST = new Comparator<JointModelState>() {
+		@Override
+		public int compare(JointModelState o1, JointModelState o2) {
+			int result = Double.compare(o1.getScore(), o2.getScore());
+			if (result != 0) {
+				return result;
+			}
+
+			return o2.compareTo(o1);
+		}
+	};
+
+	/**
+	 * The maximum number of states to keep, or -1 for no limit. If there is no limit, no states
+	 * are actually saved, since the beam can never be full.
+	 */
+	private final int capacity;
+
+	/**
+	 * The states currently in the beam, worst first.
+	 */
+	private final PriorityQueue<JointModelState> heap;
+
+	/**
+	 * Create a new empty beam with the given capacity.
+	 *
+	 * @param capacity {@link #capacity}
+	 */
+	public BoundedBeam(int capacity) {
+		this.capacity = capacity;
+		heap = new PriorityQueue<JointModelState>(Math.max(capacity, 1), WORST_FIRST);
+	}
+
+	/**
+	 * Add the given state into this beam, if it is better than the worst state currently in it
+	 * (or if the beam is not yet full). If the beam is full, the worst state is removed.
+	 *
+	 * @param state The state to add.
+	 */
+	public void add(JointModelState state) {
+		if (capacity == -1) {
+			return;
+		}
+
+		if (heap.size() < capacity) {
+			heap.add(state);
+
+		} else if (WORST_FIRST.compare(state, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(state);
+		}
+	}
+
+	/**
+	 * Decide whether this beam is full. Only then does it have a threshold.
+	 *
+	 * @return True if this beam contains {@link #capacity} states. False otherwise.
+	 */
+	public boolean isFull() {
+		return capacity != -1 && heap.size() >= capacity;
+	}
+
+	/**
+	 * Get the worst state in this beam.
+	 *
+	 * @return The worst state in this beam, or null if it is empty.
+	 */
+	public JointModelState getWorst() {
+		return heap.peek();
+	}
+
+	/**
+	 * Get the score of the worst state in this beam. This should only be called when the beam is full.
+	 *
+	 * @return The score of the worst state in this beam.
+	 */
+	public double getThreshold() {
+		return heap.peek().getScore();
+	}
+
+	/**
+	 * Get the number of states in this beam.
+	 *
+	 * @return The number of states in this beam.
+	 */
+	public int size() {
+		return heap.size();
+	}
+}
@@ -1,12 +1,20 @@
 package metalign.joint;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
-import metalign.Main;
+import metalign.RunConfiguration;
 import metalign.beat.BeatTrackingModelState;
 import metalign.generic.MidiModel;
 import metalign.hierarchy.HierarchyModelState;
@@ -21,6 +29,11 @@ import metalign.voice.VoiceSplittingModelState;
  * @author Andrew McLeod - 8 Sept, 2015
  */
 public class JointModel extends MidiModel {
+	/**
+	 * The settings to use for this run.
+	 */
+	private final RunConfiguration config;
+	
 	/**
 	 * The hypothesis states at the current stage.
 	 */
@@ -31,22 +44,58 @@ public class JointModel extends MidiModel {
 	 */
 	private boolean started;
 	
-	public Map<VoiceSplittingModelState, List<VoiceSplittingModelState>> newVoiceStates;
+	/**
+	 * The voice states branched from each voice state at the current step, so that each is only
+	 * branched once. See {@link #computeOnce(ConcurrentMap, Object, Callable)}.
+	 */
+	public ConcurrentMap<VoiceSplittingModelState, FutureTask<List<VoiceSplittingModelState>>> newVoiceStates;
+	
+	/**
+	 * The beat states branched from each unstarted beat state on each List of notes at the current step,
+	 * so that each is only branched once. See {@link #computeOnce(ConcurrentMap, Object, Callable)}.
+	 */
+	public ConcurrentMap<BeatTrackingModelState, ConcurrentMap<List<MidiNote>, FutureTask<TreeSet<BeatTrackingModelState>>>> newBeatStates;
 	
-	public Map<BeatTrackingModelState, Map<List<MidiNote>, TreeSet<BeatTrackingModelState>>> newBeatStates;
+	/**
+	 * The top {@link RunConfiguration#BEAM_SIZE} started hypotheses of the current step.
+	 */
+	private BoundedBeam startedStates;
 	
-	public TreeSet<JointModelState> startedStates;
+	/**
+	 * The number of hypotheses whose branches have been added since {@link #fixForBeam(TreeSet)} was last called.
+	 */
+	private int unprunedHypotheses;
 	
 	private long previousTime = System.currentTimeMillis();
 	
 	/**
-	 * Create a new JointModel based on a state with the given constituent states.
+	 * The executors used to expand hypotheses in parallel when {@link RunConfiguration#EXPANSION_THREADS} is greater than 1,
+	 * keyed by their number of threads.
+	 */
+	private static final Map<Integer, ExecutorService> expansionExecutors = new HashMap<Integer, ExecutorService>();
+	
+	/**
+	 * Create a new JointModel based on a state with the given constituent states, using the
+	 * current global settings.
 	 * 
 	 * @param voice The voice splitting state to use.
 	 * @param beat The beat tracking state to use.
 	 * @param hierarchy The hierarchy detection state to use.
 	 */
 	public JointModel(VoiceSplittingModelState voice, BeatTrackingModelState beat, HierarchyModelState hierarchy) {
+		this(new RunConfiguration(), voice, beat, hierarchy);
+	}
+	
+	/**
+	 * Create a new JointModel with the given configuration, based on a state with the given constituent states.
+	 * 
+	 * @param config {@link #config}
+	 * @param voice The voice splitting state to use.
+	 * @param beat The beat tracking state to use.
+	 * @param hierarchy The hierarchy detection state to use.
+	 */
+	public JointModel(RunConfiguration config, VoiceSplittingModelState voice, BeatTrackingModelState beat, HierarchyModelState hierarchy) {
+		this.config = config;
 		hypothesisStates = new TreeSet<JointModelState>();
 		hypothesisStates.add(new JointModelState(this, voice, beat, hierarchy));
 		started = false;
@@ -60,35 +109,22 @@ public class JointModel extends MidiModel {
 			started = true;
 		}
 		
-		if (Main.LOG_STATUS) {
+		if (config.LOG_STATUS) {
 			printLog(notes);
 		}
 		
-		TreeSet<JointModelState> newStates = new TreeSet<JointModelState>();
-		
 		// Branch for each hypothesis state
-		for (JointModelState jms : hypothesisStates) {
-			for (JointModelState nestedJms : jms.handleIncoming(notes)) {
-				newStates.add(nestedJms);
-				
-				if (nestedJms.isStarted()) {
-					// New state is started (has a bar)
-					startedStates.add(nestedJms);
-				}
-			}
-			
-			fixForBeam(newStates);
-		}
+		TreeSet<JointModelState> newStates = branchHypotheses(notes);
 		
-		if (((Main.VERBOSE && Main.TESTING) || (MetricalLpcfgGeneratorRunner.VERBOSE && MetricalLpcfgGeneratorRunner.TESTING))) {
+		if (((config.VERBOSE && config.TESTING) || (MetricalLpcfgGeneratorRunner.VERBOSE && MetricalLpcfgGeneratorRunner.TESTING))) {
 			System.out.println(notes + ": ");
 			for (JointModelState jms : newStates) {
 				System.out.println(jms.getVoiceState());
 				System.out.println(jms.getBeatState());
 				System.out.println(jms.getHierarchyState());
 				
-				if (Main.EVALUATOR != null) {
-					System.out.println(Main.EVALUATOR.evaluate(jms));
+				if (config.EVALUATOR != null) {
+					System.out.println(config.EVALUATOR.evaluate(jms));
 				}
 			}
 			System.out.println();
@@ -101,27 +137,155 @@ public class JointModel extends MidiModel {
 	public void close() {
 		setGlobalVariables();
 		
-		if (Main.LOG_STATUS) {
+		if (config.LOG_STATUS) {
 			printLog(null);
 		}
 		
+		// Close all states
+		hypothesisStates = branchHypotheses(null);
+	}
+	
+	/**
+	 * Branch each of the current {@link #hypothesisStates} on the given notes (or close them), and
+	 * return the resulting new hypotheses, trimmed to the beam.
+	 * <br>
+	 * If {@link RunConfiguration#EXPANSION_THREADS} is greater than 1, the hypotheses are expanded in parallel in
+	 * waves of that many states. Each wave's states are branched against the beam as it stood at the start
+	 * of the wave, and their results are then merged in the same order as in the sequential case. A stale
+	 * beam only prunes less, so the merged hypotheses are the same as when running sequentially.
+	 * 
+	 * @param notes The notes to branch on, or null to close each state.
+	 * @return The ordered set of new hypotheses.
+	 */
+	private TreeSet<JointModelState> branchHypotheses(List<MidiNote> notes) {
 		TreeSet<JointModelState> newStates = new TreeSet<JointModelState>();
 		
-		// Close all states
-		for (JointModelState jms : hypothesisStates) {
-			for (JointModelState nestedJms : jms.close()) {
-				newStates.add(nestedJms);
-				
-				if (nestedJms.isStarted()) {
-					// New state is started (has a bar)
-					startedStates.add(nestedJms);
+		if (config.EXPANSION_THREADS <= 1 || hypothesisStates.size() <= 1) {
+			for (JointModelState jms : hypothesisStates) {
+				addBranches(notes == null ? jms.close() : jms.handleIncoming(notes), newStates);
+			}
+			
+			fixForBeam(newStates);
+			return newStates;
+		}
+		
+		ExecutorService executor = getExpansionExecutor(config.EXPANSION_THREADS);
+		List<JointModelState> parents = new ArrayList<JointModelState>(hypothesisStates);
+		
+		for (int waveStart = 0; waveStart < parents.size(); waveStart += config.EXPANSION_THREADS) {
+			int waveEnd = Math.min(waveStart + config.EXPANSION_THREADS, parents.size());
+			
+			List<Future<TreeSet<JointModelState>>> wave = new ArrayList<Future<TreeSet<JointModelState>>>(waveEnd - waveStart);
+			for (JointModelState jms : parents.subList(waveStart, waveEnd)) {
+				wave.add(executor.submit(() -> notes == null ? jms.close() : jms.handleIncoming(notes)));
+			}
+			
+			// Wait for the whole wave before touching startedStates, since the workers read it
+			List<TreeSet<JointModelState>> branches = new ArrayList<TreeSet<JointModelState>>(wave.size());
+			for (Future<TreeSet<JointModelState>> future : wave) {
+				try {
+					branches.add(future.get());
+					
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+					
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
 				}
 			}
 			
+			for (TreeSet<JointModelState> branch : branches) {
+				addBranches(branch, newStates);
+			}
+		}
+		
+		fixForBeam(newStates);
+		return newStates;
+	}
+	
+	/**
+	 * Add the branches of a single hypothesis into the given new states and the beam, and trim
+	 * the new states to the beam every {@link RunConfiguration#BEAM_PRUNE_INTERVAL} hypotheses.
+	 * 
+	 * @param branches The states branched from a single hypothesis.
+	 * @param newStates The ordered set of new hypotheses.
+	 */
+	private void addBranches(TreeSet<JointModelState> branches, TreeSet<JointModelState> newStates) {
+		for (JointModelState nestedJms : branches) {
+			if (newStates.add(nestedJms) && nestedJms.isStarted()) {
+				// New state is started (has a bar)
+				startedStates.add(nestedJms);
+			}
+		}
+		
+		if (++unprunedHypotheses >= config.BEAM_PRUNE_INTERVAL) {
 			fixForBeam(newStates);
 		}
+	}
+	
+	/**
+	 * Get the executor with the given number of threads used to expand hypotheses in parallel, creating
+	 * it if needed. It is shared between all JointModels using that many threads, and its threads are
+	 * daemons so that it never keeps the program alive.
+	 * 
+	 * @param threads The number of threads of the executor.
+	 * @return The executor from {@link #expansionExecutors} with the given number of threads.
+	 */
+	private static synchronized ExecutorService getExpansionExecutor(int threads) {
+		ExecutorService executor = expansionExecutors.get(threads);
+		
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "expansion");
+				thread.setDaemon(true);
+				return thread;
+			});
+			expansionExecutors.put(threads, executor);
+		}
 		
-		hypothesisStates = newStates;
+		return executor;
+	}
+	
+	/**
+	 * Get the result of the given computation for the given key, computing it only if no other caller
+	 * has already started to. The computation runs on the first caller's thread, and only callers with
+	 * the same key wait for it.
+	 * 
+	 * @param cache The results (or pending results) of the computations so far, by key.
+	 * @param key The key of the computation.
+	 * @param computation The computation to run if there is no result for the key yet.
+	 * @return The result of the computation for the given key.
+	 */
+	public static <K, V> V computeOnce(ConcurrentMap<K, FutureTask<V>> cache, K key, Callable<V> computation) {
+		FutureTask<V> result = cache.get(key);
+		
+		if (result == null) {
+			FutureTask<V> newResult = new FutureTask<V>(computation);
+			result = cache.putIfAbsent(key, newResult);
+			
+			if (result == null) {
+				result = newResult;
+				result.run();
+			}
+		}
+		
+		try {
+			return result.get();
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+			
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
 	}
 	
 	/**
@@ -129,9 +293,10 @@ public class JointModel extends MidiModel {
 	 * {@link #newBeatStates}, and {@link #startedStates}.
 	 */
 	private void setGlobalVariables() {
-		newVoiceStates = new TreeMap<VoiceSplittingModelState, List<VoiceSplittingModelState>>();
-		newBeatStates = new TreeMap<BeatTrackingModelState, Map<List<MidiNote>, TreeSet<BeatTrackingModelState>>>();
-		startedStates = new TreeSet<JointModelState>();
+		newVoiceStates = new ConcurrentSkipListMap<VoiceSplittingModelState, FutureTask<List<VoiceSplittingModelState>>>();
+		newBeatStates = new ConcurrentSkipListMap<BeatTrackingModelState, ConcurrentMap<List<MidiNote>, FutureTask<TreeSet<BeatTrackingModelState>>>>();
+		startedStates = new BoundedBeam(config.BEAM_SIZE);
+		unprunedHypotheses = 0;
 	}
 
 	/**
@@ -146,23 +311,57 @@ public class JointModel extends MidiModel {
 	}
 
 	/**
-	 * Remove those hypotheses which are outside the top {@link Main#BEAM_SIZE}
+	 * Remove those hypotheses which are outside the top {@link RunConfiguration#BEAM_SIZE}
 	 * finished hypotheses.
 	 * 
 	 * @param newStates The ordered set of hypotheses.
 	 */
 	private void fixForBeam(TreeSet<JointModelState> newStates) {
-		if (Main.BEAM_SIZE != -1) {
-			
-			// Remove down to the top beam size finished hypotheses.
-			while (startedStates.size() > Main.BEAM_SIZE) {
-				startedStates.pollLast();
-			}
-			
-			if (startedStates.size() == Main.BEAM_SIZE) {
-				newStates.tailSet(startedStates.last(), false).clear();
-			}
+		if (startedStates.isFull()) {
+			newStates.tailSet(startedStates.getWorst(), false).clear();
 		}
+		
+		unprunedHypotheses = 0;
+	}
+	
+	/**
+	 * Decide whether the beam of started hypotheses for the current step is full. If it is,
+	 * no hypothesis scoring at most {@link #getBeamThreshold()} can enter it.
+	 * 
+	 * @return True if the beam is full. False otherwise.
+	 */
+	public boolean isBeamFull() {
+		return startedStates.isFull();
+	}
+	
+	/**
+	 * Get the score of the worst hypothesis in the beam for the current step. This should only
+	 * be called if {@link #isBeamFull()} returns true.
+	 * 
+	 * @return The score of the worst hypothesis in the beam.
+	 */
+	public double getBeamThreshold() {
+		return startedStates.getThreshold();
+	}
+
+	/**
+	 * Get the settings used for this run.
+	 * 
+	 * @return {@link #config}
+	 */
+	public RunConfiguration getConfig() {
+		return config;
+	}
+
+	/**
+	 * Remove the given hypothesis from the current hypotheses. This is used to remove those hypotheses
+	 * which disagree with output that has already been committed (see {@link StreamingJointModel}).
+	 * 
+	 * @param state The hypothesis to remove.
+	 * @return True if the hypothesis was removed. False if it was not one of the current hypotheses.
+	 */
+	public boolean removeHypothesis(JointModelState state) {
+		return hypothesisStates.remove(state);
 	}
 
 	@Override
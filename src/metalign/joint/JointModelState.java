@@ -5,8 +5,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
 
-import metalign.Main;
 import metalign.beat.BeatTrackingModelState;
 import metalign.generic.MidiModelState;
 import metalign.hierarchy.HierarchyModelState;
@@ -81,20 +83,16 @@ public class JointModelState extends MidiModelState {
 		TreeSet<JointModelState> newStates = new TreeSet<JointModelState>();
 		
 		// Check if we even need to compute anything
-		boolean beamFull = Main.BEAM_SIZE != -1 && jointModel.startedStates.size() >= Main.BEAM_SIZE;
-		if (beamFull && getScore() < jointModel.startedStates.last().getScore()) {
+		boolean beamFull = jointModel.isBeamFull();
+		double beamThreshold = beamFull ? jointModel.getBeamThreshold() : Double.NEGATIVE_INFINITY;
+		if (beamFull && getScore() < beamThreshold) {
 			return newStates;
 		}
 		
 		
 		// Voice state branching with check for pre-computed values
-		List<VoiceSplittingModelState> newVoiceStates = jointModel.newVoiceStates.get(voiceState);
-		
-		if (newVoiceStates == null) {
-			newVoiceStates = new ArrayList<VoiceSplittingModelState>(voiceState.handleIncoming(notes));
-			
-			jointModel.newVoiceStates.put(voiceState, newVoiceStates);
-		}
+		List<VoiceSplittingModelState> newVoiceStates = JointModel.computeOnce(jointModel.newVoiceStates, voiceState,
+				() -> new ArrayList<VoiceSplittingModelState>(voiceState.handleIncoming(notes)));
 		
 		
 		// Beat state branching with check for pre-computed values for initial step
@@ -104,7 +102,7 @@ public class JointModelState extends MidiModelState {
 		for (VoiceSplittingModelState voiceState : newVoiceStates) {
 			
 			// This falls outside the main beam, we can skip it.
-			if (beamFull && jointModel.startedStates.last().getScore() >= voiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
+			if (beamFull && beamThreshold >= voiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
 				newNotesLists.add(new ArrayList<MidiNote>());
 				newBeatStates.add(new TreeSet<BeatTrackingModelState>());
 				continue;
@@ -116,7 +114,7 @@ public class JointModelState extends MidiModelState {
 			// Calculate new notes (in case of -m)
 			List<MidiNote> newNotes = new ArrayList<MidiNote>(notes.size());
 			for (MidiNote note : notes) {
-				if (!voiceState.shouldRemove(note)) {
+				if (!voiceState.shouldRemove(note, jointModel.getConfig().MIN_NOTE_LENGTH)) {
 					newNotes.add(note);
 				}
 			}
@@ -128,19 +126,26 @@ public class JointModelState extends MidiModelState {
 				
 			} else {
 				// Initial step
-				Map<List<MidiNote>, TreeSet<BeatTrackingModelState>> newBeatStatesMap = jointModel.newBeatStates.get(beatStateCopy);
+				ConcurrentMap<List<MidiNote>, FutureTask<TreeSet<BeatTrackingModelState>>> newBeatStatesMap = jointModel.newBeatStates.get(beatState);
 				if (newBeatStatesMap == null) {
-					newBeatStatesMap = new HashMap<List<MidiNote>, TreeSet<BeatTrackingModelState>>();
-					jointModel.newBeatStates.put(beatState, newBeatStatesMap);
+					newBeatStatesMap = new ConcurrentHashMap<List<MidiNote>, FutureTask<TreeSet<BeatTrackingModelState>>>();
+					ConcurrentMap<List<MidiNote>, FutureTask<TreeSet<BeatTrackingModelState>>> existingMap = jointModel.newBeatStates.putIfAbsent(beatState, newBeatStatesMap);
+					if (existingMap != null) {
+						newBeatStatesMap = existingMap;
+					}
 				}
 				
-				TreeSet<BeatTrackingModelState> branchedStates = newBeatStatesMap.get(newNotes);
-				if (branchedStates == null) {
-					branchedStates = (TreeSet<BeatTrackingModelState>) beatStateCopy.handleIncoming(newNotes);
-					newBeatStatesMap.put(newNotes, branchedStates);
+				// Key on a copy, since newNotes may be changed below
+				TreeSet<BeatTrackingModelState> branchedStates = JointModel.computeOnce(newBeatStatesMap, new ArrayList<MidiNote>(newNotes),
+						() -> (TreeSet<BeatTrackingModelState>) beatStateCopy.handleIncoming(newNotes));
+				
+				// The cached states are shared, so branch on our own copies of them
+				TreeSet<BeatTrackingModelState> branchedStatesCopy = new TreeSet<BeatTrackingModelState>();
+				for (BeatTrackingModelState branchedState : branchedStates) {
+					branchedStatesCopy.add(branchedState.deepCopy());
 				}
 				
-				newBeatStates.add(branchedStates);
+				newBeatStates.add(branchedStatesCopy);
 			}
 		}
 		
@@ -153,13 +158,14 @@ public class JointModelState extends MidiModelState {
 			List<MidiNote> newNotes = newNotesLists.get(i);
 
 			TreeSet<JointModelState> newStatesTmp = new TreeSet<JointModelState>();
+			Map<Long, List<JointModelState>> duplicateIndex = new HashMap<Long, List<JointModelState>>();
 			
 			// Go through each voice beat pair and branch on it
 			for (BeatTrackingModelState beatState : beatStateSet) {
 				
 				// Main Beam is full and score is not possibly better than any of them
-				if (beamFull && jointModel.startedStates.last().getScore() >= newVoiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
-					if (Main.SUPER_VERBOSE && Main.TESTING) {
+				if (beamFull && beamThreshold >= newVoiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
+					if (jointModel.getConfig().SUPER_VERBOSE && jointModel.getConfig().TESTING) {
 						System.out.println("ELIMINATING (Joint Beam): " + newVoiceState + beatState + beatState.getHierarchyState());
 					}
 					continue;
@@ -176,7 +182,8 @@ public class JointModelState extends MidiModelState {
 						Voice voice = newVoiceState.getVoices().get(j);
 						
 						boolean needToFix = true;
-						for (MidiNote note : voice.getNotes()) {
+						for (Voice node = voice; node != null; node = node.getPrevious()) {
+							MidiNote note = node.getMostRecentNote();
 							if (!notes.contains(note)) {
 								// This voice is not new
 								needToFix = false;
@@ -198,7 +205,7 @@ public class JointModelState extends MidiModelState {
 				
 				// Branching with duplicate checking for less memory usage (because duplicates have the same voice state)
 				for (HierarchyModelState hms : hierarchyStateCopy.handleIncoming(newNotes)) {
-					addWithDuplicateCheck(hms, newStatesTmp);
+					addWithDuplicateCheck(hms, newStatesTmp, duplicateIndex);
 				}
 			}
 			
@@ -214,23 +221,21 @@ public class JointModelState extends MidiModelState {
 		TreeSet<JointModelState> newStates = new TreeSet<JointModelState>();
 		
 		// Check if we even need to compute anything
-		boolean beamFull = Main.BEAM_SIZE != -1 && jointModel.startedStates.size() >= Main.BEAM_SIZE;
-		if (beamFull && getScore() < jointModel.startedStates.last().getScore()) {
+		boolean beamFull = jointModel.isBeamFull();
+		double beamThreshold = beamFull ? jointModel.getBeamThreshold() : Double.NEGATIVE_INFINITY;
+		if (beamFull && getScore() < beamThreshold) {
 			return newStates;
 		}
 		
 		// Voice statej
-		List<VoiceSplittingModelState> newVoiceStates = jointModel.newVoiceStates.get(voiceState);
-		if (newVoiceStates == null) {
-			newVoiceStates = new ArrayList<VoiceSplittingModelState>(voiceState.close());
-			jointModel.newVoiceStates.put(voiceState, newVoiceStates);
-		}
+		List<VoiceSplittingModelState> newVoiceStates = JointModel.computeOnce(jointModel.newVoiceStates, voiceState,
+				() -> new ArrayList<VoiceSplittingModelState>(voiceState.close()));
 		
 		// Beat states
 		List<TreeSet<BeatTrackingModelState>> newBeatStates = new ArrayList<TreeSet<BeatTrackingModelState>>();
 		for (VoiceSplittingModelState voiceState : newVoiceStates) {
 			// This falls outside the main beam, we can skip it.
-			if (beamFull && jointModel.startedStates.last().getScore() >= voiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
+			if (beamFull && beamThreshold >= voiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
 				newBeatStates.add(new TreeSet<BeatTrackingModelState>());
 				continue;
 			}
@@ -247,11 +252,12 @@ public class JointModelState extends MidiModelState {
 			TreeSet<BeatTrackingModelState> beatStateSet = newBeatStates.get(i);
 			
 			TreeSet<JointModelState> newStatesTmp = new TreeSet<JointModelState>();
+			Map<Long, List<JointModelState>> duplicateIndex = new HashMap<Long, List<JointModelState>>();
 			
 			for (BeatTrackingModelState beatState : beatStateSet) {
 				// Main Beam is full and score is not possibly better than any of them
-				if (beamFull && jointModel.startedStates.last().getScore() >= newVoiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
-					if (Main.SUPER_VERBOSE && Main.TESTING) {
+				if (beamFull && beamThreshold >= newVoiceState.getScore() + beatState.getScore() + beatState.getHierarchyState().getScore()) {
+					if (jointModel.getConfig().SUPER_VERBOSE && jointModel.getConfig().TESTING) {
 						System.out.println("ELIMINATING (Joint Beam): " + newVoiceState + beatState + beatState.getHierarchyState());
 					}
 					continue;
@@ -264,7 +270,7 @@ public class JointModelState extends MidiModelState {
 				
 				// Branching with duplicate checking for less memory usage
 				for (HierarchyModelState hms : hierarchyStateCopy.close()) {
-					addWithDuplicateCheck(hms, newStatesTmp);
+					addWithDuplicateCheck(hms, newStatesTmp, duplicateIndex);
 				}
 			}
 			
@@ -276,39 +282,73 @@ public class JointModelState extends MidiModelState {
 	
 	/**
 	 * Add a new JMS given by the hms to the newStates temporary TreeSet, with a duplicate check.
+	 * <br>
+	 * Duplicates are found through the given index, which maps each duplicate key (see {@link #getDuplicateKeys()})
+	 * to the states in newStatesTmp with that key. If multiple duplicates are found, the first one in newStatesTmp's
+	 * order is used, exactly as if newStatesTmp were scanned in order.
 	 * 
 	 * @param hms The hms used to generate the new JMS.
 	 * @param newStatesTmp The TreeSet to add this to.
+	 * @param duplicateIndex The duplicate index of newStatesTmp, which will be kept up to date.
 	 */
-	private void addWithDuplicateCheck(HierarchyModelState hms, TreeSet<JointModelState> newStatesTmp) {
+	private void addWithDuplicateCheck(HierarchyModelState hms, TreeSet<JointModelState> newStatesTmp,
+			Map<Long, List<JointModelState>> duplicateIndex) {
 		JointModelState jms = new JointModelState(jointModel, hms);
 		JointModelState duplicate = null;
 		
-		for (JointModelState state : newStatesTmp) {
-			if (state.isDuplicateOf(jms)) {
-				duplicate = state;
-				break;
+		long[] keys = jms.getDuplicateKeys();
+		for (long key : keys) {
+			List<JointModelState> bucket = duplicateIndex.get(key);
+			if (bucket == null) {
+				continue;
+			}
+			
+			for (JointModelState state : bucket) {
+				if (state.isDuplicateOf(jms) && (duplicate == null || state.compareTo(duplicate) < 0)) {
+					duplicate = state;
+				}
 			}
 		}
 		
 		if (duplicate != null) {
 			if (duplicate.getScore() < jms.getScore()) {
-				newStatesTmp.add(jms);
-				newStatesTmp.remove(duplicate);
+				if (newStatesTmp.add(jms)) {
+					addToDuplicateIndex(jms, keys[0], duplicateIndex);
+				}
+				if (newStatesTmp.remove(duplicate)) {
+					duplicateIndex.get(duplicate.getDuplicateKeys()[0]).remove(duplicate);
+				}
 				
-				if (Main.SUPER_VERBOSE && Main.TESTING) {
+				if (jointModel.getConfig().SUPER_VERBOSE && jointModel.getConfig().TESTING) {
 					System.out.println("ELIMINATING (Duplicate): " + duplicate);
 				}
 				
 			} else {
-				if (Main.SUPER_VERBOSE && Main.TESTING) {
+				if (jointModel.getConfig().SUPER_VERBOSE && jointModel.getConfig().TESTING) {
 					System.out.println("ELIMINATING (Duplicate): " + jms);
 				}
 			}
 			
-		} else {
-			newStatesTmp.add(jms);
+		} else if (newStatesTmp.add(jms)) {
+			addToDuplicateIndex(jms, keys[0], duplicateIndex);
+		}
+	}
+	
+	/**
+	 * Add the given state into the given duplicate index.
+	 * 
+	 * @param jms The state to add.
+	 * @param key The state's own duplicate key.
+	 * @param duplicateIndex The duplicate index.
+	 */
+	private static void addToDuplicateIndex(JointModelState jms, long key, Map<Long, List<JointModelState>> duplicateIndex) {
+		List<JointModelState> bucket = duplicateIndex.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<JointModelState>(1);
+			duplicateIndex.put(key, bucket);
 		}
+		
+		bucket.add(jms);
 	}
 	
 	/**
@@ -354,13 +394,34 @@ public class JointModelState extends MidiModelState {
 	 * @return True if the states are duplicates. False otherwise.
 	 */
 	private boolean isDuplicateOf(JointModelState state) {
-		if (Main.NUM_FROM_FILE == 0) {
+		if (!jointModel.getConfig().USE_FROM_FILE) {
 			return beatState.isDuplicateOf(state.beatState) && hierarchyState.isDuplicateOf(state.hierarchyState);
 		}
 		
 		return voiceState.isDuplicateOf(state.voiceState) && beatState.isDuplicateOf(state.beatState) && hierarchyState.isDuplicateOf(state.hierarchyState);
 	}
 	
+	/**
+	 * Get the keys of the duplicate buckets that any state which {@link #isDuplicateOf(JointModelState)} this one
+	 * could lie in, combining those of the beat state with the duplicate hashes of the hierarchy state (and voice
+	 * state, if it is used in the duplicate check). The first key is the bucket of this state itself.
+	 * 
+	 * @return The duplicate bucket keys of this state, with its own first.
+	 */
+	private long[] getDuplicateKeys() {
+		long hash = hierarchyState.getDuplicateHash();
+		if (jointModel.getConfig().USE_FROM_FILE) {
+			hash = 31 * hash + voiceState.getDuplicateHash();
+		}
+		
+		long[] keys = beatState.getDuplicateKeys();
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 31 * keys[i] + hash;
+		}
+		
+		return keys;
+	}
+	
 	/**
 	 * Return if this state is started yet. That is, if it has completed enough to be removed.
 	 * 
@@ -0,0 +1,536 @@
+package metalign.joint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import metalign.hierarchy.HierarchyModelState;
+import metalign.hierarchy.Measure;
+import metalign.utils.MidiNote;
+
+/**
+ * A <code>StreamingJointModel</code> runs a {@link JointModel} online. Notes are fed in as they arrive, and
+ * after each step, the tatums, beats, and downbeats which have been committed since the previous step are
+ * returned as a {@link Commit}. Committed output is never changed afterwards.
+ * <br>
+ * A tatum is committed once every hypothesis in the beam agrees on it (and on all of the tatums before it).
+ * Since the beam only ever extends its hypotheses' tatums, these can no longer change. Beats and downbeats
+ * are committed once the hypotheses also agree on the metrical structure.
+ * <br>
+ * The hypotheses may disagree for a long time, so a fixed lag can also be given. Then, every tatum which is
+ * at least that far behind the latest onset is committed from the best hypothesis whose tatums reach that far,
+ * along with its metrical structure, and any hypothesis which disagrees with the committed output (or has not
+ * yet placed all of the committed tatums) is removed from the beam. This usually fixes the metrical structure
+ * at the first commit, so a short lag reduces accuracy, and the lag should be at least a few bars long.
+ * <br>
+ * This class keeps no history of its own: committed output is returned once and then forgotten, and each step
+ * only checks the tatums after those already committed, so the work per step does not grow with the input.
+ * Memory still grows with the length of the input, though: each hypothesis keeps its full tatum list (shared
+ * with the others where they agree) and voices back to the first note. The hierarchy states look up notes'
+ * tatums by index from the start of the piece, and the final hypotheses are used for the complete output,
+ * so committed history is not released.
+ *
+ * @author Andrew McLeod
+ */
+public class StreamingJointModel {
+	/**
+	 * Orders notes with identical onsets by offset, as in {@link metalign.parsing.NoteListGenerator#getIncomingLists()}.
+	 */
+	private static final Comparator<MidiNote> OFFSET_ORDER = new Comparator<MidiNote>() {
+		@Override
+		public int compare(MidiNote o1, MidiNote o2) {
+			int result = Long.compare(o1.getOnsetTime(), o2.getOnsetTime());
+			if (result != 0) {
+				return result;
+			}
+
+			return Long.compare(o1.getOffsetTime(), o2.getOffsetTime());
+		}
+	};
+
+	/**
+	 * The joint model which performs the inference.
+	 */
+	private final JointModel jointModel;
+
+	/**
+	 * The number of microseconds behind the latest onset after which the best hypothesis's tatums are committed,
+	 * or -1 to commit tatums only once all hypotheses agree on them.
+	 */
+	private final long lag;
+
+	/**
+	 * The notes given to {@link #addNote(MidiNote)} which have not yet been handled. These all have the same onset.
+	 */
+	private final List<MidiNote> pendingNotes;
+
+	/**
+	 * The latest onset time handled so far.
+	 */
+	private long time;
+
+	/**
+	 * The number of tatums committed so far.
+	 */
+	private int committedTatums;
+
+	/**
+	 * The number of committed tatums which have been checked for beats and downbeats. This is less than
+	 * {@link #committedTatums} only while the metrical structure has not been committed.
+	 */
+	private int checkedTatums;
+
+	/**
+	 * The committed measure, or null if the metrical structure has not been committed yet.
+	 */
+	private Measure measure;
+
+	/**
+	 * The committed number of tatums per sub beat.
+	 */
+	private int subBeatLength;
+
+	/**
+	 * The committed anacrusis length, in sub beats.
+	 */
+	private int anacrusis;
+
+	/**
+	 * Create a new streaming model which commits tatums only once all hypotheses agree on them.
+	 *
+	 * @param jointModel {@link #jointModel}
+	 */
+	public StreamingJointModel(JointModel jointModel) {
+		this(jointModel, -1);
+	}
+
+	/**
+	 * Create a new streaming model.
+	 *
+	 * @param jointModel {@link #jointModel}
+	 * @param lag {@link #lag}
+	 */
+	public StreamingJointModel(JointModel jointModel, long lag) {
+		this.jointModel = jointModel;
+		this.lag = lag;
+
+		pendingNotes = new ArrayList<MidiNote>();
+		time = 0;
+		committedTatums = 0;
+		checkedTatums = 0;
+		measure = null;
+	}
+
+	/**
+	 * Add a single note. Notes must be added in order of onset time. All of the notes with the same onset are
+	 * handled together, once a note with a later onset is added (or on {@link #close()}).
+	 *
+	 * @param note The note to add.
+	 * @return The output committed by this note. This is empty unless the note has a later onset than the
+	 * pending notes, which have then been handled.
+	 *
+	 * @throws IllegalArgumentException If the note onsets before a note which has already been added.
+	 */
+	public Commit addNote(MidiNote note) {
+		if (pendingNotes.isEmpty() || pendingNotes.get(0).getOnsetTime() == note.getOnsetTime()) {
+			if (note.getOnsetTime() < time) {
+				throw new IllegalArgumentException("Note " + note + " onsets before time " + time);
+			}
+
+			pendingNotes.add(note);
+			return new Commit(time);
+		}
+
+		if (note.getOnsetTime() < pendingNotes.get(0).getOnsetTime()) {
+			throw new IllegalArgumentException("Note " + note + " onsets before time " + pendingNotes.get(0).getOnsetTime());
+		}
+
+		Commit commit = handlePendingNotes();
+		pendingNotes.add(note);
+		return commit;
+	}
+
+	/**
+	 * Handle the notes given to {@link #addNote(MidiNote)} which have not yet been handled.
+	 *
+	 * @return The output committed by handling them.
+	 */
+	private Commit handlePendingNotes() {
+		List<MidiNote> notes = new ArrayList<MidiNote>(pendingNotes);
+		pendingNotes.clear();
+
+		Collections.sort(notes);
+		Collections.sort(notes, OFFSET_ORDER);
+
+		return handleIncoming(notes);
+	}
+
+	/**
+	 * Handle the given notes, all of which have the same onset time (as in {@link JointModel#handleIncoming(List)}),
+	 * and get the output which is committed as a result.
+	 *
+	 * @param notes The notes to handle.
+	 * @return The output committed by these notes.
+	 */
+	public Commit handleIncoming(List<MidiNote> notes) {
+		Commit pendingCommit = pendingNotes.isEmpty() ? null : handlePendingNotes();
+
+		if (!notes.isEmpty()) {
+			time = Math.max(time, notes.get(0).getOnsetTime());
+		}
+
+		jointModel.handleIncoming(notes);
+		return commit(false).addAfter(pendingCommit);
+	}
+
+	/**
+	 * Close the joint model, and commit all of the remaining output of its best hypothesis.
+	 *
+	 * @return The output committed by closing the model.
+	 */
+	public Commit close() {
+		Commit pendingCommit = pendingNotes.isEmpty() ? null : handlePendingNotes();
+
+		jointModel.close();
+		return commit(true).addAfter(pendingCommit);
+	}
+
+	/**
+	 * Commit as much output as possible from the joint model's current hypotheses.
+	 *
+	 * @param closed Whether the joint model has been closed. If it has, all of the output of the best
+	 * hypothesis is committed.
+	 * @return The newly committed output.
+	 */
+	private Commit commit(boolean closed) {
+		Commit commit = new Commit(time);
+		if (jointModel.getHypotheses().isEmpty()) {
+			return commit;
+		}
+
+		JointModelState best = closed || lag < 0 ? jointModel.getHypotheses().first() : getLaggedBest();
+		List<Integer> bestTimes = best.getBeatState().getBeatTimes();
+		int previouslyCommitted = committedTatums;
+		boolean forced = closed;
+
+		if (closed) {
+			committedTatums = bestTimes.size();
+
+		} else {
+			committedTatums = getAgreedTatums(bestTimes);
+
+			if (lag >= 0) {
+				int lagged = committedTatums;
+				while (lagged < bestTimes.size() && bestTimes.get(lagged) <= time - lag) {
+					lagged++;
+				}
+
+				if (lagged > committedTatums) {
+					committedTatums = lagged;
+					forced = true;
+					removeDisagreeingTatums(bestTimes, previouslyCommitted);
+				}
+			}
+		}
+
+		for (int i = previouslyCommitted; i < committedTatums; i++) {
+			commit.tatumTimes.add(bestTimes.get(i));
+		}
+
+		// Commit the metrical structure
+		if (measure == null && committedTatums > 0 && (forced || isHierarchyAgreed(best.getHierarchyState()))) {
+			HierarchyModelState hierarchy = best.getHierarchyState();
+
+			if (hierarchy.getMetricalMeasure() != null) {
+				measure = hierarchy.getMetricalMeasure();
+				subBeatLength = hierarchy.getSubBeatLength();
+				anacrusis = hierarchy.getAnacrusis();
+
+				if (!closed) {
+					removeDisagreeingHierarchies();
+				}
+			}
+		}
+
+		// Find the beats and downbeats
+		if (measure != null) {
+			int beatLength = measure.getSubBeatsPerBeat() * subBeatLength;
+			int barLength = measure.getBeatsPerMeasure() * beatLength;
+			int beatStart = (anacrusis % measure.getSubBeatsPerBeat()) * subBeatLength;
+			int barStart = anacrusis * subBeatLength;
+
+			for (; checkedTatums < committedTatums; checkedTatums++) {
+				if (checkedTatums >= beatStart && (checkedTatums - beatStart) % beatLength == 0) {
+					commit.beatTimes.add(bestTimes.get(checkedTatums));
+				}
+
+				if (checkedTatums >= barStart && (checkedTatums - barStart) % barLength == 0) {
+					commit.downbeatTimes.add(bestTimes.get(checkedTatums));
+				}
+			}
+		}
+
+		return commit;
+	}
+
+	/**
+	 * Get the best hypothesis which has placed tatums up to the lag behind the latest onset. Hypotheses which have
+	 * placed fewer bars tend to score higher, so the best hypothesis overall may not yet have any tatums to commit.
+	 *
+	 * @return The best hypothesis whose tatums reach the lag, or the best hypothesis overall if there is none.
+	 */
+	private JointModelState getLaggedBest() {
+		for (JointModelState jms : jointModel.getHypotheses()) {
+			if (jms.getBeatState().getLastTatumTime() >= time - lag) {
+				return jms;
+			}
+		}
+
+		return jointModel.getHypotheses().first();
+	}
+
+	/**
+	 * Get the number of tatums which all of the joint model's hypotheses agree on. Every hypothesis
+	 * already agrees on the first {@link #committedTatums}, so only the tatums after those are checked.
+	 *
+	 * @param bestTimes The tatum times of the best hypothesis.
+	 * @return The number of tatums which all hypotheses agree on.
+	 */
+	private int getAgreedTatums(List<Integer> bestTimes) {
+		int agreed = bestTimes.size();
+
+		for (JointModelState jms : jointModel.getHypotheses()) {
+			List<Integer> times = jms.getBeatState().getBeatTimes();
+			if (times == bestTimes) {
+				continue;
+			}
+
+			int i = committedTatums;
+			while (i < agreed && i < times.size() && times.get(i).equals(bestTimes.get(i))) {
+				i++;
+			}
+
+			agreed = i;
+			if (agreed == committedTatums) {
+				break;
+			}
+		}
+
+		return agreed;
+	}
+
+	/**
+	 * Remove every hypothesis from the joint model which does not agree with the best hypothesis on all of
+	 * the committed tatums.
+	 *
+	 * @param bestTimes The tatum times of the best hypothesis.
+	 * @param from The number of tatums which were committed before this step. All hypotheses already agree on these.
+	 */
+	private void removeDisagreeingTatums(List<Integer> bestTimes, int from) {
+		List<JointModelState> disagreeing = new ArrayList<JointModelState>();
+
+		for (JointModelState jms : jointModel.getHypotheses()) {
+			List<Integer> times = jms.getBeatState().getBeatTimes();
+			if (times == bestTimes) {
+				continue;
+			}
+
+			if (times.size() < committedTatums) {
+				disagreeing.add(jms);
+				continue;
+			}
+
+			for (int i = from; i < committedTatums; i++) {
+				if (!times.get(i).equals(bestTimes.get(i))) {
+					disagreeing.add(jms);
+					break;
+				}
+			}
+		}
+
+		for (JointModelState jms : disagreeing) {
+			jointModel.removeHypothesis(jms);
+		}
+	}
+
+	/**
+	 * Decide whether all of the joint model's hypotheses have the same metrical structure as the given one.
+	 *
+	 * @param hierarchy The hierarchy state of the best hypothesis.
+	 * @return True if all hypotheses agree on the metrical structure. False otherwise.
+	 */
+	private boolean isHierarchyAgreed(HierarchyModelState hierarchy) {
+		for (JointModelState jms : jointModel.getHypotheses()) {
+			if (!isSameStructure(jms.getHierarchyState(), hierarchy.getMetricalMeasure(), hierarchy.getSubBeatLength(),
+					hierarchy.getAnacrusis())) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove every hypothesis from the joint model which does not have the committed metrical structure.
+	 */
+	private void removeDisagreeingHierarchies() {
+		List<JointModelState> disagreeing = new ArrayList<JointModelState>();
+
+		for (JointModelState jms : jointModel.getHypotheses()) {
+			if (!isSameStructure(jms.getHierarchyState(), measure, subBeatLength, anacrusis)) {
+				disagreeing.add(jms);
+			}
+		}
+
+		for (JointModelState jms : disagreeing) {
+			jointModel.removeHypothesis(jms);
+		}
+	}
+
+	/**
+	 * Decide whether the given hierarchy state has the given metrical structure.
+	 *
+	 * @param hierarchy The hierarchy state to check.
+	 * @param measure The measure.
+	 * @param subBeatLength The number of tatums per sub beat.
+	 * @param anacrusis The anacrusis length, in sub beats.
+	 * @return True if the hierarchy state has the given structure. False otherwise.
+	 */
+	private static boolean isSameStructure(HierarchyModelState hierarchy, Measure measure, int subBeatLength, int anacrusis) {
+		Measure other = hierarchy.getMetricalMeasure();
+
+		return measure != null && other != null && other.getBeatsPerMeasure() == measure.getBeatsPerMeasure() &&
+				other.getSubBeatsPerBeat() == measure.getSubBeatsPerBeat() && hierarchy.getSubBeatLength() == subBeatLength &&
+				hierarchy.getAnacrusis() == anacrusis;
+	}
+
+	/**
+	 * Get the joint model which performs the inference.
+	 *
+	 * @return {@link #jointModel}
+	 */
+	public JointModel getJointModel() {
+		return jointModel;
+	}
+
+	/**
+	 * Get the number of tatums committed so far.
+	 *
+	 * @return {@link #committedTatums}
+	 */
+	public int getCommittedTatums() {
+		return committedTatums;
+	}
+
+	/**
+	 * A <code>Commit</code> holds the tatum, beat, and downbeat times committed at a single step, in microseconds.
+	 */
+	public static class Commit {
+		/**
+		 * The latest onset time which had been handled when this output was committed.
+		 */
+		private final long time;
+
+		/**
+		 * The committed tatum times.
+		 */
+		private final List<Integer> tatumTimes;
+
+		/**
+		 * The committed beat times.
+		 */
+		private final List<Integer> beatTimes;
+
+		/**
+		 * The committed downbeat times.
+		 */
+		private final List<Integer> downbeatTimes;
+
+		/**
+		 * Create a new empty commit.
+		 *
+		 * @param time {@link #time}
+		 */
+		private Commit(long time) {
+			this.time = time;
+
+			tatumTimes = new ArrayList<Integer>();
+			beatTimes = new ArrayList<Integer>();
+			downbeatTimes = new ArrayList<Integer>();
+		}
+
+		/**
+		 * Get the latest onset time which had been handled when this output was committed.
+		 *
+		 * @return {@link #time}
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get the committed tatum times.
+		 *
+		 * @return {@link #tatumTimes}
+		 */
+		public List<Integer> getTatumTimes() {
+			return tatumTimes;
+		}
+
+		/**
+		 * Get the committed beat times.
+		 *
+		 * @return {@link #beatTimes}
+		 */
+		public List<Integer> getBeatTimes() {
+			return beatTimes;
+		}
+
+		/**
+		 * Get the committed downbeat times.
+		 *
+		 * @return {@link #downbeatTimes}
+		 */
+		public List<Integer> getDownbeatTimes() {
+			return downbeatTimes;
+		}
+
+		/**
+		 * Decide whether anything was committed.
+		 *
+		 * @return True if no tatums, beats, or downbeats were committed. False otherwise.
+		 */
+		public boolean isEmpty() {
+			return tatumTimes.isEmpty() && beatTimes.isEmpty() && downbeatTimes.isEmpty();
+		}
+
+		/**
+		 * Add the output of the given earlier commit before this commit's output.
+		 *
+		 * @param earlier The earlier commit, or null to add nothing.
+		 * @return This commit.
+		 */
+		private Commit addAfter(Commit earlier) {
+			if (earlier != null) {
+				tatumTimes.addAll(0, earlier.tatumTimes);
+				beatTimes.addAll(0, earlier.beatTimes);
+				downbeatTimes.addAll(0, earlier.downbeatTimes);
+			}
+
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+
+			sb.append(time).append(": ");
+			sb.append("tatums=").append(tatumTimes).append(' ');
+			sb.append("beats=").append(beatTimes).append(' ');
+			sb.append("downbeats=").append(downbeatTimes);
+
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package metalign.time;
+
+import java.util.List;
+
+/**
+ * A <code>TempoMap</code> is an indexed, read-only view of the {@link TimeTrackerNode}s of a
+ * {@link TimeTracker}. The start tick, start time, and time per tick of each node are kept in sorted
+ * primitive arrays, so that the node valid at any tick or time can be found with a binary search,
+ * and a {@link Cursor} can walk through them in constant amortized time during sequential scans.
+ * <br>
+ * Conversions give exactly the same results as the equivalent {@link TimeTrackerNode} methods.
+ *
+ * @author Andrew McLeod
+ */
+public class TempoMap {
+	/**
+	 * The nodes of this map, ordered by tick.
+	 */
+	private final TimeTrackerNode[] nodes;
+
+	/**
+	 * The start tick of each node.
+	 */
+	private final long[] startTicks;
+
+	/**
+	 * The start time of each node, measured in microseconds.
+	 */
+	private final long[] startTimes;
+
+	/**
+	 * The number of microseconds per tick of each node.
+	 */
+	private final double[] timesPerTick;
+
+	/**
+	 * Create a new TempoMap of the given nodes.
+	 *
+	 * @param nodes The nodes, ordered by tick. There must be at least one.
+	 * @param ppq The pulses per quarter note of the song.
+	 */
+	public TempoMap(List<TimeTrackerNode> nodes, double ppq) {
+		this.nodes = nodes.toArray(new TimeTrackerNode[nodes.size()]);
+
+		startTicks = new long[this.nodes.length];
+		startTimes = new long[this.nodes.length];
+		timesPerTick = new double[this.nodes.length];
+
+		for (int i = 0; i < this.nodes.length; i++) {
+			startTicks[i] = this.nodes[i].getStartTick();
+			startTimes[i] = this.nodes[i].getStartTime();
+			timesPerTick[i] = this.nodes[i].getTimePerTick(ppq);
+		}
+	}
+
+	/**
+	 * Get the index of the node which is valid at the given tick.
+	 *
+	 * @param tick The tick.
+	 * @return The index of the last node starting at or before the given tick, or 0 if there is none.
+	 */
+	public int getIndexAtTick(long tick) {
+		return getLastIndexAtOrBefore(startTicks, tick);
+	}
+
+	/**
+	 * Get the index of the node which is valid at the given time.
+	 *
+	 * @param time The time, measured in microseconds.
+	 * @return The index of the last node starting at or before the given time, or 0 if there is none.
+	 */
+	public int getIndexAtTime(long time) {
+		return getLastIndexAtOrBefore(startTimes, time);
+	}
+
+	/**
+	 * Get the time at the given tick, using the node at the given index.
+	 *
+	 * @param index The index of the node to use.
+	 * @param tick The tick at which we want the time.
+	 * @return The time at the given tick, measured in microseconds.
+	 */
+	public long getTimeAtTick(int index, long tick) {
+		return (long) ((tick - startTicks[index]) * timesPerTick[index]) + startTimes[index];
+	}
+
+	/**
+	 * Get the tick at the given time, using the node at the given index.
+	 *
+	 * @param index The index of the node to use.
+	 * @param time The time at which we want the tick, measured in microseconds.
+	 * @return The tick at the given time.
+	 */
+	public long getTickAtTime(int index, long time) {
+		return (long) ((time - startTimes[index]) / timesPerTick[index]) + startTicks[index];
+	}
+
+	/**
+	 * Get the time at the given tick.
+	 *
+	 * @param tick The tick at which we want the time.
+	 * @return The time at the given tick, measured in microseconds.
+	 */
+	public long getTimeAtTick(long tick) {
+		return getTimeAtTick(getIndexAtTick(tick), tick);
+	}
+
+	/**
+	 * Get the tick at the given time.
+	 *
+	 * @param time The time at which we want the tick, measured in microseconds.
+	 * @return The tick at the given time.
+	 */
+	public long getTickAtTime(long time) {
+		return getTickAtTime(getIndexAtTime(time), time);
+	}
+
+	/**
+	 * Get the node at the given index.
+	 *
+	 * @param index The index of the node.
+	 * @return The node at the given index.
+	 */
+	public TimeTrackerNode getNode(int index) {
+		return nodes[index];
+	}
+
+	/**
+	 * Get the number of nodes in this map.
+	 *
+	 * @return The number of nodes in this map.
+	 */
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * Get a new Cursor on this map, starting at its first node.
+	 *
+	 * @return A new Cursor.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Binary search the given sorted array.
+	 *
+	 * @param values The sorted array.
+	 * @param value The value to search for.
+	 * @return The index of the last element which is less than or equal to the given value,
+	 * or 0 if there is none.
+	 */
+	private static int getLastIndexAtOrBefore(long[] values, long value) {
+		int low = 1;
+		int high = values.length;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (values[mid] <= value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low - 1;
+	}
+
+	/**
+	 * A <code>Cursor</code> remembers the node it last used, and moves forward from it to find the node
+	 * for the next lookup. Scanning through ticks or times in order therefore takes constant amortized
+	 * time per lookup. Moving backwards falls back to a binary search.
+	 */
+	public class Cursor {
+		/**
+		 * The index of the current node.
+		 */
+		private int index = 0;
+
+		/**
+		 * Move this cursor to the node which is valid at the given tick.
+		 *
+		 * @param tick The tick.
+		 * @return The index of the node valid at the given tick.
+		 */
+		public int seekTick(long tick) {
+			if (tick < startTicks[index]) {
+				index = getIndexAtTick(tick);
+
+			} else {
+				while (index + 1 < startTicks.length && startTicks[index + 1] <= tick) {
+					index++;
+				}
+			}
+
+			return index;
+		}
+
+		/**
+		 * Move this cursor to the node which is valid at the given time.
+		 *
+		 * @param time The time, measured in microseconds.
+		 * @return The index of the node valid at the given time.
+		 */
+		public int seekTime(long time) {
+			if (time < startTimes[index]) {
+				index = getIndexAtTime(time);
+
+			} else {
+				while (index + 1 < startTimes.length && startTimes[index + 1] <= time) {
+					index++;
+				}
+			}
+
+			return index;
+		}
+
+		/**
+		 * Get the time at the given tick.
+		 *
+		 * @param tick The tick at which we want the time.
+		 * @return The time at the given tick, measured in microseconds.
+		 */
+		public long getTimeAtTick(long tick) {
+			return TempoMap.this.getTimeAtTick(seekTick(tick), tick);
+		}
+
+		/**
+		 * Get the node which is valid at the given time.
+		 *
+		 * @param time The time, measured in microseconds.
+		 * @return The node valid at the given time.
+		 */
+		public TimeTrackerNode getNodeAtTime(long time) {
+			return nodes[seekTime(time)];
+		}
+	}
+}
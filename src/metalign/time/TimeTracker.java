@@ -14,7 +14,7 @@ import metalign.hierarchy.Measure;
 /**
  * A <code>TimeTracker</code> is able to interpret MIDI tempo, key, and time signature change events and keep track
  * of the song timing in seconds, instead of just using ticks as MIDI events do. It does this by using
- * a LinkedList of {@link TimeTrackerNode} objects.
+ * a LinkedList of {@link TimeTrackerNode} objects, indexed by a {@link TempoMap} for conversions.
  *
  * @author Andrew McLeod - 23 October, 2014
  */
@@ -29,6 +29,12 @@ public class TimeTracker {
 	 */
 	private final LinkedList<TimeTrackerNode> nodes;
 
+	/**
+	 * An index of {@link #nodes}, used for tick and time conversions, or null if it has not been built
+	 * since they last changed. See {@link #getTempoMap()}.
+	 */
+	private volatile TempoMap tempoMap = null;
+
 	/**
 	 * The number of tatums per sub beat. A negative value or 0 defaults to using 32nd notes.
 	 */
@@ -76,6 +82,7 @@ public class TimeTracker {
      */
     public void addTimeSignatureChange(MidiEvent event, MetaMessage mm) {
     	TimeSignature ts = new TimeSignature(mm.getData());
+    	tempoMap = null;
 
     	if (nodes.getLast().getStartTick() > event.getTick()) {
     		return;
@@ -103,6 +110,7 @@ public class TimeTracker {
      */
     public void addTimeSignatureChange(long tick, int numerator, int denominator) {
 		TimeSignature ts = new TimeSignature(numerator, denominator);
+		tempoMap = null;
 
 		if (nodes.getLast().getStartTick() > tick) {
     		return;
@@ -128,6 +136,7 @@ public class TimeTracker {
      */
     public void addTempoChange(MidiEvent event, MetaMessage mm) {
     	Tempo t = new Tempo(mm.getData());
+    	tempoMap = null;
 
     	if (nodes.getLast().getStartTick() > event.getTick()) {
     		return;
@@ -151,6 +160,7 @@ public class TimeTracker {
      */
     public void addTempoChange(long tick, int qpm) {
 		Tempo t = new Tempo(qpm);
+		tempoMap = null;
 
 		if (nodes.getLast().getStartTick() > tick) {
     		return;
@@ -174,6 +184,7 @@ public class TimeTracker {
      */
     public void addKeySignatureChange(MidiEvent event, MetaMessage mm) {
     	KeySignature ks = new KeySignature(mm.getData());
+    	tempoMap = null;
 
     	if (nodes.getLast().getStartTick() > event.getTick()) {
     		return;
@@ -198,6 +209,7 @@ public class TimeTracker {
      */
     public void addKeySignatureChange(long tick, int keyNumber, boolean isMajor) {
 		KeySignature ks = new KeySignature(keyNumber, isMajor);
+		tempoMap = null;
 
 		if (nodes.getLast().getStartTick() > tick) {
     		return;
@@ -220,7 +232,7 @@ public class TimeTracker {
      * @return The time of the given tick number, measured in microseconds since the most recent epoch.
      */
     public long getTimeAtTick(long tick) {
-    	return getNodeAtTick(tick).getTimeAtTick(tick, PPQ);
+    	return getTempoMap().getTimeAtTick(tick);
     }
 
     /**
@@ -230,19 +242,8 @@ public class TimeTracker {
      * @return The valid TimeTrackerNode.
      */
     private TimeTrackerNode getNodeAtTick(long tick) {
-    	ListIterator<TimeTrackerNode> iterator = nodes.listIterator();
-
-    	TimeTrackerNode node = iterator.next();
-    	while (iterator.hasNext()) {
-    		node = iterator.next();
-
-    		if (node.getStartTick() > tick) {
-    			iterator.previous();
-    			return iterator.previous();
-    		}
-    	}
-
-    	return node;
+    	TempoMap map = getTempoMap();
+    	return map.getNode(map.getIndexAtTick(tick));
     }
 
     /**
@@ -252,7 +253,7 @@ public class TimeTracker {
      * @return The tick number which corresponds to the given time.
      */
     public long getTickAtTime(long time) {
-    	return getNodeAtTime(time).getTickAtTime(time, PPQ);
+    	return getTempoMap().getTickAtTime(time);
     }
 
     /**
@@ -262,19 +263,25 @@ public class TimeTracker {
      * @return The valid TimeTrackerNode.
      */
     public TimeTrackerNode getNodeAtTime(long time) {
-    	ListIterator<TimeTrackerNode> iterator = nodes.listIterator();
+    	TempoMap map = getTempoMap();
+    	return map.getNode(map.getIndexAtTime(time));
+    }
 
-    	TimeTrackerNode node = iterator.next();
-    	while (iterator.hasNext()) {
-    		node = iterator.next();
+    /**
+     * Get the {@link TempoMap} of this TimeTracker's nodes, building it if they have changed
+     * since it was last built.
+     *
+     * @return {@link #tempoMap}
+     */
+    public TempoMap getTempoMap() {
+    	TempoMap map = tempoMap;
 
-    		if (node.getStartTime() > time) {
-    			iterator.previous();
-    			return iterator.previous();
-    		}
+    	if (map == null) {
+    		map = new TempoMap(nodes, PPQ);
+    		tempoMap = map;
     	}
 
-    	return node;
+    	return map;
     }
 
     /**
@@ -339,7 +346,8 @@ public class TimeTracker {
     		}
     	}
 
-    	beats.add(new Beat(measureNum, note32Num, getTimeAtTick(tick), tick));
+    	TempoMap.Cursor cursor = getTempoMap().cursor();
+    	beats.add(new Beat(measureNum, note32Num, cursor.getTimeAtTick(tick), tick));
 
     	tick += ticksPerNote32;
     	note32Num++;
@@ -357,7 +365,7 @@ public class TimeTracker {
         	notes32PerMeasure = node.getTimeSignature().getNotes32PerBar();
 
     		while (tick <= lastTick && tick < next.getStartTick()) {
-    			beats.add(new Beat(measureNum, note32Num, getTimeAtTick(tick), tick));
+    			beats.add(new Beat(measureNum, note32Num, cursor.getTimeAtTick(tick), tick));
 
     			tick += ticksPerNote32;
     	    	note32Num++;
@@ -375,7 +383,7 @@ public class TimeTracker {
         	notes32PerMeasure = node.getTimeSignature().getNotes32PerBar();
 
     		while (tick <= lastTick) {
-    			beats.add(new Beat(measureNum, note32Num, getTimeAtTick(tick), tick));
+    			beats.add(new Beat(measureNum, note32Num, cursor.getTimeAtTick(tick), tick));
 
     			tick += ticksPerNote32;
     	    	note32Num++;
@@ -401,10 +409,11 @@ public class TimeTracker {
     public List<Beat> getBeatsOnly() {
     	List<Beat> tatums = getTatums();
     	List<Beat> beats = new ArrayList<Beat>();
+    	TempoMap.Cursor cursor = getTempoMap().cursor();
 
     	// Check which tatums are beats
     	for (Beat tatum : tatums) {
-    		TimeTrackerNode node = getNodeAtTime(tatum.getTime());
+    		TimeTrackerNode node = cursor.getNodeAtTime(tatum.getTime());
 
     		int notes32PerMeasure = node.getTimeSignature().getNotes32PerBar();
     		int beatsPerBar = node.getTimeSignature().getMetricalMeasure().getBeatsPerMeasure();
@@ -436,6 +445,7 @@ public class TimeTracker {
 
 		double tickDiff = 0.0;
 		double timeDiff = 0.0;
+		TempoMap.Cursor cursor = getTempoMap().cursor();
 
 		for (Beat beat : tatums) {
 			long time = beat.getTime();
@@ -444,7 +454,7 @@ public class TimeTracker {
 			int notes32PerSubBeat = 0;
 			int notes32PerBeat = 0;
 
-			TimeSignature timeSig = getNodeAtTime(time).getTimeSignature();
+			TimeSignature timeSig = cursor.getNodeAtTime(time).getTimeSignature();
 			int notes32PerBar = timeSig.getNotes32PerBar();
 			Measure tmpMeasure = timeSig.getMetricalMeasure();
 			int beatsPerBar = tmpMeasure.getBeatsPerMeasure();
@@ -552,7 +562,8 @@ public class TimeTracker {
 	}
 
     /**
-     * Get a list of the {@link TimeTrackerNode}s tracked by this object.
+     * Get a list of the {@link TimeTrackerNode}s tracked by this object. This should not be
+     * changed directly, since {@link #tempoMap} would not be updated.
      *
      * @return {@link #nodes}
      */
@@ -585,6 +596,7 @@ public class TimeTracker {
      */
     public void setPPQ(double ppq) {
     	PPQ = ppq;
+    	tempoMap = null;
     }
 
     /**
@@ -0,0 +1,99 @@
+package metalign.utils;
+
+import java.util.Random;
+
+/**
+ * A <code>MathUtilsCheck</code> checks that {@link MathUtils#logStandardNormal(double, double, double)}
+ * matches <code>Math.log(MathUtils.getStandardNormal(x, mean, std))</code>, which it replaced in the beat
+ * tracking model. Run it with no arguments. It exits with status 1 if any check fails.
+ * <br>
+ * The two must be within {@link #MAX_ULPS} ulps of each other wherever the standard normal value is a
+ * normal double (|z| up to {@link #MAX_Z}). Far in the tails, the old form underflows to
+ * {@link Double#NEGATIVE_INFINITY}, and the new one must instead stay finite, equal to its closed form.
+ *
+ * @author Andrew McLeod
+ */
+public class MathUtilsCheck {
+	/**
+	 * The maximum allowed difference between the old and new values, in ulps of the old value.
+	 */
+	private static final double MAX_ULPS = 2.0;
+
+	/**
+	 * The largest |z| at which the values are compared. Beyond about 37.6, the standard normal value is
+	 * subnormal, so the old form loses precision.
+	 */
+	private static final double MAX_Z = 37.0;
+
+	/**
+	 * The number of random (x, mean, std) triples to compare.
+	 */
+	private static final int NUM_SAMPLES = 2000000;
+
+	/**
+	 * Private constructor, since this class is only run.
+	 */
+	private MathUtilsCheck() {}
+
+	/**
+	 * Run the checks, print their results, and exit with status 1 if any fails.
+	 *
+	 * @param args Unused.
+	 */
+	public static void main(String[] args) {
+		boolean passed = true;
+
+		// Evenly spaced z, with a unit distribution
+		double maxUlps = 0.0;
+		for (double z = -MAX_Z; z <= MAX_Z; z += 0.001) {
+			maxUlps = Math.max(maxUlps, getUlps(z, 0.0, 1.0));
+		}
+		System.out.println("Grid: max difference " + maxUlps + " ulps");
+		passed &= maxUlps <= MAX_ULPS;
+
+		// Random distributions, of the scales used by the beat tracking model (in microseconds)
+		Random random = new Random(0);
+		maxUlps = 0.0;
+		for (int i = 0; i < NUM_SAMPLES; i++) {
+			double std = 0.01 + random.nextDouble() * 100000.0;
+			double mean = (random.nextDouble() - 0.5) * 1000000.0;
+			double z = (random.nextDouble() * 2.0 - 1.0) * MAX_Z;
+
+			maxUlps = Math.max(maxUlps, getUlps(mean + z * std, mean, std));
+		}
+		System.out.println("Random: max difference " + maxUlps + " ulps");
+		passed &= maxUlps <= MAX_ULPS;
+
+		// Far tails, where the old form is -Infinity
+		boolean tailsFinite = true;
+		for (double z = 39.0; z <= 1000.0; z += 0.5) {
+			for (double sign = -1.0; sign <= 1.0; sign += 2.0) {
+				double value = MathUtils.logStandardNormal(sign * z, 0.0, 1.0);
+				tailsFinite &= Math.log(MathUtils.getStandardNormal(sign * z, 0.0, 1.0)) == Double.NEGATIVE_INFINITY &&
+						value == Math.log(1.0 / Math.sqrt(2 * Math.PI)) - 0.5 * z * z;
+			}
+		}
+		System.out.println("Tails: " + (tailsFinite ? "finite" : "NOT finite"));
+		passed &= tailsFinite;
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Get the difference between the old and new log standard normal values of the given x.
+	 *
+	 * @param x The value we want to measure.
+	 * @param mean The mean of the distribution.
+	 * @param std The standard deviation of the distribution.
+	 * @return The difference, in ulps of the old value.
+	 */
+	private static double getUlps(double x, double mean, double std) {
+		double oldValue = Math.log(MathUtils.getStandardNormal(x, mean, std));
+		double newValue = MathUtils.logStandardNormal(x, mean, std);
+
+		return Math.abs(newValue - oldValue) / Math.ulp(oldValue);
+	}
+}
@@ -0,0 +1,121 @@
+package metalign.utils;
+
+import java.io.Serializable;
+
+/**
+ * A <code>RunningStatistics</code> object keeps track of the count, mean, and variance of a
+ * stream of values, without saving the values themselves. Values are added with Welford's method,
+ * and two objects can be merged with Chan et al.'s parallel method, so that the variance stays
+ * numerically stable, and the values can be split up (e.g. by file) and summarized separately.
+ *
+ * @author Andrew McLeod
+ */
+public class RunningStatistics implements Serializable {
+	/**
+	 * Version 1
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The number of values seen.
+	 */
+	private long count;
+
+	/**
+	 * The mean of the values seen.
+	 */
+	private double mean;
+
+	/**
+	 * The sum of the squared differences of the values seen from their mean.
+	 */
+	private double m2;
+
+	/**
+	 * Create a new empty statistics object.
+	 */
+	public RunningStatistics() {
+		count = 0;
+		mean = 0.0;
+		m2 = 0.0;
+	}
+
+	/**
+	 * Add the given value.
+	 *
+	 * @param value The value to add.
+	 */
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+	}
+
+	/**
+	 * Merge the given statistics into this object. Afterwards, this object is as if it had also
+	 * seen all of the values the given one has seen.
+	 *
+	 * @param other The statistics to merge into this one. It is not changed.
+	 */
+	public void merge(RunningStatistics other) {
+		if (other.count == 0) {
+			return;
+		}
+
+		if (count == 0) {
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+			return;
+		}
+
+		long newCount = count + other.count;
+		double delta = other.mean - mean;
+
+		mean += delta * other.count / newCount;
+		m2 += other.m2 + delta * delta * count / newCount * other.count;
+		count = newCount;
+	}
+
+	/**
+	 * Get the number of values seen.
+	 *
+	 * @return {@link #count}
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the mean of the values seen.
+	 *
+	 * @return {@link #mean}, or NaN if no values have been seen.
+	 */
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * Get the (population) variance of the values seen.
+	 *
+	 * @return The variance of the values seen, or NaN if no values have been seen.
+	 */
+	public double getVariance() {
+		return count == 0 ? Double.NaN : m2 / count;
+	}
+
+	/**
+	 * Get the (population) standard deviation of the values seen.
+	 *
+	 * @return The standard deviation of the values seen, or NaN if no values have been seen.
+	 */
+	public double getStd() {
+		return Math.sqrt(getVariance());
+	}
+
+	@Override
+	public String toString() {
+		return "{count=" + count + ", mean=" + getMean() + ", std=" + getStd() + "}";
+	}
+}
@@ -1,6 +1,7 @@
 package metalign.voice;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,9 +37,9 @@ public class Voice implements Comparable<Voice> {
 	private final long firstNoteTime;
 	
 	/**
-	 * A List of the MidiNotes in this voice.
+	 * The number of notes in this voice.
 	 */
-	private List<MidiNote> notes;
+	private final int numNotes;
 	
 	/**
 	 * Create a new Voice with the given previous voice.
@@ -51,12 +52,7 @@ public class Voice implements Comparable<Voice> {
 		mostRecentNote = note;
 		
 		firstNoteTime = prev == null ? note.getOnsetTime() : prev.firstNoteTime;
-		
-		notes = new ArrayList<MidiNote>(prev == null ? 1 : prev.getNumNotes() + 1);
-		if (prev != null) {
-			notes.addAll(prev.notes);
-		}
-		notes.add(note);
+		numNotes = prev == null ? 1 : prev.numNotes + 1;
 	}
 	
 	/**
@@ -215,16 +211,41 @@ public class Voice implements Comparable<Voice> {
 	 * @return The number of notes.
 	 */
 	public int getNumNotes() {
-		return notes.size();
+		return numNotes;
 	}
 
 	/**
-	 * Get the List of notes which this node is the tail of, in chronological order.
+	 * Get the List of notes which this node is the tail of, in chronological order. The notes are not
+	 * saved in each node, so this List is built by walking back through the whole voice.
 	 * 
-	 * @return A List of notes in chronological order, ending with this one.
+	 * @return A new List of notes in chronological order, ending with this one.
 	 */
 	public List<MidiNote> getNotes() {
-		return notes;
+		MidiNote[] notes = new MidiNote[numNotes];
+		
+		int i = numNotes;
+		for (Voice node = this; node != null; node = node.previous) {
+			notes[--i] = node.mostRecentNote;
+		}
+		
+		return Arrays.asList(notes);
+	}
+	
+	/**
+	 * Decide whether the given note is in this voice. Only the notes which onset no earlier than
+	 * the given note are checked.
+	 * 
+	 * @param note The note to look for.
+	 * @return True if the given note is in this voice. False otherwise.
+	 */
+	public boolean contains(MidiNote note) {
+		for (Voice node = this; node != null && node.mostRecentNote.getOnsetTime() >= note.getOnsetTime(); node = node.previous) {
+			if (node.mostRecentNote.equals(note)) {
+				return true;
+			}
+		}
+		
+		return false;
 	}
 	
 	/**
@@ -387,13 +408,14 @@ public class Voice implements Comparable<Voice> {
 			return -1;
 		}
 		
-		int result = notes.size() - o.notes.size();
+		int result = numNotes - o.numNotes;
 		if (result != 0) {
 			return result;
 		}
 		
-		for (int i = notes.size() - 1; i >= 0; i--) {
-			result = notes.get(i).compareTo(o.notes.get(i));
+		// Stop once the voices share their history
+		for (Voice node = this, other = o; node != other; node = node.previous, other = other.previous) {
+			result = node.mostRecentNote.compareTo(other.mostRecentNote);
 			if (result != 0) {
 				return result;
 			}
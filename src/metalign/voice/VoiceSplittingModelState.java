@@ -3,7 +3,6 @@ package metalign.voice;
 import java.util.List;
 import java.util.TreeSet;
 
-import metalign.Main;
 import metalign.generic.MidiModelState;
 import metalign.utils.MidiNote;
 
@@ -29,14 +28,16 @@ public abstract class VoiceSplittingModelState extends MidiModelState {
 	public abstract TreeSet<? extends VoiceSplittingModelState> close();
 	
 	/**
-	 * Test if we should remove the given note based on {@link Main#MIN_NOTE_LENGTH}.
+	 * Test if we should remove the given note based on the given minimum note length.
 	 * 
 	 * @param note The note we want to check for removal.
+	 * @param minNoteLength The minimum length of a note, once extended, or -1 to keep all notes
+	 * (see {@link metalign.RunConfiguration#MIN_NOTE_LENGTH}).
 	 * @return True if it should be removed. False otherwise.
 	 */
-	public boolean shouldRemove(MidiNote note) {
+	public boolean shouldRemove(MidiNote note, int minNoteLength) {
 		// Keep all notes
-		if (Main.MIN_NOTE_LENGTH == -1) {
+		if (minNoteLength == -1) {
 			return false;
 		}
 		
@@ -54,7 +55,7 @@ public abstract class VoiceSplittingModelState extends MidiModelState {
 				}
 				
 				// Check IOI b/w previous note and this note
-				if (note.getOnsetTime() - previousNote.getOnsetTime() < Main.MIN_NOTE_LENGTH) {
+				if (note.getOnsetTime() - previousNote.getOnsetTime() < minNoteLength) {
 					return true;
 				}
 				return false;
@@ -72,6 +73,16 @@ public abstract class VoiceSplittingModelState extends MidiModelState {
 	 */
 	public abstract boolean isDuplicateOf(VoiceSplittingModelState state);
 	
+	/**
+	 * Get a hash such that any two states which are {@link #isDuplicateOf(VoiceSplittingModelState)} each other
+	 * have the same hash. By default, this is the same for all states.
+	 * 
+	 * @return The duplicate hash of this state.
+	 */
+	public int getDuplicateHash() {
+		return 0;
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("[");
@@ -27,6 +27,18 @@ public class FromFileVoiceSplittingModelState extends VoiceSplittingModelState {
 	 */
 	private List<Voice> voices;
 	
+	/**
+	 * The nodes of each of the {@link #voices}, in chronological order.
+	 */
+	private List<Voice[]> voiceNodes;
+	
+	/**
+	 * For each voice, the number of its nodes which have onset times no later than
+	 * {@link #mostRecentTime}. Since this state is shared through time, and {@link #mostRecentTime}
+	 * only increases, these only move forwards.
+	 */
+	private int[] cursors;
+	
 	/**
 	 * The most recent time for which we have seen a note onset so far, initially 0.
 	 */
@@ -64,19 +76,31 @@ public class FromFileVoiceSplittingModelState extends VoiceSplittingModelState {
 				voices.add(newVoice);
 			}
 		}
+		
+		voiceNodes = new ArrayList<Voice[]>(voices.size());
+		for (Voice voice : voices) {
+			Voice[] nodes = new Voice[voice.getNumNotes()];
+			for (int i = nodes.length - 1; i >= 0; i--) {
+				nodes[i] = voice;
+				voice = voice.getPrevious();
+			}
+			voiceNodes.add(nodes);
+		}
+		cursors = new int[voices.size()];
 	}
 
 	@Override
-	public List<Voice> getVoices() {
+	public synchronized List<Voice> getVoices() {
 		List<Voice> currentVoices = new ArrayList<Voice>();
 		
-		for (Voice voice : voices) {
-			while (voice != null && voice.getMostRecentNote().getOnsetTime() > mostRecentTime) {
-				voice = voice.getPrevious();
+		for (int i = 0; i < cursors.length; i++) {
+			Voice[] nodes = voiceNodes.get(i);
+			while (cursors[i] < nodes.length && nodes[cursors[i]].getMostRecentNote().getOnsetTime() <= mostRecentTime) {
+				cursors[i]++;
 			}
 			
-			if (voice != null) {
-				currentVoices.add(voice);
+			if (cursors[i] > 0) {
+				currentVoices.add(nodes[cursors[i] - 1]);
 			}
 		}
 		
@@ -1,7 +1,13 @@
 package metalign.voice.hmm;
 
+import java.io.PrintStream;
+import java.util.Properties;
+
+import metalign.HmmParameters;
+
 /**
- * The parameters to use for an {@link HmmVoiceSplittingModelState}.
+ * The parameters to use for an {@link HmmVoiceSplittingModelState}. These can be loaded from a parameter
+ * file (see {@link HmmParameters}).
  * 
  * @author Andrew McLeod - 13 April, 2015
  */
@@ -39,6 +45,11 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 	 */
 	public final int BEAM_SIZE;
 	
+	/**
+	 * The log of {@link #NEW_VOICE_PROBABILITY}.
+	 */
+	public final double LOG_NEW_VOICE_PROBABILITY;
+	
 	/**
 	 * Create a new params object with the given values.
 	 * 
@@ -56,6 +67,24 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 		GAP_STD_MICROS = GSM;
 		PITCH_STD = PS;
 		MIN_GAP_SCORE = MGS;
+		
+		LOG_NEW_VOICE_PROBABILITY = Math.log(NEW_VOICE_PROBABILITY);
+	}
+	
+	/**
+	 * Create new params with the values given in the given properties, each keyed by its field name.
+	 * 
+	 * @param properties The properties, loaded from a parameter file.
+	 * @param defaults The params whose values to use for any parameter not given.
+	 * @throws IllegalArgumentException If any given value is not a number.
+	 */
+	public HmmVoiceSplittingModelParameters(Properties properties, HmmVoiceSplittingModelParameters defaults) {
+		this(HmmParameters.getInt(properties, "BEAM_SIZE", defaults.BEAM_SIZE),
+				HmmParameters.getDouble(properties, "NEW_VOICE_PROBABILITY", defaults.NEW_VOICE_PROBABILITY),
+				HmmParameters.getInt(properties, "PITCH_HISTORY_LENGTH", defaults.PITCH_HISTORY_LENGTH),
+				HmmParameters.getDouble(properties, "GAP_STD_MICROS", defaults.GAP_STD_MICROS),
+				HmmParameters.getDouble(properties, "PITCH_STD", defaults.PITCH_STD),
+				HmmParameters.getDouble(properties, "MIN_GAP_SCORE", defaults.MIN_GAP_SCORE));
 	}
 	
 	/**
@@ -74,6 +103,21 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 		this(25, 3E-8, 6, 806000, 6, 0.01);
 	}
 	
+	/**
+	 * Print these parameters to the given stream, one per line, in the parameter file format
+	 * (see {@link HmmParameters}).
+	 * 
+	 * @param out The stream to print to.
+	 */
+	public void print(PrintStream out) {
+		out.println("BEAM_SIZE = " + BEAM_SIZE);
+		out.println("NEW_VOICE_PROBABILITY = " + NEW_VOICE_PROBABILITY);
+		out.println("PITCH_HISTORY_LENGTH = " + PITCH_HISTORY_LENGTH);
+		out.println("GAP_STD_MICROS = " + GAP_STD_MICROS);
+		out.println("PITCH_STD = " + PITCH_STD);
+		out.println("MIN_GAP_SCORE = " + MIN_GAP_SCORE);
+	}
+	
 	@Override
 	public boolean equals(Object other) {
 		if (!(other instanceof HmmVoiceSplittingModelParameters)) {
@@ -314,7 +314,7 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState {
 		// point to that new Voice so the lower code works.
 		if (transition < 0) {
 			transition = -transition - 1;
-			logProb = Math.log(params.NEW_VOICE_PROBABILITY);
+			logProb = params.LOG_NEW_VOICE_PROBABILITY;
 			prev = transition == 0 ? null : newVoices.get(transition - 1);
 			next = transition == newVoices.size() ? null : newVoices.get(transition);
 			
@@ -361,6 +361,17 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState {
 		return true;
 	}
 	
+	@Override
+	public int getDuplicateHash() {
+		int hash = voices.size();
+		
+		for (Voice voice : voices) {
+			hash = 31 * hash + System.identityHashCode(voice);
+		}
+		
+		return hash;
+	}
+	
 	@Override
 	public List<Voice> getVoices() {
 		return voices;